@@ -153,6 +153,13 @@ public final class KnownKey {
         return LC.get(key);
     }
 
+    /**
+     * Whether the value has been changed from the default, e.g. in localconfig.xml.
+     */
+    public boolean isChanged() {
+        return !value().equals(defaultValue);
+    }
+
     public boolean booleanValue() {
         assert key != null;
         String s = LC.get(key);
@@ -154,7 +154,9 @@ public final class LC {
 
     @Supported
     public static final KnownKey zimbra_mailbox_manager_hardref_cache = KnownKey.newKey(2500);
+    public static final KnownKey zimbra_mailbox_manager_cache_stripes = KnownKey.newKey(16);
 
+    // deprecated item counts, only used to derive the *_cache_bytes budgets below if those are left at their defaults
     @Supported
     public static final KnownKey zimbra_mailbox_active_cache = KnownKey.newKey(500);
 
@@ -164,6 +166,26 @@ public final class LC {
     @Supported
     public static final KnownKey zimbra_mailbox_galsync_cache = KnownKey.newKey(10000);
 
+    public static final KnownKey zimbra_mailbox_active_cache_bytes = KnownKey.newKey(1024 * 1024);
+    public static final KnownKey zimbra_mailbox_inactive_cache_bytes = KnownKey.newKey(64 * 1024);
+    public static final KnownKey zimbra_mailbox_galsync_cache_bytes = KnownKey.newKey(16 * 1024 * 1024);
+
+    public static final KnownKey zimbra_metadata_indexed_encoding = KnownKey.newKey(false);
+    public static final KnownKey zimbra_metadata_migration_enabled = KnownKey.newKey(false);
+    public static final KnownKey zimbra_metadata_migration_batch_size = KnownKey.newKey(500);
+    public static final KnownKey zimbra_metadata_migration_sleep_ms = KnownKey.newKey(1000);
+    public static final KnownKey zimbra_flag_batch_chunk_size = KnownKey.newKey(1000);
+    public static final KnownKey zimbra_blob_zero_copy_enabled = KnownKey.newKey(true);
+    public static final KnownKey zimbra_blob_zero_copy_min_size = KnownKey.newKey(65536);
+    public static final KnownKey zimbra_blob_inline_dedupe = KnownKey.newKey(false);
+    public static final KnownKey zimbra_blob_inline_dedupe_min_size = KnownKey.newKey(32768);
+    public static final KnownKey zimbra_blob_inline_dedupe_index_size = KnownKey.newKey(10000);
+    public static final KnownKey zimbra_pack_store_directory = KnownKey.newKey("${zimbra_store_directory}/pack");
+    public static final KnownKey zimbra_pack_store_max_blob_size = KnownKey.newKey(16384);
+    public static final KnownKey zimbra_pack_store_segment_size = KnownKey.newKey(256L * 1024 * 1024);
+    public static final KnownKey zimbra_pack_store_compact_interval = KnownKey.newKey(Constants.MILLIS_PER_HOUR);
+    public static final KnownKey zimbra_pack_store_compact_dead_percent = KnownKey.newKey(50);
+
     @Supported
     public static final KnownKey zimbra_mailbox_change_checkpoint_frequency = KnownKey.newKey(100);
 
@@ -181,6 +203,9 @@ public final class LC {
     @Supported
     public static final KnownKey zimbra_reindex_threads = KnownKey.newKey(10);
 
+    public static final KnownKey zimbra_reindex_extract_threads = KnownKey.newKey(4);
+    public static final KnownKey zimbra_reindex_queue_size = KnownKey.newKey(200);
+
     @Supported
     public static final KnownKey zimbra_index_max_readers = KnownKey.newKey(35);
 
@@ -196,6 +221,36 @@ public final class LC {
     @Supported
     public static final KnownKey zimbra_index_reader_cache_ttl = KnownKey.newKey(300);
 
+    public static final KnownKey zimbra_index_nrt_enabled = KnownKey.newKey(false);
+    public static final KnownKey zimbra_index_nrt_refresh_ms = KnownKey.newKey(1000);
+    public static final KnownKey zimbra_index_nrt_refresh_docs = KnownKey.newKey(50);
+    public static final KnownKey zimbra_index_nrt_commit_interval_ms = KnownKey.newKey(Constants.MILLIS_PER_MINUTE);
+    public static final KnownKey zimbra_index_nrt_commit_docs = KnownKey.newKey(1000);
+    public static final KnownKey zimbra_index_nrt_commit_threads = KnownKey.newKey(2);
+
+    public static final KnownKey zimbra_index_merge_threads = KnownKey.newKey(2);
+    public static final KnownKey zimbra_index_merge_max_kb_per_sec = KnownKey.newKey(0);
+    public static final KnownKey zimbra_index_merge_quiet_hours = KnownKey.newKey("");
+    public static final KnownKey zimbra_index_merge_urgent_commits = KnownKey.newKey(100);
+
+    public static final KnownKey zimbra_search_result_cache_enabled = KnownKey.newKey(false);
+    public static final KnownKey zimbra_search_result_cache_max_kb = KnownKey.newKey(256);
+    public static final KnownKey zimbra_search_result_cache_window = KnownKey.newKey(250);
+    public static final KnownKey zimbra_search_result_cache_ttl_ms = KnownKey.newKey(5 * Constants.MILLIS_PER_MINUTE);
+
+    public static final KnownKey zimbra_extracted_text_cache_enabled = KnownKey.newKey(false);
+    public static final KnownKey zimbra_extracted_text_cache_min_size = KnownKey.newKey(2048);
+    public static final KnownKey zimbra_extracted_text_cache_memory_kb = KnownKey.newKey(8192);
+    public static final KnownKey zimbra_extracted_text_cache_disk_mb = KnownKey.newKey(1024);
+    public static final KnownKey zimbra_extracted_text_cache_directory = KnownKey.newKey("${zimbra_tmp_directory}/textcache");
+
+    public static final KnownKey zimbra_index_term_dictionary_enabled = KnownKey.newKey(true);
+    public static final KnownKey zimbra_index_term_dictionary_memory_kb = KnownKey.newKey(65536);
+
+    public static final KnownKey zimbra_index_elasticsearch_bulk_max_actions = KnownKey.newKey(500);
+    public static final KnownKey zimbra_index_elasticsearch_bulk_max_kb = KnownKey.newKey(5120);
+    public static final KnownKey zimbra_index_elasticsearch_bulk_max_delay_ms = KnownKey.newKey(20);
+
     @Supported
     public static final KnownKey zimbra_index_deferred_items_failure_delay = KnownKey.newKey(300);
 
@@ -696,6 +751,15 @@ public final class LC {
     public static final KnownKey imap_throttle_acct_limit = KnownKey.newKey(5000);
     public static final KnownKey imap_throttle_command_limit = KnownKey.newKey(25);
     public static final KnownKey imap_throttle_fetch = KnownKey.newKey(true);
+    // zlib level (0-9, -1 for the zlib default) for COMPRESS=DEFLATE, on client connections and the proxy upstream
+    public static final KnownKey imap_compress_level = KnownKey.newKey(-1);
+    public static final KnownKey imap_proxy_compress = KnownKey.newKey(false);
+    // FETCH read-ahead: messages in flight, shared worker threads, and per-session cap on content held in memory
+    public static final KnownKey imap_fetch_prefetch_depth = KnownKey.newKey(8);
+    public static final KnownKey imap_fetch_prefetch_threads = KnownKey.newKey(16);
+    public static final KnownKey imap_fetch_prefetch_max_kb = KnownKey.newKey(8192);
+    // BODYSTRUCTURE and ENVELOPE rendered at delivery are only stored with the message up to this size; 0 disables
+    public static final KnownKey imap_precomputed_structure_max_bytes = KnownKey.newKey(16384);
     public static final KnownKey data_source_imap_reuse_connections = KnownKey.newKey(false);
 
     @Supported
@@ -813,6 +877,7 @@ public final class LC {
 
     public static final KnownKey search_disable_database_hints = KnownKey.newKey(false);
     public static final KnownKey search_dbfirst_term_percentage_cutoff = KnownKey.newKey(0.8F);
+    public static final KnownKey search_explain_plan = KnownKey.newKey(false);
     public static final KnownKey search_tagged_item_count_join_query_cutoff = KnownKey.newKey(1000); //beyond this limit server will not use join in the query while fetching unread items
 
     public static final KnownKey zmstat_interval = KnownKey.newKey(30);
@@ -42,13 +42,27 @@ public final class BEncoding {
         return encode(new StringBuilder(), object).toString();
     }
 
+    /** Appends the encoding of a single value, which may also be a scalar, to {@code sb}. */
+    public static StringBuilder encodeValue(StringBuilder sb, Object object) {
+        return encode(sb, object);
+    }
+
     public static <T> T decode(String data) throws BEncodingException {
+        if (data == null)
+            return null;
+        return decode(data, 0, data.length());
+    }
+
+    /** Decodes the single value encoded in {@code data} between {@code start} (inclusive) and {@code end}. */
+    public static <T> T decode(String data, int start, int end) throws BEncodingException {
         if (data == null)
             return null;
         try {
+            char[] buffer = new char[end - start];
+            data.getChars(start, end, buffer, 0);
             Offset offset = new Offset();
-            Object result = decode(data.toCharArray(), offset);
-            if (offset.offset != data.length()) {
+            Object result = decode(buffer, offset);
+            if (offset.offset != buffer.length) {
                 throw new BEncodingException("extra characters at end of encoded string");
             }
             @SuppressWarnings("unchecked")
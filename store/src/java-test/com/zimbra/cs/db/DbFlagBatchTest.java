@@ -0,0 +1,110 @@
+/*
+ * ***** BEGIN LICENSE BLOCK *****
+ * Zimbra Collaboration Suite Server
+ * Copyright (C) 2016 Synacor, Inc.
+ *
+ * This program is free software: you can redistribute it and/or modify it under
+ * the terms of the GNU General Public License as published by the Free Software Foundation,
+ * version 2 of the License.
+ *
+ * This program is distributed in the hope that it will be useful, but WITHOUT ANY WARRANTY;
+ * without even the implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.
+ * See the GNU General Public License for more details.
+ * You should have received a copy of the GNU General Public License along with this program.
+ * If not, see <https://www.gnu.org/licenses/>.
+ * ***** END LICENSE BLOCK *****
+ */
+package com.zimbra.cs.db;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+
+import org.junit.After;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.BeforeClass;
+import org.junit.Test;
+
+import com.zimbra.cs.account.MockProvisioning;
+import com.zimbra.cs.account.Provisioning;
+import com.zimbra.cs.db.DbPool.DbConnection;
+import com.zimbra.cs.mailbox.DeliveryOptions;
+import com.zimbra.cs.mailbox.Flag;
+import com.zimbra.cs.mailbox.MailItem;
+import com.zimbra.cs.mailbox.Mailbox;
+import com.zimbra.cs.mailbox.MailboxManager;
+import com.zimbra.cs.mailbox.MailboxTestUtil;
+
+public final class DbFlagBatchTest {
+
+    @BeforeClass
+    public static void init() throws Exception {
+        MailboxTestUtil.initServer();
+        Provisioning prov = Provisioning.getInstance();
+        prov.createAccount("test@zimbra.com", "secret", new HashMap<String, Object>());
+    }
+
+    private DbConnection conn = null;
+    private Mailbox mbox = null;
+
+    @Before
+    public void setUp() throws Exception {
+        MailboxTestUtil.clearData();
+        mbox = MailboxManager.getInstance().getMailboxByAccountId(MockProvisioning.DEFAULT_ACCOUNT_ID);
+        conn = DbPool.getConnection(mbox);
+    }
+
+    @After
+    public void tearDown() {
+        conn.closeQuietly();
+    }
+
+    @Test
+    public void chunk() throws Exception {
+        List<DbFlagBatch.IdChunk> chunks = DbFlagBatch.chunk(Arrays.asList(9, 3, 4, 5, 6, 7, 11, 12, 7));
+        Assert.assertEquals(1, chunks.size());
+        DbFlagBatch.IdChunk chunk = chunks.get(0);
+        Assert.assertEquals(Arrays.asList(3, 4, 5, 6, 7, 9, 11, 12), chunk.getIds());
+        Assert.assertEquals("(id BETWEEN ? AND ? OR " + DbUtil.whereIn("id", 3) + ")", chunk.where("id"));
+        Assert.assertEquals(5, chunk.getParameterCount());
+    }
+
+    private int[] addMessages(int count) throws Exception {
+        DeliveryOptions dopt = new DeliveryOptions().setFolderId(Mailbox.ID_FOLDER_INBOX).setFlags(Flag.BITMASK_UNREAD);
+        int[] ids = new int[count];
+        for (int i = 0; i < count; i++) {
+            ids[i] = mbox.addMessage(null, MailboxTestUtil.generateMessage("test " + i), dopt, null).getId();
+        }
+        return ids;
+    }
+
+    private int countRows(String condition) throws Exception {
+        return DbUtil.executeQuery(conn, "SELECT COUNT(*) FROM mboxgroup1.mail_item WHERE mailbox_id = ? AND type = ? AND " +
+                condition, mbox.getId(), MailItem.Type.MESSAGE.toByte()).getInt(1);
+    }
+
+    @Test
+    public void batchedFlags() throws Exception {
+        int[] ids = addMessages(6);
+        Assert.assertEquals(6, countRows("unread = 1"));
+
+        mbox.alterTag(null, ids, MailItem.Type.MESSAGE, Flag.FlagInfo.UNREAD, false, null);
+        Assert.assertEquals(0, countRows("unread = 1"));
+
+        mbox.alterTag(null, ids, MailItem.Type.MESSAGE, Flag.FlagInfo.FLAGGED, true, null);
+        List<Integer> unflag = new ArrayList<Integer>();
+        unflag.add(ids[1]);
+        unflag.add(ids[4]);
+        mbox.alterTag(null, new int[] { ids[1], ids[4] }, MailItem.Type.MESSAGE, Flag.FlagInfo.FLAGGED, false, null);
+        Assert.assertEquals(4, countRows(Db.getInstance().bitAND("flags", String.valueOf(Flag.BITMASK_FLAGGED)) + " <> 0"));
+
+        mbox.purge(MailItem.Type.UNKNOWN);
+        for (int id : ids) {
+            MailItem item = mbox.getItemById(null, id, MailItem.Type.MESSAGE);
+            Assert.assertFalse(item.isUnread());
+            Assert.assertEquals(!unflag.contains(id), item.isTagged(Flag.FlagInfo.FLAGGED));
+        }
+    }
+}
@@ -0,0 +1,151 @@
+/*
+ * ***** BEGIN LICENSE BLOCK *****
+ * Zimbra Collaboration Suite Server
+ * Copyright (C) 2016 Synacor, Inc.
+ *
+ * This program is free software: you can redistribute it and/or modify it under
+ * the terms of the GNU General Public License as published by the Free Software Foundation,
+ * version 2 of the License.
+ *
+ * This program is distributed in the hope that it will be useful, but WITHOUT ANY WARRANTY;
+ * without even the implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.
+ * See the GNU General Public License for more details.
+ * You should have received a copy of the GNU General Public License along with this program.
+ * If not, see <https://www.gnu.org/licenses/>.
+ * ***** END LICENSE BLOCK *****
+ */
+package com.zimbra.cs.imap;
+
+import java.util.Arrays;
+
+import org.junit.After;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.BeforeClass;
+import org.junit.Test;
+
+import com.google.common.base.Strings;
+import com.zimbra.common.localconfig.LC;
+import com.zimbra.cs.account.MockProvisioning;
+import com.zimbra.cs.mailbox.MailItem;
+import com.zimbra.cs.mailbox.Mailbox;
+import com.zimbra.cs.mailbox.MailboxManager;
+import com.zimbra.cs.mailbox.MailboxTest;
+import com.zimbra.cs.mailbox.MailboxTestUtil;
+import com.zimbra.cs.mailbox.Message;
+import com.zimbra.cs.mime.ParsedMessage;
+
+/**
+ * Unit test for {@link ImapFetchPrefetcher}.
+ */
+public final class ImapFetchPrefetcherTest {
+    private Mailbox mbox;
+
+    @BeforeClass
+    public static void init() throws Exception {
+        MailboxTestUtil.initServer();
+    }
+
+    @Before
+    public void setUp() throws Exception {
+        MailboxTestUtil.clearData();
+        mbox = MailboxManager.getInstance().getMailboxByAccountId(MockProvisioning.DEFAULT_ACCOUNT_ID);
+    }
+
+    @After
+    public void tearDown() throws Exception {
+        LC.imap_fetch_prefetch_depth.setDefault(8);
+        LC.imap_fetch_prefetch_max_kb.setDefault(8192);
+        MailboxTestUtil.clearData();
+    }
+
+    @Test
+    public void memoryCap() throws Exception {
+        LC.imap_fetch_prefetch_max_kb.setDefault(1);
+        ImapMessage small = new ImapMessage(addMessage(100));
+        ImapMessage large = new ImapMessage(addMessage(2048));
+
+        ImapFetchPrefetcher prefetcher = create(small, large);
+        ImapFetchPrefetcher.Prefetched prefetched = prefetcher.get(small);
+        Assert.assertNotNull(prefetched);
+        Assert.assertNotNull(prefetched.content);
+        prefetched = prefetcher.get(large);
+        Assert.assertNotNull(prefetched);
+        Assert.assertNotNull("item is still loaded", prefetched.item);
+        Assert.assertNull("content doesn't fit", prefetched.content);
+        Assert.assertEquals(0, prefetcher.getReservedBytes());
+        prefetcher.close();
+    }
+
+    @Test
+    public void skipped() throws Exception {
+        Message msg1 = addMessage(100);
+        Message msg2 = addMessage(200);
+        Message msg3 = addMessage(300);
+        Message msg4 = addMessage(400);
+        ImapMessage i4msg1 = new ImapMessage(msg1);
+        ImapMessage expunged = new ImapMessage(msg2).setExpunged(true);
+        ImapMessage i4msg3 = new ImapMessage(msg3);
+        ImapMessage i4msg4 = new ImapMessage(msg4);
+
+        ImapFetchPrefetcher prefetcher = create(i4msg1, expunged, i4msg3, i4msg4);
+        awaitReserved(prefetcher, msg1.getSize() + msg3.getSize() + msg4.getSize());
+        Assert.assertNull("expunged messages are not prefetched", prefetcher.get(expunged));
+
+        ImapFetchPrefetcher.Prefetched prefetched = prefetcher.get(i4msg3);
+        Assert.assertNotNull(prefetched);
+        Assert.assertEquals(msg3.getId(), prefetched.item.getIdInMailbox());
+        Assert.assertEquals("skipped message released", msg4.getSize(), prefetcher.getReservedBytes());
+        Assert.assertNull("skipped message dropped", prefetcher.get(i4msg1));
+
+        Assert.assertNotNull(prefetcher.get(i4msg4));
+        Assert.assertEquals(0, prefetcher.getReservedBytes());
+        prefetcher.close();
+    }
+
+    @Test
+    public void failed() throws Exception {
+        Message msg = addMessage(100);
+        ImapMessage i4msg = new ImapMessage(msg);
+        ImapMessage missing = new ImapMessage(msg.getId() + 1000, MailItem.Type.MESSAGE, msg.getImapUid() + 1000, 0,
+                null);
+
+        ImapFetchPrefetcher prefetcher = create(missing, i4msg);
+        Assert.assertNull("caller falls back to loading the message itself", prefetcher.get(missing));
+        ImapFetchPrefetcher.Prefetched prefetched = prefetcher.get(i4msg);
+        Assert.assertNotNull(prefetched);
+        Assert.assertNotNull(prefetched.content);
+        Assert.assertEquals(0, prefetcher.getReservedBytes());
+        prefetcher.close();
+    }
+
+    @Test
+    public void close() throws Exception {
+        Message msg1 = addMessage(100);
+        Message msg2 = addMessage(200);
+        Message msg3 = addMessage(300);
+
+        ImapFetchPrefetcher prefetcher = create(new ImapMessage(msg1), new ImapMessage(msg2), new ImapMessage(msg3));
+        awaitReserved(prefetcher, msg1.getSize() + msg2.getSize() + msg3.getSize());
+        prefetcher.close();
+        Assert.assertEquals(0, prefetcher.getReservedBytes());
+    }
+
+    private ImapFetchPrefetcher create(ImapMessage... i4msgs) {
+        return ImapFetchPrefetcher.create(mbox, null, mbox.getAccountId(), Arrays.asList(i4msgs), false, false, true,
+                -1);
+    }
+
+    private Message addMessage(int bodySize) throws Exception {
+        String raw = "From: test@zimbra.com\r\nSubject: prefetch\r\n\r\n" + Strings.repeat("x", bodySize);
+        return mbox.addMessage(null, new ParsedMessage(raw.getBytes(), false), MailboxTest.STANDARD_DELIVERY_OPTIONS,
+                null);
+    }
+
+    private static void awaitReserved(ImapFetchPrefetcher prefetcher, long expected) throws InterruptedException {
+        for (int i = 0; i < 500 && prefetcher.getReservedBytes() != expected; i++) {
+            Thread.sleep(10);
+        }
+        Assert.assertEquals(expected, prefetcher.getReservedBytes());
+    }
+}
@@ -0,0 +1,137 @@
+/*
+ * ***** BEGIN LICENSE BLOCK *****
+ * Zimbra Collaboration Suite Server
+ * Copyright (C) 2016 Synacor, Inc.
+ *
+ * This program is free software: you can redistribute it and/or modify it under
+ * the terms of the GNU General Public License as published by the Free Software Foundation,
+ * version 2 of the License.
+ *
+ * This program is distributed in the hope that it will be useful, but WITHOUT ANY WARRANTY;
+ * without even the implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.
+ * See the GNU General Public License for more details.
+ * You should have received a copy of the GNU General Public License along with this program.
+ * If not, see <https://www.gnu.org/licenses/>.
+ * ***** END LICENSE BLOCK *****
+ */
+package com.zimbra.cs.imap;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.ObjectInputStream;
+import java.io.ObjectOutputStream;
+import java.util.Arrays;
+import java.util.HashMap;
+
+import org.junit.After;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.BeforeClass;
+import org.junit.Test;
+
+import com.zimbra.cs.account.Account;
+import com.zimbra.cs.account.Provisioning;
+import com.zimbra.cs.imap.ImapFlagCache.ImapFlag;
+import com.zimbra.cs.mailbox.Flag;
+import com.zimbra.cs.mailbox.MailItem;
+import com.zimbra.cs.mailbox.MailboxTestUtil;
+
+/**
+ * Unit test for {@link ImapFolderCodec}.
+ */
+public final class ImapFolderCodecTest {
+    private Account acct;
+
+    @BeforeClass
+    public static void init() throws Exception {
+        MailboxTestUtil.initServer();
+    }
+
+    @Before
+    public void setUp() throws Exception {
+        MailboxTestUtil.clearData();
+        HashMap<String, Object> attrs = new HashMap<String, Object>();
+        attrs.put(Provisioning.A_zimbraId, "12aa345b-2b47-44e6-8cb8-7fdfa18c1a9f");
+        acct = Provisioning.getInstance().createAccount("codectest@zimbra.com", "secret", attrs);
+    }
+
+    @After
+    public void tearDown() throws Exception {
+        MailboxTestUtil.clearData();
+    }
+
+    private ImapFolder createFolder() throws Exception {
+        ImapCredentials creds = new ImapCredentials(acct, ImapCredentials.EnabledHack.NONE);
+        ImapFolder i4folder = new ImapFolder(new ImapPath("trash", creds), (byte) 0, null);
+        i4folder.getTagset().cache(new ImapFlag("work", "work", 64, 0, true, true, true));
+        i4folder.cache(new ImapMessage(300, MailItem.Type.MESSAGE, 300, 0, null), false);
+        i4folder.cache(new ImapMessage(301, MailItem.Type.MESSAGE, 301, Flag.BITMASK_UNREAD, new String[] { "work" }),
+                true);
+        i4folder.cache(new ImapMessage(257, MailItem.Type.CONTACT, 450, Flag.BITMASK_FLAGGED, null), false);
+        i4folder.cache(new ImapMessage(451, MailItem.Type.MESSAGE, 100000, 0, new String[] { "work", "home" }), false);
+        i4folder.cache(new ImapMessage(452, MailItem.Type.MESSAGE, 100001, 0, new String[] { "work" }), false);
+        i4folder.markMessageExpunged(i4folder.getByImapId(100000));
+        return i4folder;
+    }
+
+    private static void assertSameContents(ImapFolder expected, ImapFolder actual) {
+        Assert.assertEquals(expected.getItemIdentifier().accountId, actual.getItemIdentifier().accountId);
+        Assert.assertEquals(expected.getId(), actual.getId());
+        Assert.assertEquals(expected.getUIDValidity(), actual.getUIDValidity());
+        Assert.assertEquals(expected.getQuery(), actual.getQuery());
+        Assert.assertEquals(expected.getTypeConstraint(), actual.getTypeConstraint());
+        Assert.assertEquals(expected.getTagset().listNames(false), actual.getTagset().listNames(false));
+        Assert.assertEquals(expected.getSize(), actual.getSize());
+        for (int seq = 1; seq <= expected.getSize(); seq++) {
+            ImapMessage msg1 = expected.getBySequence(seq, true);
+            ImapMessage msg2 = actual.getBySequence(seq, true);
+            Assert.assertEquals(seq, msg2.sequence);
+            Assert.assertEquals(msg1.msgId, msg2.msgId);
+            Assert.assertEquals(msg1.imapUid, msg2.imapUid);
+            Assert.assertEquals(msg1.flags, msg2.flags);
+            Assert.assertEquals(msg1.sflags, msg2.sflags);
+            Assert.assertArrayEquals(msg1.tags, msg2.tags);
+            Assert.assertEquals(msg1.getType(), msg2.getType());
+        }
+    }
+
+    @Test
+    public void roundTrip() throws Exception {
+        ImapFolder i4folder = createFolder();
+        ImapFolder decoded = ImapFolderCodec.decode(ImapFolderCodec.encode(i4folder));
+        assertSameContents(i4folder, decoded);
+        Assert.assertSame(decoded.getByImapId(301), decoded.getById(301));
+        Assert.assertSame(decoded.getByImapId(450), decoded.getById(257));
+        Assert.assertNull(decoded.getByImapId(100000));
+        Assert.assertSame(decoded.getBySequence(2).tags, decoded.getBySequence(5).tags);
+        Assert.assertNotNull(decoded.getTagset().getByZimbraName("work"));
+    }
+
+    @Test
+    public void javaSerialization() throws Exception {
+        ImapFolder i4folder = createFolder();
+        ByteArrayOutputStream bout = new ByteArrayOutputStream();
+        try (ObjectOutputStream out = new ObjectOutputStream(bout)) {
+            out.writeObject(i4folder);
+        }
+        try (ObjectInputStream in = new ObjectInputStream(new ByteArrayInputStream(bout.toByteArray()))) {
+            assertSameContents(i4folder, (ImapFolder) in.readObject());
+        }
+    }
+
+    @Test
+    public void corrupt() throws Exception {
+        byte[] data = ImapFolderCodec.encode(createFolder());
+        try {
+            ImapFolderCodec.decode(new byte[] { 1, 2, 3, 4, 5 });
+            Assert.fail("decoded garbage");
+        } catch (IOException expected) {
+        }
+        try {
+            ImapFolderCodec.decode(Arrays.copyOf(data, data.length - 1));
+            Assert.fail("decoded truncated data");
+        } catch (IOException expected) {
+        }
+    }
+}
@@ -1,5 +1,6 @@
 package com.zimbra.cs.imap;
 
+import java.util.Arrays;
 import java.util.HashMap;
 import java.util.Set;
 
@@ -61,4 +62,50 @@ public class ImapFolderTest {
         Assert.assertNotNull(i4set);
         Assert.assertEquals(3, i4set.size());
     }
-}
\ No newline at end of file
+
+    @Test
+    public void outOfOrderAndExpunge() throws Exception {
+        ImapCredentials creds = new ImapCredentials(acct, ImapCredentials.EnabledHack.NONE);
+        ImapFolder i4folder = new ImapFolder(new ImapPath("trash", creds), (byte) 0, null);
+        for (int uid = 11; uid <= 14; uid += 3) {
+            i4folder.cache(new ImapMessage(uid - 10, Type.MESSAGE, uid, 0, null).setAdded(true), false);
+        }
+        i4folder.cache(new ImapMessage(20, Type.MESSAGE, 12, 0, null), false);
+        i4folder.cache(new ImapMessage(3, Type.MESSAGE, 13, 0, null), false);
+        Assert.assertEquals(4, i4folder.getSize());
+        for (int seq = 1; seq <= 4; seq++) {
+            ImapMessage i4msg = i4folder.getBySequence(seq);
+            Assert.assertEquals(seq, i4msg.sequence);
+            Assert.assertEquals(10 + seq, i4msg.imapUid);
+            Assert.assertSame(i4msg, i4folder.getByImapId(i4msg.imapUid));
+            Assert.assertSame(i4msg, i4folder.getById(i4msg.msgId));
+        }
+        Assert.assertNull(i4folder.getByImapId(15));
+
+        i4folder.markMessageExpunged(i4folder.getById(20));
+        i4folder.markMessageExpunged(i4folder.getByImapId(14));
+        Assert.assertNull(i4folder.getById(20));
+        Assert.assertEquals(Arrays.asList(12), i4folder.collapseExpunged(true));
+        Assert.assertEquals(2, i4folder.getSize());
+        Assert.assertEquals(13, i4folder.getBySequence(2).imapUid);
+        Assert.assertEquals(2, i4folder.getByImapId(13).sequence);
+        Assert.assertNull(i4folder.getByImapId(12));
+    }
+
+    @Test
+    public void internedTags() throws Exception {
+        ImapCredentials creds = new ImapCredentials(acct, ImapCredentials.EnabledHack.NONE);
+        ImapFolder i4folder = new ImapFolder(new ImapPath("trash", creds), (byte) 0, null);
+        ImapMessage first = new ImapMessage(1, Type.MESSAGE, 1, 0, new String[] { "red", "blue" });
+        ImapMessage second = new ImapMessage(2, Type.MESSAGE, 2, 0, new String[] { "red", "blue" });
+        ImapMessage third = new ImapMessage(3, Type.MESSAGE, 3, 0, new String[] { "red" });
+        i4folder.cache(first, false);
+        i4folder.cache(second, false);
+        i4folder.cache(third, false);
+        Assert.assertSame(first.tags, second.tags);
+        Assert.assertNotSame(first.tags, third.tags);
+
+        third.setPermanentFlags(0, new String[] { "red", "blue" }, 1, i4folder);
+        Assert.assertSame(first.tags, third.tags);
+    }
+}
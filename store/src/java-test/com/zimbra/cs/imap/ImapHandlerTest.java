@@ -3,9 +3,13 @@ package com.zimbra.cs.imap;
 import static org.junit.Assert.assertEquals;
 import static org.junit.Assert.fail;
 
+import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.HashMap;
 import java.util.List;
+import java.util.Map;
+
+import javax.mail.util.SharedByteArrayInputStream;
 
 import org.apache.commons.io.output.ByteArrayOutputStream;
 import org.junit.After;
@@ -19,6 +23,7 @@ import org.junit.rules.TestName;
 import com.zimbra.common.localconfig.LC;
 import com.zimbra.common.mailbox.FolderStore;
 import com.zimbra.common.service.ServiceException;
+import com.zimbra.common.zmime.ZMimeMessage;
 import com.zimbra.cs.account.Account;
 import com.zimbra.cs.account.Provisioning;
 import com.zimbra.cs.mailbox.MailItem;
@@ -27,7 +32,10 @@ import com.zimbra.cs.mailbox.MailboxManager;
 import com.zimbra.cs.mailbox.MailboxTestUtil;
 import com.zimbra.cs.mailbox.Message;
 import com.zimbra.cs.mailbox.SearchFolder;
+import com.zimbra.cs.mime.ImapStructure;
+import com.zimbra.cs.mime.ParsedMessage;
 import com.zimbra.cs.server.ServerThrottle;
+import com.zimbra.cs.util.JMSession;
 import com.zimbra.cs.util.ZTestWatchman;
 import com.zimbra.qa.unittest.TestUtil;
 
@@ -300,4 +308,120 @@ public class ImapHandlerTest {
             return true;
         }
     }
+
+    private static final String STRUCTURE_MESSAGE =
+        "From: Sender <sender@zimbra.com>\r\n" +
+        "To: " + LOCAL_USER + "\r\n" +
+        "Subject: structure\r\n" +
+        "Message-ID: <structure@zimbra.com>\r\n" +
+        "Date: Mon, 3 Oct 2016 10:00:00 -0700\r\n" +
+        "MIME-Version: 1.0\r\n" +
+        "Content-Type: multipart/mixed; boundary=\"b1\"\r\n" +
+        "\r\n" +
+        "--b1\r\n" +
+        "Content-Type: text/plain; charset=us-ascii\r\n" +
+        "\r\n" +
+        "hello\r\n" +
+        "--b1\r\n" +
+        "Content-Type: application/octet-stream; name=a.bin\r\n" +
+        "Content-Transfer-Encoding: base64\r\n" +
+        "Content-Disposition: attachment; filename=a.bin\r\n" +
+        "\r\n" +
+        "AAECAw==\r\n" +
+        "--b1--\r\n";
+
+    /** Adds a message the way mail delivered before BODYSTRUCTURE/ENVELOPE precomputation looks. */
+    private static Message addUnprecomputedMessage(Mailbox mbox) throws Exception {
+        ZMimeMessage mm = new ZMimeMessage(JMSession.getSession(),
+                new SharedByteArrayInputStream(STRUCTURE_MESSAGE.getBytes()));
+        Message msg = TestUtil.addMessage(mbox, new ParsedMessage(mm, false));
+        Assert.assertNull(msg.getImapStructure());
+        return msg;
+    }
+
+    private static String fetchStructure(ImapHandler handler, String sequenceSet) throws Exception {
+        ByteArrayOutputStream baos = (ByteArrayOutputStream) handler.output;
+        baos.reset();
+        Assert.assertTrue(handler.doFETCH("fetchtag", sequenceSet,
+                ImapHandler.FETCH_BODYSTRUCTURE | ImapHandler.FETCH_ENVELOPE, null, false, -1));
+        return baos.toString();
+    }
+
+    private ImapHandler selectInbox(ImapHandler handler, Account acct, Mailbox mbox) throws Exception {
+        ImapCredentials creds = new ImapCredentials(acct, ImapCredentials.EnabledHack.NONE);
+        handler.setCredentials(creds);
+        handler.setSelectedFolder(new MockImapPath(null, mbox.getFolderById(null, Mailbox.ID_FOLDER_INBOX), creds),
+                (byte) 0);
+        return handler;
+    }
+
+    @Test
+    public void testFetchPrecomputedStructure() throws Exception {
+        Account acct = Provisioning.getInstance().getAccount("12aa345b-2b47-44e6-8cb8-7fdfa18c1a9f");
+        Mailbox mbox = MailboxManager.getInstance().getMailboxByAccount(acct);
+        Message msg = TestUtil.addMessage(mbox, new ParsedMessage(STRUCTURE_MESSAGE.getBytes(), false));
+        Assert.assertNotNull(msg.getImapStructure());
+        Assert.assertNotNull(msg.getImapEnvelope());
+
+        // what FETCH renders from the blob when nothing was precomputed
+        String[] rendered = ImapStructure.render(ImapMessage.getMimeMessage(msg));
+        Assert.assertEquals(rendered[0], msg.getImapStructure());
+        Assert.assertEquals(rendered[1], msg.getImapEnvelope());
+
+        String output = fetchStructure(selectInbox(new MockImapHandler(), acct, mbox), "1");
+        Assert.assertTrue(output, output.startsWith(
+                "* 1 FETCH (BODYSTRUCTURE " + rendered[0] + " ENVELOPE " + rendered[1] + ")\r\n"));
+    }
+
+    @Test
+    public void testFetchBackfillStructure() throws Exception {
+        Account acct = Provisioning.getInstance().getAccount("12aa345b-2b47-44e6-8cb8-7fdfa18c1a9f");
+        Mailbox mbox = MailboxManager.getInstance().getMailboxByAccount(acct);
+        Message msg = addUnprecomputedMessage(mbox);
+        int modseq = msg.getModifiedSequence();
+        int changeId = mbox.getLastChangeID();
+
+        ImapHandler handler = selectInbox(new MockImapHandler(), acct, mbox);
+        String output = fetchStructure(handler, "1");
+        String[] rendered = ImapStructure.render(ImapMessage.getMimeMessage(msg));
+        Assert.assertTrue(output, output.startsWith(
+                "* 1 FETCH (BODYSTRUCTURE " + rendered[0] + " ENVELOPE " + rendered[1] + ")\r\n"));
+
+        // stored as derived data: no new change, no modseq bump, so no FETCH/CONDSTORE notifications
+        Assert.assertEquals(changeId, mbox.getLastChangeID());
+        mbox.purge(MailItem.Type.MESSAGE);
+        msg = mbox.getMessageById(null, msg.getId());
+        Assert.assertEquals(rendered[0], msg.getImapStructure());
+        Assert.assertEquals(rendered[1], msg.getImapEnvelope());
+        Assert.assertEquals(modseq, msg.getModifiedSequence());
+
+        Assert.assertEquals(output, fetchStructure(handler, "1"));
+    }
+
+    @Test
+    public void testFetchBackfillBatches() throws Exception {
+        Account acct = Provisioning.getInstance().getAccount("12aa345b-2b47-44e6-8cb8-7fdfa18c1a9f");
+        Mailbox mbox = MailboxManager.getInstance().getMailboxByAccount(acct);
+        List<Integer> ids = new ArrayList<Integer>();
+        for (int i = 0; i <= ImapHandler.BACKFILL_BATCH; i++) {
+            ids.add(addUnprecomputedMessage(mbox).getId());
+        }
+
+        final List<Integer> batches = new ArrayList<Integer>();
+        ImapHandler handler = selectInbox(new MockImapHandler() {
+            @Override
+            void backfillImapStructures(Mailbox mbox, Map<Integer, String[]> structures) {
+                batches.add(structures.size());
+                super.backfillImapStructures(mbox, structures);
+                Assert.assertTrue(structures.isEmpty());
+            }
+        }, acct, mbox);
+        fetchStructure(handler, "1:*");
+        Assert.assertEquals(Arrays.asList(ImapHandler.BACKFILL_BATCH, 1), batches);
+
+        mbox.purge(MailItem.Type.MESSAGE);
+        for (int id : ids) {
+            Assert.assertNotNull(mbox.getMessageById(null, id).getImapStructure());
+        }
+    }
 }
@@ -16,23 +16,45 @@
  */
 package com.zimbra.cs.imap;
 
+import java.io.File;
 import java.io.IOException;
 import java.io.InputStream;
+import java.io.PrintStream;
+import java.io.RandomAccessFile;
+import java.util.HashMap;
 
 import javax.mail.internet.MimeMessage;
 
+import org.apache.mina.core.buffer.IoBuffer;
+import org.apache.mina.core.file.FileRegion;
+import org.apache.mina.core.filterchain.IoFilter;
+import org.apache.mina.core.filterchain.IoFilterAdapter;
+import org.apache.mina.core.service.IoHandlerAdapter;
+import org.apache.mina.core.session.DummySession;
+import org.apache.mina.core.session.IoSession;
 import org.junit.After;
 import org.junit.Assert;
 import org.junit.Before;
 import org.junit.BeforeClass;
 import org.junit.Test;
 
+import com.google.common.base.Charsets;
+import com.google.common.base.Strings;
+import com.zimbra.common.localconfig.LC;
 import com.zimbra.common.service.ServiceException;
 import com.zimbra.common.util.ByteUtil;
 import com.zimbra.common.util.InputStreamWithSize;
 import com.zimbra.common.zmime.ZMimeMessage;
+import com.zimbra.cs.account.MockProvisioning;
+import com.zimbra.cs.account.Provisioning;
 import com.zimbra.cs.imap.ImapPartSpecifier.BinaryDecodingException;
+import com.zimbra.cs.mailbox.DeliveryOptions;
+import com.zimbra.cs.mailbox.Mailbox;
+import com.zimbra.cs.mailbox.MailboxManager;
 import com.zimbra.cs.mailbox.MailboxTestUtil;
+import com.zimbra.cs.mailbox.Message;
+import com.zimbra.cs.mime.ParsedMessage;
+import com.zimbra.cs.server.NioOutputStream;
 import com.zimbra.cs.util.JMSession;
 
 public class ImapPartSpecifierTest {
@@ -40,6 +62,7 @@ public class ImapPartSpecifierTest {
     @BeforeClass
     public static void init() throws Exception {
         MailboxTestUtil.initServer();
+        Provisioning.getInstance().createAccount("test@zimbra.com", "secret", new HashMap<String, Object>());
     }
 
     @Before
@@ -49,6 +72,7 @@ public class ImapPartSpecifierTest {
 
     @After
     public void tearDown() throws Exception {
+        LC.zimbra_blob_zero_copy_enabled.setDefault(true);
         MailboxTestUtil.clearData();
     }
 
@@ -117,4 +141,122 @@ public class ImapPartSpecifierTest {
         checkBody(mm, "3.3", "MIME", "Content-Type: text/calendar; name=meeting.ics; method=REQUEST; charset=utf-8", "Content-Transfer-Encoding: 7bit");
 
     }
+
+    private static Message addMessage(int bodySize) throws Exception {
+        Mailbox mbox = MailboxManager.getInstance().getMailboxByAccountId(MockProvisioning.DEFAULT_ACCOUNT_ID);
+        String body = Strings.repeat("0123456789abcdefghijklmnopqrstuvwxyzABCDEFGHIJKLMNOPQRSTUVWXYZ!\r\n", bodySize / 66 + 1);
+        byte[] raw = ("From: sender@zimbra.com\r\nTo: test@zimbra.com\r\nSubject: zero copy\r\n\r\n" + body).getBytes();
+        return mbox.addMessage(null, new ParsedMessage(raw, false),
+                new DeliveryOptions().setFolderId(Mailbox.ID_FOLDER_INBOX), null);
+    }
+
+    /**
+     * Writes the part to an NIO session as FETCH does, with {@code filter} on the session if not null.
+     *
+     * @return what the session was sent
+     */
+    private static SessionOutput fetch(ImapPartSpecifier pspec, Message msg, IoFilter filter) throws Exception {
+        DummySession session = new DummySession();
+        if (filter != null) {
+            session.getFilterChain().addFirst("filter", filter);
+        }
+        SessionOutput handler = new SessionOutput(msg.getBlob().getLocalBlob().getFile());
+        session.setHandler(handler);
+        NioOutputStream os = new NioOutputStream(session, 4096, Integer.MAX_VALUE, Integer.MAX_VALUE);
+        PrintStream ps = new PrintStream(os, false, Charsets.UTF_8.name());
+        pspec.write(ps, os, msg);
+        ps.write(')');
+        ps.flush();
+        return handler;
+    }
+
+    /** Same bytes whether or not the blob is sent as a file region. */
+    private static SessionOutput fetchBothWays(ImapPartSpecifier pspec, Message msg) throws Exception {
+        SessionOutput transferred = fetch(pspec, msg, null);
+        LC.zimbra_blob_zero_copy_enabled.setDefault(false);
+        SessionOutput streamed = fetch(pspec, msg, null);
+        LC.zimbra_blob_zero_copy_enabled.setDefault(true);
+        Assert.assertEquals(0, streamed.regions);
+        Assert.assertEquals(streamed.toString(), transferred.toString());
+        return transferred;
+    }
+
+    @Test
+    public void transfer() throws Exception {
+        Message msg = addMessage(100 * 1024);
+        SessionOutput out = fetchBothWays(new ImapPartSpecifier("BODY", "", ""), msg);
+        Assert.assertEquals(1, out.regions);
+        Assert.assertTrue(out.toString(), out.toString().startsWith("BODY[] {" + msg.getSize() + "}\r\nFrom: "));
+
+        out = fetchBothWays(new ImapPartSpecifier("RFC822", "", ""), msg);
+        Assert.assertEquals(1, out.regions);
+
+        out = fetchBothWays(new ImapPartSpecifier("BODY", "", "", 100, 1000), msg);
+        Assert.assertEquals(1, out.regions);
+        Assert.assertTrue(out.toString(), out.toString().startsWith("BODY[]<100> {1000}\r\n"));
+    }
+
+    @Test
+    public void transferFallback() throws Exception {
+        Message msg = addMessage(100 * 1024);
+        ImapPartSpecifier pspec = new ImapPartSpecifier("BODY", "", "");
+        String expected = fetch(pspec, msg, null).toString();
+
+        // a filter that has to see the bytes, as TLS, SASL and COMPRESS do
+        SessionOutput out = fetch(pspec, msg, new IoFilterAdapter());
+        Assert.assertEquals(0, out.regions);
+        Assert.assertEquals(expected, out.toString());
+
+        out = fetch(new ImapPartSpecifier("BINARY", "", ""), msg, null);
+        Assert.assertEquals(0, out.regions);
+
+        out = fetch(new ImapPartSpecifier("BODY", "1", ""), msg, null);
+        Assert.assertEquals(0, out.regions);
+
+        msg = addMessage(1024);
+        Assert.assertTrue(msg.getSize() < LC.zimbra_blob_zero_copy_min_size.longValue());
+        out = fetchBothWays(pspec, msg);
+        Assert.assertEquals(0, out.regions);
+    }
+
+    /**
+     * Collects what is sent to a session.  File regions are read back from the blob, as their channel has been closed
+     * by the time they are reported sent.
+     */
+    private static final class SessionOutput extends IoHandlerAdapter {
+        private final File file;
+        private final StringBuilder out = new StringBuilder();
+        int regions = 0;
+
+        SessionOutput(File file) {
+            this.file = file;
+        }
+
+        @Override
+        public void messageSent(IoSession session, Object message) throws IOException {
+            byte[] b;
+            if (message instanceof FileRegion) {
+                regions++;
+                FileRegion region = (FileRegion) message;
+                b = new byte[(int) region.getWrittenBytes()];
+                RandomAccessFile raf = new RandomAccessFile(file, "r");
+                try {
+                    raf.seek(region.getPosition() - region.getWrittenBytes());
+                    raf.readFully(b);
+                } finally {
+                    raf.close();
+                }
+            } else {
+                IoBuffer buf = (IoBuffer) message;
+                b = new byte[buf.remaining()];
+                buf.get(b);
+            }
+            out.append(new String(b, Charsets.ISO_8859_1));
+        }
+
+        @Override
+        public String toString() {
+            return out.toString();
+        }
+    }
 }
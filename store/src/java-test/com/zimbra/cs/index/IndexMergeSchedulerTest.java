@@ -0,0 +1,131 @@
+/*
+ * ***** BEGIN LICENSE BLOCK *****
+ * Zimbra Collaboration Suite Server
+ * Copyright (C) 2016 Synacor, Inc.
+ *
+ * This program is free software: you can redistribute it and/or modify it under
+ * the terms of the GNU General Public License as published by the Free Software Foundation,
+ * version 2 of the License.
+ *
+ * This program is distributed in the hope that it will be useful, but WITHOUT ANY WARRANTY;
+ * without even the implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.
+ * See the GNU General Public License for more details.
+ * You should have received a copy of the GNU General Public License along with this program.
+ * If not, see <https://www.gnu.org/licenses/>.
+ * ***** END LICENSE BLOCK *****
+ */
+package com.zimbra.cs.index;
+
+import java.util.Calendar;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import org.junit.After;
+import org.junit.Assert;
+import org.junit.BeforeClass;
+import org.junit.Test;
+
+import com.zimbra.common.localconfig.LC;
+import com.zimbra.cs.mailbox.MailboxTestUtil;
+
+/**
+ * Unit test for {@link IndexMergeScheduler}.
+ */
+public final class IndexMergeSchedulerTest {
+
+    @BeforeClass
+    public static void init() throws Exception {
+        MailboxTestUtil.initServer();
+    }
+
+    @After
+    public void tearDown() {
+        LC.zimbra_index_merge_quiet_hours.setDefault("");
+        LC.zimbra_index_merge_urgent_commits.setDefault(100);
+    }
+
+    @Test
+    public void quietHours() {
+        int hour = Calendar.getInstance().get(Calendar.HOUR_OF_DAY);
+        Assert.assertTrue(IndexMergeScheduler.isQuietHour());
+        LC.zimbra_index_merge_quiet_hours.setDefault(hour + "-" + (hour + 1) % 24);
+        Assert.assertTrue(IndexMergeScheduler.isQuietHour());
+        LC.zimbra_index_merge_quiet_hours.setDefault((hour + 1) % 24 + "-" + (hour + 2) % 24);
+        Assert.assertFalse(IndexMergeScheduler.isQuietHour());
+        // all day but the current hour, and all day from the current hour, mostly wrapping around midnight
+        LC.zimbra_index_merge_quiet_hours.setDefault((hour + 1) % 24 + "-" + hour);
+        Assert.assertFalse(IndexMergeScheduler.isQuietHour());
+        LC.zimbra_index_merge_quiet_hours.setDefault(hour + "-" + (hour + 23) % 24);
+        Assert.assertTrue(IndexMergeScheduler.isQuietHour());
+        LC.zimbra_index_merge_quiet_hours.setDefault("bogus");
+        Assert.assertTrue(IndexMergeScheduler.isQuietHour());
+    }
+
+    @Test
+    public void postponeUntilQuietHours() throws Exception {
+        int hour = Calendar.getInstance().get(Calendar.HOUR_OF_DAY);
+        LC.zimbra_index_merge_quiet_hours.setDefault((hour + 1) % 24 + "-" + (hour + 2) % 24);
+        IndexMergeScheduler scheduler = IndexMergeScheduler.getInstance();
+        int backlog = scheduler.getBacklog();
+
+        MockMerge merge = new MockMerge(Integer.MAX_VALUE);
+        scheduler.submit(merge);
+        Assert.assertTrue(merge.postponed);
+        Assert.assertEquals(backlog + 1, scheduler.getBacklog());
+
+        scheduler.dispatch(); // still outside the quiet hours
+        Assert.assertEquals(backlog + 1, scheduler.getBacklog());
+
+        // the mailbox isn't loaded, so the postponed merge is started and dropped
+        LC.zimbra_index_merge_quiet_hours.setDefault(hour + "-" + (hour + 1) % 24);
+        scheduler.dispatch();
+        Assert.assertEquals(backlog, scheduler.getBacklog());
+        Assert.assertEquals(1, merge.ran.getCount());
+    }
+
+    @Test
+    public void urgentMerge() throws Exception {
+        int hour = Calendar.getInstance().get(Calendar.HOUR_OF_DAY);
+        LC.zimbra_index_merge_quiet_hours.setDefault((hour + 1) % 24 + "-" + (hour + 2) % 24);
+        LC.zimbra_index_merge_urgent_commits.setDefault(2);
+        IndexMergeScheduler scheduler = IndexMergeScheduler.getInstance();
+        int backlog = scheduler.getBacklog();
+
+        MockMerge first = new MockMerge(Integer.MAX_VALUE - 1);
+        scheduler.submit(first);
+        Assert.assertTrue(first.postponed);
+        Assert.assertEquals(backlog + 1, scheduler.getBacklog());
+
+        MockMerge second = new MockMerge(Integer.MAX_VALUE - 1);
+        scheduler.submit(second); // coalesced with the first, enough commits to run right away
+        Assert.assertTrue(second.ran.await(10, TimeUnit.SECONDS));
+        Assert.assertFalse(second.postponed);
+        Assert.assertEquals(backlog, scheduler.getBacklog());
+    }
+
+    private static final class MockMerge implements IndexMergeScheduler.Merge {
+        private final int mailboxId;
+        final CountDownLatch ran = new CountDownLatch(1);
+        volatile boolean postponed = false;
+
+        MockMerge(int mailboxId) {
+            this.mailboxId = mailboxId;
+        }
+
+        @Override
+        public int getMailboxId() {
+            return mailboxId;
+        }
+
+        @Override
+        public void postpone() {
+            postponed = true;
+        }
+
+        @Override
+        public void run() {
+            Assert.assertTrue(IndexMergeScheduler.isMerging());
+            ran.countDown();
+        }
+    }
+}
@@ -16,6 +16,24 @@
  */
 package com.zimbra.cs.index;
 
+import java.util.Collection;
+import java.util.Collections;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+import com.zimbra.common.localconfig.LC;
+import com.zimbra.common.mailbox.ContactConstants;
+import com.zimbra.common.service.ServiceException;
+import com.zimbra.cs.account.MockProvisioning;
+import com.zimbra.cs.db.DbMailItem;
+import com.zimbra.cs.db.DbPool;
+import com.zimbra.cs.db.DbPool.DbConnection;
+import com.zimbra.cs.mailbox.Contact;
+import com.zimbra.cs.mailbox.Mailbox;
+import com.zimbra.cs.mailbox.MailboxManager;
+import com.zimbra.cs.mime.ParsedContact;
+
 /**
  * Unit test for {@link LuceneIndex}.
  */
@@ -27,4 +45,64 @@ public final class LuceneIndexTest extends AbstractIndexStoreTest {
         // Default for LC.zimbra_class_index_store_factory.value() is USUALLY this
         return "com.zimbra.cs.index.LuceneIndex$Factory";
     }
+
+    @Test
+    public void nearRealTimeCommitOnTimer() throws Exception {
+        LC.zimbra_index_nrt_enabled.setDefault(true);
+        LC.zimbra_index_nrt_commit_interval_ms.setDefault(200);
+        try {
+            Mailbox mbox = MailboxManager.getInstance().getMailboxByAccountId(MockProvisioning.DEFAULT_ACCOUNT_ID);
+            Contact contact = createContact(mbox, "nrt@zimbra.com");
+            mbox.index.indexDeferredItems();
+            LuceneIndex index = (LuceneIndex) mbox.index.getIndexStore();
+            // searchable, but still deferred in the database until committed
+            Assert.assertTrue(index.hasParkedWriter());
+            Assert.assertTrue(getIndexDeferredIds(mbox).contains(contact.getId()));
+
+            for (int i = 0; i < 100 && index.hasParkedWriter(); i++) {
+                Thread.sleep(100);
+            }
+            Assert.assertFalse(index.hasParkedWriter());
+            for (int i = 0; i < 100 && getIndexDeferredIds(mbox).contains(contact.getId()); i++) {
+                Thread.sleep(100); // persisted right after the commit
+            }
+            Assert.assertFalse(getIndexDeferredIds(mbox).contains(contact.getId()));
+        } finally {
+            LC.zimbra_index_nrt_enabled.setDefault(false);
+            LC.zimbra_index_nrt_commit_interval_ms.setDefault(60000);
+        }
+    }
+
+    @Test
+    public void nearRealTimeCommitOnShutdown() throws Exception {
+        LC.zimbra_index_nrt_enabled.setDefault(true);
+        try {
+            Mailbox mbox = MailboxManager.getInstance().getMailboxByAccountId(MockProvisioning.DEFAULT_ACCOUNT_ID);
+            Contact contact = createContact(mbox, "nrt@zimbra.com");
+            mbox.index.indexDeferredItems();
+            LuceneIndex index = (LuceneIndex) mbox.index.getIndexStore();
+            Assert.assertTrue(index.hasParkedWriter());
+            Assert.assertTrue(getIndexDeferredIds(mbox).contains(contact.getId()));
+
+            IndexStore.getFactory().destroy();
+            Assert.assertFalse(index.hasParkedWriter());
+            Assert.assertFalse(getIndexDeferredIds(mbox).contains(contact.getId()));
+        } finally {
+            LC.zimbra_index_nrt_enabled.setDefault(false);
+        }
+    }
+
+    private static Contact createContact(Mailbox mbox, String email) throws ServiceException {
+        return mbox.createContact(null, new ParsedContact(Collections.singletonMap(ContactConstants.A_email, email)),
+                Mailbox.ID_FOLDER_CONTACTS, null);
+    }
+
+    private static Collection<Integer> getIndexDeferredIds(Mailbox mbox) throws ServiceException {
+        DbConnection conn = DbPool.getConnection(mbox);
+        try {
+            return DbMailItem.getIndexDeferredIds(conn, mbox).values();
+        } finally {
+            conn.closeQuietly();
+        }
+    }
 }
@@ -0,0 +1,112 @@
+/*
+ * ***** BEGIN LICENSE BLOCK *****
+ * Zimbra Collaboration Suite Server
+ * Copyright (C) 2016 Synacor, Inc.
+ *
+ * This program is free software: you can redistribute it and/or modify it under
+ * the terms of the GNU General Public License as published by the Free Software Foundation,
+ * version 2 of the License.
+ *
+ * This program is distributed in the hope that it will be useful, but WITHOUT ANY WARRANTY;
+ * without even the implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.
+ * See the GNU General Public License for more details.
+ * You should have received a copy of the GNU General Public License along with this program.
+ * If not, see <https://www.gnu.org/licenses/>.
+ * ***** END LICENSE BLOCK *****
+ */
+package com.zimbra.cs.index;
+
+import java.util.HashMap;
+
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.BeforeClass;
+import org.junit.Test;
+
+import com.zimbra.cs.account.MockProvisioning;
+import com.zimbra.cs.account.Provisioning;
+import com.zimbra.cs.mailbox.DeliveryOptions;
+import com.zimbra.cs.mailbox.Flag;
+import com.zimbra.cs.mailbox.MailItem;
+import com.zimbra.cs.mailbox.Mailbox;
+import com.zimbra.cs.mailbox.MailboxManager;
+import com.zimbra.cs.mailbox.MailboxTestUtil;
+import com.zimbra.cs.mailbox.Message;
+import com.zimbra.cs.mime.ParsedMessage;
+
+/**
+ * Unit test for {@link QueryPlan}.
+ */
+public final class QueryPlanTest {
+
+    @BeforeClass
+    public static void init() throws Exception {
+        MailboxTestUtil.initServer();
+        Provisioning prov = Provisioning.getInstance();
+        prov.createAccount("test@zimbra.com", "secret", new HashMap<String, Object>());
+    }
+
+    @Before
+    public void setUp() throws Exception {
+        MailboxTestUtil.clearData();
+    }
+
+    @Test
+    public void inboxUnreadEstimate() throws Exception {
+        Mailbox mbox = MailboxManager.getInstance().getMailboxByAccountId(MockProvisioning.DEFAULT_ACCOUNT_ID);
+        DeliveryOptions dopt = new DeliveryOptions().setFolderId(Mailbox.ID_FOLDER_INBOX).setFlags(Flag.BITMASK_UNREAD);
+        Message read = mbox.addMessage(null, new ParsedMessage("Subject: 1".getBytes(), false), dopt, null);
+        mbox.addMessage(null, new ParsedMessage("Subject: 2".getBytes(), false), dopt, null);
+        mbox.addMessage(null, new ParsedMessage("Subject: 3".getBytes(), false), dopt, null);
+        mbox.alterTag(null, read.getId(), MailItem.Type.MESSAGE, Flag.FlagInfo.UNREAD, false, null);
+
+        Mailbox.FolderTotals totals = mbox.getFolderTotals();
+        Assert.assertEquals(3, totals.items);
+        Assert.assertEquals(2, totals.unread);
+        Assert.assertSame(totals, mbox.getFolderTotals());
+
+        DbSearchConstraints.Leaf leaf = new DbSearchConstraints.Leaf();
+        leaf.addInFolder(mbox.getFolderById(null, Mailbox.ID_FOLDER_INBOX), true);
+        Assert.assertEquals(3.0, QueryPlan.estimate(leaf, totals.items, totals.unread), 0.0);
+        leaf.addTag(mbox.getFlagById(Flag.ID_UNREAD), true);
+        Assert.assertEquals(2.0, QueryPlan.estimate(leaf, totals.items, totals.unread), 0.0);
+
+        // totals are summed again once the mailbox changes
+        mbox.addMessage(null, new ParsedMessage("Subject: 4".getBytes(), false), dopt, null);
+        Mailbox.FolderTotals updated = mbox.getFolderTotals();
+        Assert.assertNotSame(totals, updated);
+        Assert.assertEquals(4, updated.items);
+        Assert.assertEquals(3, updated.unread);
+    }
+
+    @Test
+    public void dbFirstForUnreadInBigInbox() {
+        // in:inbox is:unread matching 40 rows, ANDed with a term in 60% of a 100k message index
+        QueryPlan plan = QueryPlan.byCost(40, 60000, 100000, 25, 100, 2000);
+        Assert.assertTrue(plan.isDbFirst());
+        Assert.assertEquals(100, plan.getChunkSize());
+    }
+
+    @Test
+    public void luceneFirstForRareTerm() {
+        // a term in 3 documents, with no DB constraint but the mailbox itself
+        QueryPlan plan = QueryPlan.byCost(100000, 3, 100000, 100, 100, 2000);
+        Assert.assertFalse(plan.isDbFirst());
+        Assert.assertEquals(100, plan.getChunkSize());
+    }
+
+    @Test
+    public void chunkSizeDoublesUpToMax() {
+        // 300 rows ANDed with a term in 90% of the index, all hits requested
+        QueryPlan plan = QueryPlan.byCost(300, 90000, 100000, -1, 100, 2000);
+        Assert.assertTrue(plan.isDbFirst());
+        int chunk = plan.getChunkSize();
+        Assert.assertEquals(600, chunk);
+
+        int[] expected = { 1200, 2000, 2000 };
+        for (int size : expected) {
+            chunk = QueryPlan.nextChunkSize(chunk, 2000);
+            Assert.assertEquals(size, chunk);
+        }
+    }
+}
@@ -0,0 +1,138 @@
+/*
+ * ***** BEGIN LICENSE BLOCK *****
+ * Zimbra Collaboration Suite Server
+ * Copyright (C) 2016 Synacor, Inc.
+ *
+ * This program is free software: you can redistribute it and/or modify it under
+ * the terms of the GNU General Public License as published by the Free Software Foundation,
+ * version 2 of the License.
+ *
+ * This program is distributed in the hope that it will be useful, but WITHOUT ANY WARRANTY;
+ * without even the implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.
+ * See the GNU General Public License for more details.
+ * You should have received a copy of the GNU General Public License along with this program.
+ * If not, see <https://www.gnu.org/licenses/>.
+ * ***** END LICENSE BLOCK *****
+ */
+package com.zimbra.cs.index;
+
+import java.util.ArrayList;
+import java.util.EnumSet;
+import java.util.HashMap;
+import java.util.List;
+
+import org.junit.After;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.BeforeClass;
+import org.junit.Test;
+
+import com.zimbra.common.localconfig.LC;
+import com.zimbra.common.soap.SoapProtocol;
+import com.zimbra.cs.account.MockProvisioning;
+import com.zimbra.cs.account.Provisioning;
+import com.zimbra.cs.mailbox.DeliveryOptions;
+import com.zimbra.cs.mailbox.MailItem;
+import com.zimbra.cs.mailbox.Mailbox;
+import com.zimbra.cs.mailbox.MailboxManager;
+import com.zimbra.cs.mailbox.MailboxTestUtil;
+import com.zimbra.cs.mailbox.OperationContext;
+import com.zimbra.cs.stats.ZimbraPerf;
+
+/**
+ * Unit test for {@link SearchResultCache}.
+ */
+public final class SearchResultCacheTest {
+
+    @BeforeClass
+    public static void init() throws Exception {
+        MailboxTestUtil.initServer();
+        Provisioning prov = Provisioning.getInstance();
+        prov.createAccount("test@zimbra.com", "secret", new HashMap<String, Object>());
+    }
+
+    @Before
+    public void setUp() throws Exception {
+        MailboxTestUtil.clearData();
+        LC.zimbra_search_result_cache_enabled.setDefault(true);
+    }
+
+    @After
+    public void tearDown() {
+        LC.zimbra_search_result_cache_enabled.setDefault(false);
+    }
+
+    private static List<Integer> search(Mailbox mbox, int offset, int limit) throws Exception {
+        SearchParams params = new SearchParams();
+        params.setQueryString("in:inbox");
+        params.setTypes(EnumSet.of(MailItem.Type.MESSAGE));
+        params.setSortBy(SortBy.DATE_DESC);
+        params.setOffset(offset);
+        params.setLimit(limit);
+        List<Integer> ids = new ArrayList<Integer>();
+        try (ZimbraQueryResults results = mbox.index.search(SoapProtocol.Soap12, new OperationContext(mbox), params)) {
+            ResultsPager pager = ResultsPager.create(results, params);
+            while (pager.hasNext() && ids.size() < limit) {
+                ids.add(pager.getNextHit().getItemId());
+            }
+        }
+        return ids;
+    }
+
+    private static int addMessage(Mailbox mbox, int i) throws Exception {
+        DeliveryOptions dopt = new DeliveryOptions().setFolderId(Mailbox.ID_FOLDER_INBOX);
+        return mbox.addMessage(null, MailboxTestUtil.generateMessage("paging " + i), dopt, null).getId();
+    }
+
+    @Test
+    public void pages() throws Exception {
+        Mailbox mbox = MailboxManager.getInstance().getMailboxByAccountId(MockProvisioning.DEFAULT_ACCOUNT_ID);
+        for (int i = 0; i < 12; i++) {
+            addMessage(mbox, i);
+        }
+
+        List<Integer> all = search(mbox, 0, 20);
+        Assert.assertEquals(12, all.size());
+
+        long hits = ZimbraPerf.COUNTER_SEARCH_RESULT_CACHE_HIT_RATE.getTotal();
+        Assert.assertEquals(all.subList(0, 5), search(mbox, 0, 5));
+        Assert.assertEquals(all.subList(5, 10), search(mbox, 5, 5));
+        Assert.assertEquals(all.subList(10, 12), search(mbox, 10, 5));
+        Assert.assertEquals(300, ZimbraPerf.COUNTER_SEARCH_RESULT_CACHE_HIT_RATE.getTotal() - hits);
+
+        // a new message changes the mailbox, so the next search runs again and sees it
+        int id = addMessage(mbox, 12);
+        Assert.assertEquals(id, (int) search(mbox, 0, 5).get(0));
+        Assert.assertEquals(13, search(mbox, 0, 20).size());
+    }
+
+    @Test
+    public void beyondWindow() throws Exception {
+        Mailbox mbox = MailboxManager.getInstance().getMailboxByAccountId(MockProvisioning.DEFAULT_ACCOUNT_ID);
+        LC.zimbra_search_result_cache_window.setDefault(8);
+        try {
+            for (int i = 0; i < 12; i++) {
+                addMessage(mbox, i);
+            }
+            List<Integer> all = search(mbox, 0, 5);
+            Assert.assertEquals(5, all.size());
+            // iterating past the cached hits falls back to the real results
+            SearchParams params = new SearchParams();
+            params.setQueryString("in:inbox");
+            params.setTypes(EnumSet.of(MailItem.Type.MESSAGE));
+            params.setSortBy(SortBy.DATE_DESC);
+            params.setLimit(5);
+            int count = 0;
+            try (ZimbraQueryResults results = mbox.index.search(SoapProtocol.Soap12, new OperationContext(mbox),
+                    params)) {
+                while (results.getNext() != null) {
+                    count++;
+                }
+            }
+            Assert.assertEquals(12, count);
+            Assert.assertEquals(all.subList(3, 5), search(mbox, 3, 2));
+        } finally {
+            LC.zimbra_search_result_cache_window.setDefault(250);
+        }
+    }
+}
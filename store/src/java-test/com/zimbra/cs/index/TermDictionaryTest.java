@@ -0,0 +1,85 @@
+/*
+ * ***** BEGIN LICENSE BLOCK *****
+ * Zimbra Collaboration Suite Server
+ * Copyright (C) 2016 Synacor, Inc.
+ *
+ * This program is free software: you can redistribute it and/or modify it under
+ * the terms of the GNU General Public License as published by the Free Software Foundation,
+ * version 2 of the License.
+ *
+ * This program is distributed in the hope that it will be useful, but WITHOUT ANY WARRANTY;
+ * without even the implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.
+ * See the GNU General Public License for more details.
+ * You should have received a copy of the GNU General Public License along with this program.
+ * If not, see <https://www.gnu.org/licenses/>.
+ * ***** END LICENSE BLOCK *****
+ */
+
+package com.zimbra.cs.index;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import org.apache.lucene.analysis.KeywordAnalyzer;
+import org.apache.lucene.document.Document;
+import org.apache.lucene.document.Field;
+import org.apache.lucene.index.IndexReader;
+import org.apache.lucene.index.IndexWriter;
+import org.apache.lucene.index.IndexWriterConfig;
+import org.apache.lucene.store.RAMDirectory;
+import org.apache.lucene.util.Version;
+import org.junit.Assert;
+import org.junit.Test;
+
+/**
+ * Unit test for {@link TermDictionary}.
+ */
+public final class TermDictionaryTest {
+
+    @Test
+    public void expand() throws Exception {
+        RAMDirectory dir = new RAMDirectory();
+        IndexWriter writer = new IndexWriter(dir, new IndexWriterConfig(Version.LUCENE_35, new KeywordAnalyzer()));
+        // two segments, with "apple" in both
+        add(writer, "apple", "apple", "apply", "banana");
+        writer.commit();
+        add(writer, "apple", "applet", "apricot");
+        writer.close();
+
+        IndexReader reader = IndexReader.open(dir);
+        try {
+            TermDictionary.Expansion expansion = TermDictionary.expand(reader, "f", "app", 10);
+            Assert.assertEquals(Arrays.asList("apple:3", "applet:1", "apply:1"), toStrings(expansion));
+            Assert.assertEquals(3, expansion.matched);
+
+            expansion = TermDictionary.expand(reader, "f", "app", 1);
+            Assert.assertEquals(Arrays.asList("apple:3"), toStrings(expansion));
+            Assert.assertEquals(3, expansion.matched);
+
+            Assert.assertEquals(Arrays.asList("apple:3", "applet:1", "apply:1", "apricot:1"),
+                    toStrings(TermDictionary.expand(reader, "f", "a", 10)));
+            Assert.assertEquals(Arrays.asList("banana:1"), toStrings(TermDictionary.expand(reader, "f", "b", 10)));
+            Assert.assertEquals(0, TermDictionary.expand(reader, "f", "c", 10).matched);
+            Assert.assertEquals(0, TermDictionary.expand(reader, "g", "a", 10).matched);
+        } finally {
+            reader.close();
+        }
+    }
+
+    private static void add(IndexWriter writer, String... terms) throws Exception {
+        for (String term : terms) {
+            Document doc = new Document();
+            doc.add(new Field("f", term, Field.Store.NO, Field.Index.NOT_ANALYZED));
+            writer.addDocument(doc);
+        }
+    }
+
+    private static List<String> toStrings(TermDictionary.Expansion expansion) {
+        List<String> result = new ArrayList<String>();
+        for (BrowseTerm term : expansion.terms) {
+            result.add(term.getText() + ":" + term.getFreq());
+        }
+        return result;
+    }
+}
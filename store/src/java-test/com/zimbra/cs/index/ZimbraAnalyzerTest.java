@@ -83,6 +83,26 @@ public final class ZimbraAnalyzerTest {
         Assert.assertEquals(Arrays.asList("three", "two"), toTokens(stream));
     }
 
+    @Test
+    public void reusableTokenStream() throws Exception {
+        ZimbraAnalyzer analyzer = (ZimbraAnalyzer) ZimbraAnalyzer.getInstance();
+        String[][] fields = {
+                { LuceneFields.L_CONTENT, "Ｆｕｌｌ-width U.S.A. and it's café" },
+                { LuceneFields.L_SORT_SIZE, "123 26 1000000" },
+                { LuceneFields.L_FILENAME, "This is my-filename.test.pdf" },
+                { LuceneFields.L_CONTACT_DATA, "John . Doe <john.doe@example.com>" },
+                { LuceneFields.L_CONTENT, "三月の予定 schedule" },
+                { LuceneFields.L_SORT_SIZE, "42" }
+        };
+        for (int round = 0; round < 2; round++) {
+            for (String[] field : fields) {
+                Assert.assertEquals(field[0] + ": " + field[1],
+                        toTokens(analyzer.tokenStream(field[0], new StringReader(field[1]))),
+                        toTokens(analyzer.reusableTokenStream(field[0], new StringReader(field[1]))));
+            }
+        }
+    }
+
     public static List<String> toTokens(TokenStream stream) throws IOException {
         List<String> result = new ArrayList<String>();
         CharTermAttribute termAttr = stream.addAttribute(CharTermAttribute.class);
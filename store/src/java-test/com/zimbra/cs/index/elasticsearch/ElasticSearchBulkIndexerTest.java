@@ -0,0 +1,128 @@
+/*
+ * ***** BEGIN LICENSE BLOCK *****
+ * Zimbra Collaboration Suite Server
+ * Copyright (C) 2016 Synacor, Inc.
+ *
+ * This program is free software: you can redistribute it and/or modify it under
+ * the terms of the GNU General Public License as published by the Free Software Foundation,
+ * version 2 of the License.
+ *
+ * This program is distributed in the hope that it will be useful, but WITHOUT ANY WARRANTY;
+ * without even the implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.
+ * See the GNU General Public License for more details.
+ * You should have received a copy of the GNU General Public License along with this program.
+ * If not, see <https://www.gnu.org/licenses/>.
+ * ***** END LICENSE BLOCK *****
+ */
+
+package com.zimbra.cs.index.elasticsearch;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import org.json.JSONObject;
+import org.junit.After;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+
+import com.google.common.base.Charsets;
+import com.google.common.collect.Lists;
+import com.google.common.io.ByteStreams;
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpHandler;
+import com.sun.net.httpserver.HttpServer;
+
+/**
+ * Unit test for {@link ElasticSearchBulkIndexer}, against a local HTTP server standing in for ElasticSearch.
+ */
+public final class ElasticSearchBulkIndexerTest {
+
+    private HttpServer server;
+    private String urlBase;
+    private final List<String> payloads = Collections.synchronizedList(Lists.<String>newArrayList());
+    private volatile int status = 200;
+    private volatile String response;
+
+    @Before
+    public void setUp() throws Exception {
+        server = HttpServer.create(new InetSocketAddress("127.0.0.1", 0), 0);
+        server.createContext("/_bulk", new HttpHandler() {
+            @Override
+            public void handle(HttpExchange exchange) throws IOException {
+                payloads.add(new String(ByteStreams.toByteArray(exchange.getRequestBody()), Charsets.UTF_8));
+                byte[] body = response.getBytes(Charsets.UTF_8);
+                exchange.sendResponseHeaders(status, body.length);
+                try (OutputStream out = exchange.getResponseBody()) {
+                    out.write(body);
+                }
+            }
+        });
+        server.start();
+        urlBase = "http://127.0.0.1:" + server.getAddress().getPort() + "/";
+    }
+
+    @After
+    public void tearDown() {
+        server.stop(0);
+    }
+
+    @Test
+    public void batchAcrossMailboxes() throws Exception {
+        response = "{\"took\":3,\"items\":[{\"index\":{\"status\":201}},{\"index\":{\"status\":201}}," +
+                "{\"create\":{\"status\":201}}]}";
+        ElasticSearchBulkIndexer bulk = new ElasticSearchBulkIndexer(urlBase, 3, 1024 * 1024, 60000);
+        ElasticSearchBulkIndexer.Op op1 = bulk.add("acct1", "zimbra", 257, "257_0", "{\"l.partname\":\"top\"}");
+        ElasticSearchBulkIndexer.Op op2 = bulk.add("acct2", "zimbra", 258, "258_0", "{\"l.partname\":\"1\"}");
+        Assert.assertTrue(payloads.isEmpty());
+        ElasticSearchBulkIndexer.Op op3 = bulk.add("acct1", "zimbra", 259, "259_0", "{\"l.partname\":\"2\"}");
+
+        Assert.assertEquals(1, payloads.size());
+        String[] lines = payloads.get(0).split("\n");
+        Assert.assertEquals(6, lines.length);
+        Assert.assertEquals("acct1", new JSONObject(lines[0]).getJSONObject("index").getString("_index"));
+        Assert.assertEquals("zimbra", new JSONObject(lines[0]).getJSONObject("index").getString("_type"));
+        Assert.assertEquals("257_0", new JSONObject(lines[0]).getJSONObject("index").getString("_id"));
+        Assert.assertEquals("{\"l.partname\":\"top\"}", lines[1]);
+        Assert.assertEquals("acct2", new JSONObject(lines[2]).getJSONObject("index").getString("_index"));
+        Assert.assertEquals("{\"l.partname\":\"2\"}", lines[5]);
+        Assert.assertNull(op1.await(1, TimeUnit.SECONDS));
+        Assert.assertNull(op2.await(1, TimeUnit.SECONDS));
+        Assert.assertNull(op3.await(1, TimeUnit.SECONDS));
+    }
+
+    @Test
+    public void itemFailure() throws Exception {
+        response = "{\"items\":[{\"index\":{\"status\":201}}," +
+                "{\"index\":{\"status\":400,\"error\":\"MapperParsingException[failed to parse]\"}}]}";
+        ElasticSearchBulkIndexer bulk = new ElasticSearchBulkIndexer(urlBase, 2, 1024 * 1024, 60000);
+        ElasticSearchBulkIndexer.Op op1 = bulk.add("acct1", "zimbra", 257, "257_0", "{}");
+        ElasticSearchBulkIndexer.Op op2 = bulk.add("acct1", "zimbra", 258, "258_0", "{}");
+        Assert.assertNull(op1.await(1, TimeUnit.SECONDS));
+        Assert.assertTrue(op2.await(1, TimeUnit.SECONDS).contains("MapperParsingException"));
+    }
+
+    @Test
+    public void requestFailure() throws Exception {
+        status = 503;
+        response = "{\"error\":\"ClusterBlockException\"}";
+        ElasticSearchBulkIndexer bulk = new ElasticSearchBulkIndexer(urlBase, 2, 1024 * 1024, 60000);
+        ElasticSearchBulkIndexer.Op op1 = bulk.add("acct1", "zimbra", 257, "257_0", "{}");
+        ElasticSearchBulkIndexer.Op op2 = bulk.add("acct2", "zimbra", 258, "258_0", "{}");
+        Assert.assertEquals("httpstatus=503", op1.await(1, TimeUnit.SECONDS));
+        Assert.assertEquals("httpstatus=503", op2.await(1, TimeUnit.SECONDS));
+    }
+
+    @Test
+    public void flushAfterDelay() throws Exception {
+        response = "{\"items\":[{\"index\":{\"status\":201}}]}";
+        ElasticSearchBulkIndexer bulk = new ElasticSearchBulkIndexer(urlBase, 100, 1024 * 1024, 50);
+        ElasticSearchBulkIndexer.Op op = bulk.add("acct1", "zimbra", 257, "257_0", "{}");
+        Assert.assertNull(op.await(10, TimeUnit.SECONDS));
+        Assert.assertEquals(1, payloads.size());
+    }
+}
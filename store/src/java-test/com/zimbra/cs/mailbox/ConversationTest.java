@@ -16,6 +16,7 @@
  */
 package com.zimbra.cs.mailbox;
 
+import java.util.Collections;
 import java.util.HashMap;
 import java.util.List;
 
@@ -29,6 +30,7 @@ import com.zimbra.common.util.Constants;
 import com.zimbra.cs.account.Account;
 import com.zimbra.cs.account.MockProvisioning;
 import com.zimbra.cs.account.Provisioning;
+import com.zimbra.cs.index.SortBy;
 import com.zimbra.cs.mailbox.util.TypedIdList;
 
 public class ConversationTest {
@@ -83,6 +85,27 @@ public class ConversationTest {
         Assert.assertEquals("conv tombstone id", (Integer) convId, tombstoneConvs.get(0));
     }
 
+    @Test
+    public void preloadMessages() throws Exception {
+        Mailbox mbox = MailboxManager.getInstance().getMailboxByAccountId(MockProvisioning.DEFAULT_ACCOUNT_ID);
+        int msgId = mbox.addMessage(null, MailboxTestUtil.generateMessage("test subject"), MailboxTest.STANDARD_DELIVERY_OPTIONS, null).getId();
+        DeliveryOptions dopt = new DeliveryOptions().setFolderId(Mailbox.ID_FOLDER_INBOX).setConversationId(-msgId);
+        mbox.addMessage(null, MailboxTestUtil.generateMessage("Re: test subject"), dopt, null);
+        int convId = mbox.addMessage(null, MailboxTestUtil.generateMessage("Fwd: test subject"), dopt, null).getConversationId();
+
+        List<Message> expected = mbox.getMessagesByConversation(null, convId, SortBy.DATE_DESC, -1);
+        mbox.preloadConversationMessages(null, Collections.singleton(convId));
+        Assert.assertEquals(expected, mbox.getMessagesByConversation(null, convId, SortBy.DATE_DESC, -1));
+        Assert.assertEquals(expected.subList(0, 2), mbox.getMessagesByConversation(null, convId, SortBy.DATE_DESC, 2));
+        // resolved through the item cache, so that changes go to the cached instances
+        Assert.assertSame(mbox.getMessageById(null, expected.get(0).getId()),
+                mbox.getMessagesByConversation(null, convId, SortBy.DATE_DESC, -1).get(0));
+
+        // a change to the mailbox invalidates the preloaded list
+        mbox.delete(null, expected.get(0).getId(), MailItem.Type.MESSAGE);
+        Assert.assertEquals(expected.subList(1, 3), mbox.getMessagesByConversation(null, convId, SortBy.DATE_DESC, -1));
+    }
+
     @Test
     public void expiry() throws Exception {
         Account account = Provisioning.getInstance().get(AccountBy.id, MockProvisioning.DEFAULT_ACCOUNT_ID);
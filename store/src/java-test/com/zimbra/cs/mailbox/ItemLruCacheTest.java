@@ -0,0 +1,107 @@
+/*
+ * ***** BEGIN LICENSE BLOCK *****
+ * Zimbra Collaboration Suite Server
+ * Copyright (C) 2016 Synacor, Inc.
+ *
+ * This program is free software: you can redistribute it and/or modify it under
+ * the terms of the GNU General Public License as published by the Free Software Foundation,
+ * version 2 of the License.
+ *
+ * This program is distributed in the hope that it will be useful, but WITHOUT ANY WARRANTY;
+ * without even the implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.
+ * See the GNU General Public License for more details.
+ * You should have received a copy of the GNU General Public License along with this program.
+ * If not, see <https://www.gnu.org/licenses/>.
+ * ***** END LICENSE BLOCK *****
+ */
+package com.zimbra.cs.mailbox;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.BeforeClass;
+import org.junit.Test;
+
+import com.zimbra.cs.account.MockProvisioning;
+import com.zimbra.cs.account.Provisioning;
+
+public class ItemLruCacheTest {
+    @BeforeClass
+    public static void init() throws Exception {
+        MailboxTestUtil.initServer();
+        Provisioning prov = Provisioning.getInstance();
+        prov.createAccount("test@zimbra.com", "secret", new HashMap<String, Object>());
+    }
+
+    @Before
+    public void setUp() throws Exception {
+        MailboxTestUtil.clearData();
+    }
+
+    private static List<MailItem> addMessages(int count) throws Exception {
+        Mailbox mbox = MailboxManager.getInstance().getMailboxByAccountId(MockProvisioning.DEFAULT_ACCOUNT_ID);
+        DeliveryOptions dopt = new DeliveryOptions().setFolderId(Mailbox.ID_FOLDER_INBOX);
+        List<MailItem> messages = new ArrayList<MailItem>(count);
+        for (int i = 0; i < count; i++) {
+            messages.add(mbox.addMessage(null, MailboxTestUtil.generateMessage("test " + i), dopt, null));
+        }
+        return messages;
+    }
+
+    @Test
+    public void lruOrder() throws Exception {
+        List<MailItem> messages = addMessages(3);
+        ItemLruCache cache = new ItemLruCache();
+        for (MailItem item : messages) {
+            cache.put(item);
+        }
+        Assert.assertSame(messages.get(0), cache.eldest());
+        Assert.assertSame(messages.get(0), cache.get(messages.get(0).getId()));
+        Assert.assertSame(messages.get(1), cache.eldest());
+        Assert.assertSame(messages.get(1), cache.get(messages.get(1).getUuid()));
+        Assert.assertSame(messages.get(2), cache.eldest());
+    }
+
+    @Test
+    public void weight() throws Exception {
+        List<MailItem> messages = addMessages(2);
+        ItemLruCache cache = new ItemLruCache();
+        cache.put(messages.get(0));
+        cache.put(messages.get(1));
+        long expected = messages.get(0).getMemoryFootprint() + messages.get(1).getMemoryFootprint();
+        Assert.assertEquals(expected, cache.getWeight());
+
+        // re-caching the same item must not double count it
+        cache.put(messages.get(0));
+        Assert.assertEquals(expected, cache.getWeight());
+        Assert.assertEquals(2, cache.size());
+
+        cache.remove(messages.get(1).getId());
+        Assert.assertEquals(messages.get(0).getMemoryFootprint(), cache.getWeight());
+        Assert.assertNull(cache.get(messages.get(1).getUuid()));
+
+        cache.clear();
+        Assert.assertEquals(0, cache.getWeight());
+        Assert.assertNull(cache.eldest());
+    }
+
+    @Test
+    public void growAndRemove() throws Exception {
+        List<MailItem> messages = addMessages(40);
+        ItemLruCache cache = new ItemLruCache();
+        for (MailItem item : messages) {
+            cache.put(item);
+        }
+        Assert.assertEquals(messages.size(), cache.size());
+        for (int i = 0; i < messages.size(); i += 2) {
+            Assert.assertSame(messages.get(i), cache.remove(messages.get(i).getId()));
+        }
+        for (int i = 0; i < messages.size(); i++) {
+            Assert.assertEquals(i % 2 == 1, cache.contains(messages.get(i).getId()));
+        }
+        Assert.assertEquals(messages.size() / 2, cache.values().size());
+    }
+}
@@ -687,4 +687,42 @@ public class MailboxLockTest {
             t.join();
         }
     }
+
+    @Test
+    public void optimisticRead() throws Exception {
+        Mailbox mbox = MailboxManager.getInstance().getMailboxByAccountId(MockProvisioning.DEFAULT_ACCOUNT_ID);
+        // make sure folders and tags are loaded so that read holds stay read holds
+        mbox.getFolderById(null, Mailbox.ID_FOLDER_INBOX);
+
+        long stamp = mbox.lock.tryOptimisticRead();
+        Assert.assertTrue(stamp != 0);
+        Assert.assertTrue(mbox.lock.validate(stamp));
+
+        // read holds don't invalidate the stamp
+        mbox.lock.lock(false);
+        mbox.lock.release();
+        Assert.assertTrue(mbox.lock.validate(stamp));
+
+        mbox.lock.lock(true);
+        try {
+            Assert.assertEquals(0, mbox.lock.tryOptimisticRead());
+            // nested write holds must not re-stamp
+            mbox.lock.lock(true);
+            mbox.lock.release();
+            Assert.assertEquals(0, mbox.lock.tryOptimisticRead());
+        } finally {
+            mbox.lock.release();
+        }
+        Assert.assertFalse(mbox.lock.validate(stamp));
+        Assert.assertTrue(mbox.lock.validate(mbox.lock.tryOptimisticRead()));
+    }
+
+    @Test
+    public void optimisticGetItem() throws Exception {
+        Mailbox mbox = MailboxManager.getInstance().getMailboxByAccountId(MockProvisioning.DEFAULT_ACCOUNT_ID);
+        Folder inbox = mbox.getFolderById(null, Mailbox.ID_FOLDER_INBOX);
+        // served from the folder cache without a transaction, so it must be the live cached instance
+        Assert.assertSame(inbox, mbox.getFolderById(null, Mailbox.ID_FOLDER_INBOX));
+        Assert.assertTrue(mbox.lock.isUnlocked());
+    }
 }
@@ -0,0 +1,132 @@
+/*
+ * ***** BEGIN LICENSE BLOCK *****
+ * Zimbra Collaboration Suite Server
+ * Copyright (C) 2016 Synacor, Inc.
+ *
+ * This program is free software: you can redistribute it and/or modify it under
+ * the terms of the GNU General Public License as published by the Free Software Foundation,
+ * version 2 of the License.
+ *
+ * This program is distributed in the hope that it will be useful, but WITHOUT ANY WARRANTY;
+ * without even the implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.
+ * See the GNU General Public License for more details.
+ * You should have received a copy of the GNU General Public License along with this program.
+ * If not, see <https://www.gnu.org/licenses/>.
+ * ***** END LICENSE BLOCK *****
+ */
+package com.zimbra.cs.mailbox;
+
+import java.lang.ref.SoftReference;
+import java.util.HashMap;
+import java.util.Map;
+
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.BeforeClass;
+import org.junit.Test;
+
+import com.zimbra.cs.account.Provisioning;
+import com.zimbra.cs.mailbox.MailboxManager.MailboxMap;
+
+public class MailboxManagerTest {
+    @BeforeClass
+    public static void init() throws Exception {
+        MailboxTestUtil.initServer();
+        Provisioning prov = Provisioning.getInstance();
+        prov.createAccount("test1@zimbra.com", "secret", new HashMap<String, Object>());
+        prov.createAccount("test2@zimbra.com", "secret", new HashMap<String, Object>());
+        prov.createAccount("test3@zimbra.com", "secret", new HashMap<String, Object>());
+    }
+
+    @Before
+    public void setUp() throws Exception {
+        MailboxTestUtil.clearData();
+    }
+
+    private static Mailbox getMailbox(String name) throws Exception {
+        return MailboxManager.getInstance().getMailboxByAccount(Provisioning.getInstance().getAccountByName(name));
+    }
+
+    private static Object rawEntry(MailboxMap map, int mailboxId) {
+        for (Map.Entry<Integer, Object> entry : map.entrySet()) {
+            if (entry.getKey() == mailboxId) {
+                return entry.getValue();
+            }
+        }
+        return null;
+    }
+
+    @Test
+    public void demoteLeastRecentlyUsed() throws Exception {
+        Mailbox mbox1 = getMailbox("test1@zimbra.com");
+        Mailbox mbox2 = getMailbox("test2@zimbra.com");
+        Mailbox mbox3 = getMailbox("test3@zimbra.com");
+
+        MailboxMap map = new MailboxMap(2, 1);
+        map.put(mbox1.getId(), mbox1);
+        map.put(mbox2.getId(), mbox2);
+        // touch mbox1 so that mbox2 becomes the eldest hard reference
+        Assert.assertSame(mbox1, map.get(mbox1.getId()));
+        map.put(mbox3.getId(), mbox3);
+
+        Assert.assertEquals(3, map.size());
+        Assert.assertSame(mbox1, rawEntry(map, mbox1.getId()));
+        Assert.assertTrue(rawEntry(map, mbox2.getId()) instanceof SoftReference);
+        Assert.assertSame(mbox3, rawEntry(map, mbox3.getId()));
+        Assert.assertSame(mbox2, map.get(mbox2.getId()));
+    }
+
+    @Test
+    public void softOnly() throws Exception {
+        Mailbox mbox1 = getMailbox("test1@zimbra.com");
+
+        MailboxMap map = new MailboxMap(0, 4);
+        Assert.assertNull(map.put(mbox1.getId(), mbox1));
+        Assert.assertTrue(rawEntry(map, mbox1.getId()) instanceof SoftReference);
+        Assert.assertSame(mbox1, map.get(mbox1.getId()));
+        Assert.assertSame(mbox1, map.remove(mbox1.getId()));
+        Assert.assertTrue(map.isEmpty());
+    }
+
+    @Test
+    public void maintenanceStaysHard() throws Exception {
+        Mailbox mbox1 = getMailbox("test1@zimbra.com");
+        Mailbox mbox2 = getMailbox("test2@zimbra.com");
+        MailboxMaintenance maintenance = new MailboxMaintenance(mbox1.getAccountId(), mbox1.getId(), mbox1);
+
+        MailboxMap map = new MailboxMap(1, 1);
+        map.put(mbox1.getId(), maintenance);
+        map.put(mbox2.getId(), mbox2);
+        Assert.assertSame(maintenance, rawEntry(map, mbox1.getId()));
+        Assert.assertSame(mbox2, rawEntry(map, mbox2.getId()));
+    }
+
+    @Test
+    public void stripeCounters() throws Exception {
+        Mailbox mbox1 = getMailbox("test1@zimbra.com");
+
+        MailboxMap map = new MailboxMap(16, 3);
+        Assert.assertEquals(4, map.getStripeCount());
+        map.recordMiss(mbox1.getId());
+        map.recordHit(mbox1.getId());
+        map.recordHit(mbox1.getId());
+        long hits = 0, misses = 0;
+        for (int i = 0; i < map.getStripeCount(); i++) {
+            hits += map.getHitCount(i);
+            misses += map.getMissCount(i);
+        }
+        Assert.assertEquals(2, hits);
+        Assert.assertEquals(1, misses);
+    }
+
+    @Test
+    public void lookupAfterMaintenance() throws Exception {
+        Mailbox mbox1 = getMailbox("test1@zimbra.com");
+        MailboxManager mgr = MailboxManager.getInstance();
+
+        MailboxMaintenance maintenance = mgr.beginMaintenance(mbox1.getAccountId(), mbox1.getId());
+        Assert.assertTrue(mgr.isMailboxLoadedAndAvailable(mbox1.getId()));
+        mgr.endMaintenance(maintenance, true, false);
+        Assert.assertSame(mbox1, mgr.getMailboxById(mbox1.getId()));
+    }
+}
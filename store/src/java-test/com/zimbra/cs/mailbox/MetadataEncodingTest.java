@@ -0,0 +1,125 @@
+/*
+ * ***** BEGIN LICENSE BLOCK *****
+ * Zimbra Collaboration Suite Server
+ * Copyright (C) 2016 Synacor, Inc.
+ *
+ * This program is free software: you can redistribute it and/or modify it under
+ * the terms of the GNU General Public License as published by the Free Software Foundation,
+ * version 2 of the License.
+ *
+ * This program is distributed in the hope that it will be useful, but WITHOUT ANY WARRANTY;
+ * without even the implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.
+ * See the GNU General Public License for more details.
+ * You should have received a copy of the GNU General Public License along with this program.
+ * If not, see <https://www.gnu.org/licenses/>.
+ * ***** END LICENSE BLOCK *****
+ */
+package com.zimbra.cs.mailbox;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+public class MetadataEncodingTest {
+
+    private static Metadata sample() {
+        MetadataList list = new MetadataList();
+        list.add("one");
+        list.add(2L);
+        Metadata nested = new Metadata();
+        nested.put("x", "nested|value:with separators");
+        return new Metadata().put(Metadata.FN_RAW_SUBJ, "hello").put(Metadata.FN_VERSION, 3)
+                .put(Metadata.FN_ENTRIES, list).put(Metadata.FN_ATTRS, nested).put(Metadata.FN_DRAFT, true);
+    }
+
+    @Test
+    public void roundTrip() throws Exception {
+        String encoded = sample().encode(true);
+        Assert.assertTrue(Metadata.isIndexedEncoding(encoded));
+
+        Metadata meta = new Metadata(encoded);
+        Assert.assertEquals(5, meta.size());
+        Assert.assertEquals("hello", meta.get(Metadata.FN_RAW_SUBJ));
+        Assert.assertEquals(3, meta.getInt(Metadata.FN_VERSION, 0));
+        Assert.assertTrue(meta.getBool(Metadata.FN_DRAFT));
+        Assert.assertEquals("nested|value:with separators", meta.getMap(Metadata.FN_ATTRS).get("x"));
+        MetadataList list = meta.getList(Metadata.FN_ENTRIES);
+        Assert.assertEquals("one", list.get(0));
+        Assert.assertEquals(2L, list.getLong(1));
+        Assert.assertFalse(meta.containsKey(Metadata.FN_MD_VERSION));
+    }
+
+    @Test
+    public void lazyDecode() throws Exception {
+        String encoded = sample().encode(true);
+        Metadata meta = new Metadata(encoded);
+        Assert.assertEquals("hello", meta.get(Metadata.FN_RAW_SUBJ));
+        // reads cache decoded values without modifying the map, so concurrent readers are safe
+        Assert.assertEquals(0, meta.map.size());
+        Assert.assertEquals("hello", meta.get(Metadata.FN_RAW_SUBJ));
+        Assert.assertTrue(meta.containsKey(Metadata.FN_ENTRIES));
+        Assert.assertNull(meta.get("missing", null));
+        // an untouched indexed encoding is written back verbatim
+        Assert.assertSame(encoded, meta.encode(true));
+
+        meta.put(Metadata.FN_COLOR, 5);
+        Assert.assertEquals(6, meta.map.size());
+        Assert.assertEquals(6, new Metadata(meta.encode(true)).size());
+    }
+
+    @Test
+    public void nestedContainers() throws Exception {
+        String encoded = sample().encode(true);
+        Metadata lazy = new Metadata(encoded);
+        Metadata eager = new Metadata(sample().encode(false));
+        for (Metadata meta : new Metadata[] { lazy, eager }) {
+            meta.getMap(Metadata.FN_ATTRS).put("y", "changed");
+            meta.getList(Metadata.FN_ENTRIES).add("three");
+        }
+        // once a nested container has been handed out, the parent is re-encoded rather than written back verbatim
+        String reencoded = lazy.encode(true);
+        Assert.assertNotSame(encoded, reencoded);
+        Assert.assertEquals(eager.encode(true), reencoded);
+        Assert.assertEquals(0, lazy.map.size());
+
+        // changes stored back into the parent are kept
+        Metadata attrs = lazy.getMap(Metadata.FN_ATTRS);
+        attrs.put("y", "changed");
+        lazy.put(Metadata.FN_ATTRS, attrs);
+        MetadataList entries = lazy.getList(Metadata.FN_ENTRIES);
+        entries.add("three");
+        lazy.put(Metadata.FN_ENTRIES, entries);
+        Metadata decoded = new Metadata(lazy.encode(true));
+        Assert.assertEquals("changed", decoded.getMap(Metadata.FN_ATTRS).get("y"));
+        Assert.assertEquals("three", decoded.getList(Metadata.FN_ENTRIES).get(2));
+    }
+
+    @Test
+    public void legacyInterop() throws Exception {
+        String legacy = sample().encode(false);
+        Assert.assertFalse(Metadata.isIndexedEncoding(legacy));
+        Metadata meta = new Metadata(legacy);
+        Assert.assertEquals(5, meta.size());
+        Assert.assertEquals(sample().encode(true), meta.encode(true));
+        Assert.assertEquals(legacy, new Metadata(meta.encode(true)).encode(false));
+    }
+
+    @Test
+    public void undecodableValue() throws Exception {
+        String encoded = new Metadata().put("a", "x").put("b", 1).encode(true);
+        Assert.assertTrue(encoded.endsWith("1:xi1e"));
+        Metadata meta = new Metadata(encoded.substring(0, encoded.length() - 3) + "q1e");
+        Assert.assertEquals("x", meta.get("a"));
+        Assert.assertNull(meta.get("b", null));
+        try {
+            meta.decodeAll();
+            Assert.fail("undecodable value was not reported");
+        } catch (MailServiceException expected) {
+        }
+    }
+
+    @Test(expected = MailServiceException.class)
+    public void truncated() throws Exception {
+        String encoded = sample().encode(true);
+        new Metadata(encoded.substring(0, encoded.length() - 1));
+    }
+}
@@ -0,0 +1,166 @@
+/*
+ * ***** BEGIN LICENSE BLOCK *****
+ * Zimbra Collaboration Suite Server
+ * Copyright (C) 2016 Synacor, Inc.
+ *
+ * This program is free software: you can redistribute it and/or modify it under
+ * the terms of the GNU General Public License as published by the Free Software Foundation,
+ * version 2 of the License.
+ *
+ * This program is distributed in the hope that it will be useful, but WITHOUT ANY WARRANTY;
+ * without even the implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.
+ * See the GNU General Public License for more details.
+ * You should have received a copy of the GNU General Public License along with this program.
+ * If not, see <https://www.gnu.org/licenses/>.
+ * ***** END LICENSE BLOCK *****
+ */
+package com.zimbra.cs.mailbox;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.junit.After;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.BeforeClass;
+import org.junit.Test;
+
+import com.zimbra.common.localconfig.LC;
+import com.zimbra.common.service.ServiceException;
+import com.zimbra.cs.account.MockProvisioning;
+import com.zimbra.cs.account.Provisioning;
+import com.zimbra.cs.mime.ParsedMessage;
+import com.zimbra.qa.unittest.TestUtil;
+
+/**
+ * Unit test for {@link ReIndexPipeline}.
+ */
+public final class ReIndexPipelineTest {
+
+    @BeforeClass
+    public static void init() throws Exception {
+        MailboxTestUtil.initServer();
+        Provisioning prov = Provisioning.getInstance();
+        prov.createAccount("test@zimbra.com", "secret", new HashMap<String, Object>());
+    }
+
+    @Before
+    public void setUp() throws Exception {
+        MailboxTestUtil.clearData();
+        LC.zimbra_reindex_extract_threads.setDefault(3);
+        LC.zimbra_reindex_queue_size.setDefault(2); // make the stages wait on each other
+    }
+
+    @After
+    public void tearDown() {
+        LC.zimbra_reindex_extract_threads.setDefault(4);
+        LC.zimbra_reindex_queue_size.setDefault(200);
+    }
+
+    private static List<Integer> addMessages(Mailbox mbox, int count) throws Exception {
+        DeliveryOptions opt = new DeliveryOptions().setFolderId(Mailbox.ID_FOLDER_INBOX);
+        List<Integer> ids = new ArrayList<Integer>();
+        for (int i = 0; i < count; i++) {
+            Message msg = mbox.addMessage(null, new ParsedMessage(("From: sender" + i + "@zimbra.com\r\n" +
+                    "To: test@zimbra.com\r\nSubject: pipeline " + i + "\r\n\r\nbody").getBytes(), false), opt, null);
+            ids.add(msg.getId());
+        }
+        MailboxTestUtil.index(mbox);
+        return ids;
+    }
+
+    @Test
+    public void reIndex() throws Exception {
+        Mailbox mbox = MailboxManager.getInstance().getMailboxByAccountId(MockProvisioning.DEFAULT_ACCOUNT_ID);
+        List<Integer> ids = addMessages(mbox, 25);
+
+        MailboxIndex.ReIndexStatus status = new MailboxIndex.ReIndexStatus();
+        status.setTotal(ids.size());
+        new ReIndexPipeline(mbox, mbox.index, status).run(ids);
+        Assert.assertEquals(0, status.getFailed());
+        Assert.assertEquals(ids.size(), status.getProcessed());
+        Assert.assertEquals(ids.size(), status.getExtracted());
+        Assert.assertEquals(ids.size(), status.getIndexed());
+
+        Assert.assertEquals(ids.size(), TestUtil.search(mbox, "subject:pipeline", MailItem.Type.MESSAGE).size());
+        Assert.assertEquals(1, TestUtil.search(mbox, "from:sender7@zimbra.com", MailItem.Type.MESSAGE).size());
+    }
+
+    @Test(timeout = 60000)
+    public void cancel() throws Exception {
+        Mailbox mbox = MailboxManager.getInstance().getMailboxByAccountId(MockProvisioning.DEFAULT_ACCOUNT_ID);
+        List<Integer> ids = addMessages(mbox, 25);
+
+        final MailboxIndex.ReIndexStatus status = new MailboxIndex.ReIndexStatus();
+        status.setTotal(ids.size());
+        final AtomicInteger extracted = new AtomicInteger();
+        final Set<Thread> threads = Collections.newSetFromMap(new ConcurrentHashMap<Thread, Boolean>());
+        ReIndexPipeline pipeline = new ReIndexPipeline(mbox, mbox.index, status) {
+            @Override
+            Mailbox.IndexItemEntry extract(MailItem item) {
+                threads.add(Thread.currentThread());
+                if (extracted.incrementAndGet() == 5) {
+                    status.cancel();
+                }
+                return super.extract(item);
+            }
+        };
+        try {
+            pipeline.run(ids);
+            Assert.fail("cancelled re-index completed");
+        } catch (ServiceException e) {
+            Assert.assertEquals(ServiceException.INTERRUPTED, e.getCode());
+        }
+        // the reader stopped, and the queued items were not committed
+        Assert.assertTrue(status.toString(), status.getProcessed() < ids.size());
+        Assert.assertTrue(status.toString(), status.getIndexed() < ids.size());
+        assertStopped(threads);
+    }
+
+    @Test(timeout = 60000)
+    public void extractorFailure() throws Exception {
+        Mailbox mbox = MailboxManager.getInstance().getMailboxByAccountId(MockProvisioning.DEFAULT_ACCOUNT_ID);
+        List<Integer> ids = addMessages(mbox, 25);
+
+        MailboxIndex.ReIndexStatus status = new MailboxIndex.ReIndexStatus();
+        status.setTotal(ids.size());
+        final AtomicInteger extracted = new AtomicInteger();
+        final Set<Thread> threads = Collections.newSetFromMap(new ConcurrentHashMap<Thread, Boolean>());
+        final IllegalStateException error = new IllegalStateException("extract");
+        ReIndexPipeline pipeline = new ReIndexPipeline(mbox, mbox.index, status) {
+            @Override
+            Mailbox.IndexItemEntry extract(MailItem item) {
+                threads.add(Thread.currentThread());
+                if (extracted.incrementAndGet() == 5) {
+                    throw error;
+                }
+                return super.extract(item);
+            }
+        };
+        try {
+            pipeline.run(ids);
+            Assert.fail("failed re-index completed");
+        } catch (ServiceException e) {
+            Assert.assertEquals(ServiceException.FAILURE, e.getCode());
+            Assert.assertSame(error, e.getCause());
+        }
+        Assert.assertTrue(status.toString(), status.getProcessed() < ids.size());
+        assertStopped(threads);
+    }
+
+    /**
+     * Asserts that the stage threads exit once {@link ReIndexPipeline#run(java.util.Collection)} has returned.
+     */
+    private static void assertStopped(Set<Thread> threads) throws InterruptedException {
+        Assert.assertFalse(threads.isEmpty());
+        for (Thread thread : threads) {
+            thread.join(10000);
+            Assert.assertFalse(thread.getName(), thread.isAlive());
+        }
+    }
+}
@@ -0,0 +1,171 @@
+/*
+ * ***** BEGIN LICENSE BLOCK *****
+ * Zimbra Collaboration Suite Server
+ * Copyright (C) 2016 Synacor, Inc.
+ *
+ * This program is free software: you can redistribute it and/or modify it under
+ * the terms of the GNU General Public License as published by the Free Software Foundation,
+ * version 2 of the License.
+ *
+ * This program is distributed in the hope that it will be useful, but WITHOUT ANY WARRANTY;
+ * without even the implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.
+ * See the GNU General Public License for more details.
+ * You should have received a copy of the GNU General Public License along with this program.
+ * If not, see <https://www.gnu.org/licenses/>.
+ * ***** END LICENSE BLOCK *****
+ */
+package com.zimbra.cs.mime;
+
+import java.io.IOException;
+import java.io.InputStream;
+
+import javax.mail.util.ByteArrayDataSource;
+
+import org.apache.lucene.document.Document;
+import org.apache.lucene.document.Field;
+import org.junit.After;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.BeforeClass;
+import org.junit.Test;
+
+import com.google.common.base.Charsets;
+import com.zimbra.common.localconfig.LC;
+import com.zimbra.common.mime.MimeConstants;
+import com.zimbra.cs.convert.AttachmentInfo;
+import com.zimbra.cs.index.LuceneFields;
+import com.zimbra.cs.mailbox.MailboxTestUtil;
+import com.zimbra.cs.mime.handler.TextHtmlHandler;
+
+/**
+ * Unit test for {@link MimeHandler}.
+ */
+public final class MimeHandlerTest {
+
+    private ExtractedTextCache cache;
+
+    @BeforeClass
+    public static void init() throws Exception {
+        MailboxTestUtil.initServer();
+    }
+
+    @Before
+    public void setUp() {
+        LC.zimbra_extracted_text_cache_disk_mb.setDefault(0); // memory only
+        cache = new ExtractedTextCache();
+    }
+
+    @After
+    public void tearDown() {
+        LC.zimbra_extracted_text_cache_disk_mb.setDefault(1024);
+    }
+
+    @Test
+    public void extractedTextCacheMiss() throws Exception {
+        CountingHandler handler = new CountingHandler("extracted");
+        handler.loadContent(cache, "digest/1/CountingHandler/");
+        Assert.assertEquals(1, handler.extractions);
+        Assert.assertEquals("extracted", cache.get("digest/1/CountingHandler/"));
+
+        Document doc = handler.getDocument();
+        Assert.assertEquals(1, handler.extractions); // not extracted again for the document
+        Assert.assertEquals(1, handler.fields);
+        Assert.assertEquals("value", doc.get("custom"));
+        Assert.assertEquals("extracted", doc.get(LuceneFields.L_CONTENT));
+    }
+
+    @Test
+    public void extractedTextCacheHit() throws Exception {
+        cache.put("digest/1/CountingHandler/", "cached");
+        CountingHandler handler = new CountingHandler("extracted");
+        handler.loadContent(cache, "digest/1/CountingHandler/");
+        Assert.assertEquals("cached", handler.getContent());
+
+        Document doc = handler.getDocument();
+        Assert.assertEquals(0, handler.extractions); // only the text extraction is skipped
+        Assert.assertEquals(1, handler.fields);
+        Assert.assertEquals("value", doc.get("custom"));
+        Assert.assertEquals("cached", doc.get(LuceneFields.L_CONTENT));
+    }
+
+    @Test
+    public void htmlCacheMiss() throws Exception {
+        CountingDataSource source = new CountingDataSource(HTML);
+        MimeHandler handler = new TextHtmlHandler();
+        handler.init(source);
+        handler.loadContent(cache, "digest/1/TextHtmlHandler/");
+        String text = cache.get("digest/1/TextHtmlHandler/");
+        Assert.assertNotNull(text);
+        Assert.assertTrue(text, text.contains("Hello") && text.contains("world") && !text.contains("<b>"));
+
+        Document doc = handler.getDocument();
+        Assert.assertEquals(text, doc.get(LuceneFields.L_CONTENT));
+        Assert.assertEquals("extracted once", 1, source.opened);
+    }
+
+    @Test
+    public void htmlCacheHit() throws Exception {
+        cache.put("digest/1/TextHtmlHandler/", "cached");
+        CountingDataSource source = new CountingDataSource(HTML);
+        MimeHandler handler = new TextHtmlHandler();
+        handler.init(source);
+        handler.loadContent(cache, "digest/1/TextHtmlHandler/");
+
+        Document doc = handler.getDocument();
+        Assert.assertEquals("cached", doc.get(LuceneFields.L_CONTENT));
+        Assert.assertEquals("not extracted", 0, source.opened);
+    }
+
+    private static final String HTML = "<html><body><p>Hello <b>world</b></p></body></html>";
+
+    private static final class CountingDataSource extends ByteArrayDataSource {
+        int opened = 0;
+
+        CountingDataSource(String html) {
+            super(html.getBytes(Charsets.UTF_8), MimeConstants.CT_TEXT_HTML);
+        }
+
+        @Override
+        public InputStream getInputStream() throws IOException {
+            opened++;
+            return super.getInputStream();
+        }
+    }
+
+    private static final class CountingHandler extends MimeHandler {
+        private final String content;
+        int extractions = 0;
+        int fields = 0;
+
+        CountingHandler(String content) {
+            this.content = content;
+        }
+
+        @Override
+        protected boolean runsExternally() {
+            return false;
+        }
+
+        @Override
+        protected void addFields(Document doc) {
+            fields++;
+            doc.add(new Field("custom", "value", Field.Store.YES, Field.Index.NOT_ANALYZED));
+        }
+
+        @Override
+        protected String getContentImpl() {
+            extractions++;
+            return content;
+        }
+
+        @Override
+        public String convert(AttachmentInfo doc, String urlPart) {
+            throw new UnsupportedOperationException();
+        }
+
+        @Override
+        public boolean doConversion() {
+            return false;
+        }
+    }
+}
@@ -135,6 +135,34 @@ public final class ParsedMessageTest {
         Assert.assertEquals("[NORMALIZE] " + description, expected, ParsedMessage.normalize(raw));
     }
 
+    @Test
+    public void imapStructure() throws Exception {
+        String raw =
+            "From: Pete <pete@silly.test>\r\n" +
+            "To: joe@example.org\r\n" +
+            "Subject: test\r\n" +
+            "Message-ID: <testabcd.1234@silly.test>\r\n" +
+            "\r\n" +
+            "Testing.";
+
+        ParsedMessage pm = new ParsedMessage(raw.getBytes(), false);
+        Assert.assertEquals("(NIL \"test\" ((\"Pete\" NIL \"pete\" \"silly.test\")) " +
+                "((\"Pete\" NIL \"pete\" \"silly.test\")) ((\"Pete\" NIL \"pete\" \"silly.test\")) " +
+                "((NIL NIL \"joe\" \"example.org\")) NIL NIL NIL \"<testabcd.1234@silly.test>\")", pm.getImapEnvelope());
+        Assert.assertNotNull(pm.getImapStructure());
+        Assert.assertTrue(pm.getImapStructure(), pm.getImapStructure().startsWith("(\"TEXT\" \"PLAIN\" "));
+
+        // built in memory, so the stored blob may not match what we'd render
+        pm = new ParsedMessage(pm.getMimeMessage(), false);
+        Assert.assertNull(pm.getImapStructure());
+        Assert.assertNull(pm.getImapEnvelope());
+
+        // raw 8-bit headers are decoded with each recipient's default charset
+        pm = new ParsedMessage(raw.replace("Subject: test", "Subject: caf\u00e9").getBytes("ISO-8859-1"), false);
+        Assert.assertNull(pm.getImapStructure());
+        Assert.assertNull(pm.getImapEnvelope());
+    }
+
 
     @Test
     public void encryptedFragment() throws Exception {
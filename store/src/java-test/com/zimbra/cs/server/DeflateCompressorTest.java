@@ -0,0 +1,108 @@
+/*
+ * ***** BEGIN LICENSE BLOCK *****
+ * Zimbra Collaboration Suite Server
+ * Copyright (C) 2016 Synacor, Inc.
+ *
+ * This program is free software: you can redistribute it and/or modify it under
+ * the terms of the GNU General Public License as published by the Free Software Foundation,
+ * version 2 of the License.
+ *
+ * This program is distributed in the hope that it will be useful, but WITHOUT ANY WARRANTY;
+ * without even the implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.
+ * See the GNU General Public License for more details.
+ * You should have received a copy of the GNU General Public License along with this program.
+ * If not, see <https://www.gnu.org/licenses/>.
+ * ***** END LICENSE BLOCK *****
+ */
+
+package com.zimbra.cs.server;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.zip.Deflater;
+import java.util.zip.Inflater;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+import com.google.common.base.Charsets;
+import com.google.common.io.ByteStreams;
+
+/**
+ * Unit test for {@link DeflateCompressor}.
+ */
+public final class DeflateCompressorTest {
+
+    @Test
+    public void syncFlush() throws Exception {
+        DeflateCompressor server = new DeflateCompressor(Deflater.DEFAULT_COMPRESSION);
+        Inflater client = new Inflater(true);
+        for (String line : new String[] { "* OK DEFLATE active\r\n", "* 1 FETCH (FLAGS (\\Seen))\r\n" }) {
+            byte[] raw = line.getBytes(Charsets.US_ASCII);
+            client.setInput(server.deflate(raw, 0, raw.length, true));
+            byte[] out = new byte[raw.length];
+            // everything written so far must be decodable without waiting for more output
+            Assert.assertEquals(raw.length, client.inflate(out));
+            Assert.assertEquals(line, new String(out, Charsets.US_ASCII));
+        }
+        client.end();
+        server.end();
+    }
+
+    @Test
+    public void streams() throws Exception {
+        StringBuilder sb = new StringBuilder();
+        for (int i = 0; i < 5000; i++) {
+            sb.append("a").append(i).append(" UID FETCH ").append(i).append(" (FLAGS)\r\n");
+        }
+        byte[] raw = sb.toString().getBytes(Charsets.US_ASCII);
+
+        DeflateCompressor sender = new DeflateCompressor(Deflater.BEST_SPEED);
+        ByteArrayOutputStream wire = new ByteArrayOutputStream();
+        OutputStream out = sender.wrap(wire);
+        out.write(raw, 0, 1000);
+        out.flush();
+        out.write(raw, 1000, raw.length - 1000);
+        out.flush();
+        Assert.assertEquals(raw.length, sender.getUncompressedBytesOut());
+        Assert.assertEquals(wire.size(), sender.getCompressedBytesOut());
+        Assert.assertTrue(sender.getRatio() < 50);
+
+        // feed the receiver one compressed byte at a time to exercise partial blocks
+        DeflateCompressor receiver = new DeflateCompressor(Deflater.BEST_SPEED);
+        InputStream in = receiver.wrap(new ByteArrayInputStream(wire.toByteArray()) {
+            @Override
+            public synchronized int read(byte[] b, int off, int len) {
+                return super.read(b, off, Math.min(len, 1));
+            }
+        });
+        Assert.assertArrayEquals(raw, ByteStreams.toByteArray(in));
+        Assert.assertEquals(wire.size(), receiver.getCompressedBytesIn());
+        Assert.assertEquals(raw.length, receiver.getUncompressedBytesIn());
+
+        // counters survive the end of the zlib state
+        in.close();
+        out.close();
+        Assert.assertEquals(raw.length, receiver.getUncompressedBytesIn());
+        try {
+            receiver.inflate(raw, 0, 1);
+            Assert.fail();
+        } catch (IOException expected) {
+        }
+    }
+
+    @Test
+    public void corrupt() throws Exception {
+        DeflateCompressor receiver = new DeflateCompressor(Deflater.DEFAULT_COMPRESSION);
+        byte[] garbage = { (byte) 0xff, (byte) 0xff, (byte) 0xff, (byte) 0xff };
+        try {
+            receiver.inflate(garbage, 0, garbage.length);
+            Assert.fail();
+        } catch (IOException expected) {
+        }
+        receiver.end();
+    }
+}
@@ -16,14 +16,30 @@
  */
 package com.zimbra.cs.server;
 
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.channels.FileChannel;
+
+import javax.net.ssl.SSLContext;
+import javax.security.sasl.SaslServer;
+
 import junit.framework.Assert;
 
 import org.apache.mina.core.buffer.IoBuffer;
+import org.apache.mina.core.file.FileRegion;
+import org.apache.mina.core.filterchain.IoFilter;
+import org.apache.mina.core.filterchain.IoFilterAdapter;
 import org.apache.mina.core.service.IoHandlerAdapter;
 import org.apache.mina.core.session.DummySession;
 import org.apache.mina.core.session.IoSession;
+import org.apache.mina.filter.ssl.SslFilter;
 import org.junit.Test;
 
+import com.zimbra.cs.security.sasl.SaslFilter;
+
 /**
  * Unit test for {@link NioOutputStream}.
  *
@@ -82,13 +98,86 @@ public final class NioOutputStreamTest {
         out.close();
     }
 
+    @Test
+    public void transferFrom() throws Exception {
+        File file = File.createTempFile("NioOutputStreamTest", ".msg");
+        try {
+            FileOutputStream fos = new FileOutputStream(file);
+            fos.write("0123456789".getBytes());
+            fos.close();
+
+            DummySession session = new DummySession();
+            TestIoHandler handler = new TestIoHandler(file);
+            session.setHandler(handler);
+            NioOutputStream out = new NioOutputStream(session, 10, Integer.MAX_VALUE, Integer.MAX_VALUE);
+            Assert.assertTrue(out.supportsTransfer());
+            FileChannel channel = new FileInputStream(file).getChannel();
+            out.write("{8}");
+            out.transferFrom(channel, 1, 8);
+            out.write(")");
+            out.close();
+            Assert.assertEquals("{8}12345678)", handler.toString());
+            Assert.assertEquals(1, handler.getRegionCount());
+            Assert.assertFalse(channel.isOpen());
+        } finally {
+            file.delete();
+        }
+    }
+
+    @Test
+    public void supportsTransfer() throws Exception {
+        Assert.assertTrue(supportsTransfer(null));
+        Assert.assertFalse(supportsTransfer(new SslFilter(SSLContext.getDefault(), false)));
+        Assert.assertFalse(supportsTransfer(new SaslFilter((SaslServer) null)));
+        Assert.assertFalse(supportsTransfer(new NioCompressionFilter(new DeflateCompressor(6))));
+        Assert.assertFalse(supportsTransfer(new IoFilterAdapter()));
+    }
+
+    private static boolean supportsTransfer(IoFilter filter) {
+        DummySession session = new DummySession();
+        if (filter != null) {
+            session.getFilterChain().addFirst("filter", filter);
+        }
+        return new NioOutputStream(session, 10, Integer.MAX_VALUE, Integer.MAX_VALUE).supportsTransfer();
+    }
+
     private static final class TestIoHandler extends IoHandlerAdapter {
+        private final File file;
         private int writes = 0;
+        private int regions = 0;
         private StringBuilder out = new StringBuilder();
 
+        TestIoHandler() {
+            this(null);
+        }
+
+        /**
+         * @param file source of the file regions written to the session
+         */
+        TestIoHandler(File file) {
+            this.file = file;
+        }
+
         @Override
-        public void messageSent(IoSession session, Object message) {
+        public void messageSent(IoSession session, Object message) throws IOException {
             writes++;
+            if (message instanceof FileRegion) {
+                // the region's channel is closed once written, read the range sent from the file instead
+                regions++;
+                FileRegion region = (FileRegion) message;
+                byte[] b = new byte[(int) region.getWrittenBytes()];
+                RandomAccessFile raf = new RandomAccessFile(file, "r");
+                try {
+                    raf.seek(region.getPosition() - region.getWrittenBytes());
+                    raf.readFully(b);
+                } finally {
+                    raf.close();
+                }
+                for (byte c : b) {
+                    out.append((char) c);
+                }
+                return;
+            }
             IoBuffer buf = (IoBuffer) message;
             while (buf.hasRemaining()) {
                 out.append((char) buf.get());
@@ -99,6 +188,10 @@ public final class NioOutputStreamTest {
             return writes;
         }
 
+        int getRegionCount() {
+            return regions;
+        }
+
         @Override
         public String toString() {
             return out.toString();
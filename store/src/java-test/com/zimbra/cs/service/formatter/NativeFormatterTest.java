@@ -0,0 +1,157 @@
+/*
+ * ***** BEGIN LICENSE BLOCK *****
+ * Zimbra Collaboration Suite Server
+ * Copyright (C) 2016 Synacor, Inc.
+ *
+ * This program is free software: you can redistribute it and/or modify it under
+ * the terms of the GNU General Public License as published by the Free Software Foundation,
+ * version 2 of the License.
+ *
+ * This program is distributed in the hope that it will be useful, but WITHOUT ANY WARRANTY;
+ * without even the implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.
+ * See the GNU General Public License for more details.
+ * You should have received a copy of the GNU General Public License along with this program.
+ * If not, see <https://www.gnu.org/licenses/>.
+ * ***** END LICENSE BLOCK *****
+ */
+package com.zimbra.cs.service.formatter;
+
+import java.io.IOException;
+
+import javax.servlet.ServletException;
+import javax.servlet.http.HttpServlet;
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+
+import org.eclipse.jetty.server.LocalConnector;
+import org.eclipse.jetty.server.Server;
+import org.eclipse.jetty.servlet.ServletHandler;
+import org.eclipse.jetty.servlet.ServletHolder;
+import org.junit.After;
+import org.junit.AfterClass;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.BeforeClass;
+import org.junit.Test;
+
+import com.google.common.base.Charsets;
+import com.google.common.base.Strings;
+import com.google.common.collect.Maps;
+import com.zimbra.common.localconfig.LC;
+import com.zimbra.common.service.ServiceException;
+import com.zimbra.common.util.ByteUtil;
+import com.zimbra.cs.account.MockProvisioning;
+import com.zimbra.cs.account.Provisioning;
+import com.zimbra.cs.mailbox.DeliveryOptions;
+import com.zimbra.cs.mailbox.MailItem;
+import com.zimbra.cs.mailbox.Mailbox;
+import com.zimbra.cs.mailbox.MailboxManager;
+import com.zimbra.cs.mailbox.MailboxTestUtil;
+import com.zimbra.cs.mailbox.Message;
+import com.zimbra.cs.mime.ParsedMessage;
+import com.zimbra.cs.service.MockHttpServletResponse;
+
+/**
+ * Unit test for {@link NativeFormatter}.
+ */
+public final class NativeFormatterTest {
+
+    private static Server server;
+    private static LocalConnector connector;
+    private static final ContentServlet servlet = new ContentServlet();
+
+    @BeforeClass
+    public static void init() throws Exception {
+        MailboxTestUtil.initServer();
+        Provisioning prov = Provisioning.getInstance();
+        prov.createAccount("test@zimbra.com", "secret", Maps.<String, Object>newHashMap());
+
+        server = new Server();
+        connector = new LocalConnector(server);
+        server.addConnector(connector);
+        ServletHandler handler = new ServletHandler();
+        handler.addServletWithMapping(new ServletHolder(servlet), "/*");
+        server.setHandler(handler);
+        server.start();
+    }
+
+    @AfterClass
+    public static void destroy() throws Exception {
+        server.stop();
+    }
+
+    @Before
+    public void setUp() throws Exception {
+        MailboxTestUtil.clearData();
+    }
+
+    @After
+    public void tearDown() {
+        LC.zimbra_blob_zero_copy_enabled.setDefault(true);
+    }
+
+    private static Message addMessage(int bodySize) throws Exception {
+        Mailbox mbox = MailboxManager.getInstance().getMailboxByAccountId(MockProvisioning.DEFAULT_ACCOUNT_ID);
+        String body = Strings.repeat("0123456789abcdefghijklmnopqrstuvwxyzABCDEFGHIJKLMNOPQRSTUVWXYZ!\r\n", bodySize / 66 + 1);
+        byte[] raw = ("From: sender@zimbra.com\r\nTo: test@zimbra.com\r\nSubject: zero copy\r\n\r\n" + body).getBytes();
+        return mbox.addMessage(null, new ParsedMessage(raw, false),
+                new DeliveryOptions().setFolderId(Mailbox.ID_FOLDER_INBOX), null);
+    }
+
+    /**
+     * Downloads the item through Jetty and checks that the body is the item's content.
+     *
+     * @return whether the content was sent as a channel
+     */
+    private static boolean download(MailItem item) throws Exception {
+        servlet.item = item;
+        servlet.sent = null;
+        String response = connector.getResponse("GET / HTTP/1.0\r\n\r\n");
+        Assert.assertTrue(response, response.substring(0, response.indexOf("\r\n")).contains(" 200 "));
+        String body = response.substring(response.indexOf("\r\n\r\n") + 4);
+        Assert.assertEquals(new String(item.getContent(), Charsets.ISO_8859_1), body);
+        return servlet.sent;
+    }
+
+    @Test
+    public void sendContentChannel() throws Exception {
+        Message msg = addMessage(100 * 1024);
+        Assert.assertTrue(download(msg));
+
+        LC.zimbra_blob_zero_copy_enabled.setDefault(false);
+        Assert.assertFalse(download(msg));
+    }
+
+    @Test
+    public void sendContentChannelFallback() throws Exception {
+        Message msg = addMessage(1024);
+        Assert.assertTrue(msg.getSize() < LC.zimbra_blob_zero_copy_min_size.longValue());
+        Assert.assertFalse(download(msg));
+
+        // not a Jetty response
+        msg = addMessage(100 * 1024);
+        Assert.assertFalse(NativeFormatter.sendContentChannel(new MockHttpServletResponse(), msg));
+    }
+
+    /**
+     * Sends the item as {@link NativeFormatter} sends a raw message.
+     */
+    @SuppressWarnings("serial")
+    private static final class ContentServlet extends HttpServlet {
+        volatile MailItem item;
+        volatile Boolean sent;
+
+        @Override
+        protected void doGet(HttpServletRequest req, HttpServletResponse resp) throws ServletException, IOException {
+            resp.setContentLength((int) item.getSize());
+            try {
+                sent = NativeFormatter.sendContentChannel(resp, item);
+                if (!sent) {
+                    ByteUtil.copy(item.getContentStream(), true, resp.getOutputStream(), false);
+                }
+            } catch (ServiceException e) {
+                throw new ServletException(e);
+            }
+        }
+    }
+}
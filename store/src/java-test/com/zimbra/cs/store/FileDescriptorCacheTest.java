@@ -26,6 +26,9 @@ import java.io.FileOutputStream;
 import java.io.IOException;
 import java.io.OutputStream;
 import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicReference;
 import java.util.zip.GZIPOutputStream;
 
 import org.junit.After;
@@ -37,6 +40,7 @@ import com.google.common.io.Files;
 import com.zimbra.common.util.ByteUtil;
 import com.zimbra.common.util.FileCache;
 import com.zimbra.common.util.FileUtil;
+import com.zimbra.cs.stats.ZimbraPerf;
 
 public class FileDescriptorCacheTest {
 
@@ -122,6 +126,110 @@ public class FileDescriptorCacheTest {
         assertEquals(2, fdc.getSize());
     }
 
+    @Test
+    public void testConcurrentReads()
+    throws Exception {
+        final FileDescriptorCache fdc = new FileDescriptorCache(null);
+        fdc.setMaxSize(3);
+
+        final List<File> files = Lists.newArrayList();
+        for (int i = 0; i < 5; i++) {
+            File file = File.createTempFile(NAME_PREFIX, ".tmp");
+            tempFiles.add(file);
+            Files.write(("content of file " + i).getBytes(), file);
+            files.add(file);
+        }
+
+        final AtomicReference<Throwable> failure = new AtomicReference<Throwable>();
+        List<Thread> threads = Lists.newArrayList();
+        for (int t = 0; t < 8; t++) {
+            final int seed = t;
+            Thread thread = new Thread() {
+                @Override
+                public void run() {
+                    byte[] buf = new byte[64];
+                    try {
+                        for (int i = 0; i < 500; i++) {
+                            int index = (seed + i) % files.size();
+                            String expected = "content of file " + index;
+                            File file = files.get(index);
+                            int offset = i % 8;
+                            int numRead = fdc.read(file.getPath(), file.length(), offset, buf, 0, buf.length);
+                            assertEquals(expected.substring(offset), new String(buf, 0, numRead));
+                        }
+                    } catch (Throwable e) {
+                        failure.compareAndSet(null, e);
+                    }
+                }
+            };
+            threads.add(thread);
+            thread.start();
+        }
+        for (Thread thread : threads) {
+            thread.join();
+        }
+        if (failure.get() != null) {
+            throw new AssertionError(failure.get());
+        }
+        assertTrue(fdc.getSize() <= 3);
+
+        fdc.shutdown();
+        assertEquals(0, fdc.getSize());
+    }
+
+    @Test
+    public void testInterruptedReader()
+    throws Exception {
+        final FileDescriptorCache fdc = new FileDescriptorCache(null);
+        final File file = File.createTempFile(NAME_PREFIX, ".tmp");
+        tempFiles.add(file);
+        final String content = "shared by an interrupted reader";
+        Files.write(content.getBytes(), file);
+
+        final AtomicReference<Throwable> failure = new AtomicReference<Throwable>();
+        final CountDownLatch reading = new CountDownLatch(1);
+        final AtomicBoolean done = new AtomicBoolean();
+        Thread other = new Thread() {
+            @Override
+            public void run() {
+                byte[] buf = new byte[64];
+                try {
+                    while (!done.get()) {
+                        int numRead = fdc.read(file.getPath(), file.length(), 0, buf, 0, buf.length);
+                        assertEquals(content, new String(buf, 0, numRead));
+                        reading.countDown();
+                    }
+                } catch (Throwable e) {
+                    failure.compareAndSet(null, e);
+                }
+            }
+        };
+        other.start();
+        reading.await();
+
+        long opened = ZimbraPerf.COUNTER_BLOB_FD_OPEN.getTotal();
+        byte[] buf = new byte[64];
+        try {
+            for (int i = 0; i < 100; i++) {
+                Thread.currentThread().interrupt();
+                int numRead = fdc.read(file.getPath(), file.length(), 0, buf, 0, buf.length);
+                assertEquals(content, new String(buf, 0, numRead));
+                assertTrue("interrupt status is kept", Thread.interrupted());
+            }
+        } finally {
+            Thread.interrupted();
+            done.set(true);
+            other.join();
+        }
+        if (failure.get() != null) {
+            throw new AssertionError(failure.get());
+        }
+        assertEquals("shared descriptor was not reopened", opened, ZimbraPerf.COUNTER_BLOB_FD_OPEN.getTotal());
+        assertEquals(1, fdc.getSize());
+
+        fdc.shutdown();
+    }
+
     private void write(File file, String content)
     throws IOException {
         OutputStream out = new GZIPOutputStream(new FileOutputStream(file));
@@ -18,6 +18,7 @@ package com.zimbra.cs.store;
 
 import java.io.ByteArrayInputStream;
 import java.io.File;
+import java.io.FileInputStream;
 import java.io.FileNotFoundException;
 import java.io.FileOutputStream;
 import java.io.IOException;
@@ -184,6 +185,11 @@ public final class MockStoreManager extends StoreManager {
         return blob.getInputStream();
     }
 
+    @Override
+    public FileChannel getContentChannel(MailboxBlob mblob) throws IOException {
+        return new FileInputStream(mblob.getLocalBlob().getFile()).getChannel();
+    }
+
     @Override
     public boolean deleteStore(Mailbox mbox, Iterable<MailboxBlob.MailboxBlobInfo> mblobs) throws IOException {
         assert mblobs != null : "we require a blob iterator for testing purposes";
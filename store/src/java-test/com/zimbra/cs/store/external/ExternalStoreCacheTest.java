@@ -0,0 +1,144 @@
+/*
+ * ***** BEGIN LICENSE BLOCK *****
+ * Zimbra Collaboration Suite Server
+ * Copyright (C) 2016 Synacor, Inc.
+ *
+ * This program is free software: you can redistribute it and/or modify it under
+ * the terms of the GNU General Public License as published by the Free Software Foundation,
+ * version 2 of the License.
+ *
+ * This program is distributed in the hope that it will be useful, but WITHOUT ANY WARRANTY;
+ * without even the implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.
+ * See the GNU General Public License for more details.
+ * You should have received a copy of the GNU General Public License along with this program.
+ * If not, see <https://www.gnu.org/licenses/>.
+ * ***** END LICENSE BLOCK *****
+ */
+package com.zimbra.cs.store.external;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+import com.zimbra.cs.account.MockProvisioning;
+import com.zimbra.cs.mailbox.Mailbox;
+import com.zimbra.cs.mailbox.MailboxManager;
+import com.zimbra.cs.mailbox.ThreaderTest;
+import com.zimbra.cs.mime.ParsedMessage;
+import com.zimbra.cs.store.AbstractStoreManagerTest;
+import com.zimbra.cs.store.Blob;
+import com.zimbra.cs.store.MailboxBlob;
+import com.zimbra.cs.store.StagedBlob;
+import com.zimbra.cs.store.StoreManager;
+import com.zimbra.qa.unittest.TestUtil;
+
+public class ExternalStoreCacheTest extends AbstractStoreManagerTest {
+
+    /** A {@link SimpleStoreManager} that counts remote reads and can hold them until released. */
+    static class CountingStoreManager extends SimpleStoreManager {
+        final AtomicInteger reads = new AtomicInteger();
+        volatile CountDownLatch gate;
+
+        @Override
+        public InputStream readStreamFromStore(String locator, Mailbox mbox) throws IOException {
+            reads.incrementAndGet();
+            CountDownLatch latch = gate;
+            if (latch != null) {
+                try {
+                    latch.await(10, TimeUnit.SECONDS);
+                } catch (InterruptedException e) {
+                    throw new IOException(e);
+                }
+            }
+            return super.readStreamFromStore(locator, mbox);
+        }
+    }
+
+    @Override
+    protected StoreManager getStoreManager() {
+        return new CountingStoreManager();
+    }
+
+    @Test
+    public void writeThrough() throws Exception {
+        ParsedMessage pm = ThreaderTest.getRootMessage();
+        byte[] mimeBytes = TestUtil.readInputStream(pm.getRawInputStream());
+        Mailbox mbox = MailboxManager.getInstance().getMailboxByAccountId(MockProvisioning.DEFAULT_ACCOUNT_ID);
+        CountingStoreManager sm = (CountingStoreManager) StoreManager.getInstance();
+
+        Blob blob = sm.storeIncoming(pm.getRawInputStream());
+        StagedBlob staged = sm.stage(blob, mbox);
+        sm.link(staged, mbox, 0, 0);
+        MailboxBlob mblob = sm.getMailboxBlob(mbox, 0, 0, staged.getLocator());
+        Assert.assertTrue(TestUtil.bytesEqual(mimeBytes, sm.getContent(mblob)));
+        Assert.assertEquals("served from the cache", 0, sm.reads.get());
+
+        sm.clearCache();
+        Assert.assertTrue(TestUtil.bytesEqual(mimeBytes, sm.getContent(mblob)));
+        Assert.assertTrue(TestUtil.bytesEqual(mimeBytes, sm.getContent(mblob)));
+        Assert.assertEquals("fetched once after the cache was cleared", 1, sm.reads.get());
+        sm.delete(mblob);
+    }
+
+    @Test
+    public void coalesceMisses() throws Exception {
+        ParsedMessage pm = ThreaderTest.getRootMessage();
+        final byte[] mimeBytes = TestUtil.readInputStream(pm.getRawInputStream());
+        final Mailbox mbox = MailboxManager.getInstance().getMailboxByAccountId(MockProvisioning.DEFAULT_ACCOUNT_ID);
+        final CountingStoreManager sm = (CountingStoreManager) StoreManager.getInstance();
+
+        Blob blob = sm.storeIncoming(pm.getRawInputStream());
+        final StagedBlob staged = sm.stage(blob, mbox);
+        sm.link(staged, mbox, 0, 0);
+        sm.clearCache();
+
+        sm.gate = new CountDownLatch(1);
+        ExecutorService pool = Executors.newFixedThreadPool(4);
+        try {
+            List<Future<Boolean>> results = new ArrayList<Future<Boolean>>();
+            for (int i = 0; i < 4; i++) {
+                results.add(pool.submit(new Callable<Boolean>() {
+                    @Override
+                    public Boolean call() throws Exception {
+                        MailboxBlob mblob = sm.getMailboxBlob(mbox, 0, 0, staged.getLocator(), false);
+                        return TestUtil.bytesEqual(mimeBytes, sm.getContent(mblob));
+                    }
+                }));
+            }
+            // let the other readers pile up behind the first fetch
+            Thread.sleep(200);
+            sm.gate.countDown();
+            for (Future<Boolean> result : results) {
+                Assert.assertTrue(result.get(10, TimeUnit.SECONDS));
+            }
+        } finally {
+            pool.shutdownNow();
+            sm.gate = null;
+        }
+        Assert.assertEquals(1, sm.reads.get());
+    }
+
+    @Test
+    public void unlinkedStagedBlobEvicted() throws Exception {
+        ParsedMessage pm = ThreaderTest.getRootMessage();
+        Mailbox mbox = MailboxManager.getInstance().getMailboxByAccountId(MockProvisioning.DEFAULT_ACCOUNT_ID);
+        CountingStoreManager sm = (CountingStoreManager) StoreManager.getInstance();
+
+        Blob blob = sm.storeIncoming(pm.getRawInputStream());
+        StagedBlob staged = sm.stage(blob, mbox);
+        Assert.assertNotNull(sm.localCache.get(staged.getLocator()));
+        sm.delete(staged);
+        Assert.assertNull(sm.localCache.get(staged.getLocator()));
+    }
+}
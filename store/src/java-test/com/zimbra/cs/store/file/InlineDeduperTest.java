@@ -0,0 +1,161 @@
+/*
+ * ***** BEGIN LICENSE BLOCK *****
+ * Zimbra Collaboration Suite Server
+ * Copyright (C) 2016 Synacor, Inc.
+ *
+ * This program is free software: you can redistribute it and/or modify it under
+ * the terms of the GNU General Public License as published by the Free Software Foundation,
+ * version 2 of the License.
+ *
+ * This program is distributed in the hope that it will be useful, but WITHOUT ANY WARRANTY;
+ * without even the implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.
+ * See the GNU General Public License for more details.
+ * You should have received a copy of the GNU General Public License along with this program.
+ * If not, see <https://www.gnu.org/licenses/>.
+ * ***** END LICENSE BLOCK *****
+ */
+package com.zimbra.cs.store.file;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.zip.GZIPOutputStream;
+
+import org.junit.After;
+import org.junit.Assert;
+import org.junit.Assume;
+import org.junit.Before;
+import org.junit.Test;
+
+import com.google.common.io.Files;
+import com.zimbra.common.localconfig.LC;
+import com.zimbra.common.util.FileUtil;
+import com.zimbra.cs.store.BlobInputStream;
+import com.zimbra.cs.store.FileDescriptorCache;
+import com.zimbra.znative.IO;
+import com.zimbra.znative.Util;
+
+/**
+ * Unit test for {@link InlineDeduper}.  Skipped where native hard link support is missing.
+ */
+public final class InlineDeduperTest {
+
+    private static final short VOLUME_ID = 1;
+    private static final String DIGEST = "digest";
+    private static final byte[] CONTENT = "Subject: inline dedupe\r\n\r\nbody\r\n".getBytes();
+
+    private File dir;
+    private FileDescriptorCache fdcache;
+    private InlineDeduper deduper;
+
+    @Before
+    public void setUp() {
+        Assume.assumeTrue(Util.haveNativeCode());
+        LC.zimbra_blob_inline_dedupe.setDefault(true);
+        LC.zimbra_blob_inline_dedupe_min_size.setDefault(0);
+        fdcache = BlobInputStream.getFileDescriptorCache();
+        if (fdcache == null) {
+            BlobInputStream.setFileDescriptorCache(new FileDescriptorCache(null));
+        }
+        dir = Files.createTempDir();
+        deduper = new InlineDeduper();
+    }
+
+    @After
+    public void tearDown() throws IOException {
+        LC.zimbra_blob_inline_dedupe.setDefault(false);
+        LC.zimbra_blob_inline_dedupe_min_size.setDefault(32768);
+        if (dir != null) {
+            BlobInputStream.setFileDescriptorCache(fdcache);
+            FileUtil.deleteDir(dir);
+        }
+    }
+
+    private VolumeBlob blob(String name, byte[] content, boolean gzip) throws IOException {
+        File file = new File(dir, name);
+        OutputStream out = new FileOutputStream(file);
+        if (gzip) {
+            out = new GZIPOutputStream(out);
+        }
+        try {
+            out.write(content);
+        } finally {
+            out.close();
+        }
+        VolumeBlob blob = new VolumeBlob(file, VOLUME_ID);
+        blob.setDigest(DIGEST);
+        blob.setCompressed(gzip);
+        return blob;
+    }
+
+    private static long inode(VolumeBlob blob) throws IOException {
+        return IO.fileInfo(blob.getPath()).getInodeNum();
+    }
+
+    @Test
+    public void linkOnDigestHit() throws Exception {
+        VolumeBlob existing = blob("existing", CONTENT, false);
+        deduper.record(existing, DIGEST);
+        VolumeBlob incoming = blob("incoming", CONTENT, false);
+
+        Assert.assertEquals(CONTENT.length, deduper.dedupe(incoming));
+        Assert.assertEquals(inode(existing), inode(incoming));
+        Assert.assertEquals(2, IO.linkCount(incoming.getPath()));
+        // already sharing the inode
+        Assert.assertEquals(0, deduper.dedupe(incoming));
+    }
+
+    @Test
+    public void forgetStalePath() throws Exception {
+        VolumeBlob existing = blob("existing", CONTENT, false);
+        deduper.record(existing, DIGEST);
+        Assert.assertTrue(existing.getFile().delete());
+        VolumeBlob incoming = blob("incoming", CONTENT, false);
+
+        Assert.assertEquals(0, deduper.dedupe(incoming));
+        // the entry was dropped, so a new file at the old path isn't linked either
+        blob("existing", CONTENT, false);
+        Assert.assertEquals(0, deduper.dedupe(incoming));
+        Assert.assertFalse(inode(existing) == inode(incoming));
+    }
+
+    @Test
+    public void refuseSizeMismatch() throws Exception {
+        VolumeBlob existing = blob("existing", CONTENT, false);
+        deduper.record(existing, DIGEST);
+        VolumeBlob incoming = blob("incoming", "different".getBytes(), false);
+
+        Assert.assertEquals(0, deduper.dedupe(incoming));
+        Assert.assertFalse(inode(existing) == inode(incoming));
+        Assert.assertEquals(1, IO.linkCount(existing.getPath()));
+    }
+
+    @Test
+    public void refuseGzipMismatch() throws Exception {
+        VolumeBlob existing = blob("existing", CONTENT, true);
+        deduper.record(existing, DIGEST);
+        VolumeBlob incoming = blob("incoming", CONTENT, false);
+
+        Assert.assertEquals(0, deduper.dedupe(incoming));
+        Assert.assertFalse(inode(existing) == inode(incoming));
+
+        // and the other way round
+        deduper.record(incoming, DIGEST);
+        VolumeBlob compressed = blob("compressed", CONTENT, true);
+        Assert.assertEquals(0, deduper.dedupe(compressed));
+        Assert.assertFalse(inode(incoming) == inode(compressed));
+    }
+
+    @Test
+    public void deleteOneLink() throws Exception {
+        VolumeBlob existing = blob("existing", CONTENT, false);
+        deduper.record(existing, DIGEST);
+        VolumeBlob incoming = blob("incoming", CONTENT, false);
+        Assert.assertEquals(CONTENT.length, deduper.dedupe(incoming));
+
+        Assert.assertTrue(existing.getFile().delete());
+        Assert.assertEquals(1, IO.linkCount(incoming.getPath()));
+        Assert.assertArrayEquals(CONTENT, Files.toByteArray(incoming.getFile()));
+    }
+}
@@ -0,0 +1,106 @@
+/*
+ * ***** BEGIN LICENSE BLOCK *****
+ * Zimbra Collaboration Suite Server
+ * Copyright (C) 2016 Synacor, Inc.
+ *
+ * This program is free software: you can redistribute it and/or modify it under
+ * the terms of the GNU General Public License as published by the Free Software Foundation,
+ * version 2 of the License.
+ *
+ * This program is distributed in the hope that it will be useful, but WITHOUT ANY WARRANTY;
+ * without even the implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.
+ * See the GNU General Public License for more details.
+ * You should have received a copy of the GNU General Public License along with this program.
+ * If not, see <https://www.gnu.org/licenses/>.
+ * ***** END LICENSE BLOCK *****
+ */
+package com.zimbra.cs.store.pack;
+
+import java.io.ByteArrayInputStream;
+import java.io.File;
+import java.util.Random;
+
+import org.junit.Assert;
+import org.junit.BeforeClass;
+import org.junit.Test;
+
+import com.zimbra.common.localconfig.LC;
+import com.zimbra.common.util.FileUtil;
+import com.zimbra.cs.account.MockProvisioning;
+import com.zimbra.cs.mailbox.Mailbox;
+import com.zimbra.cs.mailbox.MailboxManager;
+import com.zimbra.cs.store.AbstractStoreManagerTest;
+import com.zimbra.cs.store.Blob;
+import com.zimbra.cs.store.MailboxBlob;
+import com.zimbra.cs.store.StoreManager;
+import com.zimbra.qa.unittest.TestUtil;
+
+public class PackFileStoreManagerTest extends AbstractStoreManagerTest {
+
+    @BeforeClass
+    public static void disableNative() {
+        System.setProperty("zimbra.native.required", "false");
+    }
+
+    @Override
+    protected StoreManager getStoreManager() {
+        File dir = new File(LC.zimbra_tmp_directory.value(), "pack");
+        try {
+            FileUtil.deleteDir(dir);
+        } catch (Exception e) {
+            throw new RuntimeException(e);
+        }
+        LC.zimbra_pack_store_directory.setDefault(dir.getPath());
+        // two small test blobs per segment
+        LC.zimbra_pack_store_segment_size.setDefault(1024);
+        LC.zimbra_pack_store_compact_interval.setDefault(0);
+        return new PackFileStoreManager();
+    }
+
+    private static MailboxBlob store(StoreManager sm, Mailbox mbox, byte[] content, int itemId) throws Exception {
+        Blob blob = sm.storeIncoming(new ByteArrayInputStream(content));
+        return sm.renameTo(sm.stage(blob, mbox), mbox, itemId, 1);
+    }
+
+    @Test
+    public void packAndCompact() throws Exception {
+        PackFileStoreManager sm = (PackFileStoreManager) StoreManager.getInstance();
+        Mailbox mbox = MailboxManager.getInstance().getMailboxByAccountId(MockProvisioning.DEFAULT_ACCOUNT_ID);
+        Random rand = new Random();
+
+        byte[][] contents = new byte[5][];
+        MailboxBlob[] mblobs = new MailboxBlob[contents.length];
+        for (int i = 0; i < contents.length; i++) {
+            contents[i] = new byte[400];
+            rand.nextBytes(contents[i]);
+            mblobs[i] = store(sm, mbox, contents[i], i + 1);
+            Assert.assertTrue(mblobs[i].getLocator(), PackFileStoreManager.isPackLocator(mblobs[i].getLocator()));
+        }
+        byte[] large = new byte[LC.zimbra_pack_store_max_blob_size.intValue() + 1];
+        rand.nextBytes(large);
+        MailboxBlob largeBlob = store(sm, mbox, large, 100);
+        Assert.assertFalse(PackFileStoreManager.isPackLocator(largeBlob.getLocator()));
+        Assert.assertTrue(largeBlob.getLocalBlob().getFile().exists());
+
+        Assert.assertTrue(sm.delete(mblobs[0]));
+        Assert.assertTrue(sm.delete(mblobs[2]));
+        Assert.assertNull(sm.getMailboxBlob(mbox, 1, 1, mblobs[0].getLocator()));
+        // the first two segments are half dead; their live blobs move to the end
+        Assert.assertEquals(2 * 2 * (PackStore.RECORD_HEADER_SIZE + 400), sm.compact());
+        Assert.assertEquals(0, sm.compact());
+
+        sm.shutdown();
+        sm.startup();
+        for (int i : new int[] { 1, 3, 4 }) {
+            MailboxBlob mblob = sm.getMailboxBlob(mbox, i + 1, 1, mblobs[i].getLocator());
+            Assert.assertNotNull(mblob);
+            Assert.assertTrue(TestUtil.bytesEqual(contents[i], sm.getContent(mblob)));
+            Assert.assertTrue(TestUtil.bytesEqual(contents[i], mblob.getLocalBlob().getInputStream()));
+        }
+        Assert.assertNull(sm.getMailboxBlob(mbox, 3, 1, mblobs[2].getLocator()));
+        Assert.assertEquals(3, sm.getPackStore().list(mbox.getId()).size());
+
+        sm.deleteStore(mbox, null);
+        Assert.assertEquals(0, sm.getPackStore().size());
+    }
+}
@@ -0,0 +1,238 @@
+/*
+ * ***** BEGIN LICENSE BLOCK *****
+ * Zimbra Collaboration Suite Server
+ * Copyright (C) 2016 Synacor, Inc.
+ *
+ * This program is free software: you can redistribute it and/or modify it under
+ * the terms of the GNU General Public License as published by the Free Software Foundation,
+ * version 2 of the License.
+ *
+ * This program is distributed in the hope that it will be useful, but WITHOUT ANY WARRANTY;
+ * without even the implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.
+ * See the GNU General Public License for more details.
+ * You should have received a copy of the GNU General Public License along with this program.
+ * If not, see <https://www.gnu.org/licenses/>.
+ * ***** END LICENSE BLOCK *****
+ */
+package com.zimbra.cs.db;
+
+import java.sql.PreparedStatement;
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+import com.zimbra.common.localconfig.LC;
+import com.zimbra.common.service.ServiceException;
+import com.zimbra.cs.mailbox.Flag;
+import com.zimbra.cs.mailbox.Mailbox;
+import com.zimbra.cs.mailbox.Tag;
+import com.zimbra.cs.stats.ZimbraPerf;
+
+/**
+ * Collects the flag, tag and unread changes made to individual items during a single mailbox operation and writes
+ * them with one multi-row statement per chunk instead of one statement per item.
+ * <p>
+ * Changes are grouped by tag and direction.  On {@link #flush()} the item ids of each group are sorted and coalesced
+ * into {@code id BETWEEN ? AND ?} ranges and loose ids, and written in chunks of at most
+ * {@code zimbra_flag_batch_chunk_size} rows; the per-row sanity checks in {@link DbTag#alterTag} and
+ * {@link DbMailItem#alterUnread} still apply, so a coalesced range never touches rows that would not have been
+ * updated one at a time.  Each flush is timed in {@link ZimbraPerf#STOPWATCH_DB_FLAG_BATCH}.
+ * <p>
+ * Nothing is written until {@link #flush()}, so the owner must flush before anything reads the affected rows back
+ * from the database.  Instances are confined to the thread holding the mailbox write lock.
+ */
+public final class DbFlagBatch {
+
+    private static final class Group {
+        final Tag tag;
+        final boolean add;
+        final Set<Integer> ids = new HashSet<Integer>();
+
+        Group(Tag tag, boolean add) {
+            this.tag = tag;
+            this.add = add;
+        }
+    }
+
+    private final Mailbox mbox;
+    private final Map<Long, Group> groups = new LinkedHashMap<Long, Group>();
+
+    public DbFlagBatch(Mailbox mbox) {
+        this.mbox = mbox;
+    }
+
+    private static long key(int tagId, boolean add) {
+        return ((long) tagId << 1) | (add ? 1 : 0);
+    }
+
+    /** Records that {@code tag} is to be added to or removed from item {@code itemId}. */
+    public void alterTag(Tag tag, int itemId, boolean add) throws ServiceException {
+        record(tag, itemId, add);
+    }
+
+    /** Records that item {@code itemId} is to be marked unread or read. */
+    public void alterUnread(Flag unreadFlag, int itemId, boolean unread) throws ServiceException {
+        record(unreadFlag, itemId, unread);
+    }
+
+    private void record(Tag tag, int itemId, boolean add) throws ServiceException {
+        Group opposite = groups.get(key(tag.getId(), !add));
+        if (opposite != null && opposite.ids.contains(itemId)) {
+            // the reverse change is still pending; it has to reach the database first
+            flush();
+        }
+        long key = key(tag.getId(), add);
+        Group group = groups.get(key);
+        if (group == null) {
+            groups.put(key, group = new Group(tag, add));
+        }
+        group.ids.add(itemId);
+    }
+
+    public boolean isEmpty() {
+        return groups.isEmpty();
+    }
+
+    /** Writes all pending changes through the mailbox's operation connection and empties the batch. */
+    public void flush() throws ServiceException {
+        if (groups.isEmpty()) {
+            return;
+        }
+        long start = ZimbraPerf.STOPWATCH_DB_FLAG_BATCH.start();
+        int count = 0;
+        try {
+            for (Group group : groups.values()) {
+                List<Integer> ids = new ArrayList<Integer>(group.ids);
+                if (group.tag.getId() == Flag.ID_UNREAD) {
+                    DbMailItem.alterUnread(mbox, ids, group.add);
+                } else {
+                    DbTag.alterTag(group.tag, ids, group.add);
+                }
+                count += ids.size();
+            }
+        } finally {
+            groups.clear();
+            ZimbraPerf.STOPWATCH_DB_FLAG_BATCH.stop(start);
+            ZimbraPerf.COUNTER_DB_FLAG_BATCH_ITEMS.increment(count);
+        }
+    }
+
+    /** Returns the maximum number of rows a single batched UPDATE may touch. */
+    static int getChunkSize() {
+        return Math.max(1, LC.zimbra_flag_batch_chunk_size.intValue());
+    }
+
+    /**
+     * A set of item ids to be matched by one statement, split into contiguous ranges and loose ids so that long runs
+     * of consecutive ids (as produced by {@code STORE 1:*}) cost two bind variables instead of one per row.
+     */
+    static final class IdChunk {
+        /** Runs shorter than this are cheaper as loose ids than as a range. */
+        private static final int MIN_RANGE = 3;
+
+        private final List<Integer> ids = new ArrayList<Integer>();
+        private final List<int[]> ranges = new ArrayList<int[]>();
+        private final List<Integer> singles = new ArrayList<Integer>();
+
+        /** The ids matched by this chunk, in ascending order. */
+        List<Integer> getIds() {
+            return ids;
+        }
+
+        int getParameterCount() {
+            return ranges.size() * 2 + singles.size();
+        }
+
+        private void addRun(int first, int last) {
+            for (int id = first; id <= last; id++) {
+                ids.add(id);
+            }
+            if (last - first + 1 >= MIN_RANGE) {
+                ranges.add(new int[] { first, last });
+            } else {
+                for (int id = first; id <= last; id++) {
+                    singles.add(id);
+                }
+            }
+        }
+
+        /** Returns the WHERE condition matching this chunk's ids in {@code column}. */
+        String where(String column) {
+            StringBuilder sb = new StringBuilder();
+            if (ranges.size() + (singles.isEmpty() ? 0 : 1) > 1) {
+                sb.append('(');
+            }
+            for (int i = 0; i < ranges.size(); i++) {
+                sb.append(i == 0 ? "" : " OR ").append(column).append(" BETWEEN ? AND ?");
+            }
+            if (!singles.isEmpty()) {
+                sb.append(ranges.isEmpty() ? "" : " OR ").append(DbUtil.whereIn(column, singles.size()));
+            }
+            if (ranges.size() + (singles.isEmpty() ? 0 : 1) > 1) {
+                sb.append(')');
+            }
+            return sb.toString();
+        }
+
+        /** Binds the parameters of {@link #where(String)} starting at {@code pos}; returns the next position. */
+        int bind(PreparedStatement stmt, int pos) throws SQLException {
+            for (int[] range : ranges) {
+                stmt.setInt(pos++, range[0]);
+                stmt.setInt(pos++, range[1]);
+            }
+            for (int id : singles) {
+                stmt.setInt(pos++, id);
+            }
+            return pos;
+        }
+    }
+
+    /**
+     * Sorts and de-duplicates {@code itemIds} and splits them into chunks of at most
+     * {@code zimbra_flag_batch_chunk_size} ids, each needing no more than {@link Db#getINClauseBatchSize()} bind
+     * variables.
+     */
+    static List<IdChunk> chunk(Collection<Integer> itemIds) {
+        int[] sorted = new int[itemIds.size()];
+        int n = 0;
+        for (int id : itemIds) {
+            sorted[n++] = id;
+        }
+        Arrays.sort(sorted);
+
+        int maxRows = getChunkSize();
+        int maxParams = Math.max(2, Db.getINClauseBatchSize());
+        List<IdChunk> chunks = new ArrayList<IdChunk>();
+        IdChunk chunk = new IdChunk();
+        int i = 0;
+        while (i < n) {
+            int room = maxRows - chunk.getIds().size();
+            if (room <= 0 || chunk.getParameterCount() + 2 > maxParams) {
+                chunks.add(chunk);
+                chunk = new IdChunk();
+                room = maxRows;
+            }
+            // extend the run of consecutive ids, skipping duplicates, without overflowing the chunk
+            int first = sorted[i], last = first;
+            int j = i + 1;
+            while (j < n && last - first + 1 < room && (sorted[j] == last || sorted[j] == last + 1)) {
+                last = sorted[j++];
+            }
+            while (j < n && sorted[j] == last) {
+                j++;
+            }
+            chunk.addRun(first, last);
+            i = j;
+        }
+        if (!chunk.getIds().isEmpty()) {
+            chunks.add(chunk);
+        }
+        return chunks;
+    }
+}
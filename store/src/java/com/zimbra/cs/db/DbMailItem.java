@@ -35,6 +35,7 @@ import java.util.GregorianCalendar;
 import java.util.HashMap;
 import java.util.HashSet;
 import java.util.Iterator;
+import java.util.LinkedHashMap;
 import java.util.List;
 import java.util.Map;
 import java.util.Set;
@@ -993,6 +994,30 @@ public class DbMailItem {
         }
     }
 
+    /**
+     * Rewrites an item's metadata without touching its change number or dates.  Only for data that can be rederived
+     * from the item itself (e.g. precomputed IMAP structures), which IMAP and sync clients must not see as a change.
+     */
+    public static void saveDerivedMetadata(MailItem item, String metadata) throws ServiceException {
+        Mailbox mbox = item.getMailbox();
+        DbConnection conn = mbox.getOperationConnection();
+        PreparedStatement stmt = null;
+        try {
+            stmt = conn.prepareStatement("UPDATE " + getMailItemTableName(item) +
+                        " SET metadata = ?" +
+                        " WHERE " + IN_THIS_MAILBOX_AND + "id = ?");
+            int pos = 1;
+            stmt.setString(pos++, checkMetadataLength(metadata));
+            pos = setMailboxId(stmt, mbox, pos);
+            stmt.setInt(pos++, item.getId());
+            stmt.executeUpdate();
+        } catch (SQLException e) {
+            throw ServiceException.FAILURE("writing metadata for mailbox " + item.getMailboxId() + ", item " + item.getId(), e);
+        } finally {
+            DbPool.closeStatement(stmt);
+        }
+    }
+
     public static void persistCounts(MailItem item, Metadata metadata) throws ServiceException {
         Mailbox mbox = item.getMailbox();
         DbConnection conn = mbox.getOperationConnection();
@@ -1365,12 +1390,11 @@ public class DbMailItem {
         DbConnection conn = mbox.getOperationConnection();
         PreparedStatement stmt = null;
         try {
-            for (int i = 0; i < itemIDs.size(); i += Db.getINClauseBatchSize()) {
-                int count = Math.min(Db.getINClauseBatchSize(), itemIDs.size() - i);
+            for (DbFlagBatch.IdChunk chunk : DbFlagBatch.chunk(itemIDs)) {
                 stmt = conn.prepareStatement("UPDATE " + getMailItemTableName(mbox) +
                             " SET unread = ?, mod_metadata = ?, change_date = ?" +
                             " WHERE " + IN_THIS_MAILBOX_AND + "unread = ?" +
-                            "  AND " + DbUtil.whereIn("id", count) +
+                            "  AND " + chunk.where("id") +
                             "  AND " + typeIn(MailItem.Type.MESSAGE));
                 int pos = 1;
                 stmt.setInt(pos++, unread ? 1 : 0);
@@ -1378,17 +1402,15 @@ public class DbMailItem {
                 stmt.setInt(pos++, mbox.getOperationTimestamp());
                 pos = setMailboxId(stmt, mbox, pos);
                 stmt.setInt(pos++, unread ? 0 : 1);
-                for (int index = i; index < i + count; index++) {
-                    stmt.setInt(pos++, itemIDs.get(index));
-                }
+                pos = chunk.bind(stmt, pos);
                 stmt.executeUpdate();
                 stmt.close();
                 stmt = null;
 
                 if (unread) {
-                    DbTag.addTaggedItemEntries(mbox, Flag.ID_UNREAD, itemIDs.subList(i, i + count));
+                    DbTag.addTaggedItemEntries(mbox, Flag.ID_UNREAD, chunk.getIds());
                 } else {
-                    DbTag.removeTaggedItemEntries(mbox, Flag.ID_UNREAD, itemIDs.subList(i, i + count));
+                    DbTag.removeTaggedItemEntries(mbox, Flag.ID_UNREAD, chunk.getIds());
                 }
             }
         } catch (SQLException e) {
@@ -2317,6 +2339,51 @@ public class DbMailItem {
         return getByParent(parent, SortBy.DATE_DESC, -1, false);
     }
 
+    /**
+     * Returns the children of all the given parents, in no particular order, with one query per
+     * {@link Db#getINClauseBatchSize()} parents.
+     */
+    public static List<UnderlyingData> getByParents(Mailbox mbox, Collection<Integer> parentIds)
+            throws ServiceException {
+        List<UnderlyingData> result = new ArrayList<UnderlyingData>();
+        if (parentIds.isEmpty()) {
+            return result;
+        }
+
+        DbConnection conn = mbox.getOperationConnection();
+        PreparedStatement stmt = null;
+        ResultSet rs = null;
+        Iterator<Integer> it = parentIds.iterator();
+        for (int i = 0; i < parentIds.size(); i += Db.getINClauseBatchSize()) {
+            try {
+                int count = Math.min(Db.getINClauseBatchSize(), parentIds.size() - i);
+                stmt = conn.prepareStatement("SELECT " + DB_FIELDS +
+                            " FROM " + getMailItemTableName(mbox, "mi") +
+                            " WHERE " + IN_THIS_MAILBOX_AND + DbUtil.whereIn("parent_id", count));
+                int pos = 1;
+                pos = setMailboxId(stmt, mbox, pos);
+                for (int index = i; index < i + count; index++) {
+                    stmt.setInt(pos++, it.next());
+                }
+
+                rs = stmt.executeQuery();
+                while (rs.next()) {
+                    UnderlyingData data = constructItem(rs);
+                    if (Mailbox.isCachedType(MailItem.Type.of(data.type))) {
+                        throw ServiceException.INVALID_REQUEST("folders and tags must be retrieved from cache", null);
+                    }
+                    result.add(data);
+                }
+            } catch (SQLException e) {
+                throw ServiceException.FAILURE("fetching children of " + parentIds.size() + " items", e);
+            } finally {
+                DbPool.closeResults(rs);
+                DbPool.closeStatement(stmt);
+            }
+        }
+        return result;
+    }
+
     public static List<UnderlyingData> getByParent(MailItem parent, SortBy sort, int limit, boolean fromDumpster)
             throws ServiceException {
         Mailbox mbox = parent.getMailbox();
@@ -5257,6 +5324,67 @@ public class DbMailItem {
         return this;
     }
 
+    /**
+     * Rewrites the metadata of up to {@code batchSize} items with ids above {@code afterId} in the encoding selected
+     * by {@code indexed}.  Only the representation of the metadata changes, so neither the modseq nor the change date
+     * is touched.  The caller must hold the mailbox lock so that a concurrent metadata write cannot be lost, and is
+     * responsible for committing {@code conn}.
+     *
+     * @return the highest item id examined, or {@code -1} if there are no items above {@code afterId}
+     */
+    public static int reencodeMetadata(Mailbox mbox, DbConnection conn, boolean dumpster, int afterId, int batchSize,
+            boolean indexed) throws ServiceException {
+        String table = getMailItemTableName(mbox, dumpster);
+        Map<Integer, String> rewritten = new LinkedHashMap<Integer, String>();
+        int lastId = -1;
+        PreparedStatement stmt = null;
+        ResultSet rs = null;
+        try {
+            stmt = conn.prepareStatement("SELECT id, metadata FROM " + table +
+                    " WHERE " + IN_THIS_MAILBOX_AND + "id > ? ORDER BY id " + Db.getInstance().limit(batchSize));
+            int pos = setMailboxId(stmt, mbox, 1);
+            stmt.setInt(pos, afterId);
+            rs = stmt.executeQuery();
+            while (rs.next()) {
+                lastId = rs.getInt(1);
+                String encoded = decodeMetadata(rs.getString(2));
+                if (StringUtil.isNullOrEmpty(encoded) || Metadata.isIndexedEncoding(encoded) == indexed) {
+                    continue;
+                }
+                try {
+                    // decodeAll() fails rather than let a converted row silently lose an undecodable value
+                    rewritten.put(lastId, new Metadata(encoded, lastId).decodeAll().encode(indexed));
+                } catch (ServiceException e) {
+                    ZimbraLog.mailbox.warn("skipping unreadable metadata for item %d", lastId, e);
+                }
+            }
+        } catch (SQLException e) {
+            throw ServiceException.FAILURE("reading metadata for mailbox " + mbox.getId(), e);
+        } finally {
+            conn.closeQuietly(rs);
+            conn.closeQuietly(stmt);
+        }
+
+        if (!rewritten.isEmpty()) {
+            try {
+                stmt = conn.prepareStatement("UPDATE " + table + " SET metadata = ?" +
+                        " WHERE " + IN_THIS_MAILBOX_AND + "id = ?");
+                for (Map.Entry<Integer, String> entry : rewritten.entrySet()) {
+                    int pos = 1;
+                    stmt.setString(pos++, checkMetadataLength(entry.getValue()));
+                    pos = setMailboxId(stmt, mbox, pos);
+                    stmt.setInt(pos, entry.getKey());
+                    stmt.executeUpdate();
+                }
+            } catch (SQLException e) {
+                throw ServiceException.FAILURE("rewriting metadata for mailbox " + mbox.getId(), e);
+            } finally {
+                conn.closeQuietly(stmt);
+            }
+        }
+        return lastId;
+    }
+
     /**
      * Populate the uuid column in mail_item and mail_item_dumpster tables with unique UUID values.
      * Only the rows for item types that support UUID will be updated.  This method is not atomic,
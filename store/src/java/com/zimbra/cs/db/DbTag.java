@@ -419,11 +419,10 @@ public final class DbTag {
 
             String updateChangeID = altersModseq ? ", mod_metadata = ?, change_date = ?" : "";
 
-            for (int i = 0; i < itemIds.size(); i += Db.getINClauseBatchSize()) {
-                int count = Math.min(Db.getINClauseBatchSize(), itemIds.size() - i);
+            for (DbFlagBatch.IdChunk chunk : DbFlagBatch.chunk(itemIds)) {
                 stmt = conn.prepareStatement("UPDATE " + DbMailItem.getMailItemTableName(mbox) +
                         " SET " + primaryUpdate + updateChangeID +
-                        " WHERE " + DbMailItem.IN_THIS_MAILBOX_AND + sanityCheckAnd + DbUtil.whereIn("id", count));
+                        " WHERE " + DbMailItem.IN_THIS_MAILBOX_AND + sanityCheckAnd + chunk.where("id"));
                 int pos = 1;
                 // primary update
                 if (isFlag) {
@@ -445,17 +444,15 @@ public final class DbTag {
                     stmt.setString(pos++, tagLIKEPattern(tag.getName()));
                 }
                 // item IDs
-                for (int index = i; index < i + count; index++) {
-                    stmt.setInt(pos++, itemIds.get(index));
-                }
+                pos = chunk.bind(stmt, pos);
                 stmt.executeUpdate();
                 stmt.close();
                 stmt = null;
 
                 if (add) {
-                    addTaggedItemEntries(mbox, tag.getId(), itemIds.subList(i, i + count));
+                    addTaggedItemEntries(mbox, tag.getId(), chunk.getIds());
                 } else {
-                    removeTaggedItemEntries(mbox, tag.getId(), itemIds.subList(i, i + count));
+                    removeTaggedItemEntries(mbox, tag.getId(), chunk.getIds());
                 }
             }
         } catch (SQLException e) {
@@ -465,7 +462,6 @@ public final class DbTag {
         }
     }
 
-    // FIXME: optimize into single query
     static void addTaggedItemEntries(Mailbox mbox, int tagId, List<Integer> itemIds) throws ServiceException {
         if (tagId < 0 && !Mailbox.REIFIED_FLAGS.contains(tagId))
             return;
@@ -474,17 +470,28 @@ public final class DbTag {
         PreparedStatement stmt = null;
 
         String command = Db.supports(Db.Capability.REPLACE_INTO) ? "REPLACE" : "INSERT";
-        for (int itemId : itemIds) {
+        String row = "(" + DbMailItem.MAILBOX_ID_VALUE + "?, ?)";
+        // one multi-row statement per IN-clause-sized chunk rather than one statement per item
+        int rowsPerStatement = Math.max(1, Db.getINClauseBatchSize() / 2);
+        for (int i = 0; i < itemIds.size(); i += rowsPerStatement) {
+            int count = Math.min(rowsPerStatement, itemIds.size() - i);
             try {
-                stmt = conn.prepareStatement(command + " INTO " + getTaggedItemTableName(mbox) +
-                        "(" + DbMailItem.MAILBOX_ID + "tag_id, item_id) VALUES (" + DbMailItem.MAILBOX_ID_VALUE + "?, ?)");
+                StringBuilder sql = new StringBuilder(command).append(" INTO ").append(getTaggedItemTableName(mbox))
+                        .append("(").append(DbMailItem.MAILBOX_ID).append("tag_id, item_id) VALUES ").append(row);
+                for (int j = 1; j < count; j++) {
+                    sql.append(", ").append(row);
+                }
+                stmt = conn.prepareStatement(sql.toString());
                 int pos = 1;
-                pos = DbMailItem.setMailboxId(stmt, mbox, pos);
-                stmt.setInt(pos++, tagId);
-                stmt.setInt(pos++, itemId);
+                for (int index = i; index < i + count; index++) {
+                    pos = DbMailItem.setMailboxId(stmt, mbox, pos);
+                    stmt.setInt(pos++, tagId);
+                    stmt.setInt(pos++, itemIds.get(index));
+                }
                 stmt.executeUpdate();
             } catch (SQLException e) {
-                throw ServiceException.FAILURE("adding TAGGED_ITEM entries for tag: " + tagId + ", item: " + itemId, e);
+                throw ServiceException.FAILURE("adding TAGGED_ITEM entries for tag: " + tagId + ", items: " +
+                        DbMailItem.getIdListForLogging(itemIds.subList(i, i + count)), e);
             } finally {
                 DbPool.closeStatement(stmt);
             }
@@ -498,15 +505,17 @@ public final class DbTag {
         DbConnection conn = mbox.getOperationConnection();
         PreparedStatement stmt = null;
         try {
-            stmt = conn.prepareStatement("DELETE FROM " + getTaggedItemTableName(mbox) +
-                    " WHERE " + DbMailItem.IN_THIS_MAILBOX_AND + "tag_id = ? AND " + DbUtil.whereIn("item_id", itemIds.size()));
-            int pos = 1;
-            pos = DbMailItem.setMailboxId(stmt, mbox, pos);
-            stmt.setInt(pos++, tagId);
-            for (int itemId : itemIds) {
-                stmt.setInt(pos++, itemId);
+            for (DbFlagBatch.IdChunk chunk : DbFlagBatch.chunk(itemIds)) {
+                stmt = conn.prepareStatement("DELETE FROM " + getTaggedItemTableName(mbox) +
+                        " WHERE " + DbMailItem.IN_THIS_MAILBOX_AND + "tag_id = ? AND " + chunk.where("item_id"));
+                int pos = 1;
+                pos = DbMailItem.setMailboxId(stmt, mbox, pos);
+                stmt.setInt(pos++, tagId);
+                chunk.bind(stmt, pos);
+                stmt.executeUpdate();
+                stmt.close();
+                stmt = null;
             }
-            stmt.executeUpdate();
         } catch (SQLException e) {
             throw ServiceException.FAILURE("removing TAGGED_ITEM entries for tag: " + tagId + ", items: " + DbMailItem.getIdListForLogging(itemIds), e);
         } finally {
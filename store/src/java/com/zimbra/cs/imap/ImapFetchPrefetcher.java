@@ -0,0 +1,287 @@
+/*
+ * ***** BEGIN LICENSE BLOCK *****
+ * Zimbra Collaboration Suite Server
+ * Copyright (C) 2016 Synacor, Inc.
+ *
+ * This program is free software: you can redistribute it and/or modify it under
+ * the terms of the GNU General Public License as published by the Free Software Foundation,
+ * version 2 of the License.
+ *
+ * This program is distributed in the hope that it will be useful, but WITHOUT ANY WARRANTY;
+ * without even the implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.
+ * See the GNU General Public License for more details.
+ * You should have received a copy of the GNU General Public License along with this program.
+ * If not, see <https://www.gnu.org/licenses/>.
+ * ***** END LICENSE BLOCK *****
+ */
+
+package com.zimbra.cs.imap;
+
+import java.io.InputStream;
+import java.util.ArrayDeque;
+import java.util.Collection;
+import java.util.Iterator;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+
+import javax.mail.internet.MimeMessage;
+
+import com.google.common.annotations.VisibleForTesting;
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
+import com.zimbra.common.localconfig.LC;
+import com.zimbra.common.mailbox.ItemIdentifier;
+import com.zimbra.common.mailbox.MailboxStore;
+import com.zimbra.common.mailbox.ZimbraMailItem;
+import com.zimbra.common.util.ByteUtil;
+import com.zimbra.common.util.ZimbraLog;
+import com.zimbra.cs.mailbox.Message;
+import com.zimbra.cs.mailbox.OperationContext;
+import com.zimbra.cs.stats.ZimbraPerf;
+
+/**
+ * Read-ahead stage for multi-message FETCH. While the response for one message is being written, the items, blobs
+ * and parsed MIME structures of the next few messages are loaded on a shared worker pool, so that the store latency
+ * of a <tt>1:500 (BODY.PEEK[])</tt> style sync is paid in parallel rather than once per message.
+ * <p>
+ * At most {@code imap_fetch_prefetch_depth} messages are in flight, and the content held on their behalf is capped at
+ * {@code imap_fetch_prefetch_max_kb} per session; messages that don't fit are simply left to the synchronous path.
+ * Time the handler spends waiting on a message that has not arrived yet is recorded in
+ * {@link ZimbraPerf#STOPWATCH_IMAP_FETCH_STALL}.
+ */
+final class ImapFetchPrefetcher {
+    private static final ExecutorService POOL = newPool(LC.imap_fetch_prefetch_threads.intValue());
+
+    /** What was loaded ahead of time for one message. Any field the caller needs but finds null is loaded inline. */
+    static final class Prefetched {
+        final ZimbraMailItem item;
+        final MimeMessage mime;
+        final byte[] content;
+        private final long reserved;
+
+        Prefetched(ZimbraMailItem item, MimeMessage mime, byte[] content, long reserved) {
+            this.item = item;
+            this.mime = mime;
+            this.content = content;
+            this.reserved = reserved;
+        }
+    }
+
+    private static final class Entry {
+        final ImapMessage i4msg;
+        Future<Prefetched> future;
+        /** Set once the entry is dropped without being handed out. Guarded by the prefetcher. */
+        boolean discarded;
+        /** What the task loaded, until the entry is dropped. Guarded by the prefetcher. */
+        Prefetched loaded;
+
+        Entry(ImapMessage i4msg) {
+            this.i4msg = i4msg;
+        }
+    }
+
+    private final MailboxStore mbox;
+    private final OperationContext octxt;
+    private final String accountId;
+    private final boolean needMime;
+    private final boolean structureOnly;
+    private final boolean needContent;
+    private final long transferMinSize;
+    private final Iterator<ImapMessage> pending;
+    private final ArrayDeque<Entry> inflight;
+    private final int depth;
+    private final long maxBytes;
+    private long reservedBytes;
+
+    private ImapFetchPrefetcher(MailboxStore mbox, OperationContext octxt, String accountId, Iterable<ImapMessage> i4msgs,
+            boolean needMime, boolean structureOnly, boolean needContent, long transferMinSize, int depth, long maxBytes) {
+        this.mbox = mbox;
+        this.octxt = octxt;
+        this.accountId = accountId;
+        this.needMime = needMime;
+        this.structureOnly = structureOnly;
+        this.needContent = needContent;
+        this.transferMinSize = transferMinSize;
+        this.pending = i4msgs.iterator();
+        this.depth = depth;
+        this.maxBytes = maxBytes;
+        inflight = new ArrayDeque<Entry>(depth);
+        fill();
+    }
+
+    /**
+     * Returns a prefetcher for the given messages, in FETCH order, or {@code null} if read-ahead is disabled or would
+     * not help.
+     *
+     * @param needMime whether the FETCH requires the parsed MIME structure of each message
+     * @param structureOnly whether the MIME structure is only needed for BODYSTRUCTURE and ENVELOPE, which messages
+     *                      with precomputed ones answer without it
+     * @param needContent whether the FETCH requires the raw content of each message
+     * @param transferMinSize size from which raw content is sent by zero-copy transfer rather than read into the
+     *                        heap, or -1 if it never is
+     */
+    static ImapFetchPrefetcher create(MailboxStore mbox, OperationContext octxt, String accountId,
+            Collection<ImapMessage> i4msgs, boolean needMime, boolean structureOnly, boolean needContent,
+            long transferMinSize) {
+        int depth = LC.imap_fetch_prefetch_depth.intValue();
+        if (depth <= 0 || i4msgs.isEmpty() || (!needMime && !needContent)) {
+            return null;
+        }
+        return new ImapFetchPrefetcher(mbox, octxt, accountId, i4msgs, needMime, structureOnly, needContent,
+                transferMinSize, depth, LC.imap_fetch_prefetch_max_kb.longValue() * 1024);
+    }
+
+    /**
+     * Returns whatever was prefetched for {@code i4msg}, waiting for it if it is still being loaded, and starts
+     * loading the messages after it. Returns {@code null} if nothing is available, in which case the caller loads the
+     * message itself, which also takes care of reporting any error.
+     */
+    Prefetched get(ImapMessage i4msg) {
+        Entry entry = null;
+        for (Entry e : inflight) {
+            if (e.i4msg == i4msg) {
+                entry = e;
+                break;
+            }
+        }
+        if (entry == null) {
+            fill();
+            return null;
+        }
+        // drop anything the caller skipped over
+        while (inflight.peekFirst() != entry) {
+            discard(inflight.pollFirst());
+        }
+        inflight.pollFirst();
+        fill();
+
+        Prefetched result = null;
+        long start = entry.future.isDone() ? -1 : ZimbraPerf.STOPWATCH_IMAP_FETCH_STALL.start();
+        try {
+            result = entry.future.get();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        } catch (ExecutionException e) {
+            ZimbraLog.imap.debug("prefetch failed for message %d: %s", i4msg.msgId, e.getCause());
+        } finally {
+            if (start >= 0) {
+                ZimbraPerf.STOPWATCH_IMAP_FETCH_STALL.stop(start);
+            }
+        }
+        if (result != null) {
+            release(result.reserved);
+        }
+        return result;
+    }
+
+    /**
+     * Cancels everything still in flight. Tasks already running complete but their results are dropped, and the
+     * memory reserved for them is released as they do.
+     */
+    void close() {
+        for (Entry e : inflight) {
+            discard(e);
+        }
+        inflight.clear();
+    }
+
+    @VisibleForTesting
+    synchronized long getReservedBytes() {
+        return reservedBytes;
+    }
+
+    /**
+     * Drops an entry that will not be handed out. Its reservation is released here if the task already finished, or
+     * by the task itself once it does.
+     */
+    private void discard(Entry entry) {
+        synchronized (this) {
+            entry.discarded = true;
+            if (entry.loaded != null) {
+                release(entry.loaded.reserved);
+                entry.loaded = null;
+            }
+        }
+        entry.future.cancel(false);
+    }
+
+    private synchronized Prefetched deliver(Entry entry, Prefetched result) {
+        if (entry.discarded) {
+            release(result.reserved);
+            return null;
+        }
+        entry.loaded = result;
+        return result;
+    }
+
+    private void fill() {
+        while (inflight.size() < depth && pending.hasNext()) {
+            ImapMessage i4msg = pending.next();
+            if (i4msg.isExpunged()) {
+                continue;
+            }
+            final Entry entry = new Entry(i4msg);
+            entry.future = POOL.submit(new Callable<Prefetched>() {
+                @Override
+                public Prefetched call() throws Exception {
+                    return deliver(entry, load(entry.i4msg));
+                }
+            });
+            inflight.addLast(entry);
+        }
+    }
+
+    private Prefetched load(ImapMessage i4msg) throws Exception {
+        ItemIdentifier iid = ItemIdentifier.fromAccountIdAndItemId(accountId, i4msg.msgId);
+        ZimbraMailItem item = mbox.getItemById(octxt, iid, i4msg.getType().toCommon());
+        if (!(item instanceof Message)) {
+            return new Prefetched(item, null, null, 0);
+        }
+        long size = item.getSize();
+        boolean parseMime = needMime && !(structureOnly && ((Message) item).getImapStructure() != null);
+        boolean readContent = needContent && (transferMinSize < 0 || size < transferMinSize);
+        if ((!readContent && !parseMime) || !reserve(size)) {
+            return new Prefetched(item, null, null, 0);
+        }
+        boolean done = false;
+        try {
+            // parsing goes through the message cache, so the handler benefits even if it drops this reference
+            MimeMessage mm = parseMime ? ImapMessage.getMimeMessage(item) : null;
+            byte[] content = null;
+            if (readContent) {
+                InputStream is = item.getContentStream();
+                content = ByteUtil.getContent(is, (int) size, true);
+            }
+            done = true;
+            return new Prefetched(item, mm, content, size);
+        } finally {
+            if (!done) {
+                release(size);
+            }
+        }
+    }
+
+    private synchronized boolean reserve(long size) {
+        if (reservedBytes + size > maxBytes) {
+            return false;
+        }
+        reservedBytes += size;
+        return true;
+    }
+
+    private synchronized void release(long size) {
+        reservedBytes -= size;
+    }
+
+    private static ExecutorService newPool(int threads) {
+        ThreadPoolExecutor pool = new ThreadPoolExecutor(threads, threads, 60, TimeUnit.SECONDS,
+                new LinkedBlockingQueue<Runnable>(),
+                new ThreadFactoryBuilder().setNameFormat("ImapFetchPrefetch-%d").setDaemon(true).build());
+        pool.allowCoreThreadTimeOut(true);
+        return pool;
+    }
+}
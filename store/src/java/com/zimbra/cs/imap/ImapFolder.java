@@ -23,9 +23,7 @@ import java.util.Collections;
 import java.util.EnumSet;
 import java.util.HashMap;
 import java.util.Iterator;
-import java.util.LinkedList;
 import java.util.List;
-import java.util.ListIterator;
 import java.util.Map;
 import java.util.Set;
 import java.util.concurrent.ConcurrentSkipListMap;
@@ -59,22 +57,27 @@ import com.zimbra.cs.session.PendingModifications.Change;
  */
 public final class ImapFolder implements ImapListener.ImapFolderData, java.io.Serializable {
     // Update serialVersionUID when changing any instance members. Otherwise serialization won't work correctly.
-    private static final long serialVersionUID = 3845968507901145794L;
+    private static final long serialVersionUID = 6302187740915275519L;
     public static final byte SELECT_READONLY  = 0x01;
     public static final byte SELECT_CONDSTORE = 0x02;
 
+    private static final ImapMessage[] NO_MESSAGES = new ImapMessage[0];
+
     // attributes of the folder itself, irrespective of the session state
     private transient ImapMailboxStore mailboxStore;
     private transient ImapListener session;
     private transient ImapPath path;
     private transient SessionData sessionData;
     private transient Map<Integer, ImapMessage> messageIds;
+    private transient Map<List<String>, String[]> tagSets;
 
     private final ItemIdentifier folderIdentifier;
     private final int uidValidity;
     private String query;
     private Set<MailItem.Type> typeConstraint = ImapHandler.ITEM_TYPES;
-    private final List<ImapMessage> sequence = new ArrayList<ImapMessage>();
+    // the folder's message list, indexed by (sequence number - 1)
+    private ImapMessage[] messages = NO_MESSAGES;
+    private int size;
     private final ImapFlagCache tags;   // operationally could be "transient", but that makes deserialization replay depend on magic
 
     // below this point are session-specific attributes of the folder SELECT state
@@ -123,10 +126,36 @@ public final class ImapFolder implements ImapListener.ImapFolderData, java.io.Se
         this.tags = new ImapFlagCache();
     }
 
+    /** Reconstructs a paged-out folder decoded by {@link ImapFolderCodec}.
+     *  The session-dependent attributes are filled in by {@link #restore}. */
+    ImapFolder(ItemIdentifier folderIdentifier, int uidValidity, String query, Set<MailItem.Type> typeConstraint,
+            ImapFlagCache tags, ImapMessage[] msgs) {
+        this.folderIdentifier = folderIdentifier;
+        this.uidValidity = uidValidity;
+        this.query = query;
+        this.typeConstraint = typeConstraint;
+        this.tags = tags;
+        ensureCapacity(msgs.length);
+        for (ImapMessage i4msg : msgs) {
+            i4msg.tags = internTags(i4msg.tags);
+            put(size++, i4msg);
+            i4msg.sequence = size;
+        }
+    }
+
+    /** Folders are always serialized in their {@link ImapFolderCodec} encoding. */
+    private Object writeReplace() throws java.io.ObjectStreamException {
+        return new ImapFolderCodec.SerializedForm(this);
+    }
+
+    private void readObject(java.io.ObjectInputStream in) throws java.io.IOException {
+        throw new java.io.InvalidObjectException("ImapFolder must be deserialized via ImapFolderCodec");
+    }
+
     protected void setInitialSize() {
         SessionData sdata = sessionData;
         if (sdata != null) {
-            sdata.lastSize = sequence.size();
+            sdata.lastSize = size;
         }
     }
 
@@ -194,7 +223,7 @@ public final class ImapFolder implements ImapListener.ImapFolderData, java.io.Se
      *  included in this count. */
     @Override
     public int getSize() {
-        return sequence.size();
+        return size;
     }
 
     /** Returns the number of messages in the folder that are considered
@@ -287,16 +316,22 @@ public final class ImapFolder implements ImapListener.ImapFolderData, java.io.Se
 
     public synchronized void traverse(Function<ImapMessage, Void> func) {
         int prevUid = -1;
-        for (Iterator<ImapMessage> it = sequence.iterator(); it.hasNext();) {
-            ImapMessage i4msg = it.next();
+        int kept = 0;
+        for (int i = 0; i < size; i++) {
+            ImapMessage i4msg = messages[i];
             if (i4msg.imapUid == prevUid) {
                 ZimbraLog.imap.warn("duplicate UID %d in cached folder %s", prevUid, this.folderIdentifier);
-                it.remove();
             } else {
                 prevUid = i4msg.imapUid;
+                if (kept != i) {
+                    put(kept, i4msg);
+                    setIndex(i4msg, kept + 1);
+                }
+                kept++;
                 func.apply(i4msg);
             }
         }
+        truncate(kept);
     }
 
     public ImapPath getPath() {
@@ -324,8 +359,8 @@ public final class ImapFolder implements ImapListener.ImapFolderData, java.io.Se
     }
 
     /** Retrieves the index of the ImapMessage with the given IMAP UID in the
-     *  folder's {@link #sequence} message list.  This retrieval is done via
-     *  binary search rather than direct lookup.
+     *  folder's message list.  This retrieval is done via binary search
+     *  rather than direct lookup.
      * @return index of the search key, if it is contained in the list;
      *         otherwise, <tt>(-(<i>insertion point</i>) - 1)</tt>.  The
      *         <i>insertion point</i> is defined as the point at which the
@@ -337,10 +372,10 @@ public final class ImapFolder implements ImapListener.ImapFolderData, java.io.Se
      * @see Collections#binarySearch(List, Object) */
     private int uidSearch(int uid) {
         int low = 0;
-        int high = getSize() - 1;
+        int high = size - 1;
         while (low <= high) {
             int mid = (low + high) >> 1;
-            int targetUid = sequence.get(mid).imapUid;
+            int targetUid = messages[mid].imapUid;
             if (targetUid < uid) {
                 low = mid + 1;
             } else if (targetUid > uid) {
@@ -353,20 +388,20 @@ public final class ImapFolder implements ImapListener.ImapFolderData, java.io.Se
     }
 
     /** Returns the ImapMessage with the given Zimbra item ID from the
-     *  folder's {@link #sequence} message list. */
+     *  folder's message list. */
     protected synchronized ImapMessage getById(int id) {
         if (id <= 0 || getSize() == 0) {
             return null;
         }
         // leverage the fact that by default, the message's item id and its IMAP uid are identical
         int seq = uidSearch(id);
-        if (seq >= 0 && seq < sequence.size()) {
-            ImapMessage i4msg = sequence.get(seq);
+        if (seq >= 0 && messages[seq].msgId == id) {
             // slightly tricky: must check if message is expunged in order to catch the case of
             //   using the web client to move the message out of the folder and back in before
             //   the IMAP server can tell the client about the EXPUNGE from the first move
-            if (i4msg != null && i4msg.msgId == id && !i4msg.isExpunged()) {
-                return checkRemoved(i4msg);
+            ImapMessage i4msg = checkRemoved(messages[seq]);
+            if (i4msg != null) {
+                return i4msg;
             }
         }
 
@@ -374,8 +409,9 @@ public final class ImapFolder implements ImapListener.ImapFolderData, java.io.Se
         if (messageIds == null) {
             // lookup miss means we need to generate the item-id-to-imap-message mapping
             messageIds = new HashMap<Integer, ImapMessage>();
-            for (ImapMessage i4msg : sequence) {
-                if (i4msg != null && i4msg.msgId != i4msg.imapUid) {
+            for (int i = 0; i < size; i++) {
+                ImapMessage i4msg = messages[i];
+                if (i4msg.msgId != i4msg.imapUid) {
                     messageIds.put(i4msg.msgId, i4msg);
                 }
             }
@@ -384,26 +420,25 @@ public final class ImapFolder implements ImapListener.ImapFolderData, java.io.Se
     }
 
     /** Returns the ImapMessage with the given IMAP UID from the folder's
-     *  {@link #sequence} message list. */
+     *  message list. */
     protected ImapMessage getByImapId(int uid) {
         return uid > 0 ? getBySequence(uidSearch(uid) + 1) : null;
     }
 
     /** Returns the ImapMessage with the given 1-based sequence number in the
-     *  folder's {@link #sequence} message list. */
+     *  folder's message list. */
     protected ImapMessage getBySequence(int seq) {
         return getBySequence(seq, false);
     }
 
     /** Returns the ImapMessage with the given 1-based sequence number in the
-     *  folder's {@link #sequence} message list. */
+     *  folder's message list. */
     protected ImapMessage getBySequence(int seq, boolean includeExpunged) {
-        ImapMessage i4msg = seq > 0 && seq <= getSize() ? sequence.get(seq - 1) : null;
+        ImapMessage i4msg = seq > 0 && seq <= size ? messages[seq - 1] : null;
         return includeExpunged ? i4msg : checkRemoved(i4msg);
     }
 
-    /** Returns the last ImapMessage in the folder's {@link #sequence}
-     *  message list.  This message corresponds to the "*" IMAP UID. */
+    /** Returns the last ImapMessage in the folder's message list.  This message corresponds to the "*" IMAP UID. */
     private ImapMessage getLastMessage() {
         return getBySequence(getSize());
     }
@@ -416,7 +451,7 @@ public final class ImapFolder implements ImapListener.ImapFolderData, java.io.Se
 
     /** Adds the message to the folder.  Messages <b>must</b> be added in
      *  increasing IMAP UID order.  Added messages are appended to the end of
-     *  the folder's {@link #sequence} message list and inserted into the
+     *  the folder's message list and inserted into the
      *  {@link #mMessageIds} hash (if the latter hash has been instantiated).
      * @return true if message cached successfully without modification false if a renumber was required. */
     protected synchronized boolean cache(ImapMessage i4msg, boolean recent) {
@@ -431,22 +466,23 @@ public final class ImapFolder implements ImapListener.ImapFolderData, java.io.Se
                 sdata.recentCount++;
             }
         }
+        i4msg.tags = internTags(i4msg.tags);
         // update the folder information
-        ImapMessage last = null;
-        if (sequence.size() > 0 && (last = sequence.get(sequence.size() - 1)).imapUid > i4msg.imapUid) {
-            ZimbraLog.imap.debug("adding out of order UID. prev: %s current: %s", last, i4msg);
+        if (size > 0 && messages[size - 1].imapUid > i4msg.imapUid) {
+            ZimbraLog.imap.debug("adding out of order UID. prev: %s current: %s", messages[size - 1], i4msg);
             if (!insertOutOfOrder(i4msg)) {
                 return false;
             }
-        } else if (last != null && last.imapUid == i4msg.imapUid) {
+        } else if (size > 0 && messages[size - 1].imapUid == i4msg.imapUid) {
             //should never occur, log so we can learn more if it does
-            ZimbraLog.imap.warn("duplicate UID %s %s added to sequence", i4msg, last, new Exception());
-            sequence.set(sequence.size() - 1, i4msg);
-            setIndex(i4msg, sequence.size());
+            ZimbraLog.imap.warn("duplicate UID %s %s added to sequence", i4msg, messages[size - 1], new Exception());
+            put(size - 1, i4msg);
+            setIndex(i4msg, size);
         } else {
             //normal case, last item has lower UID so just add to the end
-            sequence.add(i4msg);
-            setIndex(i4msg, sequence.size());
+            ensureCapacity(size + 1);
+            put(size++, i4msg);
+            setIndex(i4msg, size);
         }
         // update the tag cache to include only the tags in the folder
         updateTagCache(i4msg);
@@ -454,16 +490,9 @@ public final class ImapFolder implements ImapListener.ImapFolderData, java.io.Se
     }
 
     private boolean insertOutOfOrder(ImapMessage i4msg) {
-        LinkedList<ImapMessage> shifted = new LinkedList<ImapMessage>();
-        int idx  = sequence.size() - 1;
-        while (idx > -1) {
-            ImapMessage prev = sequence.get(idx);
-            if (prev.imapUid <= i4msg.imapUid) {
-                break;
-            } else if (prev.isAdded()) {
-                shifted.addFirst(prev);
-                //add to beginning so iteration below starts with lowest UID
-                //this is necessary to ensure that messageIds map holds the highest UID for a given msgId
+        int idx = size - 1;
+        while (idx > -1 && messages[idx].imapUid > i4msg.imapUid) {
+            if (messages[idx].isAdded()) {
                 idx--;
             } else {
                 ZimbraLog.imap.warn("message added out of order occurs before message which is already visible to client. Must renumber %s", i4msg);
@@ -477,14 +506,65 @@ public final class ImapFolder implements ImapListener.ImapFolderData, java.io.Se
             }
         }
         idx++;
-        sequence.add(idx, i4msg);
+        ensureCapacity(size + 1);
+        System.arraycopy(messages, idx, messages, idx + 1, size - idx);
+        size++;
+        put(idx, i4msg);
         setIndex(i4msg, idx + 1);
-        for (ImapMessage shiftedMsg : shifted) {
-            setIndex(shiftedMsg, shiftedMsg.sequence + 1);
+        // renumber the shifted messages starting with the lowest UID
+        //   this is necessary to ensure that messageIds map holds the highest UID for a given msgId
+        for (int i = idx + 1; i < size; i++) {
+            setIndex(messages[i], i + 1);
         }
         return true;
     }
 
+    /** Stores the message at the given 0-based index in the folder's
+     *  message list.  Does not update {@link ImapMessage#sequence}. */
+    private void put(int idx, ImapMessage i4msg) {
+        messages[idx] = i4msg;
+    }
+
+    private void ensureCapacity(int capacity) {
+        if (capacity > messages.length) {
+            int grown = Math.max(capacity, Math.max(16, messages.length + (messages.length >> 1)));
+            messages = Arrays.copyOf(messages, grown);
+        }
+    }
+
+    /** Drops all messages at or after the given 0-based index, releasing
+     *  excess capacity when the folder has shrunk by more than half. */
+    private void truncate(int newSize) {
+        if (newSize == size) {
+            return;
+        }
+        Arrays.fill(messages, newSize, size, null);
+        size = newSize;
+        if (messages.length > 16 && messages.length > size * 2) {
+            int trimmed = Math.max(16, size + (size >> 1));
+            messages = Arrays.copyOf(messages, trimmed);
+        }
+    }
+
+    /** Returns a shared copy of the given tag set.  Messages in a folder
+     *  tend to carry a handful of distinct tag combinations, so every
+     *  message with the same tags references the same array. */
+    synchronized String[] internTags(String[] t) {
+        if (ArrayUtil.isEmpty(t)) {
+            return t;
+        }
+        if (tagSets == null) {
+            tagSets = new HashMap<List<String>, String[]>();
+        }
+        List<String> key = Arrays.asList(t);
+        String[] interned = tagSets.get(key);
+        if (interned == null) {
+            interned = t.clone();
+            tagSets.put(Arrays.asList(interned), interned);
+        }
+        return interned;
+    }
+
     protected void updateTagCache(ImapMessage i4msg) {
         if (!ArrayUtil.isEmpty(i4msg.tags)) {
             for (String tag : i4msg.tags) {
@@ -516,8 +596,8 @@ public final class ImapFolder implements ImapListener.ImapFolderData, java.io.Se
     }
 
     /** Cleans up all references to an ImapMessage from all the folder's data
-     *  structures other than {@link #sequence}.  The {@link #sequence}
-     *  cleanup must be done separately. */
+     *  structures other than the message list.  The list cleanup must be
+     *  done separately. */
     private void uncache(ImapMessage i4msg) {
         if (messageIds != null) {
             messageIds.remove(i4msg.msgId);
@@ -561,8 +641,9 @@ public final class ImapFolder implements ImapListener.ImapFolderData, java.io.Se
             return;
         }
 
-        for (ImapMessage i4msg : sequence) {
-            if (i4msg != null && i4flag.matches(i4msg)) {
+        for (int i = 0; i < size; i++) {
+            ImapMessage i4msg = messages[i];
+            if (i4flag.matches(i4msg)) {
                 dirtyMessage(i4msg, modseq);
 
                 List<String> tags = Lists.newArrayList(i4msg.tags);
@@ -570,7 +651,7 @@ public final class ImapFolder implements ImapListener.ImapFolderData, java.io.Se
                 if (newName != null) {
                     tags.add(newName);
                 }
-                i4msg.tags = tags.isEmpty() ? null : tags.toArray(new String[tags.size()]);
+                i4msg.tags = tags.isEmpty() ? null : internTags(tags.toArray(new String[tags.size()]));
             }
         }
     }
@@ -713,19 +794,18 @@ public final class ImapFolder implements ImapListener.ImapFolderData, java.io.Se
 
     protected synchronized ImapMessageSet getAllMessages() {
         ImapMessageSet result = new ImapMessageSet();
-        if (getSize() > 0) {
-            result.addAll(sequence);
-            result.remove(null);
+        for (int i = 0; i < size; i++) {
+            result.add(messages[i]);
         }
         return result;
     }
 
     protected synchronized ImapMessageSet getFlaggedMessages(ImapFlag i4flag) {
         ImapMessageSet result = new ImapMessageSet();
-        if (i4flag != null && getSize() > 0) {
-            for (ImapMessage i4msg : sequence) {
-                if (i4msg != null && i4flag.matches(i4msg)) {
-                    result.add(i4msg);
+        if (i4flag != null) {
+            for (int i = 0; i < size; i++) {
+                if (i4flag.matches(messages[i])) {
+                    result.add(messages[i]);
                 }
             }
         }
@@ -1079,28 +1159,30 @@ public final class ImapFolder implements ImapListener.ImapFolderData, java.io.Se
         }
         ZimbraLog.imap.debug("  ** iterating (collapseExpunged)");
 
-        boolean trimmed = false;
-        int seq = 1;
+        // compact the message list in a single pass, sliding each surviving message down over the expunged ones
+        int kept = 0;
         List<Integer> removed = new ArrayList<Integer>();
-        for (ListIterator<ImapMessage> lit = sequence.listIterator(); lit.hasNext(); seq++) {
-            ImapMessage i4msg = lit.next();
+        for (int i = 0; i < size; i++) {
+            ImapMessage i4msg = messages[i];
             if (i4msg.isExpunged()) {
                 ZimbraLog.imap.debug("  ** removing: %s", i4msg);
                 // uncache() removes pointers to the message from mMessageIds;
                 //   if the message appears again in sequence, it *must* be later and the
                 //   subsequent call to setIndex() will correctly update the mMessageIds mapping
                 uncache(i4msg);
-                lit.remove();
                 // note that we can't send expunge notifications for messages the client doesn't know about yet...
                 if (!i4msg.isAdded()) {
-                    removed.add(byUID ? i4msg.imapUid : seq);
+                    removed.add(byUID ? i4msg.imapUid : kept + 1);
+                }
+            } else {
+                if (kept != i) {
+                    put(kept, i4msg);
+                    setIndex(i4msg, kept + 1);
                 }
-                seq--;
-                trimmed = true;
-            } else if (trimmed) {
-                setIndex(i4msg, seq);
+                kept++;
             }
         }
+        truncate(kept);
         return removed;
     }
 
@@ -1119,7 +1201,6 @@ public final class ImapFolder implements ImapListener.ImapFolderData, java.io.Se
             throw new ImapSessionClosedException();
         }
         path = session.getPath();
-        // FIXME: NOT RESTORING sequence.msg.sflags PROPERLY -- need to serialize it!!!
         sessionData = sdata;
         if (folderIdentifier == null) {
             ZimbraLog.imap.warn("Restored ImapFolder has null folderIdentifier mailbox=%s sessionPath=%s",
@@ -0,0 +1,335 @@
+/*
+ * ***** BEGIN LICENSE BLOCK *****
+ * Zimbra Collaboration Suite Server
+ * Copyright (C) 2016 Synacor, Inc.
+ *
+ * This program is free software: you can redistribute it and/or modify it under
+ * the terms of the GNU General Public License as published by the Free Software Foundation,
+ * version 2 of the License.
+ *
+ * This program is distributed in the hope that it will be useful, but WITHOUT ANY WARRANTY;
+ * without even the implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.
+ * See the GNU General Public License for more details.
+ * You should have received a copy of the GNU General Public License along with this program.
+ * If not, see <https://www.gnu.org/licenses/>.
+ * ***** END LICENSE BLOCK *****
+ */
+package com.zimbra.cs.imap;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInput;
+import java.io.DataInputStream;
+import java.io.DataOutput;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.InvalidObjectException;
+import java.io.ObjectStreamException;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.EnumSet;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+import com.zimbra.common.mailbox.ItemIdentifier;
+import com.zimbra.cs.imap.ImapFlagCache.ImapFlag;
+import com.zimbra.cs.mailbox.MailItem;
+
+/**
+ * Compact binary encoding of a paged-out {@link ImapFolder}, shared by all the
+ * {@link ImapSessionManager.Cache} implementations.
+ * <p>
+ * Messages are written in UID order as a one-byte field bitmap followed by the
+ * varint-encoded UID delta and only those fields that differ from their common
+ * default (item id equal to the UID, no flags, no session flags, no tags).  Tag
+ * sets are written once to a table and referenced by index.
+ */
+final class ImapFolderCodec {
+    private static final int MAGIC = 0x49344346;  // "I4CF"
+    private static final byte VERSION = 1;
+
+    private static final int MSG_ID     = 0x01;
+    private static final int MSG_FLAGS  = 0x02;
+    private static final int MSG_SFLAGS = 0x04;
+    private static final int MSG_TAGS   = 0x08;
+
+    private static final int FLAG_POSITIVE  = 0x01;
+    private static final int FLAG_PERMANENT = 0x02;
+    private static final int FLAG_LISTED    = 0x04;
+
+    private ImapFolderCodec() {
+    }
+
+    static byte[] encode(ImapFolder i4folder) throws IOException {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream(64 + i4folder.getSize() * 4);
+        DataOutputStream out = new DataOutputStream(bytes);
+        synchronized (i4folder) {
+            write(out, i4folder);
+        }
+        out.flush();
+        return bytes.toByteArray();
+    }
+
+    static ImapFolder decode(byte[] data) throws IOException {
+        DataInputStream in = new DataInputStream(new ByteArrayInputStream(data));
+        ImapFolder i4folder = read(in);
+        if (in.read() != -1) {
+            throw new IOException("trailing data after encoded IMAP folder");
+        }
+        return i4folder;
+    }
+
+    private static void write(DataOutput out, ImapFolder i4folder) throws IOException {
+        out.writeInt(MAGIC);
+        out.writeByte(VERSION);
+
+        ItemIdentifier ident = i4folder.getItemIdentifier();
+        writeString(out, ident.accountId);
+        writeVarint(out, zigzag(ident.id));
+        writeVarint(out, zigzag(ident.subPartId));
+        out.writeInt(i4folder.getUIDValidity());
+        writeString(out, i4folder.isVirtual() ? i4folder.getQuery() : null);
+
+        Set<MailItem.Type> types = i4folder.getTypeConstraint();
+        writeVarint(out, types.size());
+        for (MailItem.Type type : types) {
+            out.writeByte(type.toByte());
+        }
+
+        List<ImapFlag> flags = new ArrayList<ImapFlag>();
+        for (ImapFlag i4flag : i4folder.getTagset()) {
+            flags.add(i4flag);
+        }
+        writeVarint(out, flags.size());
+        for (ImapFlag i4flag : flags) {
+            writeString(out, i4flag.mName);
+            writeString(out, i4flag.mImapName);
+            writeVarint(out, zigzag(i4flag.mId));
+            writeVarlong(out, i4flag.mBitmask);
+            out.writeByte((i4flag.mPositive ? FLAG_POSITIVE : 0) | (i4flag.mPermanent ? FLAG_PERMANENT : 0) |
+                    (i4flag.mListed ? FLAG_LISTED : 0));
+        }
+
+        // tag sets are interned by the folder, so the table stays small even for large folders
+        int size = i4folder.getSize();
+        Map<List<String>, Integer> tagSets = new HashMap<List<String>, Integer>();
+        List<String[]> tagTable = new ArrayList<String[]>();
+        int[] tagIndex = new int[size];
+        for (int seq = 1; seq <= size; seq++) {
+            String[] tags = i4folder.getBySequence(seq, true).tags;
+            if (tags != null) {
+                List<String> key = Arrays.asList(tags);
+                Integer index = tagSets.get(key);
+                if (index == null) {
+                    tagSets.put(key, index = tagTable.size());
+                    tagTable.add(tags);
+                }
+                tagIndex[seq - 1] = index;
+            }
+        }
+        writeVarint(out, tagTable.size());
+        for (String[] tags : tagTable) {
+            writeVarint(out, tags.length);
+            for (String tag : tags) {
+                writeString(out, tag);
+            }
+        }
+
+        writeVarint(out, size);
+        int prevUid = 0;
+        for (int seq = 1; seq <= size; seq++) {
+            ImapMessage i4msg = i4folder.getBySequence(seq, true);
+            int fields = (i4msg.msgId != i4msg.imapUid ? MSG_ID : 0) | (i4msg.flags != 0 ? MSG_FLAGS : 0) |
+                    (i4msg.sflags != 0 ? MSG_SFLAGS : 0) | (i4msg.tags != null ? MSG_TAGS : 0);
+            out.writeByte(fields);
+            writeVarint(out, zigzag(i4msg.imapUid - prevUid));
+            prevUid = i4msg.imapUid;
+            if ((fields & MSG_ID) != 0) {
+                writeVarint(out, zigzag(i4msg.msgId - i4msg.imapUid));
+            }
+            if ((fields & MSG_FLAGS) != 0) {
+                writeVarint(out, i4msg.flags);
+            }
+            if ((fields & MSG_SFLAGS) != 0) {
+                writeVarint(out, i4msg.sflags & 0xFFFF);
+            }
+            if ((fields & MSG_TAGS) != 0) {
+                writeVarint(out, tagIndex[seq - 1]);
+            }
+        }
+    }
+
+    private static ImapFolder read(DataInputStream in) throws IOException {
+        if (in.readInt() != MAGIC) {
+            throw new IOException("not an encoded IMAP folder");
+        }
+        byte version = in.readByte();
+        if (version != VERSION) {
+            throw new IOException("unsupported IMAP folder encoding version: " + version);
+        }
+
+        String accountId = readString(in);
+        int id = unzigzag(readVarint(in));
+        int subPartId = unzigzag(readVarint(in));
+        ItemIdentifier ident = new ItemIdentifier(accountId, id, subPartId);
+        int uidValidity = in.readInt();
+        String query = readString(in);
+
+        int typeCount = readCount(in);
+        Set<MailItem.Type> types = EnumSet.noneOf(MailItem.Type.class);
+        for (int i = 0; i < typeCount; i++) {
+            types.add(MailItem.Type.of(in.readByte()));
+        }
+
+        ImapFlagCache tagset = new ImapFlagCache();
+        int flagCount = readCount(in);
+        for (int i = 0; i < flagCount; i++) {
+            String name = readString(in);
+            String imapName = readString(in);
+            int flagId = unzigzag(readVarint(in));
+            long bitmask = readVarlong(in);
+            int bits = in.readUnsignedByte();
+            tagset.cache(new ImapFlag(name, imapName, flagId, bitmask,
+                    (bits & FLAG_POSITIVE) != 0, (bits & FLAG_PERMANENT) != 0, (bits & FLAG_LISTED) != 0));
+        }
+
+        String[][] tagTable = new String[readCount(in)][];
+        for (int i = 0; i < tagTable.length; i++) {
+            String[] tags = new String[readCount(in)];
+            for (int t = 0; t < tags.length; t++) {
+                tags[t] = readString(in);
+            }
+            tagTable[i] = tags;
+        }
+
+        ImapMessage[] messages = new ImapMessage[readCount(in)];
+        int uid = 0;
+        for (int i = 0; i < messages.length; i++) {
+            int fields = in.readUnsignedByte();
+            uid += unzigzag(readVarint(in));
+            int msgId = (fields & MSG_ID) != 0 ? uid + unzigzag(readVarint(in)) : uid;
+            int flags = (fields & MSG_FLAGS) != 0 ? readVarint(in) : 0;
+            short sflags = (fields & MSG_SFLAGS) != 0 ? (short) readVarint(in) : 0;
+            String[] tags = null;
+            if ((fields & MSG_TAGS) != 0) {
+                int index = readVarint(in);
+                if (index < 0 || index >= tagTable.length) {
+                    throw new IOException("invalid tag set index: " + index);
+                }
+                tags = tagTable[index];
+            }
+            ImapMessage i4msg = new ImapMessage(msgId, MailItem.Type.MESSAGE, uid, flags, tags);
+            i4msg.sflags = sflags;
+            messages[i] = i4msg;
+        }
+        return new ImapFolder(ident, uidValidity, query, types, tagset, messages);
+    }
+
+    private static int zigzag(int n) {
+        return (n << 1) ^ (n >> 31);
+    }
+
+    private static int unzigzag(int n) {
+        return (n >>> 1) ^ -(n & 1);
+    }
+
+    private static void writeVarint(DataOutput out, int n) throws IOException {
+        while ((n & ~0x7F) != 0) {
+            out.writeByte((n & 0x7F) | 0x80);
+            n >>>= 7;
+        }
+        out.writeByte(n);
+    }
+
+    private static int readVarint(DataInput in) throws IOException {
+        int n = 0;
+        for (int shift = 0; shift < 32; shift += 7) {
+            int b = in.readUnsignedByte();
+            n |= (b & 0x7F) << shift;
+            if ((b & 0x80) == 0) {
+                return n;
+            }
+        }
+        throw new IOException("malformed varint");
+    }
+
+    private static void writeVarlong(DataOutput out, long n) throws IOException {
+        while ((n & ~0x7FL) != 0) {
+            out.writeByte((int) (n & 0x7F) | 0x80);
+            n >>>= 7;
+        }
+        out.writeByte((int) n);
+    }
+
+    private static long readVarlong(DataInput in) throws IOException {
+        long n = 0;
+        for (int shift = 0; shift < 64; shift += 7) {
+            int b = in.readUnsignedByte();
+            n |= (long) (b & 0x7F) << shift;
+            if ((b & 0x80) == 0) {
+                return n;
+            }
+        }
+        throw new IOException("malformed varlong");
+    }
+
+    /** Reads a non-negative element count, rejecting values that could not
+     *  possibly fit in the remaining input (each element takes at least a byte). */
+    private static int readCount(DataInputStream in) throws IOException {
+        int count = readVarint(in);
+        if (count < 0 || count > in.available() + 1) {
+            throw new IOException("invalid element count: " + count);
+        }
+        return count;
+    }
+
+    private static void writeString(DataOutput out, String str) throws IOException {
+        if (str == null) {
+            writeVarint(out, 0);
+            return;
+        }
+        byte[] utf8 = str.getBytes(StandardCharsets.UTF_8);
+        writeVarint(out, utf8.length + 1);
+        out.write(utf8);
+    }
+
+    private static String readString(DataInputStream in) throws IOException {
+        int len = readCount(in);
+        if (len == 0) {
+            return null;
+        }
+        byte[] utf8 = new byte[len - 1];
+        in.readFully(utf8);
+        return new String(utf8, StandardCharsets.UTF_8);
+    }
+
+    /**
+     * Serialization proxy for {@link ImapFolder}, so that caches which rely on
+     * Java serialization (e.g. Ehcache's disk tier) store the compact encoding
+     * rather than the object graph.
+     */
+    static final class SerializedForm implements java.io.Serializable {
+        private static final long serialVersionUID = 6127400913573226042L;
+
+        private final byte[] data;
+
+        SerializedForm(ImapFolder i4folder) throws ObjectStreamException {
+            try {
+                this.data = encode(i4folder);
+            } catch (IOException e) {
+                throw new InvalidObjectException("failed to encode IMAP folder: " + e.getMessage());
+            }
+        }
+
+        private Object readResolve() throws ObjectStreamException {
+            try {
+                return decode(data);
+            } catch (IOException e) {
+                throw new InvalidObjectException("failed to decode IMAP folder: " + e.getMessage());
+            }
+        }
+    }
+}
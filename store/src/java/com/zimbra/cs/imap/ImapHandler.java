@@ -48,6 +48,7 @@ import javax.mail.internet.MimeMessage;
 
 import org.dom4j.DocumentException;
 
+import com.google.common.annotations.VisibleForTesting;
 import com.google.common.base.Charsets;
 import com.google.common.base.Joiner;
 import com.google.common.base.Strings;
@@ -109,19 +110,23 @@ import com.zimbra.cs.mailbox.MailItem;
 import com.zimbra.cs.mailbox.MailServiceException;
 import com.zimbra.cs.mailbox.MailServiceException.NoSuchItemException;
 import com.zimbra.cs.mailbox.Mailbox;
+import com.zimbra.cs.mailbox.Message;
 import com.zimbra.cs.mailbox.OperationContext;
 import com.zimbra.cs.mailbox.Tag;
 import com.zimbra.cs.mailclient.imap.IDInfo;
+import com.zimbra.cs.mime.ImapStructure;
 import com.zimbra.cs.security.sasl.Authenticator;
 import com.zimbra.cs.security.sasl.AuthenticatorUser;
 import com.zimbra.cs.security.sasl.PlainAuthenticator;
 import com.zimbra.cs.security.sasl.ZimbraAuthenticator;
+import com.zimbra.cs.server.DeflateCompressor;
 import com.zimbra.cs.server.ServerThrottle;
 import com.zimbra.cs.service.admin.AddAccountLogger;
 import com.zimbra.cs.service.admin.AdminAccessControl;
 import com.zimbra.cs.service.admin.FlushCache;
 import com.zimbra.cs.service.mail.FolderAction;
 import com.zimbra.cs.service.util.ItemId;
+import com.zimbra.cs.stats.ZimbraPerf;
 import com.zimbra.cs.util.AccountUtil;
 import com.zimbra.cs.util.BuildInfo;
 import com.zimbra.soap.admin.type.CacheEntrySelector;
@@ -134,7 +139,7 @@ public abstract class ImapHandler {
     protected enum ImapExtension { CONDSTORE, QRESYNC }
 
     private static final Set<String> SUPPORTED_EXTENSIONS = new LinkedHashSet<String>(Arrays.asList(
-        "ACL", "BINARY", "CATENATE", "CHILDREN", "CONDSTORE", "ENABLE", "ESEARCH", "ESORT",
+        "ACL", "BINARY", "CATENATE", "CHILDREN", "COMPRESS=DEFLATE", "CONDSTORE", "ENABLE", "ESEARCH", "ESORT",
         "I18NLEVEL=1", "ID", "IDLE", "LIST-EXTENDED", "LIST-STATUS", "LITERAL+", "LOGIN-REFERRALS",
         "MULTIAPPEND", "NAMESPACE", "QRESYNC", "QUOTA", "RIGHTS=ektx", "SASL-IR", "SEARCHRES",
         "SORT", "THREAD=ORDEREDSUBJECT", "UIDPLUS", "UNSELECT", "WITHIN", "XLIST"
@@ -206,6 +211,8 @@ public abstract class ImapHandler {
     private static final int RETURN_SAVE  = 0x10;
 
     private static final int LARGEST_FOLDER_BATCH = 600;
+    /** Number of BODYSTRUCTURE/ENVELOPE pairs rendered during a FETCH that are stored per transaction. */
+    static final int BACKFILL_BATCH = 200;
     public static final Set<MailItem.Type> ITEM_TYPES = ImapMessage.SUPPORTED_TYPES;
 
     protected static final boolean IDLE_START = true;
@@ -225,6 +232,7 @@ public abstract class ImapHandler {
     protected Authenticator authenticator;
     protected ImapCredentials credentials;
     protected boolean startedTLS;
+    protected DeflateCompressor compressor;
     protected String lastCommand;
     protected int consecutiveError;
     private ImapProxy imapProxy;
@@ -275,6 +283,11 @@ public abstract class ImapHandler {
     protected abstract void enableInactivityTimer() throws IOException;
     protected abstract void completeAuthentication() throws IOException;
     protected abstract boolean doSTARTTLS(String tag) throws IOException;
+
+    /**
+     * Sends the tagged OK to a COMPRESS command and switches both directions of the connection to {@link #compressor}.
+     */
+    protected abstract void startCompression(String tag) throws IOException;
     protected abstract InetSocketAddress getLocalAddress();
 
     protected ImapCredentials getCredentials() {
@@ -537,6 +550,11 @@ public abstract class ImapHandler {
                 } else if (command.equals("CHECK")) {
                     checkEOF(tag, req);
                     return doCHECK(tag);
+                } else if (command.equals("COMPRESS") && extensionEnabled("COMPRESS=DEFLATE")) {
+                    req.skipSpace();
+                    String mechanism = req.readATOM();
+                    checkEOF(tag, req);
+                    return doCOMPRESS(tag, mechanism);
                 }
                 break;
             case 'D':
@@ -1237,6 +1255,36 @@ public abstract class ImapHandler {
         return true;
     }
 
+    private boolean doCOMPRESS(String tag, String mechanism) throws IOException {
+        if (!checkState(tag, State.AUTHENTICATED)) {
+            return true;
+        } else if (!mechanism.equalsIgnoreCase("DEFLATE")) {
+            sendBAD(tag, "unsupported compression mechanism: " + mechanism);
+            return true;
+        } else if (compressor != null) {
+            sendNO(tag, "[COMPRESSIONACTIVE] DEFLATE active via COMPRESS");
+            return true;
+        }
+        compressor = new DeflateCompressor(LC.imap_compress_level.intValue());
+        startCompression(tag);
+        return true;
+    }
+
+    /**
+     * Reports the statistics of the connection's COMPRESS layer, if any, once the connection is closed.
+     */
+    protected void endCompression() {
+        DeflateCompressor deflate = compressor;
+        if (deflate == null) {
+            return;
+        }
+        compressor = null;
+        deflate.end();
+        ZimbraPerf.COUNTER_IMAP_COMPRESS_RATIO.increment(deflate.getRatio());
+        ZimbraPerf.STOPWATCH_IMAP_COMPRESS.increment(deflate.getMillis());
+        ZimbraLog.imap.debug("COMPRESS=DEFLATE %s", deflate);
+    }
+
     protected String getCapabilityString() {
         // [IMAP4rev1]        RFC 3501: Internet Message Access Protocol - Version 4rev1
         // [LOGINDISABLED]    RFC 3501: Internet Message Access Protocol - Version 4rev1
@@ -1247,6 +1295,7 @@ public abstract class ImapHandler {
         // [BINARY]           RFC 3516: IMAP4 Binary Content Extension
         // [CATENATE]         RFC 4469: Internet Message Access Protocol (IMAP) CATENATE Extension
         // [CHILDREN]         RFC 3348: IMAP4 Child Mailbox Extension
+        // [COMPRESS=DEFLATE] RFC 4978: The IMAP COMPRESS Extension
         // [CONDSTORE]        RFC 4551: IMAP Extension for Conditional STORE Operation or Quick Flag Changes Resynchronization
         // [ENABLE]           RFC 5161: The IMAP ENABLE Extension
         // [ESEARCH]          RFC 4731: IMAP4 Extension to SEARCH Command for Controlling What Kind of Information Is Returned
@@ -3996,6 +4045,12 @@ public abstract class ImapHandler {
         } finally {
             mbox.unlock();
         }
+        boolean needMime = (parts != null && !parts.isEmpty()) || (attributes & FETCH_FROM_MIME) != 0;
+        // BODYSTRUCTURE and ENVELOPE can come from what was precomputed at delivery; BODY and body parts can't
+        boolean structureOnly = (parts == null || parts.isEmpty()) && (attributes & FETCH_BODY) == 0;
+        boolean prefetch = !fullMessage.isEmpty() || needMime;
+        ImapFetchPrefetcher prefetcher = null;
+        Map<Mailbox, Map<Integer, String[]>> backfill = null;
         ReentrantLock lock = null;
         try {
             for (ImapMessage i4msg : i4set) {
@@ -4012,20 +4067,35 @@ public abstract class ImapHandler {
                     boolean empty = true;
                     ZimbraMailItem item = null;
                     MimeMessage mm;
+                    ImapFetchPrefetcher.Prefetched prefetched = null;
                     if (!fullMessage.isEmpty() || (parts != null && !parts.isEmpty()) || (attributes & ~FETCH_FROM_CACHE) != 0) {
                         if (lock == null && LC.imap_throttle_fetch.booleanValue()) {
                             lock = commandThrottle.lock(credentials.getAccountId());
                         }
-                        try {
+                        if (prefetch) {
+                            // once we hold the throttle lock, read ahead the messages after this one
+                            prefetch = false;
                             String folderOwner = i4folder.getFolder().getFolderItemIdentifier().accountId;
-                            ItemIdentifier iid = ItemIdentifier.fromAccountIdAndItemId(
-                                    (folderOwner != null) ? folderOwner : mbox.getAccountId(), i4msg.msgId);
-                            item = mbox.getItemById(getContext(), iid, i4msg.getType().toCommon());
-                        } catch (NoSuchItemException nsie) {
-                            // just in case we're out of sync, force this message back into sync
-                            i4folder.markMessageExpunged(i4msg);
-                            fetchStub(i4msg, i4folder, attributes, parts, fullMessage, result);
-                            continue;
+                            prefetcher = ImapFetchPrefetcher.create(mbox, getContext(),
+                                    (folderOwner != null) ? folderOwner : mbox.getAccountId(), i4set.tailSet(i4msg, false),
+                                    needMime, structureOnly, !fullMessage.isEmpty(),
+                                    ImapPartSpecifier.getTransferMinSize(output, fullMessage));
+                        }
+                        prefetched = prefetcher == null ? null : prefetcher.get(i4msg);
+                        if (prefetched != null) {
+                            item = prefetched.item;
+                        } else {
+                            try {
+                                String folderOwner = i4folder.getFolder().getFolderItemIdentifier().accountId;
+                                ItemIdentifier iid = ItemIdentifier.fromAccountIdAndItemId(
+                                        (folderOwner != null) ? folderOwner : mbox.getAccountId(), i4msg.msgId);
+                                item = mbox.getItemById(getContext(), iid, i4msg.getType().toCommon());
+                            } catch (NoSuchItemException nsie) {
+                                // just in case we're out of sync, force this message back into sync
+                                i4folder.markMessageExpunged(i4msg);
+                                fetchStub(i4msg, i4folder, attributes, parts, fullMessage, result);
+                                continue;
+                            }
                         }
                     }
 
@@ -4050,29 +4120,62 @@ public abstract class ImapHandler {
                     if (!fullMessage.isEmpty()) {
                         for (ImapPartSpecifier pspec : fullMessage) {
                             result.print(empty ? "" : " ");
-                            pspec.write(result, output, item);
+                            pspec.write(result, output, item, prefetched == null ? null : prefetched.content);
                             empty = false;
                         }
                     }
 
                     if ((parts != null && !parts.isEmpty()) || (attributes & FETCH_FROM_MIME) != 0) {
-                        mm = ImapMessage.getMimeMessage(item);
+                        Message msg = item instanceof Message ? (Message) item : null;
+                        String[] precomputed = null;
+                        if (msg != null && msg.getImapStructure() != null && msg.getImapEnvelope() != null) {
+                            precomputed = new String[] { msg.getImapStructure(), msg.getImapEnvelope() };
+                        }
+                        mm = null;
+                        if (precomputed == null || !structureOnly) {
+                            mm = prefetched != null && prefetched.mime != null ? prefetched.mime : ImapMessage.getMimeMessage(item);
+                        }
+                        if (precomputed == null && msg != null && (attributes & (FETCH_BODYSTRUCTURE | FETCH_ENVELOPE)) != 0) {
+                            // mail delivered before precomputation: render it once and keep it for next time
+                            precomputed = ImapStructure.render(mm);
+                            if (precomputed != null) {
+                                if (backfill == null) {
+                                    backfill = new HashMap<Mailbox, Map<Integer, String[]>>(2);
+                                }
+                                Map<Integer, String[]> structures = backfill.get(msg.getMailbox());
+                                if (structures == null) {
+                                    backfill.put(msg.getMailbox(), structures = new HashMap<Integer, String[]>());
+                                }
+                                structures.put(msg.getId(), precomputed);
+                                if (structures.size() >= BACKFILL_BATCH) {
+                                    backfillImapStructures(msg.getMailbox(), structures);
+                                }
+                            }
+                        }
                         if ((attributes & FETCH_BODY) != 0) {
                             result.print(empty ? "" : " ");
                             result.print("BODY ");
-                            ImapMessage.serializeStructure(result, mm, false);
+                            ImapStructure.serializeStructure(result, mm, false);
                             empty = false;
                         }
                         if ((attributes & FETCH_BODYSTRUCTURE) != 0) {
                             result.print(empty ? "" : " ");
                             result.print("BODYSTRUCTURE ");
-                            ImapMessage.serializeStructure(result, mm, true);
+                            if (precomputed != null) {
+                                result.print(precomputed[0]);
+                            } else {
+                                ImapStructure.serializeStructure(result, mm, true);
+                            }
                             empty = false;
                         }
                         if ((attributes & FETCH_ENVELOPE) != 0) {
                             result.print(empty ? "" : " ");
                             result.print("ENVELOPE ");
-                            ImapMessage.serializeEnvelope(result, mm);
+                            if (precomputed != null) {
+                                result.print(precomputed[1]);
+                            } else {
+                                ImapStructure.serializeEnvelope(result, mm);
+                            }
                             empty = false;
                         }
                         if (parts != null) {
@@ -4136,10 +4239,18 @@ public abstract class ImapHandler {
                 }
             }
         } finally {
+            if (prefetcher != null) {
+                prefetcher.close();
+            }
             if (lock != null) {
                 lock.unlock();
             }
         }
+        if (backfill != null) {
+            for (Entry<Mailbox, Map<Integer, String[]>> entry : backfill.entrySet()) {
+                backfillImapStructures(entry.getKey(), entry.getValue());
+            }
+        }
         if (standalone) {
             sendNotifications(byUID, false);
             sendOK(tag, command + " completed");
@@ -4147,6 +4258,17 @@ public abstract class ImapHandler {
         return true;
     }
 
+    /** Stores and then forgets the BODYSTRUCTURE/ENVELOPE pairs rendered so far for messages in {@code mbox}. */
+    @VisibleForTesting
+    void backfillImapStructures(Mailbox mbox, Map<Integer, String[]> structures) {
+        try {
+            mbox.backfillImapStructures(getContext(), structures);
+        } catch (ServiceException e) {
+            ZimbraLog.imap.debug("unable to store precomputed BODYSTRUCTURE/ENVELOPE", e);
+        }
+        structures.clear();
+    }
+
     private void fetchException(Throwable cause) throws ImapIOException {
         final String msg = "IOException fetching IMAP message (" +
                 (cause != null ? cause.getMessage() : "null") + "), closing connection";
@@ -22,6 +22,7 @@ import java.io.IOException;
 import java.io.InputStream;
 import java.io.OutputStream;
 import java.io.PrintStream;
+import java.nio.channels.FileChannel;
 import java.util.Enumeration;
 import java.util.List;
 
@@ -30,6 +31,7 @@ import javax.mail.internet.MimeBodyPart;
 import javax.mail.internet.MimeMessage;
 import javax.mail.internet.MimePart;
 
+import com.zimbra.common.localconfig.LC;
 import com.zimbra.common.mailbox.ZimbraMailItem;
 import com.zimbra.common.service.ServiceException;
 import com.zimbra.common.util.ByteUtil;
@@ -37,7 +39,9 @@ import com.zimbra.common.util.InputStreamWithSize;
 import com.zimbra.common.util.StartOutOfBoundsException;
 import com.zimbra.common.util.StringUtil;
 import com.zimbra.common.util.ZimbraLog;
+import com.zimbra.cs.mailbox.Message;
 import com.zimbra.cs.mime.Mime;
+import com.zimbra.cs.server.NioOutputStream;
 
 class ImapPartSpecifier {
     static class BinaryDecodingException extends Exception {
@@ -182,7 +186,94 @@ class ImapPartSpecifier {
 
     void write(PrintStream ps, OutputStream os, ZimbraMailItem zmi)
     throws IOException, BinaryDecodingException, ServiceException {
-        write(ps, os, new ZimbraMailItemGettableInputStreamWithSize(zmi));
+        write(ps, os, zmi, null);
+    }
+
+    /**
+     * @param content the item's raw content if it has already been read, or <tt>null</tt>
+     */
+    void write(PrintStream ps, OutputStream os, ZimbraMailItem zmi, final byte[] content)
+    throws IOException, BinaryDecodingException, ServiceException {
+        if (content != null) {
+            write(ps, os, new GettableInputStreamWithSize() {
+                @Override
+                public InputStreamWithSize getInputStreamWithSize() {
+                    return new InputStreamWithSize(new ByteArrayInputStream(content), (long) content.length);
+                }
+            });
+        } else if (!transfer(ps, os, zmi)) {
+            write(ps, os, new ZimbraMailItemGettableInputStreamWithSize(zmi));
+        }
+    }
+
+    /**
+     * Returns the size from which the entire-message <tt>pspecs</tt> would be sent to <tt>os</tt> by
+     * {@link #transfer} rather than through the heap, or -1 if none of them would be.
+     */
+    static long getTransferMinSize(OutputStream os, List<ImapPartSpecifier> pspecs) {
+        if (!(os instanceof NioOutputStream) || !LC.zimbra_blob_zero_copy_enabled.booleanValue() ||
+                !((NioOutputStream) os).supportsTransfer()) {
+            return -1;
+        }
+        for (ImapPartSpecifier pspec : pspecs) {
+            if (pspec.command.startsWith("BINARY")) {
+                return -1;
+            }
+        }
+        return LC.zimbra_blob_zero_copy_min_size.longValue();
+    }
+
+    /**
+     * Sends a large <tt>BODY[]</tt> or <tt>RFC822</tt> literal straight from
+     * the message's blob file when the NIO connection can take a file region,
+     * so that the content never passes through the heap.
+     *
+     * @return <tt>false</tt> if nothing was written and the caller has to
+     *         stream the content instead
+     */
+    private boolean transfer(PrintStream ps, OutputStream os, ZimbraMailItem zmi)
+    throws IOException, ServiceException {
+        if (!(os instanceof NioOutputStream) || !(zmi instanceof Message) || !isEntireMessage() ||
+                command.startsWith("BINARY") || !LC.zimbra_blob_zero_copy_enabled.booleanValue()) {
+            return false;
+        }
+        Message msg = (Message) zmi;
+        long size = msg.getSize();
+        NioOutputStream nos = (NioOutputStream) os;
+        if (size < LC.zimbra_blob_zero_copy_min_size.longValue() || !nos.supportsTransfer()) {
+            return false;
+        }
+        FileChannel channel = msg.getContentChannel();
+        if (channel == null) {
+            return false;
+        }
+        boolean transferred = false;
+        try {
+            if (channel.size() != size) {
+                return false;
+            }
+            long start = 0, length = size;
+            if (octetStart >= 0) {
+                start = octetStart;
+                length = Math.max(0, Math.min(size, octetEnd) - octetStart);
+            }
+
+            ps.print(this);
+            ps.print(" {");
+            ps.print(length);
+            ps.write('}');   /* } added to fix vim buggy brace matching code */
+            os.write(ImapHandler.LINE_SEPARATOR_BYTES);
+            if (length > 0) {
+                // the stream owns the channel from here on, even if the write fails
+                transferred = true;
+                nos.transferFrom(channel, start, length);
+            }
+            return true;
+        } finally {
+            if (!transferred) {
+                channel.close();
+            }
+        }
     }
 
     void write(PrintStream ps, OutputStream os, MimeMessage mimeMsg)
@@ -98,6 +98,9 @@ public final class ImapProxy {
             connection.connect();
             connection.id(createIDInfo(handler));
             connection.authenticate(AuthProvider.getAuthToken(acct).getEncoded());
+            if (LC.imap_proxy_compress.booleanValue()) {
+                startCompression();
+            }
         } catch (Exception e) {
             ZimbraLog.imap.warn("Problem opening proxy connection %s - %s", connection, e.getMessage());
             dropConnection();
@@ -124,6 +127,17 @@ public final class ImapProxy {
         connection.authenticate(password);
     }
 
+    /**
+     * Compresses the upstream leg if the remote server offers COMPRESS=DEFLATE. Capabilities are refreshed first,
+     * since they may change once authenticated.
+     */
+    private void startCompression() throws IOException {
+        connection.capability();
+        if (connection.hasCompressDeflate()) {
+            connection.compress(LC.imap_compress_level.intValue());
+        }
+    }
+
     private IDInfo createIDInfo(ImapHandler handler) {
         IDInfo id = new IDInfo();
         id.put(IDInfo.NAME, "ZCS");
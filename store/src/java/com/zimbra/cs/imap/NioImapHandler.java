@@ -169,6 +169,7 @@ final class NioImapHandler extends ImapHandler implements NioHandler {
         } catch (Exception ignore) {
         } finally {
             logout();
+            endCompression();
         }
     }
 
@@ -249,6 +250,12 @@ final class NioImapHandler extends ImapHandler implements NioHandler {
         return true;
     }
 
+    @Override
+    protected void startCompression(String tag) throws IOException {
+        connection.startCompression(compressor);
+        sendOK(tag, "DEFLATE active");
+    }
+
     @Override
     protected InetSocketAddress getLocalAddress() {
         return connection.getLocalAddress();
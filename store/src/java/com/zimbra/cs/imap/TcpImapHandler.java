@@ -285,6 +285,7 @@ final class TcpImapHandler extends ProtocolHandler {
                     ZimbraLog.imap.debug("TCP:I/O error while closing connection: %s", e);
                 }
             } finally {
+                endCompression();
                 ZimbraLog.clearContext();
             }
         }
@@ -351,6 +352,14 @@ final class TcpImapHandler extends ProtocolHandler {
             return true;
         }
 
+        @Override
+        protected void startCompression(String tag) throws IOException {
+            sendOK(tag, "DEFLATE active");
+            // the client sends nothing compressed before seeing the OK, so nothing compressed is buffered yet
+            input = new TcpServerInputStream(compressor.wrap(input));
+            output = new BufferedOutputStream(compressor.wrap(output));
+        }
+
         @Override
         protected InetSocketAddress getLocalAddress() {
             return (InetSocketAddress) socket.getLocalSocketAddress();
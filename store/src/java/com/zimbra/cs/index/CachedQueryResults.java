@@ -0,0 +1,172 @@
+/*
+ * ***** BEGIN LICENSE BLOCK *****
+ * Zimbra Collaboration Suite Server
+ * Copyright (C) 2016 Synacor, Inc.
+ *
+ * This program is free software: you can redistribute it and/or modify it under
+ * the terms of the GNU General Public License as published by the Free Software Foundation,
+ * version 2 of the License.
+ *
+ * This program is distributed in the hope that it will be useful, but WITHOUT ANY WARRANTY;
+ * without even the implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.
+ * See the GNU General Public License for more details.
+ * You should have received a copy of the GNU General Public License along with this program.
+ * If not, see <https://www.gnu.org/licenses/>.
+ * ***** END LICENSE BLOCK *****
+ */
+package com.zimbra.cs.index;
+
+import java.io.IOException;
+import java.util.List;
+
+import com.zimbra.common.service.ServiceException;
+import com.zimbra.cs.mailbox.Mailbox;
+
+/**
+ * Results of a search whose leading hits are held in memory, either because they were just read from the real
+ * results to fill the {@link SearchResultCache}, or because they are being replayed from it.
+ * <p>
+ * Hits past the cached window come from the real results. When replaying, the query is only run if the caller
+ * iterates past the window, which a paged search never does.
+ */
+final class CachedQueryResults extends ZimbraQueryResultsImpl {
+
+    private final Mailbox mailbox;
+    private final SearchResultCache.Entry entry;
+    private final ZimbraHit[] hits;
+    private final boolean preSorted;
+    private ZimbraQuery query; // not yet run
+    private ZimbraQueryResults tail;
+    private int tailPosition; // position of the next hit of tail
+    private int position = 0;
+
+    /**
+     * Replays a cache entry.
+     */
+    CachedQueryResults(Mailbox mbox, SearchResultCache.Entry entry, ZimbraQuery query) {
+        super(entry.types, entry.sortBy, entry.fetch);
+        this.mailbox = mbox;
+        this.entry = entry;
+        this.hits = new ZimbraHit[entry.size()];
+        this.preSorted = false;
+        this.query = query;
+    }
+
+    /**
+     * Wraps real results from which the hits of {@code entry} have just been read.
+     */
+    CachedQueryResults(Mailbox mbox, SearchResultCache.Entry entry, List<ZimbraHit> hits, ZimbraQueryResults results) {
+        super(entry.types, entry.sortBy, entry.fetch);
+        this.mailbox = mbox;
+        this.entry = entry;
+        this.hits = hits.toArray(new ZimbraHit[hits.size()]);
+        this.preSorted = results.isPreSorted();
+        this.tail = results;
+        this.tailPosition = hits.size();
+    }
+
+    private ZimbraHit getHit(int index) {
+        ZimbraHit hit = hits[index];
+        if (hit == null) {
+            int id = entry.ids[index];
+            Object sortValue = entry.sortValues[index];
+            switch (entry.hitTypes[index]) {
+                case MESSAGE:
+                    hit = getMessageHit(mailbox, id, null, null, sortValue);
+                    break;
+                case CONVERSATION:
+                    ConversationHit conv = getConversationHit(mailbox, id, sortValue);
+                    for (int msgId : entry.messageIds[index]) {
+                        conv.addMessageHit(getMessageHit(mailbox, msgId, null, null, sortValue));
+                    }
+                    hit = conv;
+                    break;
+                case CONTACT:
+                    hit = getContactHit(mailbox, id, null, sortValue);
+                    break;
+                case NOTE:
+                    hit = getNoteHit(mailbox, id, null, sortValue);
+                    break;
+                case APPOINTMENT:
+                    hit = getAppointmentHit(mailbox, id, null, sortValue);
+                    break;
+                case TASK:
+                    hit = getTaskHit(mailbox, id, null, sortValue);
+                    break;
+                default:
+                    throw new IllegalStateException(entry.hitTypes[index].toString());
+            }
+            hits[index] = hit;
+        }
+        return hit;
+    }
+
+    @Override
+    public long getCursorOffset() {
+        return tail != null ? tail.getCursorOffset() : 0;
+    }
+
+    @Override
+    public void resetIterator() {
+        position = 0;
+    }
+
+    @Override
+    public ZimbraHit peekNext() throws ServiceException {
+        if (position < hits.length) {
+            return getHit(position);
+        } else if (entry.complete) {
+            return null;
+        }
+        if (tail == null) {
+            tail = query.execute();
+            query = null;
+            tailPosition = 0;
+        }
+        if (tailPosition != position) {
+            if (position == 0) {
+                tail.resetIterator();
+            } else {
+                tail.skipToHit(position - 1);
+            }
+            tailPosition = position;
+        }
+        return tail.peekNext();
+    }
+
+    @Override
+    public ZimbraHit getNext() throws ServiceException {
+        ZimbraHit hit = peekNext();
+        if (hit != null) {
+            if (position >= hits.length) {
+                tail.getNext();
+                tailPosition++;
+            }
+            position++;
+        }
+        return hit;
+    }
+
+    @Override
+    public ZimbraHit skipToHit(int hitNo) throws ServiceException {
+        position = hitNo;
+        return getNext();
+    }
+
+    @Override
+    public List<QueryInfo> getResultInfo() {
+        return entry.info;
+    }
+
+    @Override
+    public boolean isPreSorted() {
+        return preSorted;
+    }
+
+    @Override
+    public void close() throws IOException {
+        if (tail != null) {
+            tail.close();
+        }
+    }
+}
@@ -32,6 +32,7 @@ import org.apache.lucene.document.Document;
 import org.apache.lucene.index.Term;
 
 import com.google.common.collect.ImmutableSet;
+import com.zimbra.common.localconfig.LC;
 import com.zimbra.common.service.ServiceException;
 import com.zimbra.common.util.ZimbraLog;
 import com.zimbra.cs.db.Db;
@@ -71,7 +72,7 @@ public class DBQueryOperation extends QueryOperation {
     private boolean includeIsLocalFolders = false;
     private boolean includeIsRemoteFolders = false;
 
-    private int dbHitCount = -1; // count of DB hits
+    private int dbFirstChunkSize = MAX_HITS_PER_CHUNK; // rows to read per DB-FIRST iteration
     private List<DbSearch.Result> dbHits;
     private List<ZimbraHit> nextHits = new ArrayList<ZimbraHit>();
     private Iterator<DbSearch.Result> dbHitsIter;
@@ -514,11 +515,8 @@ public class DBQueryOperation extends QueryOperation {
                             executeMode = QueryExecuteMode.NO_RESULTS;
                         } else if (luceneOp == null) {
                             executeMode = QueryExecuteMode.NO_LUCENE;
-                        } else if (shouldExecuteDbFirst()) {
-                            luceneOp.clearFilterClause();
-                            executeMode = QueryExecuteMode.DB_FIRST;
                         } else {
-                            executeMode = QueryExecuteMode.LUCENE_FIRST;
+                            plan();
                         }
                     }
 
@@ -669,18 +667,24 @@ public class DBQueryOperation extends QueryOperation {
         ZimbraLog.search.debug("DBSearch elapsed=%d", System.currentTimeMillis() - start);
     }
 
-    private boolean shouldExecuteDbFirst() throws ServiceException {
-        // look for item-id or conv-id query parts, if those are set, then we'll execute DB-FIRST
-        DbSearchConstraints.Leaf top = getTopLeafConstraint();
-        if (top.convId > 0 || !top.itemIds.isEmpty()) {
-            return true;
+    /**
+     * Chooses which side of the join with {@link #luceneOp} drives, see {@link QueryPlan}.
+     */
+    private void plan() throws ServiceException {
+        QueryPlan plan = QueryPlan.choose(getTopLeafConstraint(), constraints, luceneOp, context, hitsPerChunk,
+                MAX_HITS_PER_CHUNK);
+        ZimbraLog.search.debug("%s", plan);
+        if (LC.search_explain_plan.booleanValue()) {
+            queryInfo.add(plan);
         }
-
-        if (luceneOp != null && luceneOp.shouldExecuteDbFirst()) {
-            return true;
+        if (plan.isDbFirst()) {
+            luceneOp.clearFilterClause();
+            executeMode = QueryExecuteMode.DB_FIRST;
+            dbFirstChunkSize = plan.getChunkSize();
+        } else {
+            executeMode = QueryExecuteMode.LUCENE_FIRST;
+            hitsPerChunk = plan.getChunkSize();
         }
-
-        return constraints.tryDbFirst(context.getMailbox());
     }
 
     private void noLuceneGetNextChunk(SortBy sort) throws ServiceException {
@@ -704,11 +708,13 @@ public class DBQueryOperation extends QueryOperation {
         do {
             // (1) Get the next chunk of results from the DB
             List<DbSearch.Result> dbResults = new ArrayList<DbSearch.Result>();
-            dbSearch(dbResults, sort, dbOffset, MAX_HITS_PER_CHUNK);
+            dbSearch(dbResults, sort, dbOffset, dbFirstChunkSize);
 
-            if (dbResults.size() < MAX_HITS_PER_CHUNK) {
+            if (dbResults.size() < dbFirstChunkSize) {
                 endOfHits = true;
             }
+            // exponentially expand the chunk size in case we have to go back to the DB
+            dbFirstChunkSize = QueryPlan.nextChunkSize(dbFirstChunkSize, MAX_HITS_PER_CHUNK);
 
             if (dbResults.size() > 0) {
                 dbOffset += dbResults.size();
@@ -1249,19 +1255,6 @@ public class DBQueryOperation extends QueryOperation {
         cb.recurseCallback(this);
     }
 
-    int getDbHitCount() throws ServiceException {
-        if (dbHitCount < 0) {
-            Mailbox mbox = context.getMailbox();
-            DbConnection conn = DbPool.getConnection(mbox);
-            try {
-                dbHitCount = new DbSearch(mbox, context.getParams().inDumpster()).countResults(conn, constraints);
-            } finally {
-                conn.closeQuietly();
-            }
-        }
-        return dbHitCount;
-    }
-
     @Override
     public long getCursorOffset() {
         return cursorOffset;
@@ -39,7 +39,6 @@ import com.google.common.collect.Sets;
 import com.zimbra.common.service.ServiceException;
 import com.zimbra.common.util.ListUtil;
 import com.zimbra.common.util.ZimbraLog;
-import com.zimbra.cs.mailbox.Flag;
 import com.zimbra.cs.mailbox.Folder;
 import com.zimbra.cs.mailbox.MailItem;
 import com.zimbra.cs.mailbox.Mailbox;
@@ -95,13 +94,6 @@ public interface DbSearchConstraints extends Cloneable {
      */
     boolean hasNoResults();
 
-    /**
-     * Used during query optimization: returns TRUE if the constraints are such that we think a DB-first plan will be
-     * faster.
-     */
-    boolean tryDbFirst(Mailbox mbox) throws ServiceException;
-
-
     /**
      * The allowable query types are added to the constraints tree after it is generated.
      */
@@ -682,11 +674,6 @@ public interface DbSearchConstraints extends Cloneable {
             return noResults;
         }
 
-        @Override
-        public boolean tryDbFirst(Mailbox mbox) throws ServiceException {
-            return convId != 0 || tags.contains(mbox.getFlagById(Flag.ID_UNREAD));
-        }
-
         @Override
         public void setTypes(Set<MailItem.Type> set) {
             types.clear();
@@ -1065,11 +1052,6 @@ public interface DbSearchConstraints extends Cloneable {
             return false;
         }
 
-        @Override
-        public boolean tryDbFirst(Mailbox mbox) {
-            return false;
-        }
-
         @Override
         public void setTypes(Set<MailItem.Type> types) {
             for (DbSearchConstraints child : children) {
@@ -1312,11 +1294,6 @@ public interface DbSearchConstraints extends Cloneable {
             return true;
         }
 
-        @Override
-        public boolean tryDbFirst(Mailbox mbox) {
-            return false;
-        }
-
         @Override
         public void setTypes(Set<MailItem.Type> types) {
             for (DbSearchConstraints child : children) {
@@ -0,0 +1,108 @@
+/*
+ * ***** BEGIN LICENSE BLOCK *****
+ * Zimbra Collaboration Suite Server
+ * Copyright (C) 2016 Synacor, Inc.
+ *
+ * This program is free software: you can redistribute it and/or modify it under
+ * the terms of the GNU General Public License as published by the Free Software Foundation,
+ * version 2 of the License.
+ *
+ * This program is distributed in the hope that it will be useful, but WITHOUT ANY WARRANTY;
+ * without even the implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.
+ * See the GNU General Public License for more details.
+ * You should have received a copy of the GNU General Public License along with this program.
+ * If not, see <https://www.gnu.org/licenses/>.
+ * ***** END LICENSE BLOCK *****
+ */
+
+package com.zimbra.cs.index;
+
+import java.util.ArrayList;
+import java.util.IdentityHashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+import com.zimbra.common.service.ServiceException;
+import com.zimbra.common.util.ZimbraLog;
+import com.zimbra.cs.mailbox.MailItem;
+import com.zimbra.cs.mailbox.MailServiceException;
+import com.zimbra.cs.mailbox.Mailbox;
+import com.zimbra.cs.mailbox.OperationContext;
+
+/**
+ * Loads everything a page of search hits is going to need for serialization before any of it is serialized: the hit
+ * items themselves, the messages matched within each conversation hit, and the full message list of each conversation.
+ * Each of those is a single batched fetch per mailbox instead of one query per hit or per conversation.
+ *
+ * Hits whose items are already loaded (e.g. by {@link ItemPreloadingGrouper}) are left alone.
+ */
+public final class HitHydrator {
+
+    private HitHydrator() {
+    }
+
+    public static void hydrate(List<ZimbraHit> hits, OperationContext octxt, boolean inDumpster)
+            throws ServiceException {
+        Map<Mailbox, List<ZimbraHit>> byMailbox = new IdentityHashMap<Mailbox, List<ZimbraHit>>();
+        for (ZimbraHit hit : hits) {
+            Mailbox mbox = hit.getMailbox();
+            if (mbox == null || hit instanceof ProxiedHit) {
+                continue;
+            }
+            List<ZimbraHit> list = byMailbox.get(mbox);
+            if (list == null) {
+                list = new ArrayList<ZimbraHit>();
+                byMailbox.put(mbox, list);
+            }
+            list.add(hit);
+            if (hit instanceof ConversationHit) {
+                list.addAll(((ConversationHit) hit).getMessageHits());
+            }
+        }
+        for (Map.Entry<Mailbox, List<ZimbraHit>> entry : byMailbox.entrySet()) {
+            hydrate(entry.getKey(), entry.getValue(), octxt, inDumpster);
+        }
+    }
+
+    private static void hydrate(Mailbox mbox, List<ZimbraHit> hits, OperationContext octxt, boolean inDumpster)
+            throws ServiceException {
+        List<ZimbraHit> toLoad = new ArrayList<ZimbraHit>(hits.size());
+        Set<Integer> convIds = new LinkedHashSet<Integer>();
+        for (ZimbraHit hit : hits) {
+            if (!hit.itemIsLoaded()) {
+                toLoad.add(hit);
+            }
+            if (hit instanceof ConversationHit) {
+                convIds.add(((ConversationHit) hit).getConversationId());
+            }
+        }
+
+        if (!toLoad.isEmpty()) {
+            int[] ids = new int[toLoad.size()];
+            for (int i = 0; i < ids.length; i++) {
+                ids[i] = toLoad.get(i).getItemId();
+            }
+            try {
+                MailItem[] items = mbox.getItemById(octxt, ids, MailItem.Type.UNKNOWN, inDumpster);
+                for (int i = 0; i < ids.length; i++) {
+                    if (items[i] != null) {
+                        toLoad.get(i).setItem(items[i]);
+                    }
+                }
+            } catch (MailServiceException.NoSuchItemException e) {
+                // an item went away since the search ran; leave the hits to load (or fail) one at a time as before
+                ZimbraLog.search.debug("item deleted while hydrating search hits", e);
+            }
+        }
+
+        if (!convIds.isEmpty() && !inDumpster) {
+            try {
+                mbox.preloadConversationMessages(octxt, convIds);
+            } catch (MailServiceException.NoSuchItemException e) {
+                ZimbraLog.search.debug("conversation deleted while hydrating search hits", e);
+            }
+        }
+    }
+}
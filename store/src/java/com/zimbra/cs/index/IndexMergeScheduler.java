@@ -0,0 +1,276 @@
+/*
+ * ***** BEGIN LICENSE BLOCK *****
+ * Zimbra Collaboration Suite Server
+ * Copyright (C) 2016 Synacor, Inc.
+ *
+ * This program is free software: you can redistribute it and/or modify it under
+ * the terms of the GNU General Public License as published by the Free Software Foundation,
+ * version 2 of the License.
+ *
+ * This program is distributed in the hope that it will be useful, but WITHOUT ANY WARRANTY;
+ * without even the implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.
+ * See the GNU General Public License for more details.
+ * You should have received a copy of the GNU General Public License along with this program.
+ * If not, see <https://www.gnu.org/licenses/>.
+ * ***** END LICENSE BLOCK *****
+ */
+package com.zimbra.cs.index;
+
+import java.util.Calendar;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.TimerTask;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+
+import com.google.common.annotations.VisibleForTesting;
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
+import com.zimbra.common.localconfig.LC;
+import com.zimbra.common.service.ServiceException;
+import com.zimbra.common.util.Constants;
+import com.zimbra.common.util.ZimbraLog;
+import com.zimbra.cs.mailbox.Mailbox;
+import com.zimbra.cs.mailbox.MailboxManager;
+import com.zimbra.cs.mailbox.MailboxManager.FetchMode;
+import com.zimbra.cs.stats.ZimbraPerf;
+import com.zimbra.cs.util.Zimbra;
+
+/**
+ * Runs the merges of all the Lucene indexes on the server, so that merges don't saturate the disks when many
+ * mailboxes are busy at once.
+ * <ul>
+ * <li>At most {@code zimbra_index_merge_threads} merges run at a time. A merge that can't start right away is
+ * postponed, which releases its writer, and coalesced with later merges of the same index.
+ * <li>Postponed merges start in order of mailbox activity, i.e. the number of commits since the index was last
+ * merged, as the busiest mailboxes pile up the most segments.
+ * <li>If {@code zimbra_index_merge_quiet_hours} is set, e.g. to {@code 1-6}, merges wait for those hours unless
+ * {@code zimbra_index_merge_urgent_commits} commits have piled up for the index.
+ * <li>Merges write at most {@code zimbra_index_merge_max_kb_per_sec} across the server, see {@link #pace(long)}.
+ * </ul>
+ * The number of postponed merges is reported as {@link ZimbraPerf#RTS_IDX_MERGE_BACKLOG}, and the bytes written by
+ * merges that had to slow down in {@link ZimbraPerf#COUNTER_IDX_MERGE_THROTTLED_BYTES}.
+ */
+public final class IndexMergeScheduler {
+
+    private static final IndexMergeScheduler INSTANCE = new IndexMergeScheduler();
+    private static final ThreadLocal<Boolean> MERGING = new ThreadLocal<Boolean>();
+
+    /**
+     * A merge of one index.
+     */
+    interface Merge extends Runnable {
+        int getMailboxId();
+
+        /**
+         * Releases the writer held for the merge, which will be run later with a writer of its own.
+         */
+        void postpone();
+    }
+
+    private static final class Backlog {
+        final int mailboxId;
+        final long since = System.currentTimeMillis();
+        int commits;
+
+        Backlog(int mailboxId) {
+            this.mailboxId = mailboxId;
+        }
+
+        boolean isBefore(Backlog other) {
+            return commits > other.commits || (commits == other.commits && since < other.since);
+        }
+    }
+
+    private final int maxThreads = Math.max(1, LC.zimbra_index_merge_threads.intValue());
+    private final ThreadPoolExecutor executor = new ThreadPoolExecutor(maxThreads, maxThreads, 60, TimeUnit.SECONDS,
+            new LinkedBlockingQueue<Runnable>(), new ThreadFactoryBuilder().setNameFormat("IndexMerge-%d")
+            .setDaemon(true).build());
+    private final Map<Integer, Backlog> backlog = new HashMap<Integer, Backlog>(); // guarded by this
+    private int running = 0; // guarded by this
+    private final Object budgetLock = new Object();
+    private long nextWrite = 0; // guarded by budgetLock
+
+    private IndexMergeScheduler() {
+        executor.allowCoreThreadTimeOut(true);
+        // starts postponed merges once the quiet hours begin
+        Zimbra.sTimer.schedule(new TimerTask() {
+            @Override
+            public void run() {
+                try {
+                    dispatch();
+                } catch (Throwable t) {
+                    ZimbraLog.index.warn("Failed to start postponed merges", t);
+                }
+            }
+        }, Constants.MILLIS_PER_MINUTE, Constants.MILLIS_PER_MINUTE);
+    }
+
+    public static IndexMergeScheduler getInstance() {
+        return INSTANCE;
+    }
+
+    /**
+     * Returns the number of indexes waiting to be merged.
+     */
+    public synchronized int getBacklog() {
+        return backlog.size();
+    }
+
+    /**
+     * Runs the merge if allowed to, otherwise postpones it.
+     */
+    void submit(Merge merge) {
+        synchronized (this) {
+            Backlog entry = backlog.get(merge.getMailboxId());
+            int commits = entry == null ? 1 : entry.commits + 1;
+            if (running < maxThreads && isAllowed(commits)) {
+                backlog.remove(merge.getMailboxId());
+                start(merge);
+                return;
+            }
+            if (entry == null) {
+                entry = new Backlog(merge.getMailboxId());
+                backlog.put(entry.mailboxId, entry);
+            }
+            entry.commits = commits;
+        }
+        merge.postpone();
+    }
+
+    /**
+     * Starts the postponed merges that are allowed to run, busiest mailbox first, as long as threads are free.
+     */
+    @VisibleForTesting
+    synchronized void dispatch() {
+        while (running < maxThreads) {
+            Backlog next = null;
+            for (Backlog entry : backlog.values()) {
+                if (isAllowed(entry.commits) && (next == null || entry.isBefore(next))) {
+                    next = entry;
+                }
+            }
+            if (next == null) {
+                return;
+            }
+            backlog.remove(next.mailboxId);
+            start(new PostponedMerge(next.mailboxId));
+        }
+    }
+
+    private void start(final Runnable merge) {
+        assert(Thread.holdsLock(this));
+        executor.execute(new Runnable() {
+            @Override
+            public void run() {
+                MERGING.set(Boolean.TRUE);
+                try {
+                    merge.run();
+                } finally {
+                    MERGING.remove();
+                    synchronized (IndexMergeScheduler.this) {
+                        running--;
+                    }
+                    dispatch();
+                }
+            }
+        });
+        running++;
+    }
+
+    private boolean isAllowed(int commits) {
+        return commits >= LC.zimbra_index_merge_urgent_commits.intValue() || isQuietHour();
+    }
+
+    /**
+     * Returns true if merges may run now, i.e. no quiet hours are configured or they have begun.
+     */
+    @VisibleForTesting
+    static boolean isQuietHour() {
+        String hours = LC.zimbra_index_merge_quiet_hours.value();
+        if (hours == null || hours.trim().isEmpty()) {
+            return true;
+        }
+        int dash = hours.indexOf('-');
+        try {
+            int start = Integer.parseInt(hours.substring(0, dash).trim());
+            int end = Integer.parseInt(hours.substring(dash + 1).trim());
+            int hour = Calendar.getInstance().get(Calendar.HOUR_OF_DAY);
+            return start <= end ? hour >= start && hour < end : hour >= start || hour < end;
+        } catch (RuntimeException e) {
+            ZimbraLog.index.warn("Invalid zimbra_index_merge_quiet_hours: %s", hours);
+            return true;
+        }
+    }
+
+    /**
+     * Returns true if the current thread is running a merge.
+     */
+    static boolean isMerging() {
+        return MERGING.get() != null;
+    }
+
+    /**
+     * Called by the merge threads after writing {@code bytes}, and sleeps as long as needed to keep all the merges
+     * together within {@code zimbra_index_merge_max_kb_per_sec}. Merges read about as much as they write, so this
+     * bounds their reads too.
+     */
+    void pace(long bytes) {
+        long rate = LC.zimbra_index_merge_max_kb_per_sec.longValue() * 1024;
+        if (rate <= 0) {
+            return;
+        }
+        long delay;
+        synchronized (budgetLock) {
+            long now = System.nanoTime();
+            long start = Math.max(now, nextWrite);
+            nextWrite = start + bytes * TimeUnit.SECONDS.toNanos(1) / rate;
+            delay = start - now;
+        }
+        if (delay > 0) {
+            ZimbraPerf.COUNTER_IDX_MERGE_THROTTLED_BYTES.increment(bytes);
+            try {
+                TimeUnit.NANOSECONDS.sleep(delay);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        }
+    }
+
+    /**
+     * Merges the index of a mailbox whose merge was postponed, with the index instance the mailbox currently has.
+     * The merge is dropped if the mailbox has been unloaded since, rather than loading it just for that; the next
+     * commit after it is loaded again will merge its index.
+     */
+    private static final class PostponedMerge implements Runnable {
+        private final int mailboxId;
+
+        PostponedMerge(int mailboxId) {
+            this.mailboxId = mailboxId;
+        }
+
+        @Override
+        public void run() {
+            try {
+                ZimbraLog.addMboxToContext(mailboxId);
+                Mailbox mbox = MailboxManager.getInstance().getMailboxById(mailboxId, FetchMode.ONLY_IF_CACHED);
+                if (mbox == null) {
+                    ZimbraLog.index.debug("Skipping merge of unloaded mailbox %d", mailboxId);
+                    return;
+                }
+                IndexStore store = mbox.index.getIndexStore();
+                if (store instanceof LuceneIndex) {
+                    ((LuceneIndex) store).merge();
+                }
+            } catch (IndexPendingDeleteException e) {
+                ZimbraLog.index.debug("Skipping merge of index pending delete");
+            } catch (ServiceException e) {
+                ZimbraLog.index.debug("Skipping merge of mailbox %d", mailboxId, e);
+            } catch (Exception e) {
+                ZimbraLog.index.error("Failed to merge index", e);
+            } finally {
+                ZimbraLog.clearContext();
+            }
+        }
+    }
+}
@@ -18,6 +18,7 @@ package com.zimbra.cs.index;
 
 import java.io.IOException;
 import java.io.PrintStream;
+import java.util.Collection;
 
 import com.google.common.annotations.VisibleForTesting;
 import com.zimbra.common.localconfig.LC;
@@ -83,6 +84,13 @@ public abstract class IndexStore {
      */
     public abstract boolean verify(PrintStream out) throws IOException;
 
+    /**
+     * Registers the callback told about items whose documents were committed after {@link Indexer#close()} returned.
+     * Only index stores that defer commits, see {@link Indexer#getUncommittedIds()}, ever call it.
+     */
+    public void setCommitListener(CommitListener listener) {
+    }
+
     public static Factory getFactory() {
         if (factory == null) {
             setFactory(LC.zimbra_class_index_store_factory.value());
@@ -142,6 +150,21 @@ public abstract class IndexStore {
         }
     }
 
+    /**
+     * Callback for index stores that commit documents after the indexer is closed.
+     */
+    public interface CommitListener {
+        /**
+         * The documents of these items are now durable.
+         */
+        void committed(Collection<Integer> ids);
+
+        /**
+         * The documents of these items were lost, so they need to be indexed again.
+         */
+        void failed(Collection<Integer> ids);
+    }
+
     public interface Factory {
         /**
          * Get an IndexStore instance for a particular mailbox
@@ -18,6 +18,8 @@ package com.zimbra.cs.index;
 
 import java.io.Closeable;
 import java.io.IOException;
+import java.util.Collection;
+import java.util.Collections;
 import java.util.List;
 
 import com.zimbra.cs.mailbox.Folder;
@@ -44,6 +46,24 @@ public interface Indexer extends Closeable {
      */
     void deleteDocument(List<Integer> ids) throws IOException;
 
+    /**
+     * Returns the IDs of the items passed to {@link #addDocument} that turned out not to be indexed. Index stores that
+     * write documents out in batches only know this once the indexer is closed; the others throw from
+     * {@link #addDocument} instead, and return an empty collection.
+     */
+    default Collection<Integer> getFailedIds() {
+        return Collections.emptyList();
+    }
+
+    /**
+     * Returns the IDs of the items passed to {@link #addDocument} whose documents were searchable but not yet durable
+     * when the indexer was closed. Their index IDs must not be persisted until the index store reports them through
+     * {@link IndexStore.CommitListener#committed}.
+     */
+    default Collection<Integer> getUncommittedIds() {
+        return Collections.emptyList();
+    }
+
     /**
      * Compacts the index by expunging all the deletes.
      */
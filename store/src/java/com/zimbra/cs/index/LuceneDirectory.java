@@ -253,34 +253,46 @@ public final class LuceneDirectory extends Directory {
     }
 
     private static final class LuceneIndexOutput extends IndexOutput {
+        /** Merge writes are paced by the {@link IndexMergeScheduler} every this many bytes. */
+        private static final int PACE_BYTES = 64 * 1024;
+
         private final IndexOutput output;
         private boolean disableCounters = LC.zimbra_index_disable_perf_counters.booleanValue();
+        private final boolean merging = IndexMergeScheduler.isMerging();
+        private int unpaced = 0;
 
         LuceneIndexOutput(IndexOutput out) {
             output = out;
         }
 
-        @Override
-        public void writeByte(byte b) throws IOException {
+        private void written(int len) {
             if (!disableCounters) {
-                ZimbraPerf.COUNTER_IDX_BYTES_WRITTEN.increment(1);
+                ZimbraPerf.COUNTER_IDX_BYTES_WRITTEN.increment(len);
             }
+            if (merging) {
+                unpaced += len;
+                if (unpaced >= PACE_BYTES) {
+                    IndexMergeScheduler.getInstance().pace(unpaced);
+                    unpaced = 0;
+                }
+            }
+        }
+
+        @Override
+        public void writeByte(byte b) throws IOException {
+            written(1);
             output.writeByte(b);
         }
 
         @Override
         public void writeBytes(byte[] b, int len) throws IOException {
-            if (!disableCounters) {
-                ZimbraPerf.COUNTER_IDX_BYTES_WRITTEN.increment(len);
-            }
+            written(len);
             output.writeBytes(b, len);
         }
 
         @Override
         public void writeBytes(byte[] b, int offset, int len) throws IOException {
-            if (!disableCounters) {
-                ZimbraPerf.COUNTER_IDX_BYTES_WRITTEN.increment(len);
-            }
+            written(len);
             output.writeBytes(b, offset, len);
         }
 
@@ -19,11 +19,20 @@ package com.zimbra.cs.index;
 import java.io.File;
 import java.io.IOException;
 import java.io.PrintStream;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
 import java.util.List;
 import java.util.NoSuchElementException;
+import java.util.Set;
+import java.util.TimerTask;
+import java.util.concurrent.ConcurrentHashMap;
 import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.LinkedBlockingQueue;
 import java.util.concurrent.RejectedExecutionException;
 import java.util.concurrent.Semaphore;
+import java.util.concurrent.ThreadPoolExecutor;
 import java.util.concurrent.TimeUnit;
 import java.util.concurrent.atomic.AtomicBoolean;
 import java.util.concurrent.atomic.AtomicInteger;
@@ -48,15 +57,18 @@ import org.apache.lucene.search.Query;
 import org.apache.lucene.search.Sort;
 import org.apache.lucene.search.SortField;
 import org.apache.lucene.search.TermQuery;
+import org.apache.lucene.store.AlreadyClosedException;
 import org.apache.lucene.store.NoSuchDirectoryException;
 import org.apache.lucene.util.Version;
 
+import com.google.common.annotations.VisibleForTesting;
 import com.google.common.base.MoreObjects;
 import com.google.common.cache.Cache;
 import com.google.common.cache.CacheBuilder;
 import com.google.common.cache.RemovalListener;
 import com.google.common.cache.RemovalNotification;
 import com.google.common.io.ByteStreams;
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
 import com.googlecode.concurrentlinkedhashmap.ConcurrentLinkedHashMap;
 import com.googlecode.concurrentlinkedhashmap.EvictionListener;
 import com.zimbra.common.localconfig.LC;
@@ -67,6 +79,7 @@ import com.zimbra.cs.mailbox.MailItem;
 import com.zimbra.cs.mailbox.Mailbox;
 import com.zimbra.cs.mailbox.MailboxIndex;
 import com.zimbra.cs.util.IOUtil;
+import com.zimbra.cs.util.Zimbra;
 import com.zimbra.cs.volume.Volume;
 import com.zimbra.cs.volume.VolumeManager;
 
@@ -114,10 +127,19 @@ public final class LuceneIndex extends IndexStore {
         })
         .build();
 
+    // indexes holding a parked writer in near-real-time mode, so that they can be committed on shutdown
+    private static final Set<LuceneIndex> PARKED_WRITERS =
+        Collections.newSetFromMap(new ConcurrentHashMap<LuceneIndex, Boolean>());
+
+    // timed commits of parked writers run here rather than on the shared timer thread, which must never block on I/O
+    private static final ExecutorService NRT_COMMIT_EXECUTOR = newCommitExecutor();
+
     private final Mailbox mailbox;
     private final LuceneDirectory luceneDirectory;
     private final AtomicBoolean pendingDelete = new AtomicBoolean(false);
     private final WriterInfo writerInfo = new WriterInfo();
+    private final NearRealTimeInfo nrtInfo = new NearRealTimeInfo();
+    private volatile CommitListener commitListener;
 
     /**
      * Holds information related to writers to the index.
@@ -165,6 +187,79 @@ public final class LuceneIndex extends IndexStore {
         }
     }
 
+    /**
+     * Holds the refresh and commit policy of the index in near-real-time mode.
+     * <p>
+     * Searchers are reopened from the live writer once {@code zimbra_index_nrt_refresh_docs} changes have piled up or
+     * {@code zimbra_index_nrt_refresh_ms} has passed since the last reopen, and the writer is committed once
+     * {@code zimbra_index_nrt_commit_docs} changes have piled up or {@code zimbra_index_nrt_commit_interval_ms} has
+     * passed. In between commits, the writer is kept open by a parked reference. Apart from the counters, which the
+     * indexers bump as they go, the fields are guarded by the index monitor.
+     */
+    private static final class NearRealTimeInfo {
+        private final AtomicInteger unrefreshed = new AtomicInteger();
+        private final AtomicInteger uncommitted = new AtomicInteger();
+        private long lastRefresh = System.currentTimeMillis();
+        private long lastCommit = System.currentTimeMillis();
+        private boolean parked = false;
+        private TimerTask commitTask;
+        // items whose documents sit in the parked writer, to be reported once they are committed
+        private List<Integer> uncommittedIds = new ArrayList<Integer>();
+
+        void changed(int count) {
+            unrefreshed.addAndGet(count);
+            uncommitted.addAndGet(count);
+        }
+
+        boolean shouldRefresh(long now) {
+            int count = unrefreshed.get();
+            return count > 0 && (count >= LC.zimbra_index_nrt_refresh_docs.intValue() ||
+                    now - lastRefresh >= LC.zimbra_index_nrt_refresh_ms.longValue());
+        }
+
+        boolean shouldCommit(long now) {
+            int count = uncommitted.get();
+            return count >= LC.zimbra_index_nrt_commit_docs.intValue() ||
+                    (count > 0 && now - lastCommit >= LC.zimbra_index_nrt_commit_interval_ms.longValue());
+        }
+
+        /**
+         * Called before a reader is reopened, so that changes made while it is being reopened count toward the next
+         * refresh.
+         */
+        void refreshed(long now) {
+            unrefreshed.set(0);
+            lastRefresh = now;
+        }
+
+        void committed(long now) {
+            uncommitted.set(0);
+            lastCommit = now;
+        }
+
+        /**
+         * Returns the items held by the parked writer and starts a new list, as they are about to be committed.
+         */
+        List<Integer> takeUncommittedIds() {
+            List<Integer> ids = uncommittedIds;
+            uncommittedIds = new ArrayList<Integer>();
+            return ids;
+        }
+    }
+
+    private static ExecutorService newCommitExecutor() {
+        int threads = Math.max(1, LC.zimbra_index_nrt_commit_threads.intValue());
+        ThreadPoolExecutor executor = new ThreadPoolExecutor(threads, threads, 60, TimeUnit.SECONDS,
+                new LinkedBlockingQueue<Runnable>(),
+                new ThreadFactoryBuilder().setNameFormat("IndexCommit-%d").setDaemon(true).build());
+        executor.allowCoreThreadTimeOut(true);
+        return executor;
+    }
+
+    private static boolean isNearRealTime() {
+        return LC.zimbra_index_nrt_enabled.booleanValue();
+    }
+
     private LuceneIndex(Mailbox mbox) throws ServiceException {
         mailbox = mbox;
         Volume vol = VolumeManager.getInstance().getVolume(mbox.getIndexVolume());
@@ -245,6 +340,11 @@ public final class LuceneIndex extends IndexStore {
     @Override
     public void deleteIndex() throws IOException {
         pendingDelete.set(true);
+        try {
+            commitParkedWriter();
+        } catch (IOException e) {
+            ZimbraLog.index.warn("Failed to commit IndexWriter %s", this, e);
+        }
         writerInfo.getHasNoWritersLock().lock();
         try {
             if (writerInfo.getWriterRef() != null) {
@@ -374,11 +474,10 @@ public final class LuceneIndex extends IndexStore {
      */
     @Override
     public synchronized ZimbraIndexSearcher openSearcher() throws IOException {
-        IndexSearcherImpl searcher = null;
-        if (mailbox.isGalSyncMailbox()) {
-            searcher = GAL_SEARCHER_CACHE.get(mailbox.getId());
-        } else {
-            searcher = SEARCHER_CACHE.getIfPresent(mailbox.getId());
+        IndexSearcherImpl searcher = getCachedSearcher();
+        if (searcher != null && isNearRealTime() && nrtInfo.shouldRefresh(System.currentTimeMillis())) {
+            refreshSearcher();
+            searcher = getCachedSearcher();
         }
         if (searcher != null) {
             ZimbraLog.search.debug("CacheHitLuceneSearcher %s", searcher);
@@ -389,7 +488,14 @@ public final class LuceneIndex extends IndexStore {
         READER_THROTTLE.acquireUninterruptibly();
         long start = System.currentTimeMillis();
         try {
-            searcher = new IndexSearcherImpl(openIndexReader(true));
+            IndexWriterRef ref = writerInfo.getWriterRef();
+            if (isNearRealTime() && ref != null) {
+                // see the changes the writer has not committed yet
+                nrtInfo.refreshed(start);
+                searcher = new IndexSearcherImpl(IndexReader.open(ref.get(), true));
+            } else {
+                searcher = new IndexSearcherImpl(openIndexReader(true));
+            }
         } catch (IOException e) {
             // Handle the special case of trying to open a not-yet-created index, by opening for write and immediately
             // closing. Index directory should get initialized as a result.
@@ -410,12 +516,59 @@ public final class LuceneIndex extends IndexStore {
 
         ZimbraLog.search.debug("OpenLuceneSearcher %s,elapsed=%d", searcher, System.currentTimeMillis() - start);
         searcher.inc();
+        cacheSearcher(searcher);
+        return searcher;
+    }
+
+    private IndexSearcherImpl getCachedSearcher() {
         if (mailbox.isGalSyncMailbox()) {
+            return GAL_SEARCHER_CACHE.get(mailbox.getId());
+        } else {
+            return SEARCHER_CACHE.getIfPresent(mailbox.getId());
+        }
+    }
+
+    private void cacheSearcher(IndexSearcherImpl searcher) {
+        if (mailbox.isGalSyncMailbox()) {
+            //make sure that we close the previous value associated with the key
             IOUtil.closeQuietly(GAL_SEARCHER_CACHE.put(mailbox.getId(), searcher));
         } else {
+            // Bug: 69870
+            // No need to close the previous value associated with the key here.
+            // CacheBuilder sends a callback using removalListener onRemoval(..)
+            // which eventually closes IndexSearcher
             SEARCHER_CACHE.asMap().put(mailbox.getId(), searcher);
         }
-        return searcher;
+    }
+
+    /**
+     * Reopens the cached searcher, if any, so that it sees the changes made since it was opened. In near-real-time
+     * mode the reader is reopened from the writer if it is open, which includes the changes not committed yet.
+     */
+    private synchronized void refreshSearcher() throws IOException {
+        if (isNearRealTime()) {
+            nrtInfo.refreshed(System.currentTimeMillis());
+        }
+        IndexSearcherImpl searcher = getCachedSearcher();
+        if (searcher == null) {
+            return;
+        }
+        IndexReader reader = ((ZimbraLuceneIndexReader) searcher.getIndexReader()).getLuceneReader();
+        IndexReader newReader;
+        IndexWriterRef ref = writerInfo.getWriterRef();
+        try {
+            if (isNearRealTime() && ref != null) {
+                newReader = IndexReader.openIfChanged(reader, ref.get(), true);
+            } else {
+                newReader = IndexReader.openIfChanged(reader, true);
+            }
+        } catch (AlreadyClosedException e) {
+            // opened from a writer that has been closed since, which committed everything the reader had seen
+            newReader = openIndexReader(true);
+        }
+        if (newReader != null) {
+            cacheSearcher(new IndexSearcherImpl(newReader));
+        }
     }
 
     /**
@@ -453,6 +606,13 @@ public final class LuceneIndex extends IndexStore {
 
     @Override
     public synchronized Indexer openIndexer() throws IOException {
+        return new LuceneIndexerImpl(acquireWriter());
+    }
+
+    /**
+     * Returns a new reference to the writer, opening it if need be. The caller must release it.
+     */
+    private synchronized IndexWriterRef acquireWriter() throws IOException {
         if (writerInfo.getWriterRef() != null) {
             writerInfo.getWriterRef().inc();
         } else {
@@ -465,7 +625,14 @@ public final class LuceneIndex extends IndexStore {
                 }
             }
         }
-        return new LuceneIndexerImpl(writerInfo.getWriterRef());
+        return writerInfo.getWriterRef();
+    }
+
+    /**
+     * Runs a merge that was postponed by the {@link IndexMergeScheduler}.
+     */
+    void merge() throws IOException {
+        new MergeTask(acquireWriter()).exec();
     }
 
     private IndexWriterRef openWriter() throws IOException {
@@ -516,10 +683,10 @@ public final class LuceneIndex extends IndexStore {
                 repair(e);
                 throw e; // fail to commit regardless of the repair
             }
-            mailbox.index.submit(task); // merge must run in background
+            IndexMergeScheduler.getInstance().submit(task); // merge must run in background
             success = true;
         } catch (RejectedExecutionException e) {
-            ZimbraLog.index.warn("Skipping merge because all index threads are busy");
+            ZimbraLog.index.warn("Skipping merge because the merge scheduler is shut down");
         } finally {
             if (!success) {
                 writerInfo.getWriterRef().dec();
@@ -527,6 +694,147 @@ public final class LuceneIndex extends IndexStore {
         }
     }
 
+    /**
+     * Ends an indexing batch in near-real-time mode. Instead of committing every batch, the writer is kept open by a
+     * parked reference and committed once enough changes or time have piled up, either by a later batch or by a timer.
+     * Meanwhile the cached searcher is reopened from the writer according to the refresh policy.
+     *
+     * @param ids items added by the batch
+     * @return the items of the batch that were left uncommitted, which are reported to the {@link CommitListener}
+     *         once they are committed
+     */
+    private Collection<Integer> closeNearRealTime(IndexWriterRef ref, List<Integer> ids) throws IOException {
+        List<Integer> committed = null;
+        boolean success = false;
+        Collection<Integer> uncommitted = Collections.emptyList();
+        try {
+            synchronized (this) {
+                long now = System.currentTimeMillis();
+                if (nrtInfo.shouldCommit(now)) {
+                    nrtInfo.committed(now);
+                    committed = nrtInfo.takeUncommittedIds();
+                    try {
+                        commitWriter(); // hands the reference of this batch to the merge task
+                        success = true;
+                    } finally {
+                        if (unpark()) {
+                            ref.dec();
+                        }
+                    }
+                } else {
+                    nrtInfo.uncommittedIds.addAll(ids);
+                    uncommitted = ids;
+                    if (nrtInfo.parked) {
+                        ref.dec(); // the parked reference keeps the writer open
+                    } else {
+                        nrtInfo.parked = true;
+                        nrtInfo.commitTask = new TimerTask() {
+                            @Override
+                            public void run() {
+                                scheduleCommit();
+                            }
+                        };
+                        PARKED_WRITERS.add(this);
+                        Zimbra.sTimer.schedule(nrtInfo.commitTask, LC.zimbra_index_nrt_commit_interval_ms.longValue());
+                    }
+                }
+                if (nrtInfo.shouldRefresh(now)) {
+                    refreshSearcher();
+                }
+            }
+        } finally {
+            // the earlier batches are lost along with this one if the commit failed
+            notifyCommitted(committed, success);
+        }
+        return uncommitted;
+    }
+
+    /**
+     * Hands a timed commit of the parked writer to the commit threads.
+     */
+    private void scheduleCommit() {
+        try {
+            NRT_COMMIT_EXECUTOR.execute(new Runnable() {
+                @Override
+                public void run() {
+                    try {
+                        commitParkedWriter();
+                    } catch (Throwable t) {
+                        ZimbraLog.index.warn("Failed to commit IndexWriter %s", LuceneIndex.this, t);
+                    }
+                }
+            });
+        } catch (RejectedExecutionException e) {
+            ZimbraLog.index.warn("Skipping timed commit of IndexWriter %s", this, e);
+        }
+    }
+
+    @Override
+    public void setCommitListener(CommitListener listener) {
+        commitListener = listener;
+    }
+
+    /**
+     * Reports the outcome of a commit. Must not be called while holding the index monitor, as the listener takes the
+     * mailbox lock to persist index IDs.
+     *
+     * @param ids items held by the parked writer before the commit, or null if there was no commit
+     */
+    private void notifyCommitted(List<Integer> ids, boolean success) {
+        assert(!Thread.holdsLock(this));
+        CommitListener listener = commitListener;
+        if (listener == null || ids == null || ids.isEmpty()) {
+            return;
+        }
+        if (success) {
+            listener.committed(ids);
+        } else {
+            listener.failed(ids);
+        }
+    }
+
+    /**
+     * Cancels the pending commit of the parked reference, which the caller then owns. Returns false if there was none.
+     */
+    private boolean unpark() {
+        assert(Thread.holdsLock(this));
+        if (!nrtInfo.parked) {
+            return false;
+        }
+        nrtInfo.parked = false;
+        nrtInfo.commitTask.cancel();
+        nrtInfo.commitTask = null;
+        PARKED_WRITERS.remove(this);
+        return true;
+    }
+
+    /**
+     * Commits the changes held by the parked writer, if any, and lets the writer close once the merge is done.
+     */
+    @VisibleForTesting
+    void commitParkedWriter() throws IOException {
+        List<Integer> committed = null;
+        boolean success = false;
+        try {
+            synchronized (this) {
+                if (!unpark()) {
+                    return;
+                }
+                nrtInfo.committed(System.currentTimeMillis());
+                committed = nrtInfo.takeUncommittedIds();
+                commitWriter(); // hands the parked reference to the merge task
+                success = true;
+            }
+        } finally {
+            notifyCommitted(committed, success);
+        }
+    }
+
+    @VisibleForTesting
+    synchronized boolean hasParkedWriter() {
+        return nrtInfo.parked;
+    }
+
     /**
      * Called by {@link IndexWriterRef#dec()}. Can be called by the thread that opened the writer or the merge thread.
      */
@@ -633,9 +941,10 @@ public final class LuceneIndex extends IndexStore {
      * In order to minimize delay caused by merges, merges are processed only in background threads. Writers triggered
      * by batch threshold or search commit the changes before processing merges, so that the changes are available to
      * readers without long delay that merges likely cause. Merge threads don't block other writer threads running in
-     * foreground. Another indexing using the same writer may start even while the merge is in progress.
+     * foreground. Another indexing using the same writer may start even while the merge is in progress. Merges of all
+     * indexes are throttled and prioritized by the {@link IndexMergeScheduler}.
      */
-    private final class MergeTask extends MailboxIndex.IndexTask {
+    private final class MergeTask extends MailboxIndex.IndexTask implements IndexMergeScheduler.Merge {
         private final IndexWriterRef ref;
 
         MergeTask(IndexWriterRef ref) {
@@ -643,6 +952,16 @@ public final class LuceneIndex extends IndexStore {
             this.ref = ref;
         }
 
+        @Override
+        public int getMailboxId() {
+            return ref.getIndex().mailbox.getId();
+        }
+
+        @Override
+        public void postpone() {
+            ref.dec();
+        }
+
         @Override
         public void exec() throws IOException {
             IndexWriter writer = ref.get();
@@ -679,6 +998,8 @@ public final class LuceneIndex extends IndexStore {
         config.setMergeScheduler(new MergeScheduler());
         config.setMaxBufferedDocs(LC.zimbra_index_lucene_max_buffered_docs.intValue());
         config.setRAMBufferSizeMB(LC.zimbra_index_lucene_ram_buffer_size_kb.intValue() / 1024.0);
+        // applies to the near-real-time readers pooled by the writer
+        config.setReaderTermsIndexDivisor(LC.zimbra_index_lucene_term_index_divisor.intValue());
         if (LC.zimbra_index_lucene_merge_policy.booleanValue()) {
             LogDocMergePolicy policy = new LogDocMergePolicy();
             config.setMergePolicy(policy);
@@ -778,6 +1099,13 @@ public final class LuceneIndex extends IndexStore {
 
         @Override
         public void destroy() {
+            for (LuceneIndex index : PARKED_WRITERS) {
+                try {
+                    index.commitParkedWriter();
+                } catch (IOException e) {
+                    ZimbraLog.index.error("Failed to commit IndexWriter %s", index, e);
+                }
+            }
             SEARCHER_CACHE.asMap().clear();
 
             for (IndexSearcherImpl searcher : GAL_SEARCHER_CACHE.values()) {
@@ -789,6 +1117,8 @@ public final class LuceneIndex extends IndexStore {
 
     private static final class LuceneIndexerImpl implements Indexer {
         private final IndexWriterRef writer;
+        private final List<Integer> added = new ArrayList<Integer>();
+        private Collection<Integer> uncommitted = Collections.emptyList();
 
         LuceneIndexerImpl(IndexWriterRef writer) {
             this.writer = writer;
@@ -796,31 +1126,17 @@ public final class LuceneIndex extends IndexStore {
 
         @Override
         public void close() throws IOException {
-            writer.index.commitWriter();
-            ZimbraIndexSearcher searcher = null;
-            if (writer.getIndex().mailbox.isGalSyncMailbox()) {
-                searcher = GAL_SEARCHER_CACHE.get(writer.getIndex().mailbox.getId());
-            } else {
-                searcher = SEARCHER_CACHE.getIfPresent(writer.getIndex().mailbox.getId());
-            }
-            if (searcher != null) {
-                ZimbraLuceneIndexReader ndxReader = (ZimbraLuceneIndexReader)searcher.getIndexReader();
-                IndexReader newReader = IndexReader.openIfChanged(ndxReader.getLuceneReader(), true);
-                if (newReader != null) {
-                    if (writer.getIndex().mailbox.isGalSyncMailbox()) {
-                        //make sure that we close the previous value associated with the key
-                        IOUtil.closeQuietly(GAL_SEARCHER_CACHE.put(writer.getIndex().mailbox.getId(),
-                                new IndexSearcherImpl(newReader)));
-                    } else {
-                        // Bug: 69870
-                        // No need to close the previous value associated with the key here.
-                        // CacheBuilder sends a callback using removalListener onRemoval(..)
-                        // which eventually closes IndexSearcher
-                        SEARCHER_CACHE.asMap().put(writer.getIndex().mailbox.getId(),
-                            new IndexSearcherImpl(newReader));
-                    }
-                }
+            if (isNearRealTime()) {
+                uncommitted = writer.index.closeNearRealTime(writer, added);
+                return;
             }
+            writer.index.commitWriter();
+            writer.index.refreshSearcher();
+        }
+
+        @Override
+        public Collection<Integer> getUncommittedIds() {
+            return uncommitted;
         }
 
         @Override
@@ -866,6 +1182,11 @@ public final class LuceneIndex extends IndexStore {
                     writer.get().deleteDocuments(term);
                     break;
                 case DEFERRED:
+                    // in near-real-time mode the database may lag behind commits, so a deferred item may be indexed
+                    if (isNearRealTime()) {
+                        writer.get().deleteDocuments(
+                                new Term(LuceneFields.L_MAILBOX_BLOB_ID, String.valueOf(item.getId())));
+                    }
                     break;
                 default:
                     assert false : item.getIndexId();
@@ -882,6 +1203,8 @@ public final class LuceneIndex extends IndexStore {
                     writer.get().addDocument(luceneDoc);
                 }
             }
+            added.add(item.getId());
+            writer.index.nrtInfo.changed(docs.size());
         }
 
         /**
@@ -898,6 +1221,7 @@ public final class LuceneIndex extends IndexStore {
                 writer.get().deleteDocuments(term);
                 ZimbraLog.index.debug("Deleted documents id=%d", id);
             }
+            writer.index.nrtInfo.changed(ids.size());
         }
     }
 
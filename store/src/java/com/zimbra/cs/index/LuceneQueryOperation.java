@@ -30,6 +30,7 @@ import org.apache.lucene.search.BooleanClause;
 import org.apache.lucene.search.BooleanClause.Occur;
 import org.apache.lucene.search.BooleanQuery;
 import org.apache.lucene.search.MultiPhraseQuery;
+import org.apache.lucene.search.PhraseQuery;
 import org.apache.lucene.search.Query;
 import org.apache.lucene.search.Sort;
 import org.apache.lucene.search.SortField;
@@ -44,7 +45,6 @@ import com.zimbra.common.localconfig.LC;
 import com.zimbra.common.service.ServiceException;
 import com.zimbra.common.util.ZimbraLog;
 import com.zimbra.cs.index.ZimbraIndexReader.TermFieldEnumeration;
-import com.zimbra.cs.mailbox.Folder;
 import com.zimbra.cs.mailbox.MailItem;
 import com.zimbra.cs.mailbox.Mailbox;
 import com.zimbra.cs.util.IOUtil;
@@ -53,19 +53,6 @@ import com.zimbra.cs.util.IOUtil;
  * {@link QueryOperation} which queries Lucene.
  */
 public final class LuceneQueryOperation extends QueryOperation {
-    private static final float DB_FIRST_TERM_FREQ_PERC;
-    static {
-        float f = 0.8f;
-        try {
-            f = Float.parseFloat(LC.search_dbfirst_term_percentage_cutoff.value());
-        } catch (Exception e) {
-        }
-        if (f < 0.0 || f > 1.0) {
-            f = 0.8f;
-        }
-        DB_FIRST_TERM_FREQ_PERC = f;
-    }
-
     private int curHitNo = 0; // our offset into the hits
     private boolean haveRunSearch = false;
     private String queryString = "";
@@ -221,64 +208,67 @@ public final class LuceneQueryOperation extends QueryOperation {
     }
 
     /**
-     * Returns {@code true} if we think this query is best evaluated DB-FIRST.
+     * Returns false if the index couldn't be opened or the query was optimized away.
      */
-    boolean shouldExecuteDbFirst() {
-        if (searcher == null || luceneQuery == null) {
-            return true;
-        }
+    boolean canSearch() {
+        return searcher != null && luceneQuery != null;
+    }
 
-        if (luceneQuery instanceof TermQuery) {
-            TermQuery query = (TermQuery) luceneQuery;
-            Term term = query.getTerm();
-            long start = System.currentTimeMillis();
-            try {
-                int freq = searcher.docFreq(term);
-                int docsCutoff = (int) (searcher.getIndexReader().numDocs() * DB_FIRST_TERM_FREQ_PERC);
-                ZimbraLog.search.debug("LuceneDocFreq freq=%d,cutoff=%d(%d%%),elapsed=%d",
-                        freq, docsCutoff, (int) (100 * DB_FIRST_TERM_FREQ_PERC), System.currentTimeMillis() - start);
-                if (freq > docsCutoff) {
-                    return true;
-                }
-            } catch (IOException e) {
-                return false;
+    int getNumDocs() {
+        return searcher.getIndexReader().numDocs();
+    }
+
+    /**
+     * Returns the number of documents matching the query, estimated from the document frequencies of its terms if it
+     * only consists of terms and phrases, otherwise counted by running it.
+     */
+    long getHitCountEstimate() {
+        long start = System.currentTimeMillis();
+        try {
+            long estimate = estimateHitCount(luceneQuery);
+            if (estimate >= 0) {
+                ZimbraLog.search.debug("LuceneDocFreq estimate=%d,elapsed=%d", estimate,
+                        System.currentTimeMillis() - start);
+                return estimate;
             }
+        } catch (IOException e) {
+            ZimbraLog.search.debug("Failed to estimate hits of query=%s", luceneQuery, e);
         }
+        fetchFirstResults(1000); // the results are kept for a LUCENE-FIRST plan
+        return getTotalHitCount();
+    }
 
-        try {
-            //TODO count results using TotalHitCountCollector
-            fetchFirstResults(1000); // some arbitrarily large initial size to fetch
-            if (getTotalHitCount() > 1000) { // also arbitrary, just to make very small searches run w/o extra DB check
-                //Bug: 68630
-                //Let's try to avoid the additional D/B lookup;
-                //We can calculate the number of items contained by the folders to search by getting the total
-                //item counts from the cache. If total items < total lucene hits - its cheaper to do the D/B query first.
-                Set<Folder> targetFolders = dbOp.getTargetFolders();
-                if (targetFolders != null && targetFolders.size() > 0) {
-                    long itemCount = getTotalItemCount(targetFolders);
-                    ZimbraLog.search.debug("lucene hits=%d, folders item count=%d", getTotalHitCount(), itemCount);
-                    if (itemCount < getTotalHitCount())
-                        return true; // run DB-FIRST
+    private long estimateHitCount(Query query) throws IOException {
+        if (query instanceof TermQuery) {
+            return searcher.docFreq(((TermQuery) query).getTerm());
+        } else if (query instanceof PhraseQuery) {
+            long min = getNumDocs();
+            for (Term term : ((PhraseQuery) query).getTerms()) {
+                min = Math.min(min, searcher.docFreq(term));
+            }
+            return min;
+        } else if (query instanceof BooleanQuery) {
+            long must = -1;
+            long should = -1;
+            for (BooleanClause clause : (BooleanQuery) query) {
+                if (clause.getOccur() == Occur.MUST_NOT) {
+                    continue; // only narrows the result
                 }
-
-                int dbHitCount = dbOp.getDbHitCount();
-                ZimbraLog.search.debug("EstimatedHits lucene=%d,db=%d", getTotalHitCount(), dbHitCount);
-                if (dbHitCount < getTotalHitCount()) {
-                    return true; // run DB-FIRST
+                long estimate = estimateHitCount(clause.getQuery());
+                if (estimate < 0) {
+                    return -1;
+                } else if (clause.getOccur() == Occur.MUST) {
+                    must = must < 0 ? estimate : Math.min(must, estimate);
+                } else {
+                    should = should < 0 ? estimate : should + estimate;
                 }
             }
-            return false;
-        } catch (ServiceException e) {
-            return false;
+            if (must >= 0) {
+                return must;
+            }
+            return should >= 0 ? Math.min(should, getNumDocs()) : getNumDocs();
         }
-    }
-
-    private long getTotalItemCount(Set<Folder> folders) {
-        long total = 0;
-        for (Folder f : folders)
-            total += f.getItemCount();
-
-        return total;
+        return -1;
     }
 
     @Override
@@ -415,6 +405,7 @@ public final class LuceneQueryOperation extends QueryOperation {
             LazyMultiPhraseQuery lazy = (LazyMultiPhraseQuery) query;
             int max = LC.zimbra_index_wildcard_max_terms_expanded.intValue();
             MultiPhraseQuery mquery = new MultiPhraseQuery();
+            StringBuilder suggest = lazy.suggest ? new StringBuilder() : null;
             for (Term[] terms : lazy.getTermArrays()) {
                 if (terms.length != 1) {
                     mquery.add(terms);
@@ -423,29 +414,22 @@ public final class LuceneQueryOperation extends QueryOperation {
                 Term base = terms[0];
                 if (!lazy.expand.contains(base)) {
                     mquery.add(terms);
+                    appendSuggestion(suggest, base.text());
                     continue;
                 }
-                List<Term> expanded = Lists.newArrayList();
-                try (TermFieldEnumeration itr = searcher.getIndexReader()
-                    .getTermsForField(base.field(), base.text())) {
-                    while (itr.hasMoreElements()) {
-                        BrowseTerm term = itr.nextElement();
-                        if (term != null && term.getText().startsWith(base.text())) {
-                            if (expanded.size() >= max) { // too many terms
-                                                          // expanded
-                                break;
-                            }
-                            expanded.add(new Term(base.field(), term.getText()));
-                        } else {
-                            break;
-                        }
-                    }
-                }
+                List<BrowseTerm> expanded = expandPrefix(base, max);
                 if (expanded.isEmpty()) {
                     return null;
-                } else {
-                    mquery.add(expanded.toArray(new Term[expanded.size()]));
                 }
+                Term[] expandedTerms = new Term[expanded.size()];
+                for (int i = 0; i < expandedTerms.length; i++) {
+                    expandedTerms[i] = new Term(base.field(), expanded.get(i).getText());
+                }
+                mquery.add(expandedTerms);
+                appendSuggestion(suggest, expanded.get(0).getText());
+            }
+            if (suggest != null && suggest.length() > 0) {
+                queryInfo.add(new SuggestQueryInfo(suggest.toString()));
             }
             return mquery;
         } else if (query instanceof BooleanQuery) {
@@ -469,6 +453,50 @@ public final class LuceneQueryOperation extends QueryOperation {
         }
     }
 
+    private static void appendSuggestion(StringBuilder suggest, String term) {
+        if (suggest != null) {
+            if (suggest.length() > 0) {
+                suggest.append(' ');
+            }
+            suggest.append(term);
+        }
+    }
+
+    /**
+     * Returns up to {@code max} terms starting with the text of {@code base}, most frequent first when they come from
+     * the {@link TermDictionary}, or in index order otherwise.
+     */
+    private List<BrowseTerm> expandPrefix(Term base, int max) throws IOException {
+        ZimbraIndexReader reader = searcher.getIndexReader();
+        if (reader instanceof LuceneIndex.ZimbraLuceneIndexReader) {
+            TermDictionary.Expansion expansion = TermDictionary.expand(
+                    ((LuceneIndex.ZimbraLuceneIndexReader) reader).getLuceneReader(), base.field(), base.text(), max);
+            if (expansion != null) {
+                if (expansion.matched > expansion.terms.size()) {
+                    queryInfo.add(new WildcardExpansionQueryInfo(base.text(), expansion.terms.size(), false));
+                }
+                return expansion.terms;
+            }
+        }
+
+        List<BrowseTerm> expanded = Lists.newArrayList();
+        try (TermFieldEnumeration itr = reader.getTermsForField(base.field(), base.text())) {
+            while (itr.hasMoreElements()) {
+                BrowseTerm term = itr.nextElement();
+                if (term != null && term.getText().startsWith(base.text())) {
+                    if (expanded.size() >= max) { // too many terms expanded
+                        queryInfo.add(new WildcardExpansionQueryInfo(base.text(), expanded.size(), false));
+                        break;
+                    }
+                    expanded.add(term);
+                } else {
+                    break;
+                }
+            }
+        }
+        return expanded;
+    }
+
     @Override
     public String toString() {
         return "LUCENE(" + luceneQuery + (hasSpamTrashSetting() ? " <ANYWHERE>" : "") + ")";
@@ -838,11 +866,19 @@ public final class LuceneQueryOperation extends QueryOperation {
         private static final long serialVersionUID = -6754267749628771968L;
 
         private final Set<Term> expand = Sets.newIdentityHashSet();
+        private boolean suggest = false;
 
         public void expand(Term term) {
             add(term);
             expand.add(term);
         }
+
+        /**
+         * Suggests the query with the expanded terms replaced by the most frequent of their expansions.
+         */
+        public void setSuggest(boolean value) {
+            suggest = value;
+        }
     }
 
 }
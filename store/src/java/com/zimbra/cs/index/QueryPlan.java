@@ -0,0 +1,236 @@
+/*
+ * ***** BEGIN LICENSE BLOCK *****
+ * Zimbra Collaboration Suite Server
+ * Copyright (C) 2016 Synacor, Inc.
+ *
+ * This program is free software: you can redistribute it and/or modify it under
+ * the terms of the GNU General Public License as published by the Free Software Foundation,
+ * version 2 of the License.
+ *
+ * This program is distributed in the hope that it will be useful, but WITHOUT ANY WARRANTY;
+ * without even the implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.
+ * See the GNU General Public License for more details.
+ * You should have received a copy of the GNU General Public License along with this program.
+ * If not, see <https://www.gnu.org/licenses/>.
+ * ***** END LICENSE BLOCK *****
+ */
+package com.zimbra.cs.index;
+
+import com.google.common.annotations.VisibleForTesting;
+import com.google.common.base.MoreObjects;
+import com.zimbra.common.localconfig.LC;
+import com.zimbra.common.service.ServiceException;
+import com.zimbra.common.soap.Element;
+import com.zimbra.cs.mailbox.Flag;
+import com.zimbra.cs.mailbox.Folder;
+import com.zimbra.cs.mailbox.Mailbox;
+import com.zimbra.cs.mailbox.Tag;
+
+/**
+ * Cost-based choice of which side drives a {@link DBQueryOperation} that has a {@link LuceneQueryOperation} joined to
+ * it, and how many candidates to fetch per round trip.
+ * <p>
+ * Cardinalities come from statistics the mailbox already keeps: folder item and unread counts, tag item counts, and
+ * the document frequencies of the index terms. Either plan returns hits in sort order, so the cheaper plan is the one
+ * that reads fewer candidates before it has filled the requested page, assuming the two sides match independently.
+ * The chosen plan is logged, and returned as {@link QueryInfo} if {@code search_explain_plan} is set.
+ */
+final class QueryPlan implements QueryInfo {
+
+    // relative cost of a candidate: a DB row plus a Lucene filter term, vs. a stored document plus an IN clause value
+    private static final double DB_CANDIDATE_COST = 1.0;
+    private static final double LUCENE_CANDIDATE_COST = 2.0;
+    // share of rows assumed to pass a date, size or other range constraint
+    private static final double RANGE_SELECTIVITY = 0.5;
+    // queries matching more than this share of the index always run DB-FIRST
+    private static final float DB_FIRST_TERM_FREQ_PERC;
+    static {
+        float f = 0.8f;
+        try {
+            f = Float.parseFloat(LC.search_dbfirst_term_percentage_cutoff.value());
+        } catch (Exception e) {
+        }
+        if (f < 0.0 || f > 1.0) {
+            f = 0.8f;
+        }
+        DB_FIRST_TERM_FREQ_PERC = f;
+    }
+
+    private final boolean dbFirst;
+    private final String reason;
+    private long dbEstimate = -1;
+    private long luceneEstimate = -1;
+    private long matchEstimate = -1;
+    private double dbCost = -1;
+    private double luceneCost = -1;
+    private final int chunkSize;
+
+    private QueryPlan(boolean dbFirst, String reason, int chunkSize) {
+        this.dbFirst = dbFirst;
+        this.reason = reason;
+        this.chunkSize = chunkSize;
+    }
+
+    boolean isDbFirst() {
+        return dbFirst;
+    }
+
+    int getChunkSize() {
+        return chunkSize;
+    }
+
+    /**
+     * @param top top level leaf of {@code constraints}
+     * @param constraints DB side of the join
+     * @param lucene Lucene side of the join
+     * @param minChunk initial chunk size from the query context
+     * @param maxChunk largest chunk the DB side may fetch
+     */
+    static QueryPlan choose(DbSearchConstraints.Leaf top, DbSearchConstraints constraints, LuceneQueryOperation lucene,
+            QueryOperation.QueryContext ctx, int minChunk, int maxChunk) throws ServiceException {
+        if (top.convId > 0 || !top.itemIds.isEmpty()) {
+            return new QueryPlan(true, "ids", maxChunk);
+        } else if (!lucene.canSearch()) {
+            return new QueryPlan(true, "noindex", maxChunk);
+        } else if (ctx.getParams().inDumpster()) { // folder counts don't cover the dumpster
+            return new QueryPlan(true, "dumpster", maxChunk);
+        }
+
+        long numDocs = Math.max(lucene.getNumDocs(), 1);
+        long luceneHits = lucene.getHitCountEstimate();
+        if (luceneHits > numDocs * DB_FIRST_TERM_FREQ_PERC) {
+            QueryPlan plan = new QueryPlan(true, "cutoff", maxChunk);
+            plan.luceneEstimate = luceneHits;
+            return plan;
+        }
+
+        Mailbox.FolderTotals totals = ctx.getMailbox().getFolderTotals();
+        double dbRows = estimate(constraints, totals.items, totals.unread);
+
+        SearchParams params = ctx.getParams();
+        return byCost(dbRows, luceneHits, numDocs, params.getLimit() > 0 ? params.getOffset() + params.getLimit() : -1,
+                minChunk, maxChunk);
+    }
+
+    /**
+     * Compares the two plans for a join of {@code dbRows} rows with {@code luceneHits} index hits.
+     *
+     * @param numDocs number of documents in the index
+     * @param needed number of hits the search returns, or -1 for all of them
+     */
+    @VisibleForTesting
+    static QueryPlan byCost(double dbRows, long luceneHits, long numDocs, double needed, int minChunk, int maxChunk) {
+        // both plans stop reading once the page is full
+        double matches = dbRows * Math.min(luceneHits / (double) numDocs, 1.0);
+        if (needed < 0) {
+            needed = matches;
+        }
+        double dbScan = dbRows;
+        double luceneScan = luceneHits;
+        if (matches > needed) {
+            dbScan = needed * dbRows / matches;
+            luceneScan = needed * luceneHits / matches;
+        }
+
+        double dbCost = dbScan * DB_CANDIDATE_COST;
+        double luceneCost = luceneScan * LUCENE_CANDIDATE_COST;
+        boolean dbFirst = dbCost <= luceneCost;
+        double scan = dbFirst ? dbScan : luceneScan;
+        // read twice the estimate so that a low estimate rarely costs another round trip
+        QueryPlan plan = new QueryPlan(dbFirst, "cost", (int) Math.max(minChunk, Math.min(2 * scan, maxChunk)));
+        plan.dbEstimate = Math.round(dbRows);
+        plan.luceneEstimate = luceneHits;
+        plan.matchEstimate = Math.round(matches);
+        plan.dbCost = dbCost;
+        plan.luceneCost = luceneCost;
+        return plan;
+    }
+
+    /**
+     * Returns the chunk size for the next DB-FIRST round: twice the last one, but no more than {@code maxChunk}.
+     */
+    static int nextChunkSize(int chunkSize, int maxChunk) {
+        return (int) Math.min(chunkSize * 2L, maxChunk);
+    }
+
+    /**
+     * Estimates the number of rows matching {@code node}.
+     *
+     * @param items number of items in the mailbox
+     * @param unread number of unread items in the mailbox
+     */
+    @VisibleForTesting
+    static double estimate(DbSearchConstraints node, long items, long unread) {
+        DbSearchConstraints.Leaf leaf = node.toLeaf();
+        if (leaf == null) {
+            boolean union = node instanceof DbSearchConstraints.Union;
+            double result = union ? 0 : items;
+            for (DbSearchConstraints child : node.getChildren()) {
+                double estimate = estimate(child, items, unread);
+                result = union ? result + estimate : Math.min(result, estimate);
+            }
+            return Math.min(result, items);
+        } else if (leaf.noResults) {
+            return 0;
+        }
+
+        double estimate = items;
+        double unreadEstimate = unread;
+        if (!leaf.folders.isEmpty()) {
+            estimate = 0;
+            unreadEstimate = 0;
+            for (Folder folder : leaf.folders) {
+                estimate += folder.getItemCount();
+                unreadEstimate += folder.getUnreadCount();
+            }
+        }
+        for (Tag tag : leaf.tags) {
+            if (tag.getId() == Flag.ID_UNREAD) {
+                estimate = Math.min(estimate, unreadEstimate);
+            } else if (!(tag instanceof Flag)) { // only tags keep an item count
+                estimate = Math.min(estimate, tag.getItemCount());
+            }
+        }
+        if (!leaf.itemIds.isEmpty()) {
+            estimate = Math.min(estimate, leaf.itemIds.size());
+        }
+        for (int i = leaf.ranges.keySet().size(); i > 0; i--) {
+            estimate *= RANGE_SELECTIVITY;
+        }
+        return estimate;
+    }
+
+    @Override
+    public Element toXml(Element parent) {
+        Element plan = parent.addElement("plan");
+        plan.addAttribute("mode", dbFirst ? "db-first" : "lucene-first");
+        plan.addAttribute("reason", reason);
+        plan.addAttribute("chunk", chunkSize);
+        if (dbEstimate >= 0) {
+            plan.addAttribute("dbRows", dbEstimate);
+        }
+        if (luceneEstimate >= 0) {
+            plan.addAttribute("luceneHits", luceneEstimate);
+        }
+        if (matchEstimate >= 0) {
+            plan.addAttribute("matches", matchEstimate);
+            plan.addAttribute("dbCost", Math.round(dbCost));
+            plan.addAttribute("luceneCost", Math.round(luceneCost));
+        }
+        return plan;
+    }
+
+    @Override
+    public String toString() {
+        return MoreObjects.toStringHelper("PLAN")
+            .add("mode", dbFirst ? "DB_FIRST" : "LUCENE_FIRST")
+            .add("reason", reason)
+            .add("chunk", chunkSize)
+            .add("dbRows", dbEstimate)
+            .add("luceneHits", luceneEstimate)
+            .add("matches", matchEstimate)
+            .add("dbCost", Math.round(dbCost))
+            .add("luceneCost", Math.round(luceneCost))
+            .toString();
+    }
+}
@@ -0,0 +1,286 @@
+/*
+ * ***** BEGIN LICENSE BLOCK *****
+ * Zimbra Collaboration Suite Server
+ * Copyright (C) 2016 Synacor, Inc.
+ *
+ * This program is free software: you can redistribute it and/or modify it under
+ * the terms of the GNU General Public License as published by the Free Software Foundation,
+ * version 2 of the License.
+ *
+ * This program is distributed in the hope that it will be useful, but WITHOUT ANY WARRANTY;
+ * without even the implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.
+ * See the GNU General Public License for more details.
+ * You should have received a copy of the GNU General Public License along with this program.
+ * If not, see <https://www.gnu.org/licenses/>.
+ * ***** END LICENSE BLOCK *****
+ */
+package com.zimbra.cs.index;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+import com.zimbra.common.localconfig.LC;
+import com.zimbra.common.service.ServiceException;
+import com.zimbra.common.util.ZimbraLog;
+import com.zimbra.cs.account.Account;
+import com.zimbra.cs.mailbox.MailItem;
+import com.zimbra.cs.mailbox.Mailbox;
+import com.zimbra.cs.mailbox.OperationContext;
+import com.zimbra.cs.stats.ZimbraPerf;
+import com.zimbra.cs.util.IOUtil;
+
+/**
+ * Per-mailbox cache of the ordered hits of recent searches, so that paging through the results of a search doesn't
+ * run it again for every page.
+ * <p>
+ * Searches are keyed by their parsed query and every parameter that changes which hits they return, but not by offset
+ * and limit. Each entry holds the IDs of up to {@code zimbra_search_result_cache_window} leading hits, and is only
+ * valid while the mailbox's last change ID and the generation of its index are the ones it was read at. Pages that
+ * end within the window are served by slicing the entry; the hits load their items lazily like those of an
+ * {@code IDS} search. Entries are evicted least recently used first to stay within
+ * {@code zimbra_search_result_cache_max_kb}.
+ */
+public final class SearchResultCache {
+
+    private static final int ENTRY_OVERHEAD = 128;
+    private static final int HIT_OVERHEAD = 32;
+
+    static final class Entry {
+        final Set<MailItem.Type> types;
+        final SortBy sortBy;
+        final SearchParams.Fetch fetch;
+        final List<QueryInfo> info;
+        final boolean complete;
+        private final int changeId;
+        private final long generation;
+        private final long timestamp = System.currentTimeMillis();
+        int[] ids;
+        MailItem.Type[] hitTypes;
+        Object[] sortValues;
+        int[][] messageIds;
+        private long bytes;
+
+        Entry(SearchParams params, SortBy sortBy, List<QueryInfo> info, boolean complete, int changeId,
+                long generation) {
+            this.types = params.getTypes();
+            this.sortBy = sortBy;
+            this.fetch = params.getFetchMode();
+            this.info = info;
+            this.complete = complete;
+            this.changeId = changeId;
+            this.generation = generation;
+        }
+
+        void setHits(String key, List<ZimbraHit> hits) throws ServiceException {
+            int size = hits.size();
+            ids = new int[size];
+            hitTypes = new MailItem.Type[size];
+            sortValues = new Object[size];
+            messageIds = new int[size][];
+            bytes = ENTRY_OVERHEAD + key.length() * 2;
+            for (int i = 0; i < size; i++) {
+                ZimbraHit hit = hits.get(i);
+                ids[i] = hit.getItemId();
+                sortValues[i] = hit.sortValue;
+                bytes += HIT_OVERHEAD;
+                if (hit.sortValue instanceof String) {
+                    bytes += ((String) hit.sortValue).length() * 2;
+                }
+                if (hit instanceof ConversationHit) {
+                    hitTypes[i] = MailItem.Type.CONVERSATION;
+                    Collection<MessageHit> msgs = ((ConversationHit) hit).getMessageHits();
+                    messageIds[i] = new int[msgs.size()];
+                    int j = 0;
+                    for (MessageHit msg : msgs) {
+                        messageIds[i][j++] = msg.getItemId();
+                    }
+                    bytes += msgs.size() * 4;
+                } else if (hit instanceof MessageHit) {
+                    hitTypes[i] = MailItem.Type.MESSAGE;
+                } else if (hit instanceof ContactHit) {
+                    hitTypes[i] = MailItem.Type.CONTACT;
+                } else if (hit instanceof NoteHit) {
+                    hitTypes[i] = MailItem.Type.NOTE;
+                } else if (hit instanceof TaskHit) {
+                    hitTypes[i] = MailItem.Type.TASK;
+                } else {
+                    hitTypes[i] = MailItem.Type.APPOINTMENT;
+                }
+            }
+        }
+
+        int size() {
+            return ids.length;
+        }
+
+        boolean isValid(int changeId, long generation) {
+            return this.changeId == changeId && this.generation == generation &&
+                    System.currentTimeMillis() - timestamp < LC.zimbra_search_result_cache_ttl_ms.longValue();
+        }
+    }
+
+    private final Map<String, Entry> entries = new LinkedHashMap<String, Entry>(16, 0.75f, true);
+    private long bytes = 0;
+
+    public static boolean isEnabled() {
+        return LC.zimbra_search_result_cache_enabled.booleanValue();
+    }
+
+    /**
+     * Returns the key to cache the results of {@code query} under, or null if they can't be cached.
+     */
+    public static String getKey(ZimbraQuery query) {
+        SearchParams params = query.getParams();
+        // a cursor narrows the query itself, and unbounded searches are read to the end anyway
+        if (params.getCursor() != null || params.getLimit() <= 0 ||
+                params.getOffset() + params.getLimit() >= LC.zimbra_search_result_cache_window.intValue()) {
+            return null;
+        }
+        switch (params.getFetchMode()) {
+            case NORMAL:
+            case IDS:
+                break;
+            default: // hits would need their IMAP data, modseq or parent cached too
+                return null;
+        }
+        switch (params.getSortBy()) {
+            case READ_ASC:
+            case READ_DESC:
+            case NAME_LOCALIZED_ASC:
+            case NAME_LOCALIZED_DESC:
+            case TASK_DUE_ASC:
+            case TASK_DUE_DESC:
+            case TASK_STATUS_ASC:
+            case TASK_STATUS_DESC:
+            case TASK_PERCENT_COMPLETE_ASC:
+            case TASK_PERCENT_COMPLETE_DESC: // re-sorted in memory by MailboxIndex
+                return null;
+            default:
+                break;
+        }
+
+        OperationContext octxt = query.getOperationContext();
+        Account authAccount = octxt != null ? octxt.getAuthenticatedUser() : null;
+        StringBuilder key = new StringBuilder(query.toString());
+        key.append('|').append(authAccount != null ? authAccount.getId() : "");
+        key.append('|').append(octxt != null && octxt.isUsingAdminPrivileges());
+        key.append('|').append(params.getTypes());
+        key.append('|').append(params.getSortBy());
+        key.append('|').append(params.getFetchMode());
+        key.append('|').append(params.inDumpster());
+        key.append('|').append(params.getIncludeTagDeleted());
+        key.append('|').append(params.getIncludeTagMuted());
+        key.append('|').append(params.getAllowableTaskStatuses());
+        key.append('|').append(params.getCalItemExpandStart()).append('-').append(params.getCalItemExpandEnd());
+        key.append('|').append(params.getTimeZone() != null ? params.getTimeZone().getID() : "");
+        key.append('|').append(params.getLocale());
+        return key.toString();
+    }
+
+    /**
+     * Returns the cached results of a query that has not been run yet, or null if there are none or the mailbox or
+     * its index changed since they were cached.
+     *
+     * @param changeId the mailbox's last change ID
+     * @param generation the generation of the mailbox's index
+     */
+    public ZimbraQueryResults get(String key, Mailbox mbox, int changeId, long generation, ZimbraQuery query) {
+        Entry entry;
+        synchronized (this) {
+            entry = entries.get(key);
+            if (entry != null && !entry.isValid(changeId, generation)) {
+                remove(key);
+                entry = null;
+            }
+        }
+        ZimbraPerf.COUNTER_SEARCH_RESULT_CACHE_HIT_RATE.increment(entry != null ? 100 : 0);
+        if (entry == null) {
+            return null;
+        }
+        ZimbraLog.search.debug("serving %d cached hits for %s", entry.size(), key);
+        return new CachedQueryResults(mbox, entry, query);
+    }
+
+    /**
+     * Reads the leading hits of {@code results} and caches them under {@code key}, unless some of them can't be
+     * replayed from their IDs alone.
+     *
+     * @param changeId the mailbox's last change ID, read before running the query
+     * @param generation the generation of the mailbox's index, read before running the query
+     * @return results to use in place of {@code results}
+     */
+    public ZimbraQueryResults put(String key, Mailbox mbox, int changeId, long generation, ZimbraQuery query,
+            ZimbraQueryResults results) throws ServiceException {
+        int window = LC.zimbra_search_result_cache_window.intValue();
+        List<ZimbraHit> hits = new ArrayList<ZimbraHit>();
+        boolean cacheable = !query.hasRemoteTarget();
+        boolean success = false;
+        try {
+            ZimbraHit hit = null;
+            while (hits.size() < window && (hit = results.getNext()) != null) {
+                hits.add(hit);
+                cacheable &= isCacheable(hit);
+            }
+
+            Entry entry = new Entry(query.getParams(), results.getSortBy(),
+                    new ArrayList<QueryInfo>(results.getResultInfo()), hit == null, changeId, generation);
+            if (cacheable) {
+                entry.setHits(key, hits);
+                add(key, entry);
+            }
+            success = true;
+            return new CachedQueryResults(mbox, entry, hits, results);
+        } finally {
+            if (!success) {
+                IOUtil.closeQuietly(results);
+            }
+        }
+    }
+
+    private static boolean isCacheable(ZimbraHit hit) {
+        if (hit instanceof MessageHit) {
+            // matched MIME parts would be lost
+            return ((MessageHit) hit).getMatchedMimePartNames() == null;
+        } else if (hit instanceof ConversationHit) {
+            for (MessageHit msg : ((ConversationHit) hit).getMessageHits()) {
+                if (msg.getMatchedMimePartNames() != null) {
+                    return false;
+                }
+            }
+            return true;
+        } else {
+            // documents keep the version that matched, and proxied hits belong to other mailboxes
+            return hit instanceof ContactHit || hit instanceof NoteHit || hit instanceof CalendarItemHit;
+        }
+    }
+
+    private synchronized void add(String key, Entry entry) {
+        long max = LC.zimbra_search_result_cache_max_kb.longValue() * 1024L;
+        if (entry.bytes > max) {
+            return;
+        }
+        remove(key);
+        entries.put(key, entry);
+        bytes += entry.bytes;
+        for (Iterator<Entry> i = entries.values().iterator(); bytes > max && i.hasNext();) {
+            bytes -= i.next().bytes;
+            i.remove();
+        }
+    }
+
+    private void remove(String key) {
+        Entry entry = entries.remove(key);
+        if (entry != null) {
+            bytes -= entry.bytes;
+        }
+    }
+
+    synchronized int size() {
+        return entries.size();
+    }
+}
@@ -0,0 +1,378 @@
+/*
+ * ***** BEGIN LICENSE BLOCK *****
+ * Zimbra Collaboration Suite Server
+ * Copyright (C) 2016 Synacor, Inc.
+ *
+ * This program is free software: you can redistribute it and/or modify it under
+ * the terms of the GNU General Public License as published by the Free Software Foundation,
+ * version 2 of the License.
+ *
+ * This program is distributed in the hope that it will be useful, but WITHOUT ANY WARRANTY;
+ * without even the implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.
+ * See the GNU General Public License for more details.
+ * You should have received a copy of the GNU General Public License along with this program.
+ * If not, see <https://www.gnu.org/licenses/>.
+ * ***** END LICENSE BLOCK *****
+ */
+
+package com.zimbra.cs.index;
+
+import java.io.IOException;
+import java.lang.ref.WeakReference;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+import java.util.PriorityQueue;
+import java.util.concurrent.ExecutionException;
+
+import org.apache.lucene.index.IndexReader;
+import org.apache.lucene.index.Term;
+import org.apache.lucene.index.TermEnum;
+
+import com.google.common.cache.Cache;
+import com.google.common.cache.CacheBuilder;
+import com.google.common.cache.Weigher;
+import com.zimbra.common.localconfig.LC;
+import com.zimbra.common.util.ZimbraLog;
+
+/**
+ * Sorted term dictionary of a Lucene index, used to expand prefixes (wildcard searches, quick search suggestions and
+ * contact autocompletion) without walking a {@link TermEnum} for every query.
+ * <p>
+ * The dictionary is made of one block per field per index segment, holding the terms of the field in index order
+ * packed in a single {@code char[]}, along with their document frequencies.  Segments are immutable, so a block is
+ * built once, the first time its field is expanded, and is keyed on the segment core: reopening the reader after new
+ * items are indexed only builds blocks for the new segments.  Blocks of segments that have been merged away are no
+ * longer used and age out of the cache, which is bounded by {@code zimbra_index_term_dictionary_memory_kb}.
+ */
+final class TermDictionary {
+
+    private static final long MAX_WEIGHT = LC.zimbra_index_term_dictionary_memory_kb.longValue() * 1024;
+
+    /** Marks a field too large to be held in the cache; such segments are always expanded through a TermEnum. */
+    private static final TermBlock TOO_LARGE = new TermBlock(new char[0], new int[] {0}, new int[0]);
+
+    private static final Cache<SegmentField, TermBlock> CACHE = CacheBuilder.newBuilder()
+        .maximumWeight(MAX_WEIGHT)
+        .weigher(new Weigher<SegmentField, TermBlock>() {
+            @Override
+            public int weigh(SegmentField key, TermBlock value) {
+                return value.weight();
+            }
+        }).build();
+
+    private TermDictionary() {
+    }
+
+    /**
+     * Result of a prefix expansion.
+     */
+    static final class Expansion {
+        /** Up to {@code max} matching terms, most frequent first. */
+        final List<BrowseTerm> terms;
+        /** Number of distinct matching terms, which may be more than returned. */
+        final int matched;
+
+        Expansion(List<BrowseTerm> terms, int matched) {
+            this.terms = terms;
+            this.matched = matched;
+        }
+    }
+
+    /**
+     * Returns the {@code max} most frequent terms of {@code field} starting with {@code prefix}, with their document
+     * frequencies summed over all segments, or {@code null} if the dictionary can't be used for this reader.
+     */
+    static Expansion expand(IndexReader reader, String field, String prefix, int max) throws IOException {
+        if (!LC.zimbra_index_term_dictionary_enabled.booleanValue() || max <= 0) {
+            return null;
+        }
+        IndexReader[] segments = reader.getSequentialSubReaders();
+        if (segments == null) {
+            segments = new IndexReader[] {reader};
+        }
+
+        PriorityQueue<Cursor> merge = new PriorityQueue<Cursor>(Math.max(segments.length, 1));
+        for (IndexReader segment : segments) {
+            TermBlock block = getBlock(segment, field);
+            if (block == null) {
+                return null;
+            }
+            int start = block.lowerBound(prefix);
+            int end = block.prefixEnd(prefix, start);
+            if (start < end) {
+                merge.add(new Cursor(block, start, end));
+            }
+        }
+
+        // k-way merge of the matching ranges, keeping the most frequent terms in a bounded min-heap
+        PriorityQueue<Candidate> top = new PriorityQueue<Candidate>(Math.min(max, 256) + 1, Candidate.LEAST_FIRST);
+        int matched = 0;
+        while (!merge.isEmpty()) {
+            Cursor cursor = merge.poll();
+            Candidate candidate = new Candidate(cursor.block, cursor.pos, cursor.block.freqs[cursor.pos]);
+            advance(merge, cursor);
+            while (!merge.isEmpty() && merge.peek().compareTerm(candidate.block, candidate.pos) == 0) {
+                Cursor same = merge.poll();
+                candidate.freq += same.block.freqs[same.pos];
+                advance(merge, same);
+            }
+            matched++;
+            if (top.size() < max) {
+                top.add(candidate);
+            } else if (Candidate.LEAST_FIRST.compare(candidate, top.peek()) > 0) {
+                top.poll();
+                top.add(candidate);
+            }
+        }
+
+        List<BrowseTerm> terms = new ArrayList<BrowseTerm>(top.size());
+        while (!top.isEmpty()) {
+            Candidate candidate = top.poll();
+            terms.add(new BrowseTerm(candidate.block.term(candidate.pos), candidate.freq));
+        }
+        Collections.reverse(terms);
+        return new Expansion(terms, matched);
+    }
+
+    private static void advance(PriorityQueue<Cursor> merge, Cursor cursor) {
+        if (++cursor.pos < cursor.end) {
+            merge.add(cursor);
+        }
+    }
+
+    private static TermBlock getBlock(final IndexReader segment, final String field) throws IOException {
+        TermBlock block;
+        try {
+            block = CACHE.get(new SegmentField(segment.getCoreCacheKey(), field), () -> build(segment, field));
+        } catch (ExecutionException e) {
+            if (e.getCause() instanceof IOException) {
+                throw (IOException) e.getCause();
+            }
+            throw new IOException(e.getCause());
+        }
+        return block == TOO_LARGE ? null : block;
+    }
+
+    private static TermBlock build(IndexReader segment, String field) throws IOException {
+        // a single block may take up to a quarter of the cache; past that, it would just push everything else out
+        long limit = MAX_WEIGHT / 4;
+        char[] chars = new char[1024];
+        int[] offsets = new int[65];
+        int[] freqs = new int[64];
+        int count = 0;
+        int length = 0;
+        TermEnum terms = segment.terms(new Term(field, ""));
+        try {
+            do {
+                Term term = terms.term();
+                if (term == null || !field.equals(term.field())) {
+                    break;
+                }
+                String text = term.text();
+                if (length + text.length() > chars.length) {
+                    chars = Arrays.copyOf(chars, Math.max(chars.length * 2, length + text.length()));
+                }
+                text.getChars(0, text.length(), chars, length);
+                length += text.length();
+                if (count == freqs.length) {
+                    freqs = Arrays.copyOf(freqs, count * 2);
+                    offsets = Arrays.copyOf(offsets, count * 2 + 1);
+                }
+                freqs[count++] = terms.docFreq();
+                offsets[count] = length;
+                if (length * 2L + count * 8L > limit) {
+                    ZimbraLog.search.debug("too many terms in %s for the term dictionary", field);
+                    return TOO_LARGE;
+                }
+            } while (terms.next());
+        } finally {
+            terms.close();
+        }
+        return new TermBlock(Arrays.copyOf(chars, length), Arrays.copyOf(offsets, count + 1),
+                Arrays.copyOf(freqs, count));
+    }
+
+    /**
+     * The terms of one field of one segment, in index order.  Term {@code i} is
+     * {@code chars[offsets[i]..offsets[i + 1])}.
+     */
+    static final class TermBlock {
+        final char[] chars;
+        final int[] offsets;
+        final int[] freqs;
+
+        TermBlock(char[] chars, int[] offsets, int[] freqs) {
+            this.chars = chars;
+            this.offsets = offsets;
+            this.freqs = freqs;
+        }
+
+        int size() {
+            return freqs.length;
+        }
+
+        String term(int i) {
+            return new String(chars, offsets[i], offsets[i + 1] - offsets[i]);
+        }
+
+        int weight() {
+            return (int) Math.min(Integer.MAX_VALUE, chars.length * 2L + offsets.length * 4L + freqs.length * 4L);
+        }
+
+        /** Compares term {@code i} to {@code s} in {@link String#compareTo(String)} order. */
+        int compare(int i, String s) {
+            int off = offsets[i];
+            int len = offsets[i + 1] - off;
+            int n = Math.min(len, s.length());
+            for (int k = 0; k < n; k++) {
+                char c1 = chars[off + k];
+                char c2 = s.charAt(k);
+                if (c1 != c2) {
+                    return c1 - c2;
+                }
+            }
+            return len - s.length();
+        }
+
+        /** Compares term {@code i} to term {@code j} of {@code other}. */
+        int compare(int i, TermBlock other, int j) {
+            int off1 = offsets[i];
+            int len1 = offsets[i + 1] - off1;
+            int off2 = other.offsets[j];
+            int len2 = other.offsets[j + 1] - off2;
+            int n = Math.min(len1, len2);
+            for (int k = 0; k < n; k++) {
+                char c1 = chars[off1 + k];
+                char c2 = other.chars[off2 + k];
+                if (c1 != c2) {
+                    return c1 - c2;
+                }
+            }
+            return len1 - len2;
+        }
+
+        boolean startsWith(int i, String prefix) {
+            int off = offsets[i];
+            if (offsets[i + 1] - off < prefix.length()) {
+                return false;
+            }
+            for (int k = 0; k < prefix.length(); k++) {
+                if (chars[off + k] != prefix.charAt(k)) {
+                    return false;
+                }
+            }
+            return true;
+        }
+
+        /** Returns the index of the first term not less than {@code s}. */
+        int lowerBound(String s) {
+            int lo = 0;
+            int hi = size();
+            while (lo < hi) {
+                int mid = (lo + hi) >>> 1;
+                if (compare(mid, s) < 0) {
+                    lo = mid + 1;
+                } else {
+                    hi = mid;
+                }
+            }
+            return lo;
+        }
+
+        /** Returns the index of the first term at or after {@code start} that doesn't start with {@code prefix}. */
+        int prefixEnd(String prefix, int start) {
+            int lo = start;
+            int hi = size();
+            while (lo < hi) {
+                int mid = (lo + hi) >>> 1;
+                if (startsWith(mid, prefix)) {
+                    lo = mid + 1;
+                } else {
+                    hi = mid;
+                }
+            }
+            return lo;
+        }
+    }
+
+    private static final class Cursor implements Comparable<Cursor> {
+        final TermBlock block;
+        final int end;
+        int pos;
+
+        Cursor(TermBlock block, int pos, int end) {
+            this.block = block;
+            this.pos = pos;
+            this.end = end;
+        }
+
+        int compareTerm(TermBlock other, int i) {
+            return block.compare(pos, other, i);
+        }
+
+        @Override
+        public int compareTo(Cursor other) {
+            return block.compare(pos, other.block, other.pos);
+        }
+    }
+
+    private static final class Candidate {
+        /** Less frequent first; among equally frequent terms, the one that sorts last comes first. */
+        static final Comparator<Candidate> LEAST_FIRST = new Comparator<Candidate>() {
+            @Override
+            public int compare(Candidate c1, Candidate c2) {
+                if (c1.freq != c2.freq) {
+                    return c1.freq < c2.freq ? -1 : 1;
+                }
+                return c2.block.compare(c2.pos, c1.block, c1.pos);
+            }
+        };
+
+        final TermBlock block;
+        final int pos;
+        int freq;
+
+        Candidate(TermBlock block, int pos, int freq) {
+            this.block = block;
+            this.pos = pos;
+            this.freq = freq;
+        }
+    }
+
+    /**
+     * Cache key of a field of a segment.  The segment core is only weakly referenced so that the cache doesn't keep
+     * closed segments alive; their entries are simply never hit again.
+     */
+    private static final class SegmentField {
+        private final WeakReference<Object> core;
+        private final int coreHash;
+        private final String field;
+
+        SegmentField(Object core, String field) {
+            this.core = new WeakReference<Object>(core);
+            this.coreHash = System.identityHashCode(core);
+            this.field = field;
+        }
+
+        @Override
+        public int hashCode() {
+            return coreHash * 31 + field.hashCode();
+        }
+
+        @Override
+        public boolean equals(Object obj) {
+            if (this == obj) {
+                return true;
+            }
+            if (!(obj instanceof SegmentField)) {
+                return false;
+            }
+            SegmentField other = (SegmentField) obj;
+            Object referent = core.get();
+            return referent != null && referent == other.core.get() && field.equals(other.field);
+        }
+    }
+}
@@ -168,9 +168,80 @@ public final class ZimbraAnalyzer extends Analyzer {
         return SINGLETON.tokenStream(field, reader);
     }
 
+    /**
+     * Same as {@link #tokenStream(String, Reader)}, but reuses the calling thread's tokenizers, which is what the
+     * index writer calls for every analyzed field of every document.
+     */
     @Override
-    public TokenStream reusableTokenStream(String field, Reader reader) {
-        return tokenStream(field, reader);
+    public TokenStream reusableTokenStream(String field, Reader reader) throws IOException {
+        return reusableTokenStream(field, reader, defaultAnalyzer);
+    }
+
+    private TokenStream reusableTokenStream(String field, Reader reader, Analyzer analyzer) throws IOException {
+        SavedStreams saved = (SavedStreams) getPreviousTokenStream();
+        if (saved == null) {
+            saved = new SavedStreams();
+            setPreviousTokenStream(saved);
+        }
+
+        if (field.equals(LuceneFields.L_H_MESSAGE_ID)) {
+            if (saved.keyword == null) {
+                saved.keyword = new KeywordTokenizer(reader);
+            } else {
+                saved.keyword.reset(reader);
+            }
+            return saved.keyword;
+        } else if (field.equals(LuceneFields.L_ATTACHMENTS) || field.equals(LuceneFields.L_MIMETYPE)) {
+            throw new IllegalArgumentException("Use MimeTypeTokenStream");
+        } else if (field.equals(LuceneFields.L_SORT_SIZE)) {
+            if (saved.number == null) {
+                saved.number = new NumberTokenizer(reader);
+            } else {
+                saved.number.reset(reader);
+            }
+            return saved.number;
+        } else if (field.equals(LuceneFields.L_H_FROM)
+                || field.equals(LuceneFields.L_H_TO)
+                || field.equals(LuceneFields.L_H_CC)
+                || field.equals(LuceneFields.L_H_X_ENV_FROM)
+                || field.equals(LuceneFields.L_H_X_ENV_TO)) {
+            if (saved.addr == null) {
+                saved.addr = new AddrCharTokenizer(reader);
+            } else {
+                saved.addr.reset(reader);
+            }
+            return saved.addr;
+        } else if (field.equals(LuceneFields.L_CONTACT_DATA)) {
+            if (saved.contact == null) {
+                saved.contactAddr = new AddrCharTokenizer(reader);
+                saved.contact = new ContactTokenFilter(saved.contactAddr);
+            } else {
+                saved.contactAddr.reset(reader);
+            }
+            return saved.contact;
+        } else if (field.equals(LuceneFields.L_FILENAME)) {
+            if (saved.filename == null) {
+                saved.filename = new FilenameTokenizer(reader);
+            } else {
+                saved.filename.reset(reader);
+            }
+            return saved.filename;
+        } else {
+            return analyzer.reusableTokenStream(field, new HalfwidthKanaVoicedMappingFilter(reader));
+        }
+    }
+
+    /**
+     * Per-thread tokenizers of the fields that {@link #tokenStream(String, Reader, Analyzer)} doesn't hand to the
+     * text analyzer.
+     */
+    private static final class SavedStreams {
+        KeywordTokenizer keyword;
+        NumberTokenizer number;
+        AddrCharTokenizer addr;
+        AddrCharTokenizer contactAddr;
+        ContactTokenFilter contact;
+        FilenameTokenizer filename;
     }
 
     private static final class ForwardingAnalyzer extends Analyzer {
@@ -184,6 +255,11 @@ public final class ZimbraAnalyzer extends Analyzer {
         public TokenStream tokenStream(String field, Reader reader) {
             return SINGLETON.tokenStream(field, reader, forwarding);
         }
+
+        @Override
+        public TokenStream reusableTokenStream(String field, Reader reader) throws IOException {
+            return SINGLETON.reusableTokenStream(field, reader, forwarding);
+        }
     }
 
 }
@@ -756,6 +756,17 @@ public final class ZimbraQuery {
         return params;
     }
 
+    OperationContext getOperationContext() {
+        return octxt;
+    }
+
+    /**
+     * Returns true if the query, once run, searched another mailbox, e.g. through a mountpoint.
+     */
+    boolean hasRemoteTarget() {
+        return operation != null && QueryTarget.hasExternalTarget(operation.getQueryTargets());
+    }
+
     /**
      * Runs the search and gets an open result set.
      *
@@ -35,6 +35,17 @@ import org.apache.lucene.analysis.CharStream;
  */
 public final class NormalizeTokenFilter extends CharFilter {
 
+    /**
+     * {@link #map(int, int)} of every BMP character that is not followed by a (semi-)voiced sound mark, so that normalizing
+     * a character is an array lookup instead of a walk through the switch.
+     */
+    private static final char[] TABLE = new char[Character.MAX_VALUE + 1];
+    static {
+        for (int c = 0; c <= Character.MAX_VALUE; c++) {
+            TABLE[c] = (char) map(c, 0);
+        }
+    }
+
     public NormalizeTokenFilter(CharStream in) {
         super(in);
     }
@@ -63,6 +74,13 @@ public final class NormalizeTokenFilter extends CharFilter {
      * @param p the character which follows the param c.
      */
     public static int normalize(int c, int p) {
+        if (c >= 0 && c <= Character.MAX_VALUE && p != '\uFF9E' && p != '\uFF9F') {
+            return TABLE[c];
+        }
+        return map(c, p);
+    }
+
+    private static int map(int c, int p) {
         switch (c) {
             case '\u00C0': // [LATIN CAPITAL LETTER A WITH GRAVE]
             case '\u00C1': // [LATIN CAPITAL LETTER A WITH ACUTE]
@@ -1400,7 +1418,7 @@ public final class NormalizeTokenFilter extends CharFilter {
     }
 
     public static String normalize(String value) {
-        StringBuilder result = new StringBuilder();
+        StringBuilder result = new StringBuilder(value.length());
         for (int i = 0; i < value.length(); i++)
             result.append((char) NormalizeTokenFilter.normalize(value.charAt(i), i + 1 < value.length() ? value.charAt(i + 1) : 0));
 
@@ -44,21 +44,19 @@ public final class NumberTokenizer extends Tokenizer {
         clearAttributes();
 
         int startPos = endPos;
-        StringBuilder buf = new StringBuilder(10);
 
         while (true) {
             int c = input.read();
             endPos++;
             switch (c) {
                 case -1:
-                    if (buf.length() == 0) {
+                    if (termAttr.length() == 0) {
                         return false;
                     }
                     // no break!
                 case ' ':
                 case '\t':
-                    if (buf.length() != 0) {
-                        termAttr.setEmpty().append(buf);
+                    if (termAttr.length() != 0) {
                         offsetAttr.setOffset(startPos, endPos - 1);
                         return true;
                     }
@@ -73,7 +71,7 @@ public final class NumberTokenizer extends Tokenizer {
                 case '7':
                 case '8':
                 case '9':
-                    buf.append((char) c);
+                    termAttr.append((char) c);
                     break;
                 default:
                     // ignore char
@@ -81,4 +79,10 @@ public final class NumberTokenizer extends Tokenizer {
         }
     }
 
+    @Override
+    public void reset(Reader reader) throws IOException {
+        super.reset(reader);
+        endPos = 0;
+    }
+
 }
@@ -17,12 +17,13 @@
 package com.zimbra.cs.index.analysis;
 
 import java.io.IOException;
+import java.io.Reader;
 import java.io.StringReader;
 import java.io.UnsupportedEncodingException;
+import java.util.ArrayList;
 import java.util.Collections;
 import java.util.HashSet;
 import java.util.Iterator;
-import java.util.LinkedList;
 import java.util.List;
 import java.util.Set;
 
@@ -61,9 +62,13 @@ import com.zimbra.common.mime.InternetAddress;
  * @author ysasaki
  */
 public final class RFC822AddressTokenStream extends TokenStream {
-    private final List<String> tokens = new LinkedList<String>();
+    private static final ThreadLocal<AddrCharTokenizer> TOKENIZER = new ThreadLocal<AddrCharTokenizer>();
+
+    private final List<String> tokens = new ArrayList<String>();
     private Iterator<String> itr;
     private final CharTermAttribute termAttr = addAttribute(CharTermAttribute.class);
+    private int maxTokenLength;
+    private int maxTokenCount;
 
     public RFC822AddressTokenStream(String raw) {
         if (Strings.isNullOrEmpty(raw)) {
@@ -76,10 +81,12 @@ public final class RFC822AddressTokenStream extends TokenStream {
         } catch (UnsupportedEncodingException e) {
             decoded = raw;
         }
+        maxTokenLength = LC.zimbra_index_rfc822address_max_token_length.intValue();
+        maxTokenCount = LC.zimbra_index_rfc822address_max_token_count.intValue();
 
         // casually parse addresses, then tokenize them
         Set<String> emails = new HashSet<String>();
-        Tokenizer tokenizer = new AddrCharTokenizer(new StringReader(decoded));
+        Tokenizer tokenizer = getTokenizer(new StringReader(decoded));
         CharTermAttribute term = tokenizer.addAttribute(CharTermAttribute.class);
         try {
             while (tokenizer.incrementToken()) {
@@ -106,6 +113,21 @@ public final class RFC822AddressTokenStream extends TokenStream {
         itr = tokens.iterator();
     }
 
+    /**
+     * Returns the calling thread's tokenizer reset to {@code in}, rather than a new one with its own I/O buffer for
+     * every address header.
+     */
+    private static Tokenizer getTokenizer(Reader in) throws IOException {
+        AddrCharTokenizer tokenizer = TOKENIZER.get();
+        if (tokenizer == null) {
+            tokenizer = new AddrCharTokenizer(in);
+            TOKENIZER.set(tokenizer);
+        } else {
+            tokenizer.reset(in);
+        }
+        return tokenizer;
+    }
+
     private void tokenize(String src, Set<String> emails) {
         add(src);
         int at = src.lastIndexOf('@');
@@ -120,9 +142,16 @@ public final class RFC822AddressTokenStream extends TokenStream {
 
         // now, split the local-part on the "."
         if (localpart.indexOf('.') > 0) {
-            for (String part : localpart.split("\\.")) {
-                add(part);
+            int end = localpart.length();
+            while (localpart.charAt(end - 1) == '.') { // like String.split(), drop trailing empty parts
+                end--;
+            }
+            int start = 0;
+            for (int dot = localpart.indexOf('.'); dot >= 0 && dot < end; dot = localpart.indexOf('.', start)) {
+                add(localpart.substring(start, dot));
+                start = dot + 1;
             }
+            add(localpart.substring(start, end));
         }
 
         if (src.endsWith("@")) { // no domain
@@ -160,8 +189,7 @@ public final class RFC822AddressTokenStream extends TokenStream {
     }
 
     private void add(String token) {
-        if (token.length() <= LC.zimbra_index_rfc822address_max_token_length.intValue() &&
-                tokens.size() < LC.zimbra_index_rfc822address_max_token_count.intValue()) {
+        if (token.length() <= maxTokenLength && tokens.size() < maxTokenCount) {
             tokens.add(token);
         }
     }
@@ -30,7 +30,6 @@ import org.apache.lucene.analysis.Tokenizer;
 import org.apache.lucene.analysis.tokenattributes.CharTermAttribute;
 import org.apache.lucene.analysis.tokenattributes.TypeAttribute;
 
-import com.google.common.base.CharMatcher;
 import com.zimbra.common.service.ServiceException;
 import com.zimbra.common.util.ZimbraLog;
 import com.zimbra.cs.account.Provisioning;
@@ -49,42 +48,50 @@ import com.zimbra.cs.index.LuceneIndex;
  */
 public final class UniversalAnalyzer extends Analyzer {
 
-    private Tokenizer savedTokenizer;
-    private TokenStream savedTokenStream;
-
     @Override
     public TokenStream tokenStream(String field, Reader in) {
-        return createTokenStream(createTokenizer(in));
+        return new SavedStreams(in, getStopWords()).stream;
     }
 
+    /**
+     * Reuses the calling thread's tokenizer and filter chain, lexer buffer included, instead of building a new one
+     * for every field of every document.
+     */
     @Override
     public final TokenStream reusableTokenStream(String field, Reader in)
         throws IOException {
 
-        if (savedTokenizer != null && savedTokenStream != null) {
-            savedTokenizer.reset(new NormalizeTokenFilter(CharReader.get(in)));
-        } else {
-            savedTokenizer = createTokenizer(in);
-            savedTokenStream = createTokenStream(savedTokenizer);
+        Set<?> stopWords = getStopWords();
+        SavedStreams saved = (SavedStreams) getPreviousTokenStream();
+        if (saved != null && saved.stopWords == stopWords) {
+            saved.tokenizer.reset(new NormalizeTokenFilter(CharReader.get(in)));
+        } else { // first use on this thread, or the stop words were reconfigured
+            saved = new SavedStreams(in, stopWords);
+            setPreviousTokenStream(saved);
         }
-        return savedTokenStream;
-    }
-
-    private Tokenizer createTokenizer(Reader in) {
-        return new UniversalTokenizer(new NormalizeTokenFilter(CharReader.get(in)));
+        return saved.stream;
     }
 
-    private TokenStream createTokenStream(Tokenizer tokenizer) {
-        TokenStream result = new UniversalTokenFilter(tokenizer);
-        Set stopWords = StopAnalyzer.ENGLISH_STOP_WORDS_SET;
+    private static Set<?> getStopWords() {
         try {
-        	stopWords = Provisioning.getInstance().getConfig().getMultiAttrSet(Provisioning.A_zimbraDefaultAnalyzerStopWords);
+            return Provisioning.getInstance().getConfig().getMultiAttrSet(Provisioning.A_zimbraDefaultAnalyzerStopWords);
         } catch (ServiceException e) {
-        	ZimbraLog.index.error("Failed to retrieve stop words from LDAP", e);
+            ZimbraLog.index.error("Failed to retrieve stop words from LDAP", e);
+            return StopAnalyzer.ENGLISH_STOP_WORDS_SET;
+        }
+    }
+
+    private static final class SavedStreams {
+        final Tokenizer tokenizer;
+        final TokenStream stream;
+        final Set<?> stopWords;
+
+        SavedStreams(Reader in, Set<?> stopWords) {
+            this.stopWords = stopWords;
+            tokenizer = new UniversalTokenizer(new NormalizeTokenFilter(CharReader.get(in)));
+            // disable position increment for backward compatibility
+            stream = new StopFilter(LuceneIndex.VERSION, new UniversalTokenFilter(tokenizer), stopWords);
         }
-        // disable position increment for backward compatibility
-        result = new StopFilter(LuceneIndex.VERSION, result, stopWords);
-        return result;
     }
 
     private static class UniversalTokenFilter extends TokenFilter {
@@ -110,9 +117,15 @@ public final class UniversalAnalyzer extends Analyzer {
                     termAttr.setLength(len - 2);
                 }
             } else if (type == UniversalTokenizer.TokenType.ACRONYM.name()) {
-                // remove dots from acronyms
-                String replace = CharMatcher.is('.').removeFrom(termAttr);
-                termAttr.setEmpty().append(replace);
+                // remove dots from acronyms, in place
+                char[] buf = termAttr.buffer();
+                int len = 0;
+                for (int i = 0; i < termAttr.length(); i++) {
+                    if (buf[i] != '.') {
+                        buf[len++] = buf[i];
+                    }
+                }
+                termAttr.setLength(len);
             }
 
             return true;
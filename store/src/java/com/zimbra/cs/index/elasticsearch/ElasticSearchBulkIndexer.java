@@ -0,0 +1,256 @@
+/*
+ * ***** BEGIN LICENSE BLOCK *****
+ * Zimbra Collaboration Suite Server
+ * Copyright (C) 2016 Synacor, Inc.
+ *
+ * This program is free software: you can redistribute it and/or modify it under
+ * the terms of the GNU General Public License as published by the Free Software Foundation,
+ * version 2 of the License.
+ *
+ * This program is distributed in the hope that it will be useful, but WITHOUT ANY WARRANTY;
+ * without even the implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.
+ * See the GNU General Public License for more details.
+ * You should have received a copy of the GNU General Public License along with this program.
+ * If not, see <https://www.gnu.org/licenses/>.
+ * ***** END LICENSE BLOCK *****
+ */
+
+package com.zimbra.cs.index.elasticsearch;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import org.apache.http.HttpStatus;
+import org.apache.http.client.methods.HttpPost;
+import org.apache.http.entity.StringEntity;
+import org.json.JSONArray;
+import org.json.JSONException;
+import org.json.JSONObject;
+
+import com.google.common.annotations.VisibleForTesting;
+import com.zimbra.common.localconfig.LC;
+import com.zimbra.common.mime.MimeConstants;
+import com.zimbra.common.util.ZimbraLog;
+
+/**
+ * Sends the documents indexed by all the mailboxes on the server to ElasticSearch in {@code _bulk} requests, instead
+ * of one request per document.
+ * <p>
+ * Documents are queued by {@link #add}, and the queue is sent once it holds
+ * {@code zimbra_index_elasticsearch_bulk_max_actions} documents or {@code zimbra_index_elasticsearch_bulk_max_kb} of
+ * them, or when its oldest document has waited {@code zimbra_index_elasticsearch_bulk_max_delay_ms}.  The outcome of
+ * each document is reported back on its {@link Op}, from the per-item results of the bulk response.
+ */
+final class ElasticSearchBulkIndexer {
+
+    private static ElasticSearchBulkIndexer instance;
+
+    private final String bulkUrl;
+    private final int maxActions;
+    private final long maxBytes;
+    private final long maxDelay;
+    private List<Op> pending = new ArrayList<Op>(); // guarded by this
+    private long pendingBytes = 0; // guarded by this
+    private Thread flusher; // guarded by this
+
+    /**
+     * A document queued for indexing.
+     */
+    static final class Op {
+        private final String index;
+        private final String type;
+        private final int itemId;
+        private final String id;
+        private final String source;
+        private final long queued = System.currentTimeMillis();
+        private final CountDownLatch done = new CountDownLatch(1);
+        private volatile String error;
+
+        Op(String index, String type, int itemId, String id, String source) {
+            this.index = index;
+            this.type = type;
+            this.itemId = itemId;
+            this.id = id;
+            this.source = source;
+        }
+
+        int getItemId() {
+            return itemId;
+        }
+
+        /**
+         * Waits for the document to be sent, and returns the reason it wasn't indexed, or {@code null} if it was.
+         */
+        String await(long timeout, TimeUnit unit) {
+            try {
+                if (!done.await(timeout, unit)) {
+                    return "timed out";
+                }
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                return "interrupted";
+            }
+            return error;
+        }
+
+        private long size() {
+            return (index.length() + type.length() + id.length() + source.length() + 50) * 2L;
+        }
+
+        private void complete(String err) {
+            error = err;
+            done.countDown();
+        }
+    }
+
+    @VisibleForTesting
+    ElasticSearchBulkIndexer(String urlBase, int maxActions, long maxBytes, long maxDelay) {
+        this.bulkUrl = urlBase + "_bulk";
+        this.maxActions = Math.max(1, maxActions);
+        this.maxBytes = maxBytes;
+        this.maxDelay = maxDelay;
+    }
+
+    static synchronized ElasticSearchBulkIndexer getInstance() {
+        if (instance == null) {
+            instance = new ElasticSearchBulkIndexer(LC.zimbra_index_elasticsearch_url_base.value(),
+                    LC.zimbra_index_elasticsearch_bulk_max_actions.intValue(),
+                    LC.zimbra_index_elasticsearch_bulk_max_kb.longValue() * 1024,
+                    LC.zimbra_index_elasticsearch_bulk_max_delay_ms.longValue());
+        }
+        return instance;
+    }
+
+    /**
+     * Queues a document for indexing.  If that fills up the queue, the queue is sent by the calling thread.
+     *
+     * @param index name of the ElasticSearch index
+     * @param id ID of the document, so that sending it again replaces it
+     * @param source the document, as JSON
+     */
+    Op add(String index, String type, int itemId, String id, String source) {
+        Op op = new Op(index, type, itemId, id, source);
+        List<Op> batch = null;
+        synchronized (this) {
+            pending.add(op);
+            pendingBytes += op.size();
+            if (pending.size() >= maxActions || pendingBytes >= maxBytes || maxDelay <= 0) {
+                batch = drain();
+            } else if (flusher == null) {
+                flusher = new Thread(new Runnable() {
+                    @Override
+                    public void run() {
+                        flushLoop();
+                    }
+                }, "ElasticSearchBulkIndexer");
+                flusher.setDaemon(true);
+                flusher.start();
+            } else {
+                notifyAll();
+            }
+        }
+        if (batch != null) {
+            send(batch);
+        }
+        return op;
+    }
+
+    private List<Op> drain() {
+        List<Op> batch = pending;
+        pending = new ArrayList<Op>();
+        pendingBytes = 0;
+        return batch;
+    }
+
+    /**
+     * Sends the queue once its oldest document has waited long enough.
+     */
+    private void flushLoop() {
+        while (true) {
+            List<Op> batch;
+            synchronized (this) {
+                try {
+                    while (pending.isEmpty() ||
+                            System.currentTimeMillis() - pending.get(0).queued < maxDelay) {
+                        if (pending.isEmpty()) {
+                            wait();
+                        } else {
+                            wait(Math.max(1, maxDelay - (System.currentTimeMillis() - pending.get(0).queued)));
+                        }
+                    }
+                } catch (InterruptedException e) {
+                    flusher = null;
+                    return;
+                }
+                batch = drain();
+            }
+            try {
+                send(batch);
+            } catch (Throwable t) { // keep going, send() has already failed the batch
+                ZimbraLog.index.error("Problem sending bulk index request", t);
+            }
+        }
+    }
+
+    @VisibleForTesting
+    void send(List<Op> batch) {
+        StringBuilder body = new StringBuilder();
+        try {
+            for (Op op : batch) {
+                JSONObject action = new JSONObject();
+                action.put("index", new JSONObject().put("_index", op.index).put("_type", op.type).put("_id", op.id));
+                body.append(action.toString()).append('\n').append(op.source).append('\n');
+            }
+        } catch (JSONException e) {
+            fail(batch, 0, e.toString());
+            return;
+        }
+
+        HttpPost method = new HttpPost(ElasticSearchConnector.actualUrl(bulkUrl));
+        int done = 0;
+        try {
+            method.setEntity(new StringEntity(body.toString(),
+                    MimeConstants.CT_APPLICATION_JSON, MimeConstants.P_CHARSET_UTF8));
+            ElasticSearchConnector connector = new ElasticSearchConnector();
+            int statusCode = connector.executeMethod(method);
+            if (statusCode != HttpStatus.SC_OK) {
+                fail(batch, 0, "httpstatus=" + statusCode);
+                return;
+            }
+            JSONArray items = connector.getJSONBody().getJSONArray("items");
+            for (; done < batch.size() && done < items.length(); done++) {
+                JSONObject item = items.getJSONObject(done);
+                JSONObject result = item.optJSONObject("index");
+                if (result == null) {
+                    result = item.optJSONObject("create");
+                }
+                String error = null;
+                if (result == null) {
+                    error = "no result";
+                } else if (result.has("error")) {
+                    error = result.get("error").toString();
+                } else if (result.optInt("status", HttpStatus.SC_CREATED) >= HttpStatus.SC_MULTIPLE_CHOICES) {
+                    error = "status=" + result.optInt("status");
+                }
+                batch.get(done).complete(error);
+            }
+            fail(batch, done, "missing from bulk response");
+            ZimbraLog.index.debug("Sent %d documents in a bulk request", batch.size());
+        } catch (IOException e) {
+            ZimbraLog.index.error("Problem sending bulk index request of %d documents", batch.size(), e);
+            fail(batch, done, e.toString());
+        } catch (JSONException e) {
+            ZimbraLog.index.error("Problem parsing bulk index response", e);
+            fail(batch, done, e.toString());
+        }
+    }
+
+    private static void fail(List<Op> batch, int from, String error) {
+        for (int i = from; i < batch.size(); i++) {
+            batch.get(i).complete(error);
+        }
+    }
+}
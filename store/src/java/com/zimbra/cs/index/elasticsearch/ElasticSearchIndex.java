@@ -21,12 +21,17 @@ import java.io.IOException;
 import java.io.PrintStream;
 import java.io.Reader;
 import java.io.StringReader;
+import java.io.UnsupportedEncodingException;
+import java.net.URLEncoder;
+import java.util.Collection;
 import java.util.Collections;
 import java.util.Comparator;
 import java.util.Iterator;
 import java.util.List;
 import java.util.NoSuchElementException;
 import java.util.Queue;
+import java.util.Set;
+import java.util.concurrent.TimeUnit;
 
 import org.apache.http.HttpStatus;
 import org.apache.http.client.methods.HttpDelete;
@@ -61,6 +66,7 @@ import org.json.JSONObject;
 
 import com.google.common.base.Joiner;
 import com.google.common.collect.Lists;
+import com.google.common.collect.Sets;
 import com.zimbra.common.localconfig.LC;
 import com.zimbra.common.mime.MimeConstants;
 import com.zimbra.common.util.ZimbraLog;
@@ -95,6 +101,7 @@ import com.zimbra.cs.mailbox.Mailbox;
 public final class ElasticSearchIndex extends IndexStore {
 
     private final static String indexType = "zimbra";
+    private final static int DELETE_BATCH_SIZE = 100;
     private final Mailbox mailbox;
     private final String key;
     private final String indexUrl;
@@ -431,9 +438,29 @@ public final class ElasticSearchIndex extends IndexStore {
     }
 
     private final class ElasticSearchIndexer implements Indexer {
+        private final List<ElasticSearchBulkIndexer.Op> queued = Lists.newArrayList();
+        private final Set<Integer> failed = Sets.newHashSet();
 
+        /**
+         * Waits for the documents queued by {@link #addDocument} to be sent, and records the items that failed.  The
+         * caller holds the mailbox lock, so all the documents share a single deadline.
+         */
         @Override
         public void close() {
+            long deadline = System.currentTimeMillis() + TimeUnit.MINUTES.toMillis(1);
+            for (ElasticSearchBulkIndexer.Op op : queued) {
+                String error = op.await(Math.max(0, deadline - System.currentTimeMillis()), TimeUnit.MILLISECONDS);
+                if (error != null) {
+                    ZimbraLog.index.error("Problem indexing document with id=%d error=%s", op.getItemId(), error);
+                    failed.add(op.getItemId());
+                }
+            }
+            queued.clear();
+        }
+
+        @Override
+        public Collection<Integer> getFailedIds() {
+            return failed;
         }
 
         @Override
@@ -542,6 +569,7 @@ public final class ElasticSearchIndex extends IndexStore {
          * <p>
          * If the index status is stale, delete the stale documents first, then add new documents. If the index status
          * is deferred, we are sure that this item is not already in the index, and so we can skip the check-update step.
+         * The documents are only queued for the {@link ElasticSearchBulkIndexer} here; {@link #close()} waits for them.
          */
         @Override
         public void addDocument(Folder folder, MailItem item, List<IndexDocument> docs) throws IOException {
@@ -565,10 +593,9 @@ public final class ElasticSearchIndex extends IndexStore {
                     assert false : item.getIndexId();
             }
 
-            for (IndexDocument doc : docs) {
-                // Note: using automatic ID generation
-                String url = String.format("%s%s/", indexUrl, indexType);
-                HttpPost method = new HttpPost(ElasticSearchConnector.actualUrl(url));
+            ElasticSearchBulkIndexer bulk = ElasticSearchBulkIndexer.getInstance();
+            for (int i = 0; i < docs.size(); i++) {
+                IndexDocument doc = docs.get(i);
                 JSONObject jsonObj = new JSONObject();
                 // doc can be shared by multiple threads if multiple mailboxes are referenced in a single email
                 synchronized (doc) {
@@ -578,18 +605,8 @@ public final class ElasticSearchIndex extends IndexStore {
                         addFieldToDocument(jsonObj, field);
                     }
                 }
-                try {
-                    method.setEntity(new StringEntity(jsonObj.toString(),
-                            MimeConstants.CT_APPLICATION_JSON, MimeConstants.P_CHARSET_UTF8));
-                    ElasticSearchConnector connector = new ElasticSearchConnector();
-                    int statusCode = connector.executeMethod(method);
-                    if (statusCode != HttpStatus.SC_CREATED) {
-                        ZimbraLog.index.error("Problem indexing document with id=%d httpstatus=%d",
-                                item.getId(), statusCode);
-                    }
-                } catch (IOException e) {
-                    ZimbraLog.index.error("Problem indexing document with id=%d", item.getId());
-                }
+                // an explicit ID per item and part, so that retrying a document that timed out overwrites it
+                queued.add(bulk.add(key, indexType, item.getId(), item.getId() + "_" + i, jsonObj.toString()));
             }
         }
 
@@ -600,23 +617,26 @@ public final class ElasticSearchIndex extends IndexStore {
         public void deleteDocument(List<Integer> ids) {
             refreshIndexIfNecessary();
             String url = String.format("%s%s/_query", indexUrl, indexType);
-            for (Integer id : ids) {
-
-                String query = String.format("%s:%s", LuceneFields.L_MAILBOX_BLOB_ID, id.toString());
-                StringBuilder urlBuilder = new StringBuilder()
-                .append(ElasticSearchConnector.actualUrl(url)).append("q=")
-                .append(query);
-                HttpDelete method = new HttpDelete(ElasticSearchConnector.actualUrl(url));
+            for (List<Integer> chunk : Lists.partition(ids, DELETE_BATCH_SIZE)) {
+                // one delete-by-query per chunk of IDs; the _bulk API can only delete documents by _id
+                String query = String.format("%s:(%s)", LuceneFields.L_MAILBOX_BLOB_ID, Joiner.on(' ').join(chunk));
+                HttpDelete method;
+                try {
+                    method = new HttpDelete(ElasticSearchConnector.actualUrl(
+                            url + "?q=" + URLEncoder.encode(query, MimeConstants.P_CHARSET_UTF8)));
+                } catch (UnsupportedEncodingException e) {
+                    throw new IllegalStateException(e);
+                }
                 try {
                     ElasticSearchConnector connector = new ElasticSearchConnector();
                     int statusCode = connector.executeMethod(method);
                     if (statusCode == HttpStatus.SC_OK) {
-                        ZimbraLog.index.debug("Deleted documents with id=%d", id);
+                        ZimbraLog.index.debug("Deleted documents with ids=%s", chunk);
                     } else {
-                        ZimbraLog.index.error("Problem deleting documents with id=%d httpstatus=%d", id, statusCode);
+                        ZimbraLog.index.error("Problem deleting documents with ids=%s httpstatus=%d", chunk, statusCode);
                     }
                 } catch (IOException e) {
-                    ZimbraLog.index.error("Problem deleting documents with id=%d", id);
+                    ZimbraLog.index.error("Problem deleting documents with ids=%s", chunk);
                 }
             }
         }
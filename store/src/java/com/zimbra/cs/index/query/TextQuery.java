@@ -114,6 +114,7 @@ public class TextQuery extends Query {
                 query.add(new Term(field, token));
             }
             query.expand(new Term(field, CharMatcher.is('*').trimTrailingFrom(last))); // expand later
+            query.setSuggest(quick);
 
             LuceneQueryOperation op = new LuceneQueryOperation();
             op.addClause(toQueryString(field, text), query, evalBool(bool));
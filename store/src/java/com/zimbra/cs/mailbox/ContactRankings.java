@@ -156,7 +156,7 @@ public class ContactRankings {
             config = new Metadata();
             mbox.setConfig(null, CONFIG_KEY_CONTACT_RANKINGS, config);
         }
-        for (Map.Entry<Object, Object> entry : config.map.entrySet()) {
+        for (Map.Entry<Object, Object> entry : config.materialize().entrySet()) {
             if (entry.getValue() instanceof Map) {
                 Map<?, ?> m = (Map<?, ?>) entry.getValue();
                 ContactEntry contact = new ContactEntry();
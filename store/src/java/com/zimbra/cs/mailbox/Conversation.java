@@ -44,6 +44,7 @@ import com.zimbra.cs.session.Session;
 public class Conversation extends MailItem {
     private   String     mEncodedSenders;
     protected SenderList mSenderList;
+    private volatile PreloadedMessages preloaded;
 
     Conversation(Mailbox mbox, UnderlyingData data) throws ServiceException {
         this(mbox, data, false);
@@ -203,6 +204,10 @@ public class Conversation extends MailItem {
      * @param limit max number of messages to retrieve, or unlimited if -1
      */
     List<Message> getMessages(SortBy sort, int limit) throws ServiceException {
+        List<Message> preloaded = getPreloadedMessages(sort, limit);
+        if (preloaded != null) {
+            return preloaded;
+        }
         List<Message> msgs = new ArrayList<Message>(getMessageCount());
         List<UnderlyingData> listData = DbMailItem.getByParent(this, sort, limit, false);
         for (UnderlyingData data : listData) {
@@ -211,6 +216,56 @@ public class Conversation extends MailItem {
         return msgs;
     }
 
+    /**
+     * Remembers the rows of the children loaded in bulk by {@link Mailbox#preloadConversationMessages} so that the
+     * next {@link #getMessages(SortBy, int)} can skip its own query.  The rows are only trusted for as long as the
+     * mailbox change ID stays at {@code changeId}, and outside write transactions, which may change items without
+     * moving the change ID until they commit.
+     */
+    void setPreloadedMessages(List<UnderlyingData> rows, int changeId) {
+        preloaded = new PreloadedMessages(rows, changeId);
+    }
+
+    private List<Message> getPreloadedMessages(SortBy sort, int limit) throws ServiceException {
+        PreloadedMessages cached = preloaded;
+        if (cached == null || mMailbox.lock.isWriteLockedByCurrentThread()) {
+            return null;
+        }
+        if (cached.changeId != mMailbox.getLastChangeID() || cached.rows.size() != getMessageCount()) {
+            return null;
+        }
+        List<Message> msgs = new ArrayList<Message>(cached.rows.size());
+        for (UnderlyingData data : cached.rows) {
+            msgs.add(mMailbox.getMessage(data)); // the cached instance if there is one
+        }
+        switch (sort.getKey()) {
+            case NONE:
+                break;
+            case ID:
+                Collections.sort(msgs, getComparator(sort));
+                break;
+            case DATE:
+                // same tie-break as the "ORDER BY date, id" used by DbMailItem.getByParent
+                Collections.sort(msgs, getComparator(sort.getDirection() == SortBy.Direction.ASC ?
+                        SortBy.ID_ASC : SortBy.ID_DESC));
+                Collections.sort(msgs, getComparator(sort));
+                break;
+            default:
+                return null;
+        }
+        return limit > 0 && limit < msgs.size() ? msgs.subList(0, limit) : msgs;
+    }
+
+    private static final class PreloadedMessages {
+        final List<UnderlyingData> rows;
+        final int changeId;
+
+        PreloadedMessages(List<UnderlyingData> rows, int changeId) {
+            this.rows = rows;
+            this.changeId = changeId;
+        }
+    }
+
     @Override
     boolean canAccess(short rightsNeeded) {
         return true;
@@ -0,0 +1,243 @@
+/*
+ * ***** BEGIN LICENSE BLOCK *****
+ * Zimbra Collaboration Suite Server
+ * Copyright (C) 2016 Synacor, Inc.
+ *
+ * This program is free software: you can redistribute it and/or modify it under
+ * the terms of the GNU General Public License as published by the Free Software Foundation,
+ * version 2 of the License.
+ *
+ * This program is distributed in the hope that it will be useful, but WITHOUT ANY WARRANTY;
+ * without even the implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.
+ * See the GNU General Public License for more details.
+ * You should have received a copy of the GNU General Public License along with this program.
+ * If not, see <https://www.gnu.org/licenses/>.
+ * ***** END LICENSE BLOCK *****
+ */
+package com.zimbra.cs.mailbox;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * LRU map of {@link MailItem}s keyed by item id and weighted by each item's estimated heap footprint.
+ * <p>
+ * Ids live in an open-addressed {@code int} table, so lookups by id never box.  The uuid index points at the same
+ * entries as the id table, so the two views cannot drift apart.  The cache never evicts on its own: the owner
+ * compares {@link #getWeight()} to its budget and removes {@link #eldest()} until it fits, which keeps eviction order
+ * deterministic and independent of the garbage collector.
+ * <p>
+ * All methods are synchronized since the cache is shared by every thread holding the mailbox lock, including
+ * concurrent readers.
+ */
+final class ItemLruCache {
+
+    private static final int MIN_CAPACITY = 16;
+
+    private static final class Node {
+        final int id;
+        MailItem item;
+        String uuid;
+        int weight;
+        Node prev;
+        Node next;
+
+        Node(int id) {
+            this.id = id;
+        }
+    }
+
+    private int[] keys;
+    private Node[] nodes;
+    private int size;
+    private long weight;
+    private final Map<String, Node> byUuid = new HashMap<String, Node>();
+    /** sentinel of the circular access-order list; {@code head.next} is the eldest entry */
+    private final Node head = new Node(0);
+
+    ItemLruCache() {
+        allocate(MIN_CAPACITY);
+    }
+
+    private void allocate(int capacity) {
+        keys = new int[capacity];
+        nodes = new Node[capacity];
+        head.prev = head.next = head;
+    }
+
+    private static int hash(int id) {
+        int h = id * 0x9E3779B9;
+        return h ^ (h >>> 16);
+    }
+
+    private int slotOf(int id) {
+        int mask = keys.length - 1;
+        for (int slot = hash(id) & mask; nodes[slot] != null; slot = (slot + 1) & mask) {
+            if (keys[slot] == id) {
+                return slot;
+            }
+        }
+        return -1;
+    }
+
+    synchronized MailItem get(int id) {
+        int slot = slotOf(id);
+        if (slot < 0) {
+            return null;
+        }
+        Node node = nodes[slot];
+        moveToTail(node);
+        return node.item;
+    }
+
+    synchronized MailItem get(String uuid) {
+        Node node = byUuid.get(uuid);
+        if (node == null) {
+            return null;
+        }
+        moveToTail(node);
+        return node.item;
+    }
+
+    synchronized boolean contains(int id) {
+        return slotOf(id) >= 0;
+    }
+
+    /**
+     * Caches the item, replacing any entry with the same id.  The item's weight is re-estimated on every call, so
+     * re-caching an item after modifying it keeps the accounting current.
+     */
+    synchronized void put(MailItem item) {
+        int id = item.getId();
+        int slot = slotOf(id);
+        Node node;
+        if (slot >= 0) {
+            node = nodes[slot];
+            weight -= node.weight;
+            if (node.uuid != null && !node.uuid.equals(item.getUuid())) {
+                byUuid.remove(node.uuid);
+            }
+            unlink(node);
+        } else {
+            if ((size + 1) * 4 > keys.length * 3) {
+                rehash(keys.length * 2);
+            }
+            node = new Node(id);
+            insert(node);
+            size++;
+        }
+        node.item = item;
+        node.uuid = item.getUuid();
+        node.weight = item.getMemoryFootprint();
+        weight += node.weight;
+        if (node.uuid != null) {
+            byUuid.put(node.uuid, node);
+        }
+        linkAtTail(node);
+    }
+
+    synchronized MailItem remove(int id) {
+        int slot = slotOf(id);
+        if (slot < 0) {
+            return null;
+        }
+        Node node = nodes[slot];
+        deleteSlot(slot);
+        size--;
+        weight -= node.weight;
+        if (node.uuid != null) {
+            byUuid.remove(node.uuid);
+        }
+        unlink(node);
+        return node.item;
+    }
+
+    /** Returns the least recently used item, or {@code null} if the cache is empty. */
+    synchronized MailItem eldest() {
+        return head.next == head ? null : head.next.item;
+    }
+
+    /** Returns a snapshot of the cached items, least recently used first. */
+    synchronized List<MailItem> values() {
+        List<MailItem> values = new ArrayList<MailItem>(size);
+        for (Node node = head.next; node != head; node = node.next) {
+            values.add(node.item);
+        }
+        return values;
+    }
+
+    synchronized int size() {
+        return size;
+    }
+
+    /** Returns the sum of the estimated footprints of all cached items, in bytes. */
+    synchronized long getWeight() {
+        return weight;
+    }
+
+    synchronized void clear() {
+        allocate(MIN_CAPACITY);
+        byUuid.clear();
+        size = 0;
+        weight = 0;
+    }
+
+    private void insert(Node node) {
+        int mask = keys.length - 1;
+        int slot = hash(node.id) & mask;
+        while (nodes[slot] != null) {
+            slot = (slot + 1) & mask;
+        }
+        keys[slot] = node.id;
+        nodes[slot] = node;
+    }
+
+    /** Backward-shift deletion, so that probe sequences stay unbroken without tombstones. */
+    private void deleteSlot(int slot) {
+        int mask = keys.length - 1;
+        int gap = slot;
+        for (int next = (gap + 1) & mask; nodes[next] != null; next = (next + 1) & mask) {
+            int home = hash(keys[next]) & mask;
+            // move the entry back into the gap unless its home slot lies cyclically in (gap, next]
+            if (gap <= next ? (home <= gap || home > next) : (home <= gap && home > next)) {
+                keys[gap] = keys[next];
+                nodes[gap] = nodes[next];
+                gap = next;
+            }
+        }
+        nodes[gap] = null;
+    }
+
+    private void rehash(int capacity) {
+        Node[] old = nodes;
+        keys = new int[capacity];
+        nodes = new Node[capacity];
+        for (Node node : old) {
+            if (node != null) {
+                insert(node);
+            }
+        }
+    }
+
+    private void unlink(Node node) {
+        node.prev.next = node.next;
+        node.next.prev = node.prev;
+        node.prev = node.next = null;
+    }
+
+    private void linkAtTail(Node node) {
+        node.prev = head.prev;
+        node.next = head;
+        head.prev.next = node;
+        head.prev = node;
+    }
+
+    private void moveToTail(Node node) {
+        if (head.prev != node) {
+            unlink(node);
+            linkAtTail(node);
+        }
+    }
+}
@@ -18,6 +18,7 @@ package com.zimbra.cs.mailbox;
 
 import java.io.IOException;
 import java.io.InputStream;
+import java.nio.channels.FileChannel;
 import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.Collection;
@@ -55,6 +56,7 @@ import com.zimbra.common.util.ZimbraLog;
 import com.zimbra.cs.account.Account;
 import com.zimbra.cs.account.GuestAccount;
 import com.zimbra.cs.account.Provisioning;
+import com.zimbra.cs.db.DbFlagBatch;
 import com.zimbra.cs.db.DbMailItem;
 import com.zimbra.cs.db.DbPendingAclPush;
 import com.zimbra.cs.db.DbTag;
@@ -774,6 +776,8 @@ public abstract class MailItem implements Comparable<MailItem>, ScheduledTaskRes
                                                  // color map with 9 fixed colors.
     protected CustomMetadataList mExtendedData;
     protected ACL                rights;
+    /** Length of the encoded metadata this item was decoded from; see {@link #getMemoryFootprint()}. */
+    private int                  mMetadataLength;
 
     MailItem(Mailbox mbox, UnderlyingData data) throws ServiceException {
         this(mbox, data, false);
@@ -788,6 +792,7 @@ public abstract class MailItem implements Comparable<MailItem>, ScheduledTaskRes
         mMailbox = mbox;
         decodeMetadata(mData.metadata);
         checkItemCreationAllowed(); // this check may rely on decoded metadata
+        mMetadataLength = mData.metadata == null ? 0 : mData.metadata.length();
         mData.metadata = null;
 
         if (!skipCache && ((data.getFlags() & Flag.BITMASK_UNCACHED) == 0)) {
@@ -820,6 +825,25 @@ public abstract class MailItem implements Comparable<MailItem>, ScheduledTaskRes
         return mData.uuid;
     }
 
+    /** Approximate shallow size of a MailItem plus its UnderlyingData, in bytes. */
+    private static final int BASE_FOOTPRINT = 320;
+
+    /** Returns a rough estimate, in bytes, of the heap retained by this item: a fixed object overhead plus two bytes
+     *  per character of its string columns and of the metadata it was decoded from.  This is what the mailbox's
+     *  item cache budget is measured in. */
+    int getMemoryFootprint() {
+        int chars = mMetadataLength + length(mData.locator) + length(mData.getBlobDigest()) +
+                length(mData.getSubject()) + length(mData.name) + length(mData.uuid) + length(mData.getPrevFolders());
+        for (String tag : mData.getTags()) {
+            chars += length(tag);
+        }
+        return BASE_FOOTPRINT + 2 * chars;
+    }
+
+    private static int length(String str) {
+        return str == null ? 0 : str.length();
+    }
+
     /** Returns the item's type. */
     public Type getType() {
         return Type.of(mData.type);
@@ -1396,6 +1420,29 @@ public abstract class MailItem implements Comparable<MailItem>, ScheduledTaskRes
         }
     }
 
+    /** Returns a {@link FileChannel} over the raw, uncompressed content of the item's blob, for sending it to a socket
+     * without copying it through the heap.
+     *
+     * @return The channel, or <tt>null</tt> if the item has no blob or the store cannot expose it as a local file, in
+     *         which case the caller should use {@link #getContentStream()} instead
+     * @throws ServiceException when the message file does not exist. */
+    public FileChannel getContentChannel() throws ServiceException {
+        if (getDigest() == null) {
+            return null;
+        }
+
+        try {
+            MailboxBlob mblob = getBlob();
+            if (mblob == null) {
+                throw ServiceException.FAILURE("missing blob for id: " + getId() + ", change: " + getModifiedSequence(), null);
+            }
+            return StoreManager.getInstance().getContentChannel(mblob);
+        } catch (IOException e) {
+            String msg = String.format("Unable to get content for %s %d", getClass().getSimpleName(), getId());
+            throw ServiceException.FAILURE(msg, e);
+        }
+    }
+
     /** Returns the raw, uncompressed content of the item's blob as a byte
      *  array.  For messages, this is the message body as received via SMTP;
      *  no postprocessing has been performed to make opaque attachments
@@ -2317,7 +2364,12 @@ public abstract class MailItem implements Comparable<MailItem>, ScheduledTaskRes
         int delta = unread ? 1 : -1;
         updateUnread(delta, isTagged(Flag.FlagInfo.DELETED) ? delta : 0);
         metadataChanged();
-        DbMailItem.alterUnread(getMailbox(), ImmutableList.of(getId()), unread);
+        DbFlagBatch batch = mMailbox.getFlagBatch();
+        if (batch != null) {
+            batch.alterUnread(unreadFlag, mId, unread);
+        } else {
+            DbMailItem.alterUnread(getMailbox(), ImmutableList.of(getId()), unread);
+        }
     }
 
     /** Tags or untags an item.  Persists the change to the database and
@@ -2388,7 +2440,7 @@ public abstract class MailItem implements Comparable<MailItem>, ScheduledTaskRes
         }
         // alter our tags in the DB
 //        DbTag.alterTag(this, tag, add);
-        DbTag.alterTag(tag, Arrays.asList(getId()), add);
+        persistTagChange(tag, add, parent);
 
         // tell our parent about the tag change (note: must happen after DbMailItem.alterTag)
         if (parent != null) {
@@ -2396,6 +2448,23 @@ public abstract class MailItem implements Comparable<MailItem>, ScheduledTaskRes
         }
     }
 
+    /**
+     * Writes a tag change to the database, or defers it to the mailbox's {@link DbFlagBatch} if one is open.  A real
+     * conversation recomputes its tags from its messages' rows when one of them loses a tag the conversation has, so
+     * in that case the batch is flushed before the parent is told.
+     */
+    private void persistTagChange(Tag tag, boolean add, MailItem parent) throws ServiceException {
+        DbFlagBatch batch = mMailbox.getFlagBatch();
+        if (batch == null) {
+            DbTag.alterTag(tag, Arrays.asList(getId()), add);
+            return;
+        }
+        batch.alterTag(tag, mId, add);
+        if (!add && parent instanceof Conversation && !(parent instanceof VirtualConversation) && parent.isTagged(tag)) {
+            batch.flush();
+        }
+    }
+
     final void alterSystemFlag(Flag flag, boolean newValue) throws ServiceException {
         if (flag == null) {
             throw ServiceException.FAILURE("no tag supplied when trying to tag item " + mId, null);
@@ -2414,7 +2483,7 @@ public abstract class MailItem implements Comparable<MailItem>, ScheduledTaskRes
         tagChanged(flag, newValue);
 
         // alter our tags in the DB
-        DbTag.alterTag(flag, Arrays.asList(getId()), newValue);
+        persistTagChange(flag, newValue, parent);
 
         // tell our parent about the tag change (note: must happen after DbMailItem.alterTag)
         if (parent != null) {
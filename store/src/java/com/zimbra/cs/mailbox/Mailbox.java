@@ -22,7 +22,6 @@ import java.io.Reader;
 import java.io.StringWriter;
 import java.io.UnsupportedEncodingException;
 import java.io.Writer;
-import java.lang.ref.SoftReference;
 import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.Collection;
@@ -76,6 +75,7 @@ import com.zimbra.common.calendar.ZCalendar.ZComponent;
 import com.zimbra.common.calendar.ZCalendar.ZProperty;
 import com.zimbra.common.calendar.ZCalendar.ZVCalendar;
 import com.zimbra.common.localconfig.DebugConfig;
+import com.zimbra.common.localconfig.KnownKey;
 import com.zimbra.common.localconfig.LC;
 import com.zimbra.common.mailbox.BaseItemInfo;
 import com.zimbra.common.mailbox.Color;
@@ -116,6 +116,7 @@ import com.zimbra.cs.account.Server;
 import com.zimbra.cs.account.ShareLocator;
 import com.zimbra.cs.datasource.DataSourceManager;
 import com.zimbra.cs.db.DbDataSource;
+import com.zimbra.cs.db.DbFlagBatch;
 import com.zimbra.cs.db.DbMailItem;
 import com.zimbra.cs.db.DbMailItem.QueryParams;
 import com.zimbra.cs.db.DbMailbox;
@@ -609,15 +610,11 @@ public class Mailbox implements MailboxStore {
     }
 
     private static class ItemCache {
-        private final Map<Integer /* id */, MailItem> mapById;
-        private final Map<String /* uuid */, Integer /* id */> uuid2id;
+        private final ItemLruCache items = new ItemLruCache();
         private final Mailbox mbox;
         private boolean isAlwaysOn = false;
 
         public ItemCache(Mailbox mbox) {
-            mapById = new ConcurrentLinkedHashMap.Builder<Integer, MailItem>().maximumWeightedCapacity(
-                            MAX_ITEM_CACHE_WITH_LISTENERS).build();
-            uuid2id = new ConcurrentHashMap<String, Integer>(MAX_ITEM_CACHE_WITH_LISTENERS);
             this.mbox = mbox;
             this.isAlwaysOn = Zimbra.isAlwaysOn();
         }
@@ -630,12 +627,7 @@ public class Mailbox implements MailboxStore {
                     ZimbraLog.mailbox.error("error while writing item to cache", e);
                 }
             } else {
-                int id = item.getId();
-                mapById.put(id, item);
-                String uuid = item.getUuid();
-                if (uuid != null) {
-                    uuid2id.put(uuid, id);
-                }
+                items.put(item);
             }
         }
 
@@ -649,7 +641,7 @@ public class Mailbox implements MailboxStore {
                 }
                 return item;
             } else {
-                return mapById.get(id);
+                return items.get(id);
             }
         }
 
@@ -663,9 +655,7 @@ public class Mailbox implements MailboxStore {
                 }
                 return item;
             } else {
-                // Always fetch item from mapById map to preserve LRU's access time ordering.
-                Integer id = uuid2id.get(uuid);
-                return id != null ? mapById.get(id) : null;
+                return items.get(uuid);
             }
         }
 
@@ -683,14 +673,7 @@ public class Mailbox implements MailboxStore {
                 }
                 return removed;
             } else {
-                MailItem removed = mapById.remove(id);
-                if (removed != null) {
-                    String uuid = removed.getUuid();
-                    if (uuid != null) {
-                        uuid2id.remove(uuid);
-                    }
-                }
-                return removed;
+                return items.remove(id);
             }
         }
 
@@ -703,30 +686,40 @@ public class Mailbox implements MailboxStore {
                     return false;
                 }
             } else {
-                return mapById.containsKey(item.getId());
+                return items.contains(item.getId());
             }
         }
 
+        /** Returns a snapshot of the cached items, least recently used first. */
         public Collection<MailItem> values() {
             if (isAlwaysOn) {
                 // return empty list
                 return Collections.emptyList();
             } else {
-                return mapById.values();
+                return items.values();
             }
         }
 
+        /** Returns the least recently used cached item, or {@code null} if there is none. */
+        public MailItem eldest() {
+            return isAlwaysOn ? null : items.eldest();
+        }
+
         public int size() {
             if (isAlwaysOn) {
                 return 0;
             } else {
-                return mapById.size();
+                return items.size();
             }
         }
 
+        /** Returns the estimated heap footprint of the cached items, in bytes. */
+        public long getWeight() {
+            return isAlwaysOn ? 0 : items.getWeight();
+        }
+
         public void clear() {
-            mapById.clear();
-            uuid2id.clear();
+            items.clear();
         }
     }
 
@@ -741,10 +734,15 @@ public class Mailbox implements MailboxStore {
      */
     private final ReentrantLock emptyFolderOpLock = new ReentrantLock();
 
-    // TODO: figure out correct caching strategy
-    private static final int MAX_ITEM_CACHE_WITH_LISTENERS = LC.zimbra_mailbox_active_cache.intValue();
-    private static final int MAX_ITEM_CACHE_WITHOUT_LISTENERS = LC.zimbra_mailbox_inactive_cache.intValue();
-    private static final int MAX_ITEM_CACHE_FOR_GALSYNC_MAILBOX = LC.zimbra_mailbox_galsync_cache.intValue();
+    // average footprint of a cached item, to convert the deprecated item count budgets
+    private static final long ITEM_CACHE_BYTES_PER_ITEM = 2048;
+    // per-mailbox item cache budgets, in bytes of estimated MailItem footprint
+    private static final long MAX_ITEM_CACHE_WITH_LISTENERS =
+        itemCacheBytes(LC.zimbra_mailbox_active_cache_bytes, LC.zimbra_mailbox_active_cache);
+    private static final long MAX_ITEM_CACHE_WITHOUT_LISTENERS =
+        itemCacheBytes(LC.zimbra_mailbox_inactive_cache_bytes, LC.zimbra_mailbox_inactive_cache);
+    private static final long MAX_ITEM_CACHE_FOR_GALSYNC_MAILBOX =
+        itemCacheBytes(LC.zimbra_mailbox_galsync_cache_bytes, LC.zimbra_mailbox_galsync_cache);
     private static final int MAX_MSGID_CACHE = 10;
 
     private final int mId;
@@ -754,21 +752,40 @@ public class Mailbox implements MailboxStore {
 
     private FolderCache mFolderCache;
     private Map<Object, Tag> mTagCache;
-    private SoftReference<ItemCache> mItemCache = new SoftReference<ItemCache>(null);
+    private final ItemCache mItemCache;
     private final Map<String, Integer> mConvHashes = new ConcurrentLinkedHashMap.Builder<String, Integer>()
                     .maximumWeightedCapacity(MAX_MSGID_CACHE).build();
     private final Map<String, Integer> mSentMessageIDs = new ConcurrentLinkedHashMap.Builder<String, Integer>()
                     .maximumWeightedCapacity(MAX_MSGID_CACHE).build();
 
     private MailboxMaintenance maintenance;
+    /** pending flag/tag/unread writes of the current multi-item alterTag, or null; guarded by the write lock */
+    private DbFlagBatch flagBatch;
     private volatile boolean open = false;
     private boolean galSyncMailbox = false;
     private volatile boolean requiresWriteLock = true;
+    private volatile FolderTotals folderTotals;
+
+    /**
+     * Returns the item cache budget in {@code bytesKey}, unless that is left at its default and the deprecated item
+     * count in {@code countKey} has been changed, in which case the budget is derived from the count.
+     */
+    private static long itemCacheBytes(KnownKey bytesKey, KnownKey countKey) {
+        if (bytesKey.isChanged() || !countKey.isChanged()) {
+            return bytesKey.longValue();
+        }
+        long bytes = countKey.longValue() * ITEM_CACHE_BYTES_PER_ITEM;
+        ZimbraLog.mailbox.warn("%s is deprecated, use %s instead; deriving %d bytes from %s items",
+                countKey.key(), bytesKey.key(), bytes, countKey.value());
+        return bytes;
+    }
+
     protected Mailbox(MailboxData data) {
         mId = data.id;
         mData = data;
         mData.lastChangeDate = System.currentTimeMillis();
         index = new MailboxIndex(this);
+        mItemCache = new ItemCache(this);
         // version init done in open()
         // index init done in open()
         lock = new MailboxLock(data.accountId, this);
@@ -996,6 +1013,14 @@ public class Mailbox implements MailboxStore {
         return maintenance;
     }
 
+    /**
+     * Returns the batch collecting the flag, tag and unread changes of the running operation, or null if those
+     * changes should be written immediately.
+     */
+    DbFlagBatch getFlagBatch() {
+        return flagBatch;
+    }
+
     /** Returns a {@link MailSender} object that can be used to send mail
      *  using the DataSource SMTP settings */
     public MailSender getDataSourceMailSender(DataSource ds, boolean isCalMessage) throws ServiceException {
@@ -1847,14 +1872,7 @@ public class Mailbox implements MailboxStore {
             recorder.setChangeId(getOperationChangeID());
         }
 
-        // keep a hard reference to the item cache to avoid having it GCed during the op
-        ItemCache cache = mItemCache.get();
-        if (cache == null) {
-            cache = new ItemCache(this);
-            mItemCache = new SoftReference<ItemCache>(cache);
-            ZimbraLog.cache.debug("created a new MailItem cache for mailbox " + getId());
-        }
-        currentChange().itemCache = cache;
+        currentChange().itemCache = mItemCache;
 
         // don't permit mailbox access during maintenance
         if (maintenance != null && !maintenance.canAccess()) {
@@ -2014,11 +2032,7 @@ public class Mailbox implements MailboxStore {
     }
 
     private void clearItemCache() {
-        if (currentChange().isActive()) {
-            currentChange().itemCache.clear();
-        } else {
-            mItemCache.clear();
-        }
+        mItemCache.clear();
         try {
             if (Zimbra.isAlwaysOn()) {
                 DbMailbox.incrementItemcacheCheckpoint(this);
@@ -2824,7 +2838,7 @@ public class Mailbox implements MailboxStore {
         }
         assert (currentChange().depth == 0);
 
-        ItemCache cache = mItemCache.get();
+        ItemCache cache = mItemCache;
         FolderCache folders = mFolderCache == null || Collections.disjoint(pms.changedTypes, FOLDER_TYPES) ? mFolderCache
                         : snapshotFolders();
 
@@ -2912,6 +2926,12 @@ public class Mailbox implements MailboxStore {
 
     public MailItem getItemById(OperationContext octxt, int id, MailItem.Type type, boolean fromDumpster)
                     throws ServiceException {
+        if (!fromDumpster) {
+            MailItem item = getCachedItemOptimistically(octxt, id, type);
+            if (item != null) {
+                return item;
+            }
+        }
         boolean success = false;
         try {
             // tag/folder caches are populated in beginTransaction...
@@ -2928,6 +2948,66 @@ public class Mailbox implements MailboxStore {
         return getItemById(id, type, false);
     }
 
+    /**
+     * Looks the item up in the folder, tag and item caches without taking the mailbox lock, and checks the result
+     * with {@link MailboxLock#validate(long)}.  Only the mailbox owner (or a {@code null} context) takes this path,
+     * since no ACL has to be evaluated for them.  Returns {@code null} whenever the lookup can't be answered this way,
+     * in which case the caller falls back to a regular read transaction.
+     */
+    private MailItem getCachedItemOptimistically(OperationContext octxt, int id, MailItem.Type type) {
+        if (id <= 0 || Zimbra.isAlwaysOn() || requiresWriteLock() || maintenance != null) {
+            return null;
+        }
+        Account authuser = octxt == null ? null : octxt.getAuthenticatedUser();
+        if (authuser != null && !getAccountId().equals(authuser.getId())) {
+            return null;
+        }
+        long stamp = lock.tryOptimisticRead();
+        if (stamp == 0) {
+            return null;
+        }
+        FolderCache folders = mFolderCache;
+        Map<Object, Tag> tags = mTagCache;
+        if (folders == null || tags == null) {
+            return null;
+        }
+        MailItem item = null;
+        switch (type) {
+            case UNKNOWN:
+                item = tags.get(id);
+                if (item == null) {
+                    item = folders.get(id);
+                }
+                if (item == null) {
+                    item = mItemCache.get(id);
+                }
+                break;
+            case FLAG:
+                return null;
+            case TAG:
+                item = tags.get(id);
+                break;
+            case MOUNTPOINT:
+            case SEARCHFOLDER:
+            case FOLDER:
+                item = folders.get(id);
+                break;
+            default:
+                item = mItemCache.get(id);
+                break;
+        }
+        if (item == null || !MailItem.isAcceptableType(type, MailItem.Type.of(item.mData.type))) {
+            return null;
+        }
+        if (!lock.validate(stamp)) {
+            ZimbraPerf.COUNTER_MBOX_LOCK_OPTIMISTIC_READ.increment(0);
+            return null;
+        }
+        ZimbraPerf.COUNTER_MBOX_LOCK_OPTIMISTIC_READ.increment(100);
+        logCacheActivity(id, type, item);
+        return item;
+    }
+
     // Returns true if the item in dumpster is visible to the user.
     // Item is hidden from non-admin user if it is too old or is a spam.
     private boolean isVisibleInDumpster(MailItem item) throws ServiceException {
@@ -4391,6 +4471,47 @@ public class Mailbox implements MailboxStore {
         return new ArrayList<Folder>(mFolderCache.values());
     }
 
+    /** Item and unread counts summed over every folder in the mailbox, as of one change. */
+    public static final class FolderTotals {
+        public final int changeId;
+        public final long items;
+        public final long unread;
+
+        FolderTotals(int changeId, long items, long unread) {
+            this.changeId = changeId;
+            this.items = items;
+            this.unread = unread;
+        }
+    }
+
+    /**
+     * Returns the item and unread counts of all folders combined, for query cost estimates.  The totals are cached
+     * and only summed again once the mailbox has changed.
+     */
+    public FolderTotals getFolderTotals() throws ServiceException {
+        FolderTotals totals = folderTotals;
+        if (totals != null && totals.changeId == getLastChangeID()) {
+            return totals;
+        }
+        boolean success = false;
+        try {
+            // folder cache is populated in beginTransaction...
+            beginReadTransaction("getFolderTotals", null);
+            long items = 0;
+            long unread = 0;
+            for (Folder folder : listAllFolders()) {
+                items += folder.getItemCount();
+                unread += folder.getUnreadCount();
+            }
+            totals = new FolderTotals(getLastChangeID(), items, unread);
+            success = true;
+        } finally {
+            endTransaction(success);
+        }
+        folderTotals = totals;
+        return totals;
+    }
+
     public static class FolderNode {
         public int mId;
         public String mName;
@@ -4642,6 +4763,49 @@ public class Mailbox implements MailboxStore {
         }
     }
 
+    /**
+     * Loads the message rows of all the given conversations in as few queries as possible and hands them to the
+     * cached {@link Conversation} objects, so that subsequent read-only {@link #getMessagesByConversation} calls for
+     * those conversations don't go to the database one conversation at a time.  Virtual conversations are ignored.
+     */
+    public void preloadConversationMessages(OperationContext octxt, Collection<Integer> convIds)
+            throws ServiceException {
+        Map<Integer, Conversation> convs = new HashMap<Integer, Conversation>();
+        boolean success = false;
+        try {
+            beginReadTransaction("preloadConversationMessages", octxt);
+            for (int convId : convIds) {
+                if (convId > 0 && !convs.containsKey(convId)) {
+                    Conversation conv = getConversationById(convId);
+                    if (!(conv instanceof VirtualConversation)) {
+                        convs.put(convId, conv);
+                    }
+                }
+            }
+            if (!convs.isEmpty()) {
+                Map<Integer, List<MailItem.UnderlyingData>> children =
+                        new HashMap<Integer, List<MailItem.UnderlyingData>>();
+                for (MailItem.UnderlyingData data : DbMailItem.getByParents(this, convs.keySet())) {
+                    List<MailItem.UnderlyingData> rows = children.get(data.parentId);
+                    if (rows == null) {
+                        rows = new ArrayList<MailItem.UnderlyingData>();
+                        children.put(data.parentId, rows);
+                    }
+                    rows.add(data);
+                }
+                int changeId = getLastChangeID();
+                for (Conversation conv : convs.values()) {
+                    List<MailItem.UnderlyingData> rows = children.get(conv.getId());
+                    conv.setPreloadedMessages(rows == null ?
+                            Collections.<MailItem.UnderlyingData>emptyList() : rows, changeId);
+                }
+            }
+            success = true;
+        } finally {
+            endTransaction(success);
+        }
+    }
+
     public Conversation getConversationById(OperationContext octxt, int id) throws ServiceException {
         return (Conversation) getItemById(octxt, id, MailItem.Type.CONVERSATION);
     }
@@ -7051,24 +7215,37 @@ public class Mailbox implements MailboxStore {
     // common code for the two AlterTag variants (Flag.FlagInfo vs. by tag name)
     private void alterTag(int itemIds[], MailItem.Type type, Tag tag, boolean addTag) throws ServiceException {
         MailItem[] items = getItemById(itemIds, type);
+        // containers write their children's rows directly, so only batch when every target is a leaf item
+        boolean batchable = items.length > 1;
         for (MailItem item : items) {
             if (!(item instanceof Conversation)) {
                 if (!checkItemChangeID(item) && item instanceof Tag) {
                     throw MailServiceException.MODIFY_CONFLICT();
                 }
             }
+            if (item instanceof Conversation || item instanceof Folder || item instanceof Tag) {
+                batchable = false;
+            }
         }
 
-        for (MailItem item : items) {
-            if (item == null) {
-                continue;
-            }
+        flagBatch = batchable ? new DbFlagBatch(this) : null;
+        try {
+            for (MailItem item : items) {
+                if (item == null) {
+                    continue;
+                }
 
-            if (tag.getId() == Flag.ID_UNREAD) {
-                item.alterUnread(addTag);
-            } else {
-                item.alterTag(tag, addTag);
+                if (tag.getId() == Flag.ID_UNREAD) {
+                    item.alterUnread(addTag);
+                } else {
+                    item.alterTag(tag, addTag);
+                }
+            }
+            if (flagBatch != null) {
+                flagBatch.flush();
             }
+        } finally {
+            flagBatch = null;
         }
     }
 
@@ -10215,9 +10392,9 @@ public class Mailbox implements MailboxStore {
 
     private void trimItemCache() {
         try {
-            int sizeTarget = mListeners.isEmpty() ? MAX_ITEM_CACHE_WITHOUT_LISTENERS : MAX_ITEM_CACHE_WITH_LISTENERS;
+            long budget = mListeners.isEmpty() ? MAX_ITEM_CACHE_WITHOUT_LISTENERS : MAX_ITEM_CACHE_WITH_LISTENERS;
             if (galSyncMailbox) {
-                sizeTarget = MAX_ITEM_CACHE_FOR_GALSYNC_MAILBOX;
+                budget = MAX_ITEM_CACHE_FOR_GALSYNC_MAILBOX;
             }
 
             ItemCache cache = currentChange().itemCache;
@@ -10225,30 +10402,22 @@ public class Mailbox implements MailboxStore {
                 return;
             }
 
-            int excess = cache.size() - sizeTarget;
-            if (excess <= 0) {
-                return;
-            }
-
-            // cache the overflow to avoid the Iterator's ConcurrentModificationException
-            MailItem[] overflow = new MailItem[excess];
-            int i = 0;
-            for (MailItem item : cache.values()) {
-                overflow[i++] = item;
-                if (i >= excess) {
+            // evict least recently used items until we're back under budget; note that "uncache" can cascade and
+            // take out child items
+            while (cache.getWeight() > budget) {
+                MailItem eldest = cache.eldest();
+                if (eldest == null) {
                     break;
                 }
-            }
-            // trim the excess; note that "uncache" can cascade and take out child items
-            while (--i >= 0) {
-                if (cache.size() <= sizeTarget) {
-                    return;
-                }
-
                 try {
-                    uncache(overflow[i]);
+                    uncache(eldest);
                 } catch (ServiceException e) {
                 }
+                // make sure we progress even if uncache() bailed out early
+                cache.remove(eldest);
+            }
+            if (budget > 0) {
+                ZimbraPerf.COUNTER_MBOX_ITEM_CACHE_OCCUPANCY.increment(cache.getWeight() * 100 / budget);
             }
         } catch (RuntimeException e) {
             ZimbraLog.mailbox.error("ignoring error during item cache trim", e);
@@ -10421,6 +10590,34 @@ public class Mailbox implements MailboxStore {
         }
     }
 
+    /**
+     * Stores IMAP {@code BODYSTRUCTURE}/{@code ENVELOPE} pairs rendered on demand for messages delivered before they
+     * were precomputed, so later FETCHes can skip the blob.  The data is derived from the messages themselves, so
+     * this is not logged for redo and does not bump the messages' modseq.
+     *
+     * @param structures item id to {@code BODYSTRUCTURE} and {@code ENVELOPE}
+     */
+    public void backfillImapStructures(OperationContext octxt, Map<Integer, String[]> structures)
+    throws ServiceException {
+        if (structures.isEmpty()) {
+            return;
+        }
+        boolean success = false;
+        try {
+            beginTransaction("backfillImapStructures", octxt, null);
+            for (Map.Entry<Integer, String[]> entry : structures.entrySet()) {
+                try {
+                    getMessageById(entry.getKey()).setImapStructure(entry.getValue()[0], entry.getValue()[1]);
+                } catch (NoSuchItemException nsie) {
+                    // deleted since it was fetched; nothing to backfill
+                }
+            }
+            success = true;
+        } finally {
+            endTransaction(success);
+        }
+    }
+
     protected void migrateWikiFolders() throws ServiceException {
         MigrateToDocuments migrate = new MigrateToDocuments();
         try {
@@ -23,6 +23,7 @@ import java.util.Collection;
 import java.util.Collections;
 import java.util.EnumSet;
 import java.util.HashSet;
+import java.util.Iterator;
 import java.util.List;
 import java.util.ListIterator;
 import java.util.Set;
@@ -32,6 +33,8 @@ import java.util.concurrent.Semaphore;
 import java.util.concurrent.SynchronousQueue;
 import java.util.concurrent.ThreadPoolExecutor;
 import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
 import java.util.regex.Pattern;
 
 import org.apache.lucene.analysis.Analyzer;
@@ -65,6 +68,7 @@ import com.zimbra.cs.index.LuceneFields;
 import com.zimbra.cs.index.LuceneIndex;
 import com.zimbra.cs.index.ReSortingQueryResults;
 import com.zimbra.cs.index.SearchParams;
+import com.zimbra.cs.index.SearchResultCache;
 import com.zimbra.cs.index.SortBy;
 import com.zimbra.cs.index.ZimbraAnalyzer;
 import com.zimbra.cs.index.ZimbraIndexReader.TermFieldEnumeration;
@@ -83,8 +87,8 @@ import com.zimbra.cs.util.Zimbra;
  * @author ysasaki
  */
 public final class MailboxIndex {
-    private static final long MAX_TX_BYTES = LC.zimbra_index_max_transaction_bytes.longValue();
-    private static final int MAX_TX_ITEMS = LC.zimbra_index_max_transaction_items.intValue();
+    static final long MAX_TX_BYTES = LC.zimbra_index_max_transaction_bytes.longValue();
+    static final int MAX_TX_ITEMS = LC.zimbra_index_max_transaction_items.intValue();
     private static final long FAILURE_DELAY = LC.zimbra_index_deferred_items_failure_delay.intValue() * 1000;
 
     private static final ThreadPoolExecutor INDEX_EXECUTOR = new ThreadPoolExecutor(
@@ -107,6 +111,13 @@ public final class MailboxIndex {
     // current compact-indexing operation for this mailbox, or NULL if a compact-index is not in progress.
     private volatile CompactIndexTask compactIndex;
     private volatile SetMultimap<MailItem.Type, Integer> deferredIds; // guarded by IndexHelper
+    // items whose documents are searchable but not yet committed; their index IDs are persisted once they are
+    private final Set<Integer> uncommittedIds = new HashSet<Integer>(); // guarded by this
+    // items committed by the index store whose index IDs are still to be persisted
+    private final Set<Integer> committedIds = new HashSet<Integer>(); // guarded by this
+    // bumped on every change to the index, so that cached search results read before it are not served
+    private final AtomicLong indexGeneration = new AtomicLong();
+    private final SearchResultCache resultCache = new SearchResultCache();
     boolean indexingSuspended = false;
     int numMaybeIndexDeferredItemsCalls = 0;
 
@@ -138,6 +149,7 @@ public final class MailboxIndex {
 
     void open() throws ServiceException {
         indexStore = IndexStore.getFactory().getIndexStore(mailbox);
+        indexStore.setCommitListener(new CommitListener());
     }
 
     public final IndexStore getIndexStore() {
@@ -173,7 +185,19 @@ public final class MailboxIndex {
                 ZimbraLog.index.error("Failed to index deferred items", e);
             }
         }
-        return search(query);
+
+        String cacheKey = SearchResultCache.isEnabled() ? SearchResultCache.getKey(query) : null;
+        if (cacheKey == null) {
+            return search(query);
+        }
+        // read before running the query, so that a change made while it runs invalidates what it returns
+        int changeId = mailbox.getLastChangeID();
+        long generation = indexGeneration.get();
+        ZimbraQueryResults results = resultCache.get(cacheKey, mailbox, changeId, generation, query);
+        if (results == null) {
+            results = resultCache.put(cacheKey, mailbox, changeId, generation, query, search(query));
+        }
+        return results;
     }
 
     public ZimbraQueryResults search(OperationContext octxt, String queryString, Set<MailItem.Type> types,
@@ -322,6 +346,7 @@ public final class MailboxIndex {
             cancelReIndex();
         }
         indexStore.deleteIndex();
+        indexGeneration.incrementAndGet();
     }
 
     /**
@@ -578,6 +603,8 @@ public final class MailboxIndex {
                         indexStore.deleteIndex();
                     } catch (IOException e) {
                         throw ServiceException.FAILURE("Failed to delete index before re-index", e);
+                    } finally {
+                        indexGeneration.incrementAndGet();
                     }
                     clearDeferredIds();
                 } finally {
@@ -716,7 +743,8 @@ public final class MailboxIndex {
     /**
      * Index a potentially very large list of {@link MailItem}s. Iterate through the list of items, fetch each one and
      * call generateIndexData(). Buffer the items, IndexData into a chunk and when the chunk gets sufficiently large,
-     * run a Mailbox transaction to actually do the indexing
+     * run a Mailbox transaction to actually do the indexing. Re-indexing is handed to {@link ReIndexPipeline} instead,
+     * which overlaps these steps.
      *
      * @param ids item IDs to index
      * @param status progress will be written to the status
@@ -729,6 +757,10 @@ public final class MailboxIndex {
         if (ids.isEmpty()) {
             return;
         }
+        if (status instanceof ReIndexStatus && ReIndexPipeline.isEnabled()) {
+            new ReIndexPipeline(mailbox, this, (ReIndexStatus) status).run(ids);
+            return;
+        }
 
         // we re-index 'chunks' of items -- up to a certain size or count
         List<Mailbox.IndexItemEntry> chunk = new ArrayList<Mailbox.IndexItemEntry>();
@@ -741,74 +773,114 @@ public final class MailboxIndex {
             // Fetch the item and generate the list of Lucene documents to index. Do this without holding the Mailbox
             // lock. Once we've accumulated a "chunk" of items, do a mailbox transaction to actually add them to the
             // index.
-            ZimbraLog.index.debug("Tokenizing id=%d", id);
-            MailItem item = null;
-            try {
-                mailbox.beginReadTransaction("IndexItemList-Fetch", null);
-                item = mailbox.getItemById(id, MailItem.Type.UNKNOWN, false);
-            } catch (MailServiceException.NoSuchItemException e) { // fallback to dumpster
-                try {
-                    item = mailbox.getItemById(id, MailItem.Type.UNKNOWN, true);
-                } catch (MailServiceException.NoSuchItemException again) { // The item has just been deleted.
-                    ZimbraLog.index.debug("deferred item no longer exist id=%d", id);
-                    removeDeferredId(id);
-                    continue;
-                }
-            } catch (MailServiceException e) {
-                // fetch without metadata because reindex will regenerate metadata
-                if (MailServiceException.INVALID_METADATA.equals(e.getCode()) && isReIndexInProgress()) {
-                    UnderlyingData ud = DbMailItem.getById(mailbox, id, MailItem.Type.UNKNOWN, false);
-                    ud.metadata = null; // ignore corrupted metadata
-                    item = mailbox.getItem(ud);
-                } else {
-                    throw e;
-                }
-            } catch (Exception e) {
-                ZimbraLog.index.warn("Failed to fetch deferred item id=%d", id, e);
-                status.addFailed(1);
+            MailItem item = fetchItem(id, status);
+            if (item == null) {
                 continue;
-            } finally {
-                mailbox.endTransaction(item != null);
             }
-            try {
-                chunk.add(new Mailbox.IndexItemEntry(item, item.generateIndexData()));
-            } catch (MailItem.TemporaryIndexingException e) {
-                ZimbraLog.index.warn("Temporary index failure id=%d", id, e);
-                lastFailedTime = System.currentTimeMillis();
-                status.addFailed(1);
+            Mailbox.IndexItemEntry entry = extract(item, status);
+            if (entry == null) {
                 continue;
             }
+            chunk.add(entry);
             chunkByteSize += item.getSize();
 
             if (i == ids.size() || chunkByteSize > MAX_TX_BYTES || chunk.size() >= MAX_TX_ITEMS) {
                 // we have a chunk of items and their corresponding index data -- add them to the index
-                try {
-                    ZimbraLog.index.debug("Batch progress %d/%d", i, ids.size());
+                ZimbraLog.index.debug("Batch progress %d/%d", i, ids.size());
+                commitChunk(chunk, status);
+                chunkByteSize = 0;
+            }
+        }
+        if (!chunk.isEmpty()) { // the last items failed
+            commitChunk(chunk, status);
+        }
+    }
 
-                    if (status.isCancelled()) {
-                        throw ServiceException.INTERRUPTED("cancelled");
-                    }
+    /**
+     * Fetches an item to index, from the dumpster if need be.
+     *
+     * @return the item, or null if it has been deleted or failed to load
+     */
+    MailItem fetchItem(int id, BatchStatus status) throws ServiceException {
+        ZimbraLog.index.debug("Tokenizing id=%d", id);
+        MailItem item = null;
+        try {
+            mailbox.beginReadTransaction("IndexItemList-Fetch", null);
+            item = mailbox.getItemById(id, MailItem.Type.UNKNOWN, false);
+        } catch (MailServiceException.NoSuchItemException e) { // fallback to dumpster
+            try {
+                item = mailbox.getItemById(id, MailItem.Type.UNKNOWN, true);
+            } catch (MailServiceException.NoSuchItemException again) { // The item has just been deleted.
+                ZimbraLog.index.debug("deferred item no longer exist id=%d", id);
+                removeDeferredId(id);
+                return null;
+            }
+        } catch (MailServiceException e) {
+            // fetch without metadata because reindex will regenerate metadata
+            if (MailServiceException.INVALID_METADATA.equals(e.getCode()) && isReIndexInProgress()) {
+                UnderlyingData ud = DbMailItem.getById(mailbox, id, MailItem.Type.UNKNOWN, false);
+                ud.metadata = null; // ignore corrupted metadata
+                item = mailbox.getItem(ud);
+            } else {
+                throw e;
+            }
+        } catch (Exception e) {
+            ZimbraLog.index.warn("Failed to fetch deferred item id=%d", id, e);
+            status.addFailed(1);
+            return null;
+        } finally {
+            mailbox.endTransaction(item != null);
+        }
+        return item;
+    }
 
-                    try {
-                        boolean success = false;
-                        try {
-                            mailbox.beginTransaction("IndexItemList-Commit", null);
-                            for (Mailbox.IndexItemEntry entry : chunk) {
-                                mailbox.addIndexItemToCurrentChange(entry);
-                            }
-                            success = true;
-                        } finally {
-                            mailbox.endTransaction(success);
-                        }
-                    } catch (ServiceException e) {
-                        ZimbraLog.index.warn("Failed to index chunk=%s", chunk, e);
-                        status.addFailed(chunk.size());
+    /**
+     * Generates the index documents of an item. Must be called without holding the mailbox lock.
+     *
+     * @return the item and its documents, or null after a temporary failure
+     */
+    Mailbox.IndexItemEntry extract(MailItem item, BatchStatus status) {
+        try {
+            Mailbox.IndexItemEntry entry = new Mailbox.IndexItemEntry(item, item.generateIndexData());
+            status.addExtracted(1);
+            return entry;
+        } catch (MailItem.TemporaryIndexingException e) {
+            ZimbraLog.index.warn("Temporary index failure id=%d", item.getId(), e);
+            lastFailedTime = System.currentTimeMillis();
+            status.addFailed(1);
+            return null;
+        }
+    }
+
+    /**
+     * Adds a chunk of items and their index documents to the index in one mailbox transaction, then clears the chunk.
+     *
+     * @throws ServiceException {@link ServiceException#INTERRUPTED} if {@link #cancelReIndex()} is called
+     */
+    void commitChunk(List<Mailbox.IndexItemEntry> chunk, BatchStatus status) throws ServiceException {
+        try {
+            if (status.isCancelled()) {
+                throw ServiceException.INTERRUPTED("cancelled");
+            }
+
+            try {
+                boolean success = false;
+                try {
+                    mailbox.beginTransaction("IndexItemList-Commit", null);
+                    for (Mailbox.IndexItemEntry entry : chunk) {
+                        mailbox.addIndexItemToCurrentChange(entry);
                     }
+                    success = true;
                 } finally {
-                    chunk.clear();
-                    chunkByteSize = 0;
+                    mailbox.endTransaction(success);
                 }
+                status.addIndexed(chunk.size());
+            } catch (ServiceException e) {
+                ZimbraLog.index.warn("Failed to index chunk=%s", chunk, e);
+                status.addFailed(chunk.size());
             }
+        } finally {
+            chunk.clear();
         }
     }
 
@@ -860,6 +932,12 @@ public final class MailboxIndex {
                 indexer.addDocument(item.getFolder(), item, docs);
             } finally {
                 indexer.close();
+                indexGeneration.incrementAndGet();
+            }
+            if (indexer.getFailedIds().contains(itemId)) { // leave it to deferred indexing
+                ZimbraLog.index.warn("Failed to index item=%d", itemId);
+                lastFailedTime = System.currentTimeMillis();
+                add(item);
             }
         } catch (Exception e) {
             ZimbraLog.index.warn("Skipping indexing; Unable to parse message %d", itemId, e);
@@ -899,6 +977,8 @@ public final class MailboxIndex {
             } catch (IOException e) {
                 ZimbraLog.index.error("Failed to close Indexer", e);
                 return;
+            } finally {
+                indexGeneration.incrementAndGet();
             }
         }
         removeDeferredId(ids);
@@ -956,13 +1036,33 @@ public final class MailboxIndex {
             } catch (IOException e) {
                 ZimbraLog.index.error("Failed to close Indexer", e);
                 return;
+            } finally {
+                indexGeneration.incrementAndGet();
+            }
+        }
+
+        Collection<Integer> failed = indexer.getFailedIds();
+        if (!failed.isEmpty()) { // leave them deferred, to be retried
+            ZimbraLog.index.warn("Failed to index items=%s", failed);
+            lastFailedTime = System.currentTimeMillis();
+            for (Iterator<MailItem> itr = indexed.iterator(); itr.hasNext();) {
+                if (failed.contains(itr.next().getId())) {
+                    itr.remove();
+                }
             }
         }
 
-        List<Integer> ids = new ArrayList<Integer>(indexed.size());
+        // documents not committed yet stay deferred in the database, so that they get indexed again after a crash
+        Collection<Integer> uncommitted = indexer.getUncommittedIds();
+        uncommittedIds.addAll(uncommitted);
+        List<Integer> ids = new ArrayList<Integer>(indexed.size() + committedIds.size());
         for (MailItem item : indexed) {
-            ids.add(item.getId());
+            if (!uncommitted.contains(item.getId())) {
+                ids.add(item.getId());
+            }
         }
+        ids.addAll(committedIds);
+        committedIds.clear();
         DbMailItem.setIndexIds(mailbox.getOperationConnection(), mailbox, ids);
         for (MailItem item : indexed) {
             item.mData.indexId = item.getId();
@@ -970,6 +1070,72 @@ public final class MailboxIndex {
         }
     }
 
+    /**
+     * Persists the index IDs of the items committed since the last {@link #add(List)}.
+     */
+    private void persistCommittedIds() {
+        List<Integer> ids;
+        boolean success = false;
+        try {
+            mailbox.beginTransaction("IndexCommitted", null);
+            synchronized (this) {
+                ids = new ArrayList<Integer>(committedIds);
+                committedIds.clear();
+            }
+            try {
+                DbMailItem.setIndexIds(mailbox.getOperationConnection(), mailbox, ids);
+                success = true;
+            } finally {
+                if (!success) { // leave them to the next add
+                    synchronized (this) {
+                        committedIds.addAll(ids);
+                    }
+                }
+            }
+        } catch (ServiceException e) {
+            ZimbraLog.index.warn("Failed to persist committed index IDs", e);
+        } finally {
+            try {
+                mailbox.endTransaction(success);
+            } catch (ServiceException e) {
+                ZimbraLog.index.warn("Failed to persist committed index IDs", e);
+            }
+        }
+    }
+
+    /**
+     * Persists the index IDs of items as the index store commits them. Called without holding the index store's lock,
+     * but possibly from {@link #add(List)} itself, which persists them in its own transaction.
+     */
+    private final class CommitListener implements IndexStore.CommitListener {
+        @Override
+        public void committed(Collection<Integer> ids) {
+            synchronized (MailboxIndex.this) {
+                for (int id : ids) {
+                    if (uncommittedIds.remove(id)) { // not changed since
+                        committedIds.add(id);
+                    }
+                }
+                if (committedIds.isEmpty()) {
+                    return;
+                }
+            }
+            if (!mailbox.lock.isWriteLockedByCurrentThread()) {
+                persistCommittedIds();
+            }
+        }
+
+        @Override
+        public void failed(Collection<Integer> ids) {
+            ZimbraLog.index.warn("Failed to commit items=%s", ids);
+            synchronized (MailboxIndex.this) {
+                uncommittedIds.removeAll(ids);
+                clearDeferredIds(); // reloaded from the database, where they are still deferred
+            }
+            lastFailedTime = System.currentTimeMillis();
+        }
+    }
+
     /**
      * Primes the index for the fastest available search if useful to the underlying IndexStore.
      * This is a very expensive operation especially on large index.
@@ -1224,6 +1390,7 @@ public final class MailboxIndex {
             } finally {
                 conn.closeQuietly();
             }
+            deferredIds.values().removeAll(uncommittedIds); // already searchable
         }
         return deferredIds;
     }
@@ -1261,6 +1428,7 @@ public final class MailboxIndex {
             default:
                 break;
         }
+        uncommittedIds.remove(item.getId()); // the pending commit no longer makes it up to date
 
         if (deferredIds == null) {
             return;
@@ -1305,9 +1473,11 @@ public final class MailboxIndex {
     /**
      * Batch index progress information. The counters are not thread safe.
      */
-    private static class BatchStatus {
+    static class BatchStatus {
         private int total = -1;
         private int processed = 0;
+        private int extracted = 0;
+        private int indexed = 0;
         private int failed = 0;
 
         void setTotal(int value) {
@@ -1318,6 +1488,14 @@ public final class MailboxIndex {
             processed += delta;
         }
 
+        void addExtracted(int delta) {
+            extracted += delta;
+        }
+
+        void addIndexed(int delta) {
+            indexed += delta;
+        }
+
         void addFailed(int delta) {
             failed += delta;
         }
@@ -1326,10 +1504,27 @@ public final class MailboxIndex {
             return total;
         }
 
+        /**
+         * Returns the number of items fetched so far.
+         */
         public int getProcessed() {
             return processed;
         }
 
+        /**
+         * Returns the number of items whose index documents have been generated so far.
+         */
+        public int getExtracted() {
+            return extracted;
+        }
+
+        /**
+         * Returns the number of items written to the index so far.
+         */
+        public int getIndexed() {
+            return indexed;
+        }
+
         public int getFailed() {
             return failed;
         }
@@ -1343,21 +1538,26 @@ public final class MailboxIndex {
             return MoreObjects.toStringHelper(this)
                 .add("total", getTotal())
                 .add("processed", getProcessed())
+                .add("extracted", getExtracted())
+                .add("indexed", getIndexed())
                 .add("failed", getFailed())
                 .toString();
         }
     }
 
     /**
-     * Re-index progress information. The counters are thread safe.
+     * Re-index progress information. The counters are thread safe, as the stages of {@link ReIndexPipeline} update
+     * them concurrently.
      */
     public static final class ReIndexStatus extends BatchStatus {
         private volatile int total = -1;
-        private volatile int processed = 0;
-        private volatile int failed = 0;
+        private final AtomicInteger processed = new AtomicInteger();
+        private final AtomicInteger extracted = new AtomicInteger();
+        private final AtomicInteger indexed = new AtomicInteger();
+        private final AtomicInteger failed = new AtomicInteger();
         private volatile boolean cancel = false;
 
-        private ReIndexStatus() {
+        ReIndexStatus() {
         }
 
         @Override
@@ -1367,15 +1567,26 @@ public final class MailboxIndex {
 
         @Override
         void addProcessed(int delta) {
-            processed += delta;
-            if (processed % 2000 == 0) {
-                ZimbraLog.index.info("Re-index progress %d/%d", processed, total);
+            int value = processed.addAndGet(delta);
+            if (value / 2000 != (value - delta) / 2000) {
+                ZimbraLog.index.info("Re-index progress %d/%d,extracted=%d,indexed=%d",
+                        value, total, extracted.get(), indexed.get());
             }
         }
 
+        @Override
+        void addExtracted(int delta) {
+            extracted.addAndGet(delta);
+        }
+
+        @Override
+        void addIndexed(int delta) {
+            indexed.addAndGet(delta);
+        }
+
         @Override
         void addFailed(int delta) {
-            failed += delta;
+            failed.addAndGet(delta);
         }
 
         @Override
@@ -1385,12 +1596,22 @@ public final class MailboxIndex {
 
         @Override
         public int getProcessed() {
-            return processed;
+            return processed.get();
+        }
+
+        @Override
+        public int getExtracted() {
+            return extracted.get();
+        }
+
+        @Override
+        public int getIndexed() {
+            return indexed.get();
         }
 
         @Override
         public int getFailed() {
-            return failed;
+            return failed.get();
         }
 
         void cancel() {
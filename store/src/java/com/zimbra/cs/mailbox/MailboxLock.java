@@ -19,6 +19,8 @@ package com.zimbra.cs.mailbox;
 import java.util.EmptyStackException;
 import java.util.Stack;
 import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.StampedLock;
 
 import org.apache.curator.framework.recipes.locks.InterProcessSemaphoreMutex;
 
@@ -39,13 +41,21 @@ import com.zimbra.cs.zookeeper.CuratorManager;
  * thrown. {@code Mailbox.beginTransaction()}) internally acquires the mailbox lock and it's released by
  * {@code Mailbox.endTransaction()}, so that you don't have to explicitly call {@link #lock()} and {@link #release()}
  * wrapping a mailbox transaction.
- *
+ * <p>
+ * Short read-only lookups can skip the read lock altogether: {@link #tryOptimisticRead()} hands out a stamp that
+ * {@link #validate(long)} confirms afterwards, and any write hold taken in between invalidates it.
  */
 public final class MailboxLock {
     private final ZLock zLock = DebugConfig.debugMailboxLock ? new DebugZLock() : new ZLock();
     private InterProcessSemaphoreMutex dLock = null;
     private final Stack<Boolean> lockStack = new Stack<Boolean>();
     private Mailbox mbox;
+    /** write-held for the duration of every outermost write hold on {@link #zLock}; never contended */
+    private final StampedLock writeStamp = new StampedLock();
+    /** stamp of the current outermost write hold; only touched by the write lock owner */
+    private long writeStampToken;
+    private final AtomicLong contentionCount = new AtomicLong();
+    private final AtomicLong contentionWaitMs = new AtomicLong();
 
     public MailboxLock(String id, Mailbox mbox) {
         if (Zimbra.isAlwaysOn()) {
@@ -92,6 +102,37 @@ public final class MailboxLock {
         return !isWriteLockedByCurrentThread() && zLock.getReadHoldCount() == 0;
     }
 
+    /**
+     * Returns a stamp for a lock-free read of mailbox state, or zero if a writer currently holds the lock.  Whatever
+     * was read may only be trusted if {@link #validate(long)} returns {@code true} for the stamp afterwards; otherwise
+     * the caller has to redo the read under {@link #lock(boolean)}.
+     */
+    public long tryOptimisticRead() {
+        return writeStamp.tryOptimisticRead();
+    }
+
+    /** Returns whether no write hold has been taken since the stamp was issued by {@link #tryOptimisticRead()}. */
+    public boolean validate(long stamp) {
+        return stamp != 0 && writeStamp.validate(stamp);
+    }
+
+    /** Number of times a thread found this lock held and had to wait for it. */
+    public long getContentionCount() {
+        return contentionCount.get();
+    }
+
+    /** Total time, in milliseconds, threads spent waiting for this lock after finding it held. */
+    public long getContentionWaitMs() {
+        return contentionWaitMs.get();
+    }
+
+    private void pushHold(boolean write) {
+        lockStack.push(write);
+        if (write && zLock.getWriteHoldCount() == 1) {
+            writeStampToken = writeStamp.writeLock();
+        }
+    }
+
     /**
      * Acquires the lock.
      *
@@ -168,7 +209,7 @@ public final class MailboxLock {
                     promote();
                     return;
                 }
-                lockStack.push(write);
+                pushHold(write);
                 try {
                     acquireDistributedLock(write);
                 } catch (ServiceException e) {
@@ -191,13 +232,21 @@ public final class MailboxLock {
                 throw e;
             }
             // Wait for the lock up to the timeout.
-            if (tryLockWithTimeout(write)) {
+            contentionCount.incrementAndGet();
+            long waitStart = System.currentTimeMillis();
+            boolean acquired;
+            try {
+                acquired = tryLockWithTimeout(write);
+            } finally {
+                contentionWaitMs.addAndGet(System.currentTimeMillis() - waitStart);
+            }
+            if (acquired) {
                 if (mbox.requiresWriteLock() && !isWriteLockedByCurrentThread()) {
                     //writer finished a purge while we waited
                     promote();
                     return;
                 }
-                lockStack.push(write);
+                pushHold(write);
                 try {
                     acquireDistributedLock(write);
                 } catch (ServiceException e) {
@@ -236,6 +285,9 @@ public final class MailboxLock {
         releaseDistributedLock(write);
         if (write) {
             assert(zLock.getWriteHoldCount() > 0);
+            if (zLock.getWriteHoldCount() == 1) {
+                writeStamp.unlockWrite(writeStampToken);
+            }
             zLock.writeLock().unlock();
         } else {
             zLock.readLock().unlock();
@@ -26,7 +26,7 @@ public final class MailboxMaintenance {
 
     private final String accountId;
     private final int mailboxId;
-    private Mailbox mailbox;
+    private volatile Mailbox mailbox;
     private List<Thread> allowedThreads;
     private boolean nestedAllowed = false;
     private boolean inner = false;
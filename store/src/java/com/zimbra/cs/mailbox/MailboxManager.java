@@ -18,15 +18,18 @@ package com.zimbra.cs.mailbox;
 
 import java.lang.ref.SoftReference;
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.Collection;
-import java.util.HashMap;
 import java.util.HashSet;
+import java.util.Iterator;
 import java.util.LinkedHashMap;
 import java.util.List;
 import java.util.Map;
 import java.util.Set;
 import java.util.concurrent.ConcurrentHashMap;
 import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.ReentrantLock;
 
 import com.google.common.annotations.VisibleForTesting;
 import com.google.common.base.Preconditions;
@@ -143,7 +146,8 @@ public class MailboxManager {
 
     /** Maps account IDs (<code>String</code>s) to mailbox IDs
      *  (<code>Integer</code>s).  <i>Every</i> mailbox in existence on the
-     *  server appears in this mapping. */
+     *  server appears in this mapping.  Reads are lock-free; writers that
+     *  need check-then-act semantics still synchronize on the manager. */
     private Map<String, Integer> mailboxIds;
 
     /**
@@ -156,6 +160,10 @@ public class MailboxManager {
      * Mailboxes are faulted into memory as needed, but may drop from memory when the SoftReference expires due to
      * memory pressure combined with a lack of outstanding references to the {@link Mailbox}.  Only one {@link Mailbox}
      * per user is cached, and only that {@link Mailbox} can process user requests.
+     * <p>
+     * Lookups do not take the manager lock.  Anything that installs or replaces an entry (mailbox creation, the
+     * maintenance handshake, deletion) still synchronizes on the manager so that the re-check in
+     * {@link #getMailboxById(int, FetchMode, boolean)} sees a consistent view.
      */
     private MailboxMap cache;
 
@@ -164,7 +172,7 @@ public class MailboxManager {
         synchronized (this) {
             try {
                 conn = DbPool.getConnection();
-                mailboxIds = DbMailbox.listMailboxes(conn, this);
+                mailboxIds = new ConcurrentHashMap<String, Integer>(DbMailbox.listMailboxes(conn, this));
                 cache = createCache();
             } finally {
                 DbPool.quietClose(conn);
@@ -356,10 +364,7 @@ public class MailboxManager {
         if (accountId == null)
             throw new IllegalArgumentException();
 
-        Integer mailboxKey;
-        synchronized (this) {
-            mailboxKey = mailboxIds.get(accountId.toLowerCase());
-        }
+        Integer mailboxKey = mailboxIds.get(accountId.toLowerCase());
         if (mailboxKey != null) {
             if (DebugConfig.mockMultiserverInstall)
                 lookupAccountWithHostCheck(accountId, skipMailHostCheck);
@@ -370,9 +375,7 @@ public class MailboxManager {
 
         // auto-create the mailbox if this is the right host...
         Account account = lookupAccountWithHostCheck(accountId, skipMailHostCheck);
-        synchronized (this) {
-            mailboxKey = mailboxIds.get(accountId.toLowerCase());
-        }
+        mailboxKey = mailboxIds.get(accountId.toLowerCase());
         if (mailboxKey != null)
             return getMailboxById(mailboxKey, fetchMode, skipMailHostCheck);
         else
@@ -439,6 +442,20 @@ public class MailboxManager {
         return getMailboxById(mailboxId, FetchMode.DO_NOT_AUTOCREATE, skipMailHostCheck);
     }
 
+    /** Returns the <code>Mailbox</code> with the given id, or <code>null</code>
+     *  if <code>fetchMode</code> is <code>FetchMode.ONLY_IF_CACHED</code> and
+     *  the mailbox isn't loaded.  Background tasks use that mode so as not to
+     *  load mailboxes nobody is using.
+     *
+     * @param mailboxId  The id of the mailbox we want.
+     * @param fetchMode  <code>FetchMode.ONLY_IF_CACHED</code> or
+     *                   <code>FetchMode.DO_NOT_AUTOCREATE</code>
+     * @return The requested <code>Mailbox</code> object, or <code>null</code>.
+     * @throws ServiceException  see {@link #getMailboxById(int)} */
+    public Mailbox getMailboxById(int mailboxId, FetchMode fetchMode) throws ServiceException {
+        return getMailboxById(mailboxId, fetchMode, false);
+    }
+
     protected Mailbox getMailboxById(int mailboxId, FetchMode fetchMode, boolean skipMailHostCheck)
     throws ServiceException {
         // see bug 19088 - we do NOT want to call this while holding the mgr lock, because
@@ -451,13 +468,11 @@ public class MailboxManager {
         long startTime = ZimbraPerf.STOPWATCH_MBOX_GET.start();
 
         Mailbox mbox = null;
-        synchronized (this) {
-            // check to see if the mailbox has already been cached
-            Object cached = retrieveFromCache(mailboxId, true);
-            if (cached instanceof Mailbox) {
-                ZimbraPerf.COUNTER_MBOX_CACHE.increment(100);
-                mbox = (Mailbox) cached;
-            }
+        // check to see if the mailbox has already been cached; this does not take the manager lock
+        Object cached = retrieveFromCache(mailboxId, true);
+        if (cached instanceof Mailbox) {
+            cache.recordHit(mailboxId);
+            mbox = (Mailbox) cached;
         }
 
         if (fetchMode == FetchMode.ONLY_IF_CACHED && (mbox == null || !mbox.isOpen())) {
@@ -466,7 +481,7 @@ public class MailboxManager {
         }
 
         if (mbox == null) { // not found in cache
-            ZimbraPerf.COUNTER_MBOX_CACHE.increment(0);
+            cache.recordMiss(mailboxId);
             MailboxData data;
             DbConnection conn = DbPool.getConnection();
             try {
@@ -497,7 +512,7 @@ public class MailboxManager {
 
             synchronized (this) {
                 // avoid the race condition by re-checking the cache and using that data (if any)
-                Object cached = retrieveFromCache(mailboxId, false);
+                cached = retrieveFromCache(mailboxId, false);
                 if (cached instanceof Mailbox) {
                     mbox = (Mailbox) cached;
                 } else {
@@ -543,7 +558,7 @@ public class MailboxManager {
     /** @return A list of *hard references* to all currently-loaded mailboxes which are not
      *     .   in MAINTENANCE mode.  Caller must be careful to not hang onto this list for
      *         very long or else mailboxes will not be purged. */
-    public synchronized List<Mailbox> getAllLoadedMailboxes() {
+    public List<Mailbox> getAllLoadedMailboxes() {
         List<Mailbox> mboxes = new ArrayList<Mailbox>(cache.size());
         for (Object o : cache.values()) {
             if (o instanceof Mailbox) {
@@ -561,7 +576,7 @@ public class MailboxManager {
     /**
      * Returns the number of hard references to currently-loaded mailboxes, either in MAINTENANCE mode or not.
      */
-    public synchronized int getCacheSize() {
+    public int getCacheSize() {
         int count = 0;
         for (Object o : cache.values()) {
             if (o instanceof Mailbox || o instanceof MailboxMaintenance) {
@@ -576,7 +591,7 @@ public class MailboxManager {
      * that one of the {@link Listener} APIs be called for this mailbox at some point in the future, if this mailbox is
      * ever accessed.
      */
-    public synchronized boolean isMailboxLoadedAndAvailable(int mailboxId) {
+    public boolean isMailboxLoadedAndAvailable(int mailboxId) {
         Object cached = cache.get(mailboxId);
         if (cached == null) {
             return false;
@@ -589,24 +604,23 @@ public class MailboxManager {
     }
 
     private Object retrieveFromCache(int mailboxId, boolean trackGC) throws MailServiceException {
-        synchronized (this) {
-            Object cached = cache.get(mailboxId, trackGC);
-            if (cached instanceof MailboxMaintenance) {
-                MailboxMaintenance maintenance = (MailboxMaintenance) cached;
-                if (!maintenance.canAccess()) {
-                    if (isMailboxLockedOut(maintenance.getAccountId())) {
-                        throw MailServiceException.MAINTENANCE(mailboxId, "mailbox locked out for maintenance");
-                    } else {
-                        throw MailServiceException.MAINTENANCE(mailboxId);
-                    }
-                }
-                if (maintenance.getMailbox() != null) {
-                    return maintenance.getMailbox();
+        Object cached = cache.get(mailboxId, trackGC);
+        if (cached instanceof MailboxMaintenance) {
+            MailboxMaintenance maintenance = (MailboxMaintenance) cached;
+            if (!maintenance.canAccess()) {
+                if (isMailboxLockedOut(maintenance.getAccountId())) {
+                    throw MailServiceException.MAINTENANCE(mailboxId, "mailbox locked out for maintenance");
+                } else {
+                    throw MailServiceException.MAINTENANCE(mailboxId);
                 }
             }
-            // if we've retrieved NULL or a Mailbox or an accessible lock, return it
-            return cached;
+            Mailbox mbox = maintenance.getMailbox();
+            if (mbox != null) {
+                return mbox;
+            }
         }
+        // if we've retrieved NULL or a Mailbox or an accessible lock, return it
+        return cached;
     }
 
     /**
@@ -620,7 +634,7 @@ public class MailboxManager {
         return new ExternalVirtualMailbox(data);
     }
 
-    protected synchronized void cacheAccount(String accountId, int mailboxId) {
+    protected void cacheAccount(String accountId, int mailboxId) {
         mailboxIds.put(accountId.toLowerCase(), Integer.valueOf(mailboxId));
     }
 
@@ -667,9 +681,8 @@ public class MailboxManager {
                 ZimbraLog.mailbox.debug("maintenance ended with wrong object. passed %s; expected %s", maintenance, obj);
                 throw MailServiceException.MAINTENANCE(maintenance.getMailboxId(), "attempting to end maintenance with wrong object");
             }
-            // start by removing the lock from the Mailbox object cache
-            cache.remove(maintenance.getMailboxId());
-
+            // the lock is replaced (or removed) in a single step below so that lock-free readers never observe
+            // an empty slot and race to instantiate a second Mailbox for the same account
             Mailbox mbox = maintenance.getMailbox();
             if (success) {
                 // XXX: don't recall the rationale for re-setting this...
@@ -679,6 +692,7 @@ public class MailboxManager {
                     assert(maintenance == mbox.getMaintenance() || mbox.getMaintenance() == null); // restore case
 
                     if (removeFromCache) {
+                        cache.remove(maintenance.getMailboxId());
                         mbox.purge(MailItem.Type.UNKNOWN);
                         // We're going to let the Mailbox drop out of the cache and eventually get GC'd.
                         // Some immediate cleanup is necessary though.
@@ -697,8 +711,11 @@ public class MailboxManager {
                         }
                     }
                     availableMailbox = mbox;
+                } else {
+                    cache.remove(maintenance.getMailboxId());
                 }
             } else {
+                cache.remove(maintenance.getMailboxId());
                 // on failed maintenance, mark the Mailbox object as off-limits to everyone
                 if (mbox != null) {
                     mbox.endMaintenance(success);
@@ -717,9 +734,7 @@ public class MailboxManager {
      * @return
      */
     public int getMailboxCount() {
-        synchronized (this) {
-            return mailboxIds.size();
-        }
+        return mailboxIds.size();
     }
 
 
@@ -728,14 +743,12 @@ public class MailboxManager {
      *  not the same as the set of mailboxes for accounts whose
      *  <code>zimbraMailHost</code> LDAP attribute points to this server. */
     public int[] getMailboxIds() {
+        List<Integer> col = new ArrayList<Integer>(mailboxIds.values());
+        int[] ids = new int[col.size()];
         int i = 0;
-        synchronized (this) {
-            Collection<Integer> col = mailboxIds.values();
-            int[] mailboxIds = new int[col.size()];
-            for (int id : col)
-                mailboxIds[i++] = id;
-            return mailboxIds;
-        }
+        for (int id : col)
+            ids[i++] = id;
+        return ids;
     }
 
     public Set<Integer> getPurgePendingMailboxes(long time) throws ServiceException {
@@ -754,14 +767,8 @@ public class MailboxManager {
      *  the same as the set of accounts whose <code>zimbraMailHost</code> LDAP
      *  attribute points to this server.*/
     public String[] getAccountIds() {
-        int i = 0;
-        synchronized (this) {
-            Set<String> set = mailboxIds.keySet();
-            String[] accountIds = new String[set.size()];
-            for (String o : set)
-                accountIds[i++] = o;
-            return accountIds;
-        }
+        Set<String> set = mailboxIds.keySet();
+        return set.toArray(new String[set.size()]);
     }
 
 
@@ -771,10 +778,7 @@ public class MailboxManager {
      * @return
      */
     public int lookupMailboxId(String accountId) {
-        Integer v;
-        synchronized (this) {
-            v = mailboxIds.get(accountId);
-        }
+        Integer v = mailboxIds.get(accountId);
         return v != null ? v.intValue() : -1;
     }
 
@@ -789,16 +793,14 @@ public class MailboxManager {
      *        the database; a SQLException is encapsulated</ul> */
     public Map<String, Long> getMailboxSizes(List<NamedEntry> accounts) throws ServiceException {
         List<Integer> requested;
-        synchronized (this) {
-            if (accounts == null) {
-                requested = new ArrayList<Integer>(mailboxIds.values());
-            } else {
-                requested = new ArrayList<Integer>(accounts.size());
-                for (NamedEntry account : accounts) {
-                    Integer mailboxId = mailboxIds.get(account.getId());
-                    if (mailboxId != null)
-                        requested.add(mailboxId);
-                }
+        if (accounts == null) {
+            requested = new ArrayList<Integer>(mailboxIds.values());
+        } else {
+            requested = new ArrayList<Integer>(accounts.size());
+            for (NamedEntry account : accounts) {
+                Integer mailboxId = mailboxIds.get(account.getId());
+                if (mailboxId != null)
+                    requested.add(mailboxId);
             }
         }
 
@@ -962,12 +964,12 @@ public class MailboxManager {
         StringBuilder sb = new StringBuilder();
         sb.append("MAILBOX CACHE DUMPS\n");
         sb.append("----------------------------------------------------------------------\n");
-        synchronized (this) {
-            for (Map.Entry<String, Integer> entry : mailboxIds.entrySet())
-                sb.append("1) key=" + entry.getKey() + " (hash=" + entry.getKey().hashCode() + "); val=" + entry.getValue() + "\n");
-            for (Map.Entry<Integer, Object> entry : cache.entrySet())
-                sb.append("2) key=" + entry.getKey() + "; val=" + entry.getValue() + "(class= " + entry.getValue().getClass().getName() + ",hash=" + entry.getValue().hashCode() + ")");
-        }
+        for (Map.Entry<String, Integer> entry : mailboxIds.entrySet())
+            sb.append("1) key=" + entry.getKey() + " (hash=" + entry.getKey().hashCode() + "); val=" + entry.getValue() + "\n");
+        for (Map.Entry<Integer, Object> entry : cache.entrySet())
+            sb.append("2) key=" + entry.getKey() + "; val=" + entry.getValue() + "(class= " + entry.getValue().getClass().getName() + ",hash=" + entry.getValue().hashCode() + ")");
+        for (int i = 0; i < cache.getStripeCount(); i++)
+            sb.append("3) stripe=" + i + "; hits=" + cache.getHitCount(i) + "; misses=" + cache.getMissCount(i) + "\n");
         sb.append("----------------------------------------------------------------------\n");
         ZimbraLog.mailbox.debug(sb.toString());
     }
@@ -1020,53 +1022,91 @@ public class MailboxManager {
         }
     }
 
+    /**
+     * Striped mailbox registry.  Keys are spread over a power-of-two number of stripes; each stripe keeps its entries
+     * in a {@link ConcurrentHashMap} so that lookups never block, plus an access-ordered list of the hard-referenced
+     * keys that is only touched under the stripe's lock.  Once a stripe holds more than its share of the hard-ref
+     * budget, its least recently used {@link Mailbox} is demoted to a {@link SoftReference}, exactly like the old
+     * single hard/soft map pair.  LRU ordering is best-effort on reads: a lookup that finds the stripe lock held skips
+     * the reordering rather than waiting for it.
+     */
     protected static class MailboxMap implements Map<Integer, Object> {
         final int mHardSize;
-        final LinkedHashMap<Integer, Object> mHardMap;
-        final HashMap<Integer, Object> mSoftMap;
-
-        @SuppressWarnings("serial") MailboxMap(int hardSize) {
-            hardSize = Math.max(hardSize, 0);
-            mHardSize = hardSize;
-            mSoftMap = new HashMap<Integer, Object>();
-            mHardMap = new LinkedHashMap<Integer, Object>(mHardSize / 4, (float) .75, true) {
-                @Override protected boolean removeEldestEntry(Entry<Integer, Object> eldest) {
-                    if (size() <= mHardSize)
-                        return false;
-
-                    Object obj = eldest.getValue();
-                    if (obj instanceof Mailbox)
-                        obj = new SoftReference<Mailbox>((Mailbox) obj);
-                    mSoftMap.put(eldest.getKey(), obj);
-                    return true;
-                }
-            };
+        private final Stripe[] mStripes;
+
+        MailboxMap(int hardSize) {
+            this(hardSize, LC.zimbra_mailbox_manager_cache_stripes.intValue());
+        }
+
+        MailboxMap(int hardSize, int stripeCount) {
+            mHardSize = Math.max(hardSize, 0);
+            int count = 1;
+            while (count < stripeCount) {
+                count <<= 1;
+            }
+            int stripeHardSize = (mHardSize + count - 1) / count;
+            mStripes = new Stripe[count];
+            for (int i = 0; i < count; i++) {
+                mStripes[i] = new Stripe(stripeHardSize);
+            }
         }
 
         protected MailboxMap() {
             mHardSize = 0;
-            mHardMap = null;
-            mSoftMap = null;
+            mStripes = null;
+        }
+
+        private Stripe stripeFor(Object key) {
+            int h = key.hashCode();
+            h ^= (h >>> 16);
+            return mStripes[h & (mStripes.length - 1)];
+        }
+
+        int getStripeCount() {
+            return mStripes.length;
+        }
+
+        long getHitCount(int stripe) {
+            return mStripes[stripe].mHits.get();
+        }
+
+        long getMissCount(int stripe) {
+            return mStripes[stripe].mMisses.get();
+        }
+
+        void recordHit(int mailboxId) {
+            stripeFor(mailboxId).mHits.incrementAndGet();
+            ZimbraPerf.COUNTER_MBOX_CACHE.increment(100);
+        }
+
+        void recordMiss(int mailboxId) {
+            stripeFor(mailboxId).mMisses.incrementAndGet();
+            ZimbraPerf.COUNTER_MBOX_CACHE.increment(0);
         }
 
         @Override public void clear() {
-            mHardMap.clear();
-            mSoftMap.clear();
+            for (Stripe stripe : mStripes) {
+                stripe.clear();
+            }
         }
 
         @Override public boolean containsKey(Object key) {
-            return mHardMap.containsKey(key) || mSoftMap.containsKey(key);
+            return stripeFor(key).mEntries.containsKey(key);
         }
 
         @Override public boolean containsValue(Object value) {
-            return mHardMap.containsValue(value) || mSoftMap.containsValue(value);
+            for (Stripe stripe : mStripes) {
+                if (stripe.mEntries.containsValue(value))
+                    return true;
+            }
+            return false;
         }
 
         @Override public Set<Entry<Integer, Object>> entrySet() {
             Set<Entry<Integer, Object>> entries = new HashSet<Entry<Integer, Object>>(size());
-            if (mHardSize > 0)
-                entries.addAll(mHardMap.entrySet());
-            entries.addAll(mSoftMap.entrySet());
+            for (Stripe stripe : mStripes) {
+                entries.addAll(stripe.mEntries.entrySet());
+            }
             return entries;
         }
 
@@ -1075,41 +1115,36 @@ public class MailboxManager {
         }
 
         public Object get(Object key, boolean trackGC) {
-            Object obj = mHardSize > 0 ? mHardMap.get(key) : null;
-            if (obj == null) {
-                obj = mSoftMap.get(key);
-                if (obj instanceof SoftReference) {
-                    obj = ((SoftReference<?>) obj).get();
-                    if (trackGC && obj == null)
-                        ZimbraLog.mailbox.debug("mailbox " + key + " has been GCed; reloading");
-                }
+            Stripe stripe = stripeFor(key);
+            Object obj = stripe.mEntries.get(key);
+            if (obj instanceof SoftReference) {
+                obj = ((SoftReference<?>) obj).get();
+                if (trackGC && obj == null)
+                    ZimbraLog.mailbox.debug("mailbox " + key + " has been GCed; reloading");
+            } else if (obj != null) {
+                stripe.touch(key);
             }
             return obj;
         }
 
         @Override public boolean isEmpty() {
-            return mHardMap.isEmpty() && mSoftMap.isEmpty();
+            for (Stripe stripe : mStripes) {
+                if (!stripe.mEntries.isEmpty())
+                    return false;
+            }
+            return true;
         }
 
         @Override public Set<Integer> keySet() {
             Set<Integer> keys = new HashSet<Integer>(size());
-            if (mHardSize > 0)
-                keys.addAll(mHardMap.keySet());
-            keys.addAll(mSoftMap.keySet());
+            for (Stripe stripe : mStripes) {
+                keys.addAll(stripe.mEntries.keySet());
+            }
             return keys;
         }
 
         @Override public Object put(Integer key, Object value) {
-            Object removed;
-            if (mHardSize > 0) {
-                removed = mHardMap.put(key, value);
-                if (removed == null)
-                    removed = mSoftMap.remove(key);
-            } else {
-                if (value instanceof Mailbox)
-                    value = new SoftReference<Object>(value);
-                removed = mSoftMap.put(key, value);
-            }
+            Object removed = stripeFor(key).put(key, value);
             if (removed instanceof SoftReference)
                 removed = ((SoftReference<?>) removed).get();
             return removed;
@@ -1121,33 +1156,109 @@ public class MailboxManager {
         }
 
         @Override public Object remove(Object key) {
-            Object removed = mHardSize > 0 ? mHardMap.remove(key) : null;
-            if (removed == null) {
-                removed = mSoftMap.remove(key);
-                if (removed instanceof SoftReference)
-                    removed = ((SoftReference<?>) removed).get();
-            }
+            Object removed = stripeFor(key).remove(key);
+            if (removed instanceof SoftReference)
+                removed = ((SoftReference<?>) removed).get();
             return removed;
         }
 
         @Override public int size() {
-            return mHardMap.size() + mSoftMap.size();
+            int size = 0;
+            for (Stripe stripe : mStripes) {
+                size += stripe.mEntries.size();
+            }
+            return size;
         }
 
         @Override public Collection<Object> values() {
             List<Object> values = new ArrayList<Object>(size());
-            if (mHardSize > 0)
-                values.addAll(mHardMap.values());
-            for (Object o : mSoftMap.values()) {
-                if (o instanceof SoftReference)
-                    o = ((SoftReference<?>) o).get();
-                values.add(o);
+            for (Stripe stripe : mStripes) {
+                for (Object o : stripe.mEntries.values()) {
+                    if (o instanceof SoftReference)
+                        o = ((SoftReference<?>) o).get();
+                    values.add(o);
+                }
             }
             return values;
         }
 
         @Override public String toString() {
-            return "<" + mHardMap.toString() + ", " + mSoftMap.toString() + ">";
+            return Arrays.toString(mStripes);
+        }
+
+        private static final class Stripe {
+            final int mHardSize;
+            /** values are a {@link Mailbox}, a {@link MailboxMaintenance} or a {@link SoftReference} to a Mailbox */
+            final ConcurrentHashMap<Integer, Object> mEntries = new ConcurrentHashMap<Integer, Object>();
+            /** hard-referenced keys in access order; guarded by {@link #mLock} */
+            final LinkedHashMap<Integer, Boolean> mHardKeys;
+            final ReentrantLock mLock = new ReentrantLock();
+            final AtomicLong mHits = new AtomicLong();
+            final AtomicLong mMisses = new AtomicLong();
+
+            Stripe(int hardSize) {
+                mHardSize = hardSize;
+                mHardKeys = new LinkedHashMap<Integer, Boolean>(Math.max(hardSize / 4, 16), (float) .75, true);
+            }
+
+            /** Moves the key to the most-recently-used end, unless a writer currently holds the stripe. */
+            void touch(Object key) {
+                if (mHardSize > 0 && mLock.tryLock()) {
+                    try {
+                        mHardKeys.get(key);
+                    } finally {
+                        mLock.unlock();
+                    }
+                }
+            }
+
+            Object put(Integer key, Object value) {
+                mLock.lock();
+                try {
+                    if (mHardSize <= 0) {
+                        if (value instanceof Mailbox)
+                            value = new SoftReference<Object>(value);
+                        return mEntries.put(key, value);
+                    }
+                    Object removed = mEntries.put(key, value);
+                    mHardKeys.put(key, Boolean.TRUE);
+                    while (mHardKeys.size() > mHardSize) {
+                        Iterator<Integer> eldest = mHardKeys.keySet().iterator();
+                        Integer demoted = eldest.next();
+                        eldest.remove();
+                        Object obj = mEntries.get(demoted);
+                        if (obj instanceof Mailbox)
+                            mEntries.put(demoted, new SoftReference<Mailbox>((Mailbox) obj));
+                    }
+                    return removed;
+                } finally {
+                    mLock.unlock();
+                }
+            }
+
+            Object remove(Object key) {
+                mLock.lock();
+                try {
+                    mHardKeys.remove(key);
+                    return mEntries.remove(key);
+                } finally {
+                    mLock.unlock();
+                }
+            }
+
+            void clear() {
+                mLock.lock();
+                try {
+                    mHardKeys.clear();
+                    mEntries.clear();
+                } finally {
+                    mLock.unlock();
+                }
+            }
+
+            @Override public String toString() {
+                return "<" + mEntries.size() + " entries, " + mHits.get() + " hits, " + mMisses.get() + " misses>";
+            }
         }
     }
 
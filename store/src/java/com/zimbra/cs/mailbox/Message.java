@@ -78,6 +78,7 @@ import com.zimbra.cs.store.MailboxBlob;
 import com.zimbra.cs.store.StagedBlob;
 import com.zimbra.cs.util.AccountUtil;
 import com.zimbra.cs.util.AccountUtil.AccountAddressMatcher;
+import com.zimbra.cs.util.Zimbra;
 
 /**
  * @since Jun 13, 2004
@@ -213,6 +214,9 @@ public class Message extends MailItem {
     private ArrayList<CalendarItemInfo> calendarItemInfos;
     private String calendarIntendedFor;
 
+    private String imapStructure;
+    private String imapEnvelope;
+
     Message(Mailbox mbox, UnderlyingData ud) throws ServiceException {
         this(mbox, ud, false);
     }
@@ -435,6 +439,42 @@ public class Message extends MailItem {
         return calendarIntendedFor;
     }
 
+    /**
+     * Returns the IMAP {@code BODYSTRUCTURE} of the message as rendered at delivery time, or {@code null} if it was
+     * not precomputed.
+     *
+     * @see ParsedMessage#getImapStructure()
+     */
+    public String getImapStructure() {
+        return imapStructure;
+    }
+
+    /**
+     * Returns the IMAP {@code ENVELOPE} of the message as rendered at delivery time, or {@code null} if it was not
+     * precomputed.
+     *
+     * @see ParsedMessage#getImapEnvelope()
+     */
+    public String getImapEnvelope() {
+        return imapEnvelope;
+    }
+
+    /**
+     * Caches and persists a lazily computed {@code BODYSTRUCTURE}/{@code ENVELOPE} pair for a message that predates
+     * precomputation.  This is derived data, so the metadata is rewritten without bumping the change number.
+     */
+    void setImapStructure(String structure, String envelope) throws ServiceException {
+        if (structure == null || envelope == null || imapStructure != null) {
+            return;
+        }
+        imapStructure = structure;
+        imapEnvelope = envelope;
+        DbMailItem.saveDerivedMetadata(this, encodeMetadata(new Metadata()).toString());
+        if (Zimbra.isAlwaysOn()) {
+            mMailbox.cache(this);
+        }
+    }
+
     /** Returns a JavaMail {@link javax.mail.internet.MimeMessage}
      *  encapsulating the message content.  If possible, TNEF and uuencoded
      *  attachments are expanded and their components are presented as
@@ -1446,6 +1486,10 @@ public class Message extends MailItem {
         // the fragment may have changed
         fragment = pm.getFragment(acct.getLocale());
 
+        // and so has the MIME structure
+        imapStructure = pm.getImapStructure();
+        imapEnvelope = pm.getImapEnvelope();
+
         // make sure the "attachments" FLAG is correct
         boolean hadAttachment = mData.isSet(Flag.FlagInfo.ATTACHED);
         mData.unsetFlag(Flag.FlagInfo.ATTACHED);
@@ -1537,6 +1581,8 @@ public class Message extends MailItem {
             }
         }
         calendarIntendedFor = meta.get(Metadata.FN_CAL_INTENDED_FOR, null);
+        imapStructure = meta.get(Metadata.FN_IMAP_STRUCTURE, null);
+        imapEnvelope = meta.get(Metadata.FN_IMAP_ENVELOPE, null);
 
         Metadata draftMeta = meta.getMap(Metadata.FN_DRAFT, true);
         if (draftMeta != null) {
@@ -1558,19 +1604,20 @@ public class Message extends MailItem {
     @Override
     Metadata encodeMetadata(Metadata meta) {
         return encodeMetadata(meta, mRGBColor, mMetaVersion, mVersion, mExtendedData, sender, recipients, fragment,
-                mData.getSubject(), rawSubject, draftInfo, calendarItemInfos, calendarIntendedFor);
+                mData.getSubject(), rawSubject, draftInfo, calendarItemInfos, calendarIntendedFor, imapStructure,
+                imapEnvelope);
     }
 
     private static Metadata encodeMetadata(Color color, int metaVersion, int version, CustomMetadataList extended, ParsedMessage pm,
             String fragment, DraftInfo dinfo, List<CalendarItemInfo> calItemInfos, String calIntendedFor) {
         return encodeMetadata(new Metadata(), color, metaVersion, version, extended, pm.getSender(), pm.getRecipients(),
                 fragment, pm.getNormalizedSubject(), pm.getSubject(), dinfo,
-                calItemInfos, calIntendedFor);
+                calItemInfos, calIntendedFor, pm.getImapStructure(), pm.getImapEnvelope());
     }
 
     static Metadata encodeMetadata(Metadata meta, Color color, int metaVersion, int version, CustomMetadataList extended, String sender,
             String recipients, String fragment, String subject, String rawSubj, DraftInfo dinfo,
-            List<CalendarItemInfo> calItemInfos, String calIntendedFor) {
+            List<CalendarItemInfo> calItemInfos, String calIntendedFor, String imapStructure, String imapEnvelope) {
         // try to figure out a simple way to make the raw subject from the normalized one
         String prefix = null;
         if (rawSubj == null || rawSubj.equals(subject)) {
@@ -1594,6 +1641,8 @@ public class Message extends MailItem {
             meta.put(Metadata.FN_CALITEM_IDS, mdList);
         }
         meta.put(Metadata.FN_CAL_INTENDED_FOR, calIntendedFor);
+        meta.put(Metadata.FN_IMAP_STRUCTURE, imapStructure);
+        meta.put(Metadata.FN_IMAP_ENVELOPE, imapEnvelope);
 
         if (dinfo != null) {
             Metadata dmeta = new Metadata();
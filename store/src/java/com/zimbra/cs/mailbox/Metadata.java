@@ -17,6 +17,7 @@
 
 package com.zimbra.cs.mailbox;
 
+import java.util.Arrays;
 import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
@@ -26,18 +27,33 @@ import java.util.TreeMap;
 import org.apache.commons.codec.Charsets;
 
 import com.google.common.base.Strings;
+import com.zimbra.common.localconfig.LC;
 import com.zimbra.common.service.ServiceException;
 import com.zimbra.common.soap.Element;
 import com.zimbra.common.util.BEncoding;
 import com.zimbra.common.util.BEncoding.BEncodingException;
 import com.zimbra.common.util.BlobMetaData;
 import com.zimbra.common.util.BlobMetaDataEncodingException;
+import com.zimbra.common.util.ZimbraLog;
 
 public final class Metadata {
 
     /** never change this - implement structural changes in new attrs instead */
     public static final int LEGACY_METADATA_VERSION = 10;
 
+    /**
+     * Serialization version of the indexed encoding.  Instead of a single BEncoded dictionary carrying
+     * {@link #FN_MD_VERSION}, the indexed encoding starts with a header naming the version and listing every
+     * top-level key with the length of its BEncoded value, followed by the values themselves:
+     * <pre>
+     *   ~11|2|1:a5|3:ver3|1:hello...i1e
+     * </pre>
+     * That lets a reader decode only the keys that are actually requested.
+     */
+    public static final int INDEXED_METADATA_VERSION = 11;
+    private static final char INDEXED_MARKER = '~';
+    private static final char INDEXED_SEPARATOR = '|';
+
     // MetaData attributes used in toplevel metadata for MailItems.
 
     // ****PLEASE KEEP THESE IN SORTED ORDER TO MAKE IT EASIER TO AVOID DUPS****
@@ -72,8 +88,10 @@ public final class Metadata {
     public static final String FN_FRAGMENT         = "f";
     public static final String FN_FIRST            = "f";
     public static final String FN_FIELDS           = "fld";
+    public static final String FN_IMAP_STRUCTURE   = "i4bs";
     public static final String FN_DELETED          = "i4d";
     public static final String FN_DELETED_UNREAD   = "i4du";
+    public static final String FN_IMAP_ENVELOPE    = "i4e";
     public static final String FN_RECENT           = "i4l";
     public static final String FN_RECENT_CUTOFF    = "i4r";
     public static final String FN_REMOTE_ID        = "id";
@@ -127,6 +145,20 @@ public final class Metadata {
 
     Map<Object, Object> map;
 
+    // Set while an indexed encoding still has undecoded values.  Values decoded by a read are cached in lazyValues
+    // rather than in map, so that concurrent readers never modify the map; a racing reader at worst decodes the same
+    // value twice.  Everything that needs the whole map goes through materialize() first, which drops these.
+    private String lazyEncoded;
+    private String[] lazyKeys;
+    private int[] lazyOffsets;
+    private Object[] lazyValues;
+    // Set once a decoded Map or List has been handed out by getMap() or getList().  Their wrappers copy it, but the
+    // nested values are shared, so the original encoding is no longer trusted to reflect what the caller sees.
+    private volatile boolean lazyContainerShared;
+
+    // cached in lazyValues for a value that failed to decode, so that it is only reported once
+    private static final Object UNDECODABLE = new Object();
+
     public Metadata() {
         associatedItemId = null;
         map = new TreeMap<Object, Object>();
@@ -147,6 +179,10 @@ public final class Metadata {
             map = new HashMap<Object, Object>();
             return;
         }
+        if (isIndexedEncoding(encoded)) {
+            parseIndex(encoded);
+            return;
+        }
         try {
             try {
                 map = (Map) BEncoding.decode(encoded);
@@ -183,28 +219,161 @@ public final class Metadata {
         }
     }
 
+    /**
+     * Returns {@code true} if {@code encoded} uses the indexed encoding rather than a legacy BEncoded or
+     * {@link BlobMetaData} one.
+     */
+    public static boolean isIndexedEncoding(String encoded) {
+        return encoded != null && encoded.length() > 1 && encoded.charAt(0) == INDEXED_MARKER;
+    }
+
+    private void parseIndex(String encoded) throws MailServiceException {
+        try {
+            int pos = 1;
+            int end = encoded.indexOf(INDEXED_SEPARATOR, pos);
+            if (Integer.parseInt(encoded.substring(pos, end)) != INDEXED_METADATA_VERSION) {
+                throw MailServiceException.INVALID_METADATA(encoded, null);
+            }
+            pos = end + 1;
+            end = encoded.indexOf(INDEXED_SEPARATOR, pos);
+            int count = Integer.parseInt(encoded.substring(pos, end));
+            pos = end + 1;
+
+            String[] keys = new String[count];
+            int[] lengths = new int[count];
+            for (int i = 0; i < count; i++) {
+                end = encoded.indexOf(':', pos);
+                int keyStart = end + 1;
+                int keyEnd = keyStart + Integer.parseInt(encoded.substring(pos, end));
+                keys[i] = encoded.substring(keyStart, keyEnd);
+                if (i > 0 && keys[i - 1].compareTo(keys[i]) >= 0) {
+                    throw MailServiceException.INVALID_METADATA(encoded, null);
+                }
+                end = encoded.indexOf(INDEXED_SEPARATOR, keyEnd);
+                lengths[i] = Integer.parseInt(encoded.substring(keyEnd, end));
+                pos = end + 1;
+            }
+
+            int[] offsets = new int[count + 1];
+            offsets[0] = pos;
+            for (int i = 0; i < count; i++) {
+                offsets[i + 1] = offsets[i] + lengths[i];
+            }
+            if (offsets[count] != encoded.length()) {
+                throw MailServiceException.INVALID_METADATA(encoded, null);
+            }
+            map = new HashMap<Object, Object>(count * 2);
+            lazyEncoded = encoded;
+            lazyKeys = keys;
+            lazyOffsets = offsets;
+            lazyValues = new Object[count];
+        } catch (IndexOutOfBoundsException | NumberFormatException e) {
+            throw MailServiceException.INVALID_METADATA(encoded, e);
+        }
+    }
+
+    /**
+     * Returns the value for {@code key}, decoding it from the indexed encoding on first access.
+     */
+    private Object lookup(String key) {
+        Object value = map.get(key);
+        if (value == null) {
+            // read the fields once; a concurrent materialize() may clear them
+            String[] keys = lazyKeys;
+            Object[] values = lazyValues;
+            if (keys != null && values != null) {
+                int index = Arrays.binarySearch(keys, key);
+                if (index >= 0) {
+                    value = values[index];
+                    if (value == null) {
+                        value = decodeLazy(index);
+                        values[index] = value;
+                    }
+                    if (value == UNDECODABLE) {
+                        value = null;
+                    }
+                }
+            }
+        }
+        return value;
+    }
+
+    private Object decodeLazy(int index) {
+        try {
+            return BEncoding.decode(lazyEncoded, lazyOffsets[index], lazyOffsets[index + 1]);
+        } catch (BEncodingException | RuntimeException e) {
+            ZimbraLog.mailbox.warn("undecodable metadata value for key %s (item %s)", lazyKeys[index],
+                    associatedItemId, e);
+            return UNDECODABLE;
+        }
+    }
+
+    /**
+     * Decodes every value still held in the indexed encoding, failing instead of dropping the ones that can't be
+     * decoded.  Used before converting stored metadata to another encoding, where a dropped value would be lost.
+     */
+    public Metadata decodeAll() throws MailServiceException {
+        if (lazyEncoded != null) {
+            for (int i = 0; i < lazyKeys.length; i++) {
+                if (lazyValues[i] == null) {
+                    lazyValues[i] = decodeLazy(i);
+                }
+                if (lazyValues[i] == UNDECODABLE) {
+                    throw MailServiceException.INVALID_METADATA(lazyEncoded, null);
+                }
+            }
+        }
+        return this;
+    }
+
+    /**
+     * Decodes any values still held in the indexed encoding and returns the complete map.
+     */
+    Map<Object, Object> materialize() {
+        if (lazyEncoded != null) {
+            for (int i = 0; i < lazyKeys.length; i++) {
+                Object value = lazyValues[i] != null ? lazyValues[i] : decodeLazy(i);
+                if (value != UNDECODABLE) {
+                    map.put(lazyKeys[i], value);
+                } else {
+                    // already logged by decodeLazy(); the value can't be carried over into a mutable map
+                    ZimbraLog.mailbox.warn("dropping undecodable metadata value for key %s (item %s)", lazyKeys[i],
+                            associatedItemId);
+                }
+            }
+            lazyEncoded = null;
+            lazyKeys = null;
+            lazyOffsets = null;
+            lazyValues = null;
+        }
+        return map;
+    }
+
     public boolean containsKey(String key) {
-        return map.containsKey(key);
+        String[] keys = lazyKeys;
+        return map.containsKey(key) || (keys != null && Arrays.binarySearch(keys, key) >= 0);
     }
 
     public int size() {
-        return map.size();
+        // nothing can be added or removed while values are still undecoded
+        String[] keys = lazyKeys;
+        return keys != null ? keys.length : map.size();
     }
 
     public boolean isEmpty() {
-        return map.isEmpty();
+        return size() == 0;
     }
 
     public Metadata copy(Metadata source) {
         if (source != null) {
-            map.putAll(source.map);
+            materialize().putAll(source.materialize());
         }
         return this;
     }
 
     public Map<String, ?> asMap()  {
         Map<String, Object> result = new HashMap<String, Object>();
-        for (Map.Entry<Object, Object> entry : map.entrySet()) {
+        for (Map.Entry<Object, Object> entry : materialize().entrySet()) {
             Object key = entry.getKey();
             Object value = entry.getValue();
             if (key == null || value == null) {
@@ -221,48 +390,48 @@ public final class Metadata {
     }
 
     public Metadata remove(String key) {
-        map.remove(key);
+        materialize().remove(key);
         return this;
     }
 
     public Metadata put(String key, Object value) {
         if (key != null && value != null) {
-            map.put(key, value);
+            materialize().put(key, value);
         }
         return this;
     }
 
     public Metadata put(String key, long value) {
         if (key != null) {
-            map.put(key, Long.valueOf(value));
+            materialize().put(key, Long.valueOf(value));
         }
         return this;
     }
 
     public Metadata put(String key, double value) {
         if (key != null) {
-            map.put(key, new Double(value));
+            materialize().put(key, new Double(value));
         }
         return this;
     }
 
     public Metadata put(String key, boolean value) {
         if (key != null) {
-            map.put(key, new Boolean(value));
+            materialize().put(key, new Boolean(value));
         }
         return this;
     }
 
     public Metadata put(String key, Metadata value) {
         if (key != null && value != null) {
-            map.put(key, value.map);
+            materialize().put(key, value.materialize());
         }
         return this;
     }
 
     public Metadata put(String key, MetadataList value) {
         if (key != null && value != null) {
-            map.put(key, value.list);
+            materialize().put(key, value.list);
         }
         return this;
     }
@@ -284,7 +453,7 @@ public final class Metadata {
     }
 
     public String get(String key, String defaultValue) {
-        Object value = map.get(key);
+        Object value = lookup(key);
         return value == null ? defaultValue : value.toString();
     }
 
@@ -318,13 +487,16 @@ public final class Metadata {
     }
 
     public MetadataList getList(String key, boolean nullOK) throws ServiceException {
-        Object value = map.get(key);
+        Object value = lookup(key);
         if (nullOK && value == null) {
             return null;
         }
         if (value instanceof List) {
             @SuppressWarnings("unchecked")
             List<Object> cast = (List<Object>) value;
+            if (lazyKeys != null) {
+                lazyContainerShared = true;
+            }
             return new MetadataList(cast);
         }
         throw ServiceException.INVALID_REQUEST("invalid/missing value for attribute: " + key, null);
@@ -335,29 +507,74 @@ public final class Metadata {
     }
 
     public Metadata getMap(String key, boolean nullable) throws ServiceException {
-        Object value = map.get(key);
+        Object value = lookup(key);
         if (nullable && value == null) {
             return null;
         }
         if (value instanceof Map) {
             @SuppressWarnings("unchecked")
             Map<String, Object> cast = (Map<String, Object>) value;
+            if (lazyKeys != null) {
+                lazyContainerShared = true;
+            }
             return new Metadata(cast);
         }
         throw ServiceException.INVALID_REQUEST("invalid/missing value for attribute: " + key, null);
     }
 
+    /**
+     * Encodes the metadata in the indexed format if {@code zimbra_metadata_indexed_encoding} is set, and as a
+     * legacy BEncoded dictionary otherwise.  The legacy format stays the default so that servers which predate the
+     * indexed format can still read what we write.
+     */
     @Override
     public String toString() {
-        put(FN_MD_VERSION, LEGACY_METADATA_VERSION);
-        String result = BEncoding.encode(map);
-        map.remove(FN_MD_VERSION);
-        return result;
+        return encode(LC.zimbra_metadata_indexed_encoding.booleanValue());
+    }
+
+    public String encode(boolean indexed) {
+        if (!indexed) {
+            put(FN_MD_VERSION, LEGACY_METADATA_VERSION);
+            String result = BEncoding.encode(map);
+            map.remove(FN_MD_VERSION);
+            return result;
+        } else if (lazyEncoded != null && !lazyContainerShared) {
+            // untouched since it was decoded, so the original encoding is still accurate
+            return lazyEncoded;
+        }
+
+        SortedMap<String, Object> tree = new TreeMap<String, Object>();
+        String[] keys = lazyKeys;
+        if (keys != null) {
+            for (String key : keys) {
+                Object value = lookup(key);
+                if (value != null) {
+                    tree.put(key, value);
+                }
+            }
+        }
+        for (Map.Entry<Object, Object> entry : map.entrySet()) {
+            if (entry.getKey() != null && entry.getValue() != null) {
+                tree.put(entry.getKey().toString(), entry.getValue());
+            }
+        }
+        StringBuilder header = new StringBuilder(16 + tree.size() * 12);
+        header.append(INDEXED_MARKER).append(INDEXED_METADATA_VERSION).append(INDEXED_SEPARATOR);
+        header.append(tree.size()).append(INDEXED_SEPARATOR);
+        StringBuilder values = new StringBuilder(256);
+        for (Map.Entry<String, Object> entry : tree.entrySet()) {
+            int start = values.length();
+            BEncoding.encodeValue(values, entry.getValue());
+            String key = entry.getKey();
+            header.append(key.length()).append(':').append(key);
+            header.append(values.length() - start).append(INDEXED_SEPARATOR);
+        }
+        return header.append(values).toString();
     }
 
     public String prettyPrint() {
         StringBuilder sb = new StringBuilder(2048);
-        prettyEncode(sb, map, 0);
+        prettyEncode(sb, materialize(), 0);
         sb.setLength(sb.length() - 1);  // Remove the last newline.
         return sb.toString();
     }
@@ -0,0 +1,165 @@
+/*
+ * ***** BEGIN LICENSE BLOCK *****
+ * Zimbra Collaboration Suite Server
+ * Copyright (C) 2016 Synacor, Inc.
+ *
+ * This program is free software: you can redistribute it and/or modify it under
+ * the terms of the GNU General Public License as published by the Free Software Foundation,
+ * version 2 of the License.
+ *
+ * This program is distributed in the hope that it will be useful, but WITHOUT ANY WARRANTY;
+ * without even the implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.
+ * See the GNU General Public License for more details.
+ * You should have received a copy of the GNU General Public License along with this program.
+ * If not, see <https://www.gnu.org/licenses/>.
+ * ***** END LICENSE BLOCK *****
+ */
+package com.zimbra.cs.mailbox;
+
+import com.zimbra.common.localconfig.LC;
+import com.zimbra.common.service.ServiceException;
+import com.zimbra.common.util.ZimbraLog;
+import com.zimbra.cs.account.callback.CallbackUtil;
+import com.zimbra.cs.db.Db;
+import com.zimbra.cs.db.DbMailItem;
+import com.zimbra.cs.db.DbPool;
+import com.zimbra.cs.db.DbPool.DbConnection;
+import com.zimbra.cs.util.Config;
+
+/**
+ * Walks every mailbox on the server once and rewrites the stored item metadata in the encoding selected by
+ * {@code zimbra_metadata_indexed_encoding}, so that a switch of the encoding (in either direction) reaches items that
+ * are never modified again.  Items are rewritten in batches of {@code zimbra_metadata_migration_batch_size} under the
+ * mailbox write lock, sleeping {@code zimbra_metadata_migration_sleep_ms} between batches.  The last completed
+ * mailbox is recorded in {@link Config} per target encoding, so a restarted server resumes where it stopped, while a
+ * switch to the other encoding starts over from the first mailbox.  Rows that already use the target encoding are
+ * skipped, so running the migration again is cheap.
+ */
+public final class MetadataMigrationThread extends Thread {
+
+    static final String KEY_LAST_MAILBOX_ID = "metadataMigration.lastMailboxId.";
+    static final String KEY_TARGET_ENCODING = "metadataMigration.targetEncoding";
+
+    private static MetadataMigrationThread instance;
+    private volatile boolean shutdownRequested = false;
+
+    private MetadataMigrationThread() {
+        setName("MetadataMigration");
+        setDaemon(true);
+    }
+
+    /**
+     * Starts the migration unless {@code zimbra_metadata_migration_enabled} is off or a migration is already running.
+     */
+    public static synchronized void startup() {
+        if (!LC.zimbra_metadata_migration_enabled.booleanValue()) {
+            return;
+        }
+        if (instance != null) {
+            ZimbraLog.mailbox.warn("Cannot start a second metadata migration thread while another one is running.");
+            return;
+        }
+        instance = new MetadataMigrationThread();
+        instance.start();
+    }
+
+    public static synchronized boolean isRunning() {
+        return instance != null;
+    }
+
+    public static synchronized void shutdown() {
+        if (instance != null) {
+            instance.shutdownRequested = true;
+            instance.interrupt();
+            instance = null;
+        }
+    }
+
+    private static synchronized void finished(MetadataMigrationThread thread) {
+        if (instance == thread) {
+            instance = null;
+        }
+    }
+
+    @Override
+    public void run() {
+        boolean indexed = LC.zimbra_metadata_indexed_encoding.booleanValue();
+        String target = indexed ? "indexed" : "legacy";
+        String cursorKey = KEY_LAST_MAILBOX_ID + target;
+        ZimbraLog.mailbox.info("Starting metadata migration to the %s encoding.", target);
+        try {
+            if (!target.equals(Config.getString(KEY_TARGET_ENCODING, null))) {
+                // the encoding was switched since the last run, so mailboxes migrated before then need another pass
+                Config.setInt(cursorKey, 0);
+                Config.setString(KEY_TARGET_ENCODING, target);
+            }
+            int lastMailboxId = Config.getInt(cursorKey, 0);
+            // only advance the resume point past mailboxes that all migrated, so that a failed one is retried
+            boolean advance = true;
+            for (int mailboxId : CallbackUtil.getSortedMailboxIdList()) {
+                if (mailboxId <= lastMailboxId) {
+                    continue;
+                }
+                ZimbraLog.addMboxToContext(mailboxId);
+                try {
+                    migrate(MailboxManager.getInstance().getMailboxById(mailboxId), indexed);
+                    if (advance) {
+                        Config.setInt(cursorKey, mailboxId);
+                    }
+                } catch (ServiceException e) {
+                    advance = false;
+                    ZimbraLog.mailbox.warn("Unable to migrate metadata of mailbox %d", mailboxId, e);
+                } finally {
+                    ZimbraLog.clearContext();
+                }
+            }
+            ZimbraLog.mailbox.info("Metadata migration complete.");
+        } catch (InterruptedException e) {
+            ZimbraLog.mailbox.info("Shutting down metadata migration thread.");
+        } catch (ServiceException e) {
+            ZimbraLog.mailbox.warn("Metadata migration stopped", e);
+        } finally {
+            finished(this);
+        }
+    }
+
+    private void migrate(Mailbox mbox, boolean indexed) throws ServiceException, InterruptedException {
+        int batchSize = Math.max(1, LC.zimbra_metadata_migration_batch_size.intValue());
+        long sleepMs = LC.zimbra_metadata_migration_sleep_ms.longValue();
+        boolean[] tables = Db.supports(Db.Capability.DUMPSTER_TABLES) ? new boolean[] { false, true } : new boolean[] { false };
+        for (boolean dumpster : tables) {
+            int lastId = 0;
+            while (lastId >= 0) {
+                if (shutdownRequested) {
+                    throw new InterruptedException();
+                }
+                if (mbox.getMaintenance() != null) {
+                    throw ServiceException.TEMPORARILY_UNAVAILABLE();
+                }
+                lastId = migrateBatch(mbox, dumpster, lastId, batchSize, indexed);
+                if (sleepMs > 0) {
+                    Thread.sleep(sleepMs);
+                }
+            }
+        }
+        ZimbraLog.mailbox.debug("Migrated metadata of mailbox %d.", mbox.getId());
+    }
+
+    private static int migrateBatch(Mailbox mbox, boolean dumpster, int afterId, int batchSize, boolean indexed)
+            throws ServiceException {
+        mbox.lock.lock(true);
+        DbConnection conn = null;
+        try {
+            conn = DbPool.getConnection(mbox);
+            int lastId = DbMailItem.reencodeMetadata(mbox, conn, dumpster, afterId, batchSize, indexed);
+            conn.commit();
+            return lastId;
+        } catch (ServiceException e) {
+            DbPool.quietRollback(conn);
+            throw e;
+        } finally {
+            DbPool.quietClose(conn);
+            mbox.lock.release();
+        }
+    }
+}
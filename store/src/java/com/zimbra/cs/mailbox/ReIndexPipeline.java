@@ -0,0 +1,263 @@
+/*
+ * ***** BEGIN LICENSE BLOCK *****
+ * Zimbra Collaboration Suite Server
+ * Copyright (C) 2016 Synacor, Inc.
+ *
+ * This program is free software: you can redistribute it and/or modify it under
+ * the terms of the GNU General Public License as published by the Free Software Foundation,
+ * version 2 of the License.
+ *
+ * This program is distributed in the hope that it will be useful, but WITHOUT ANY WARRANTY;
+ * without even the implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.
+ * See the GNU General Public License for more details.
+ * You should have received a copy of the GNU General Public License along with this program.
+ * If not, see <https://www.gnu.org/licenses/>.
+ * ***** END LICENSE BLOCK *****
+ */
+package com.zimbra.cs.mailbox;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReference;
+
+import com.google.common.annotations.VisibleForTesting;
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
+import com.zimbra.common.localconfig.LC;
+import com.zimbra.common.service.ServiceException;
+import com.zimbra.common.util.ZimbraLog;
+import com.zimbra.cs.mailbox.Mailbox.IndexItemEntry;
+import com.zimbra.cs.stats.ZimbraPerf;
+import com.zimbra.cs.store.MailboxBlob;
+
+/**
+ * Re-indexes a list of items in three stages connected by bounded queues, so that blob I/O, text extraction and
+ * index writes overlap instead of running one item after another on the re-index thread.
+ * <ul>
+ * <li>The re-index thread reads the items from the database and pulls their blobs into the local store, which is
+ * where the time goes with an external store.
+ * <li>{@code zimbra_reindex_extract_threads} threads parse the items and extract and analyze their text.
+ * <li>A single writer thread adds them to the index in mailbox transactions of up to
+ * {@code zimbra_index_max_transaction_items} items or {@code zimbra_index_max_transaction_bytes} bytes.
+ * </ul>
+ * Each queue holds up to {@code zimbra_reindex_queue_size} items, and a full queue blocks the stage feeding it, so
+ * that a slow writer throttles extraction and reads instead of piling up parsed messages in memory. Each stage is
+ * timed in {@link ZimbraPerf}, and its progress is reported to the {@link MailboxIndex.ReIndexStatus}.
+ */
+class ReIndexPipeline {
+
+    private static final IndexItemEntry END = new IndexItemEntry(null, null);
+
+    private final MailboxIndex index;
+    private final Mailbox mailbox;
+    private final MailboxIndex.ReIndexStatus status;
+    private final BlockingQueue<IndexItemEntry> extractQueue;
+    private final BlockingQueue<IndexItemEntry> writeQueue;
+    private final AtomicReference<Throwable> failure = new AtomicReference<Throwable>();
+    private ExecutorService executor;
+
+    ReIndexPipeline(Mailbox mbox, MailboxIndex index, MailboxIndex.ReIndexStatus status) {
+        this.mailbox = mbox;
+        this.index = index;
+        this.status = status;
+        int capacity = Math.max(1, LC.zimbra_reindex_queue_size.intValue());
+        extractQueue = new ArrayBlockingQueue<IndexItemEntry>(capacity);
+        writeQueue = new ArrayBlockingQueue<IndexItemEntry>(capacity);
+    }
+
+    static boolean isEnabled() {
+        return LC.zimbra_reindex_extract_threads.intValue() > 0;
+    }
+
+    /**
+     * Re-indexes the items and returns once all of them have been written to the index.
+     *
+     * @throws ServiceException {@link ServiceException#INTERRUPTED} if the re-index is cancelled
+     */
+    void run(Collection<Integer> ids) throws ServiceException {
+        int threads = LC.zimbra_reindex_extract_threads.intValue();
+        executor = Executors.newFixedThreadPool(threads + 1, new ThreadFactoryBuilder()
+                .setNameFormat("ReIndex-" + mailbox.getId() + "-%d").setDaemon(true).build());
+        try {
+            AtomicInteger extractors = new AtomicInteger(threads);
+            for (int i = 0; i < threads; i++) {
+                executor.execute(new Extractor(extractors));
+            }
+            Future<?> writer = executor.submit(new Writer());
+
+            read(ids);
+            for (int i = 0; i < threads; i++) {
+                offer(extractQueue, END);
+            }
+            try {
+                writer.get();
+            } catch (ExecutionException e) {
+                abort(e.getCause());
+            }
+        } catch (InterruptedException e) {
+            abort(e);
+        } finally {
+            executor.shutdownNow();
+        }
+
+        Throwable t = failure.get();
+        if (t == null && status.isCancelled()) {
+            throw ServiceException.INTERRUPTED("cancelled");
+        } else if (t instanceof ServiceException) {
+            throw (ServiceException) t;
+        } else if (t != null) {
+            throw ServiceException.FAILURE("Re-index pipeline failed", t);
+        }
+    }
+
+    /**
+     * Records the first failure and stops all the stages.
+     */
+    private void abort(Throwable t) {
+        if (failure.compareAndSet(null, t)) {
+            executor.shutdownNow();
+        }
+    }
+
+    private boolean isAborted() {
+        return failure.get() != null || status.isCancelled();
+    }
+
+    /**
+     * Puts an entry on a queue from the re-index thread, giving up if the pipeline has failed, in which case nothing
+     * may be draining the queue any more. A cancelled pipeline still drains its queues, down to the writer, which
+     * refuses to commit.
+     */
+    private void offer(BlockingQueue<IndexItemEntry> queue, IndexItemEntry entry) throws InterruptedException {
+        while (!queue.offer(entry, 1, TimeUnit.SECONDS)) {
+            if (failure.get() != null) {
+                return;
+            }
+        }
+    }
+
+    private void read(Collection<Integer> ids) throws ServiceException, InterruptedException {
+        for (int id : ids) {
+            if (isAborted()) {
+                return;
+            }
+            status.addProcessed(1);
+            long start = ZimbraPerf.STOPWATCH_REINDEX_READ.start();
+            MailItem item = index.fetchItem(id, status);
+            if (item != null) {
+                prefetch(item);
+            }
+            ZimbraPerf.STOPWATCH_REINDEX_READ.stop(start);
+            if (item != null) {
+                offer(extractQueue, new IndexItemEntry(item, null));
+            }
+        }
+    }
+
+    /**
+     * Makes the blob of the item local, so that the extractor doesn't wait on the store.
+     */
+    private void prefetch(MailItem item) {
+        try {
+            MailboxBlob blob = item.getBlob();
+            if (blob != null) {
+                blob.getLocalBlob();
+            }
+        } catch (ServiceException | IOException e) {
+            // the extractor will run into it again and report it
+            ZimbraLog.index.debug("Failed to prefetch blob id=%d", item.getId(), e);
+        }
+    }
+
+    /**
+     * Generates the index documents of an item on an extractor thread.
+     */
+    @VisibleForTesting
+    IndexItemEntry extract(MailItem item) {
+        return index.extract(item, status);
+    }
+
+    private abstract class Stage extends MailboxIndex.IndexTask {
+        Stage() {
+            super(mailbox);
+        }
+
+        @Override
+        protected final void exec() {
+            try {
+                process();
+            } catch (Throwable t) {
+                abort(t);
+                if (t instanceof Error) {
+                    throw (Error) t;
+                }
+            }
+        }
+
+        abstract void process() throws Exception;
+    }
+
+    private final class Extractor extends Stage {
+        private final AtomicInteger running;
+
+        Extractor(AtomicInteger running) {
+            this.running = running;
+        }
+
+        @Override
+        void process() throws InterruptedException {
+            try {
+                for (IndexItemEntry entry = extractQueue.take(); entry != END; entry = extractQueue.take()) {
+                    long start = ZimbraPerf.STOPWATCH_REINDEX_EXTRACT.start();
+                    IndexItemEntry extracted = extract(entry.item);
+                    ZimbraPerf.STOPWATCH_REINDEX_EXTRACT.stop(start);
+                    if (extracted != null) {
+                        writeQueue.put(extracted);
+                    }
+                }
+            } finally {
+                if (running.decrementAndGet() == 0 && failure.get() == null) {
+                    writeQueue.put(END);
+                }
+            }
+        }
+    }
+
+    private final class Writer extends Stage {
+        @Override
+        void process() throws ServiceException, InterruptedException {
+            List<IndexItemEntry> chunk = new ArrayList<IndexItemEntry>();
+            long chunkByteSize = 0;
+            for (IndexItemEntry entry = writeQueue.take(); entry != END; entry = writeQueue.take()) {
+                chunk.add(entry);
+                chunkByteSize += entry.item.getSize();
+                if (chunkByteSize > MailboxIndex.MAX_TX_BYTES || chunk.size() >= MailboxIndex.MAX_TX_ITEMS) {
+                    write(chunk);
+                    chunkByteSize = 0;
+                }
+            }
+            if (!chunk.isEmpty()) {
+                write(chunk);
+            }
+        }
+
+        private void write(List<IndexItemEntry> chunk) throws ServiceException {
+            ZimbraLog.index.debug("Batch progress %d/%d", status.getIndexed() + chunk.size(), status.getTotal());
+            long start = ZimbraPerf.STOPWATCH_REINDEX_WRITE.start();
+            try {
+                index.commitChunk(chunk, status);
+            } finally {
+                ZimbraPerf.STOPWATCH_REINDEX_WRITE.stop(start);
+            }
+        }
+    }
+}
@@ -40,6 +40,7 @@ import com.zimbra.common.util.Log;
 import com.zimbra.cs.mailclient.auth.Authenticator;
 import com.zimbra.cs.mailclient.auth.AuthenticatorFactory;
 import com.zimbra.cs.mailclient.util.Ascii;
+import com.zimbra.cs.server.DeflateCompressor;
 
 /**
  * Base class for all mail protocol connection types.
@@ -119,6 +120,17 @@ public abstract class MailConnection {
         initStreams(sock.getInputStream(), sock.getOutputStream());
     }
 
+    /**
+     * Switches both directions of the connection to raw DEFLATE once the server has accepted the protocol's
+     * compression command. Nothing compressed may have been read from the server yet.
+     *
+     * @param level the zlib compression level
+     */
+    protected void startCompression(int level) {
+        DeflateCompressor compressor = new DeflateCompressor(level);
+        initStreams(compressor.wrap(mailIn.in), new BufferedOutputStream(compressor.wrap(mailOut.out)));
+    }
+
     private void initStreams(InputStream is, OutputStream os) {
         mailIn = newMailInputStream(is);
         mailOut = newMailOutputStream(os);
@@ -37,7 +37,7 @@ public enum CAtom {
     LARGER, NOT, OR, SENTBEFORE, SENTON, SENTSINCE, SMALLER, UNDRAFT, IDLE,
     HEADER_FIELDS("HEADER.FIELDS"), HEADER_FIELDS_NOT("HEADER.FIELDS.NOT"),
     MIME, MESSAGES, STORE, FLAGS_SILENT("FLAGS.SILENT"), SUBSCRIBE, UNSELECT,
-    UNSUBSCRIBE, APPEND, CATENATE, URL, F_ANSWERED("\\Answered"),
+    UNSUBSCRIBE, APPEND, CATENATE, URL, COMPRESS, DEFLATE, F_ANSWERED("\\Answered"),
     F_FLAGGED("\\Flagged"), F_DELETED("\\Deleted"), F_SEEN("\\Seen"),
     F_DRAFT("\\Draft"), F_RECENT("\\Recent"), F_NOINFERIORS("\\Noinferiors"),
     F_NOSELECT("\\Noselect"), F_MARKED("\\Marked"), F_UNMARKED("\\Unmarked"),
@@ -39,6 +39,7 @@ public class ImapCapabilities {
     public static final String AUTH_PLAIN = "AUTH=PLAIN";
     public static final String AUTH_GSSAPI = "AUTH=GSSAPI";
     public static final String UNSELECT = "UNSELECT";
+    public static final String COMPRESS_DEFLATE = "COMPRESS=DEFLATE";
 
     public static ImapCapabilities read(ImapInputStream is) throws IOException {
         ImapCapabilities caps = new ImapCapabilities();
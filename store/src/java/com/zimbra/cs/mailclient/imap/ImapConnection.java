@@ -156,6 +156,17 @@ public final class ImapConnection extends MailConnection {
         newRequest(CAtom.STARTTLS).sendCheckStatus();
     }
 
+    /**
+     * Enables DEFLATE compression (RFC 4978) on an authenticated connection.
+     *
+     * @param level the zlib compression level
+     */
+    public synchronized void compress(int level) throws IOException {
+        checkState(State.AUTHENTICATED);
+        newRequest(CAtom.COMPRESS, CAtom.DEFLATE).sendCheckStatus();
+        startCompression(level);
+    }
+
     public ImapCapabilities capability() throws IOException {
         newRequest(CAtom.CAPABILITY).sendCheckStatus();
         return capabilities;
@@ -509,6 +520,10 @@ public final class ImapConnection extends MailConnection {
         return hasCapability("AUTH=" + method);
     }
 
+    public boolean hasCompressDeflate() {
+        return hasCapability(ImapCapabilities.COMPRESS_DEFLATE);
+    }
+
     public boolean hasUidPlus() {
         return hasCapability(ImapCapabilities.UIDPLUS);
     }
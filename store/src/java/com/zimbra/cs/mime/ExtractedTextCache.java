@@ -0,0 +1,145 @@
+/*
+ * ***** BEGIN LICENSE BLOCK *****
+ * Zimbra Collaboration Suite Server
+ * Copyright (C) 2016 Synacor, Inc.
+ *
+ * This program is free software: you can redistribute it and/or modify it under
+ * the terms of the GNU General Public License as published by the Free Software Foundation,
+ * version 2 of the License.
+ *
+ * This program is distributed in the hope that it will be useful, but WITHOUT ANY WARRANTY;
+ * without even the implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.
+ * See the GNU General Public License for more details.
+ * You should have received a copy of the GNU General Public License along with this program.
+ * If not, see <https://www.gnu.org/licenses/>.
+ * ***** END LICENSE BLOCK *****
+ */
+package com.zimbra.cs.mime;
+
+import java.io.ByteArrayInputStream;
+import java.io.File;
+import java.io.IOException;
+
+import com.google.common.base.Charsets;
+import com.google.common.base.Strings;
+import com.google.common.cache.Cache;
+import com.google.common.cache.CacheBuilder;
+import com.google.common.cache.Weigher;
+import com.google.common.io.Files;
+import com.zimbra.common.localconfig.DebugConfig;
+import com.zimbra.common.localconfig.LC;
+import com.zimbra.common.util.FileCache;
+import com.zimbra.common.util.FileUtil;
+import com.zimbra.common.util.ZimbraLog;
+import com.zimbra.cs.stats.ZimbraPerf;
+
+/**
+ * Text extracted from MIME parts, shared by every copy of the same blob.
+ * <p>
+ * Each recipient of a message gets its own {@link ParsedMessage} when its copy is indexed or re-indexed, so without
+ * this every copy runs the same {@link MimeHandler} extraction, including the conversion of attachments by an
+ * external process.  Entries are keyed by the digest of the blob and the name of the part, and are kept in a small
+ * in-memory tier backed by a {@link FileCache} on disk, both bounded in size.  Since a digest identifies the content,
+ * entries never go stale; they only age out.
+ */
+final class ExtractedTextCache {
+
+    private static final ExtractedTextCache INSTANCE = new ExtractedTextCache();
+
+    private final Cache<String, String> memory = CacheBuilder.newBuilder()
+        .maximumWeight(LC.zimbra_extracted_text_cache_memory_kb.longValue() * 1024)
+        .weigher(new Weigher<String, String>() {
+            @Override
+            public int weigh(String key, String value) {
+                return (key.length() + value.length()) * 2;
+            }
+        }).build();
+    private FileCache<String> disk;
+    private boolean diskInitialized = false;
+
+    static ExtractedTextCache getInstance() {
+        return INSTANCE;
+    }
+
+    /**
+     * Returns the cache key for the text of {@code part} of the blob with the given digest, or {@code null} if the
+     * text should not be cached.
+     *
+     * @param digest digest of the message blob, or {@code null} if unknown
+     */
+    static String getKey(String digest, MPartInfo part, MimeHandler handler) {
+        if (Strings.isNullOrEmpty(digest) || !LC.zimbra_extracted_text_cache_enabled.booleanValue() ||
+                DebugConfig.disableMimePartExtraction ||
+                part.getSize() < LC.zimbra_extracted_text_cache_min_size.intValue()) {
+            return null;
+        }
+        // the handler and default charset both change the text extracted from the same bytes
+        return digest + '/' + part.getPartName() + '/' + handler.getClass().getSimpleName() + '/' +
+            Strings.nullToEmpty(handler.getDefaultCharset());
+    }
+
+    /**
+     * Returns the cached text, or {@code null} if it has not been extracted yet.
+     */
+    String get(String key) {
+        String text = memory.getIfPresent(key);
+        if (text == null) {
+            text = readFromDisk(key);
+            if (text != null) {
+                memory.put(key, text);
+            }
+        }
+        ZimbraPerf.COUNTER_EXTRACTED_TEXT_CACHE_HIT_RATE.increment(text != null ? 100 : 0);
+        return text;
+    }
+
+    void put(String key, String text) {
+        if (text.isEmpty()) {
+            return;
+        }
+        memory.put(key, text);
+        FileCache<String> cache = getDisk();
+        if (cache != null) {
+            try {
+                cache.put(key, new ByteArrayInputStream(text.getBytes(Charsets.UTF_8)));
+            } catch (IOException e) {
+                ZimbraLog.index.debug("Unable to store extracted text for %s.", key, e);
+            }
+        }
+    }
+
+    private String readFromDisk(String key) {
+        FileCache<String> cache = getDisk();
+        if (cache == null) {
+            return null;
+        }
+        FileCache.Item item = cache.get(key);
+        if (item == null) {
+            return null;
+        }
+        try {
+            return Files.asCharSource(item.file, Charsets.UTF_8).read();
+        } catch (IOException e) {
+            // pruned since the lookup
+            return null;
+        }
+    }
+
+    private synchronized FileCache<String> getDisk() {
+        if (!diskInitialized) {
+            diskInitialized = true;
+            long maxBytes = LC.zimbra_extracted_text_cache_disk_mb.longValue() * 1024 * 1024;
+            if (maxBytes > 0) {
+                File dir = new File(LC.zimbra_extracted_text_cache_directory.value());
+                try {
+                    FileUtil.ensureDirExists(dir);
+                    disk = FileCache.Builder.createWithStringKey(dir, true).maxBytes(maxBytes).build();
+                } catch (IOException e) {
+                    ZimbraLog.index.warn("Unable to start the extracted text cache at %s; caching in memory only.",
+                            dir, e);
+                }
+            }
+        }
+        return disk;
+    }
+}
@@ -0,0 +1,452 @@
+/*
+ * ***** BEGIN LICENSE BLOCK *****
+ * Zimbra Collaboration Suite Server
+ * Copyright (C) 2016 Synacor, Inc.
+ *
+ * This program is free software: you can redistribute it and/or modify it under
+ * the terms of the GNU General Public License as published by the Free Software Foundation,
+ * version 2 of the License.
+ *
+ * This program is distributed in the hope that it will be useful, but WITHOUT ANY WARRANTY;
+ * without even the implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.
+ * See the GNU General Public License for more details.
+ * You should have received a copy of the GNU General Public License along with this program.
+ * If not, see <https://www.gnu.org/licenses/>.
+ * ***** END LICENSE BLOCK *****
+ */
+package com.zimbra.cs.mime;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.PrintStream;
+import java.io.UnsupportedEncodingException;
+import java.util.Iterator;
+import java.util.LinkedList;
+import java.util.Map;
+
+import javax.mail.MessagingException;
+import javax.mail.internet.InternetAddress;
+import javax.mail.internet.MimeBodyPart;
+import javax.mail.internet.MimeMessage;
+import javax.mail.internet.MimePart;
+import javax.mail.internet.ParseException;
+
+import org.apache.commons.codec.EncoderException;
+import org.apache.commons.codec.net.BCodec;
+
+import com.zimbra.common.localconfig.LC;
+import com.zimbra.common.mime.ContentDisposition;
+import com.zimbra.common.mime.ContentType;
+import com.zimbra.common.mime.MimeCompoundHeader;
+import com.zimbra.common.mime.MimeConstants;
+import com.zimbra.common.util.ByteUtil;
+import com.zimbra.common.util.ZimbraLog;
+
+/**
+ * Renders the IMAP {@code BODYSTRUCTURE}, {@code BODY} and {@code ENVELOPE} of a MIME message (RFC 3501 7.4.2).
+ * It lives with the MIME code rather than the IMAP server so that the structures can also be precomputed at delivery.
+ */
+public final class ImapStructure {
+
+    private ImapStructure() {
+    }
+
+    private static final byte[] NIL = { 'N', 'I', 'L' };
+    private static final byte[] CRLF = { '\r', '\n' };
+
+    private static void nstring(PrintStream ps, String value) {
+        if (value == null) {
+            ps.write(NIL, 0, 3);
+        } else {
+            astring(ps, value, false);
+        }
+    }
+
+    private static void astring(PrintStream ps, String value) {
+        if (value == null) {
+            ps.print("\"\"");
+        } else {
+            astring(ps, value, false);
+        }
+    }
+
+    private static void aSTRING(PrintStream ps, String value) {
+        if (value == null) {
+            ps.print("\"\"");
+        } else {
+            astring(ps, value, true);
+        }
+    }
+
+    private static void astring(PrintStream ps, String value, boolean upcase) {
+        boolean literal = false;
+        StringBuilder nonulls = null;
+        int i = 0, lastNull = -1;
+        for (int length = value.length(); i < length; i++) {
+            char c = value.charAt(i);
+            if (c == '\0') {
+                if (nonulls == null) {
+                    nonulls = new StringBuilder();
+                }
+                nonulls.append(value.substring(lastNull + 1, i));
+                lastNull = i;
+            } else if (c == '"' || c == '\\' || c >= 0x7f || c < 0x20) {
+                literal = true;
+            }
+        }
+
+        String content = nonulls == null ? value : nonulls.append(value.substring(lastNull + 1, i)).toString();
+        if (upcase) {
+            content = content.toUpperCase();
+        }
+
+        if (!literal) {
+            ps.write('"');  ps.print(content);  ps.write('"');
+        } else {
+            try {
+                byte[] bytes = content.getBytes(MimeConstants.P_CHARSET_UTF8);
+                ps.write('{');  ps.print(bytes.length);  ps.write('}');
+                ps.write(CRLF, 0, 2);
+                ps.write(bytes, 0, bytes.length);
+            } catch (UnsupportedEncodingException uee) {
+                ps.write(NIL, 0, 3);
+            }
+        }
+    }
+
+    private static void nstring2047(PrintStream ps, String value) {
+        if (value == null) {
+            ps.write(NIL, 0, 3);  return;
+        }
+
+        boolean encoded = false;
+        for (int i = 0, length = value.length(); i < length; i++) {
+            char c = value.charAt(i);
+            if (c == '"' || c == '\\' || c >= 0x7f || c < 0x20) {
+                encoded = true;
+            }
+        }
+        if (!encoded) {
+            ps.write('"');  ps.print(value);  ps.write('"');
+        } else {
+            try {
+                // can't use QCodec because it doesn't encode '"', which results in bad quoted-strings
+                ps.write('"');  ps.print(new BCodec().encode(value, "utf-8"));  ps.write('"');
+            } catch (EncoderException ee) {
+                ps.write(NIL, 0, 3);
+            }
+        }
+    }
+
+    private static void address(PrintStream ps, InternetAddress addr) {
+        String address = addr.getAddress().trim(), route = null;
+
+        // handle obsolete route-addr
+        int colon;
+        if (address.startsWith("@") && (colon = address.indexOf(':')) != -1) {
+            route = address.substring(0, colon);
+            address = address.substring(colon + 1);
+        }
+
+        String[] parts = address.split("@", 2);
+        ps.write('(');  nstring2047(ps, addr.getPersonal());
+        ps.write(' ');  nstring(ps, route);
+        ps.write(' ');  nstring(ps, parts[0]);
+        ps.write(' ');  nstring(ps, parts.length > 1 ? parts[1] : null);
+        ps.write(')');
+    }
+
+    private static void naddresses(PrintStream ps, InternetAddress[] addrs) {
+        int count = 0;
+        if (addrs != null && addrs.length > 0) {
+            for (InternetAddress addr : addrs) {
+                if (addr.isGroup()) {
+                    // 7.4.2: "[RFC-2822] group syntax is indicated by a special form of address
+                    //         structure in which the host name field is NIL.  If the mailbox name
+                    //         field is also NIL, this is an end of group marker (semi-colon in RFC
+                    //         822 syntax).  If the mailbox name field is non-NIL, this is a start of
+                    //         group marker, and the mailbox name field holds the group name phrase."
+                    try {
+                        String serialized = addr.getAddress();
+                        int colon = serialized.indexOf(':');
+                        String name = colon == -1 ? serialized : serialized.substring(0, colon);
+                        InternetAddress[] members = addr.getGroup(false);
+
+                        if (count++ == 0) {
+                            ps.write('(');
+                        }
+                        ps.print("(NIL NIL ");  nstring(ps, name);  ps.print(" NIL)");
+                        if (members != null) {
+                            for (InternetAddress member : members) {
+                                address(ps, member);
+                            }
+                        }
+                        ps.print("(NIL NIL NIL NIL)");
+                    } catch (ParseException e) { }
+                } else if (addr.getAddress() == null) {
+                    continue;
+                } else {
+                    // 7.4.2: "The fields of an address structure are in the following order: personal
+                    //         name, [SMTP] at-domain-list (source route), mailbox name, and host name."
+                    if (count++ == 0) {
+                        ps.write('(');
+                    }
+                    address(ps, addr);
+                }
+            }
+        }
+
+        if (count == 0) {
+            ps.write(NIL, 0, 3);
+        } else {
+            ps.write(')');
+        }
+    }
+
+    private static void nlist(PrintStream ps, String[] list) {
+        if (list == null || list.length == 0) {
+            ps.print("NIL");
+        } else if (list.length == 1) {
+            astring(ps, list[0]);
+        } else {
+            ps.write('(');
+            for (int i = 0; i < list.length; i++) {
+                if (i != 0) {
+                    ps.write(' ');
+                }
+                astring(ps, list[i]);
+            }
+            ps.write(')');
+        }
+    }
+
+    private static void nparams(PrintStream ps, MimeCompoundHeader header) {
+        boolean first = true;
+        for (Iterator<Map.Entry<String, String>> it = header.parameterIterator(); it.hasNext(); first = false) {
+            Map.Entry<String, String> param = it.next();
+            ps.print(first ? '(' : ' ');  aSTRING(ps, param.getKey());  ps.write(' ');  nstring2047(ps, param.getValue());
+        }
+        ps.print(first ? "NIL" : ")");
+    }
+
+    private static void ndisposition(PrintStream ps, String disposition) {
+        if (disposition == null) {
+            ps.print("NIL");
+        } else {
+            ContentDisposition cdisp = new ContentDisposition(disposition);
+            ps.write('(');  astring(ps, cdisp.getDisposition());
+            ps.write(' ');  nparams(ps, cdisp);
+            ps.write(')');
+        }
+    }
+
+    /**
+     * Renders a message's {@code BODYSTRUCTURE} and {@code ENVELOPE} exactly as a FETCH would, so that they can be
+     * stored with the item and served later without reparsing its blob.
+     *
+     * @return the {@code BODYSTRUCTURE} and {@code ENVELOPE}, or {@code null} if they can't be rendered or together
+     *         exceed {@code imap_precomputed_structure_max_bytes}
+     */
+    public static String[] render(MimeMessage mm) {
+        int limit = LC.imap_precomputed_structure_max_bytes.intValue();
+        if (limit <= 0) {
+            return null;
+        }
+        try {
+            ByteArrayOutputStream baos = new ByteArrayOutputStream(512);
+            PrintStream ps = new PrintStream(baos, false, MimeConstants.P_CHARSET_UTF8);
+            serializeStructure(ps, mm, true);
+            ps.flush();
+            int split = baos.size();
+            serializeEnvelope(ps, mm);
+            ps.flush();
+            if (baos.size() > limit) {
+                return null;
+            }
+            byte[] rendered = baos.toByteArray();
+            return new String[] {
+                new String(rendered, 0, split, MimeConstants.P_CHARSET_UTF8),
+                new String(rendered, split, rendered.length - split, MimeConstants.P_CHARSET_UTF8)
+            };
+        } catch (IOException | MessagingException | RuntimeException e) {
+            ZimbraLog.imap.debug("unable to render BODYSTRUCTURE/ENVELOPE", e);
+            return null;
+        }
+    }
+
+    public static void serializeEnvelope(PrintStream ps, MimeMessage mm) throws MessagingException {
+        // 7.4.2: "The fields of the envelope structure are in the following order: date, subject,
+        //         from, sender, reply-to, to, cc, bcc, in-reply-to, and message-id.  The date,
+        //         subject, in-reply-to, and message-id fields are strings.  The from, sender,
+        //         reply-to, to, cc, and bcc fields are parenthesized lists of address structures."
+        InternetAddress[] from = Mime.parseAddressHeader(mm, "From", false);
+        InternetAddress[] sender = Mime.parseAddressHeader(mm, "Sender", false), replyTo = Mime.parseAddressHeader(mm, "Reply-To", false);
+        ps.write('(');  nstring(ps, mm.getHeader("Date", ","));
+        ps.write(' ');  nstring2047(ps, Mime.getSubject(mm));
+        ps.write(' ');  naddresses(ps, from);
+        ps.write(' ');  naddresses(ps, sender.length == 0 ? from : sender);
+        ps.write(' ');  naddresses(ps, replyTo.length == 0 ? from : replyTo);
+        ps.write(' ');  naddresses(ps, Mime.parseAddressHeader(mm, "To", false));
+        ps.write(' ');  naddresses(ps, Mime.parseAddressHeader(mm, "CC", false));
+        ps.write(' ');  naddresses(ps, Mime.parseAddressHeader(mm, "BCC", false));
+        ps.write(' ');  nstring(ps, mm.getHeader("In-Reply-To", " "));
+        ps.write(' ');  nstring(ps, mm.getMessageID());
+        ps.write(')');
+    }
+
+    private static String nATOM(String value) { return value == null ? "NIL" : '"' + value.toUpperCase() + '"'; }
+
+    public static void serializeStructure(PrintStream ps, MimeMessage root, boolean extensions) throws IOException, MessagingException {
+        LinkedList<LinkedList<MPartInfo>> queue = new LinkedList<LinkedList<MPartInfo>>();
+        LinkedList<MPartInfo> level = new LinkedList<MPartInfo>();
+        level.add(Mime.getParts(root).get(0));
+        queue.add(level);
+
+        boolean pop = false;
+        while (!queue.isEmpty()) {
+            level = queue.getLast();
+            if (level.isEmpty()) {
+                queue.removeLast();
+                pop = true;
+                continue;
+            }
+
+            MPartInfo mpi = level.getFirst();
+            MimePart mp = mpi.getMimePart();
+            boolean hasChildren = mpi.getChildren() != null && !mpi.getChildren().isEmpty();
+
+            // we used to force unset charsets on text/plain parts to US-ASCII, but that always seemed unwise...
+            ContentType ctype = new ContentType(mp.getHeader("Content-Type", null)).setContentType(mpi.getContentType());
+            String primary = nATOM(ctype.getPrimaryType()), subtype = nATOM(ctype.getSubType());
+
+            if (!pop)
+                ps.write('(');
+            if (primary.equals("\"MULTIPART\"")) {
+                if (!pop) {
+                    // 7.4.2: "Multiple parts are indicated by parenthesis nesting.  Instead of a body type
+                    //         as the first element of the parenthesized list, there is a sequence of one
+                    //         or more nested body structures.  The second element of the parenthesized
+                    //         list is the multipart subtype (mixed, digest, parallel, alternative, etc.)."
+                    if (!hasChildren) {
+                        ps.print("NIL");
+                    } else {
+                        queue.addLast(new LinkedList<MPartInfo>(mpi.getChildren()));
+                        continue;
+                    }
+                }
+                ps.write(' ');  ps.print(subtype);
+                if (extensions) {
+                    // 7.4.2: "Extension data follows the multipart subtype.  Extension data is never
+                    //         returned with the BODY fetch, but can be returned with a BODYSTRUCTURE
+                    //         fetch.  Extension data, if present, MUST be in the defined order.  The
+                    //         extension data of a multipart body part are in the following order:
+                    //         body parameter parenthesized list, body disposition, body language,
+                    //         body location"
+                    ps.write(' ');  nparams(ps, ctype);
+                    ps.write(' ');  ndisposition(ps, mp.getHeader("Content-Disposition", null));
+                    ps.write(' ');  nlist(ps, mp.getContentLanguage());
+                    ps.write(' ');  nstring(ps, mp.getHeader("Content-Location", null));
+                }
+            } else {
+                if (!pop) {
+                    // 7.4.2: "The basic fields of a non-multipart body part are in the following order:
+                    //         body type, body subtype, body parameter parenthesized list, body id, body
+                    //         description, body encoding, body size."
+                    String cte = mp.getEncoding();
+                    cte = (cte == null || cte.trim().equals("") ? "7bit" : cte);
+                    aSTRING(ps, ctype.getPrimaryType());  ps.write(' ');  aSTRING(ps, ctype.getSubType());
+                    ps.write(' ');  nparams(ps, ctype);
+                    ps.write(' ');  nstring(ps, mp.getContentID());
+                    ps.write(' ');  nstring2047(ps, mp.getDescription());
+                    ps.write(' ');  aSTRING(ps, cte);
+                    ps.write(' ');  ps.print(Math.max(mp.getSize(), 0));
+                }
+                boolean rfc822 = primary.equals("\"MESSAGE\"") && subtype.equals("\"RFC822\"");
+                if (rfc822) {
+                    // 7.4.2: "A body type of type MESSAGE and subtype RFC822 contains, immediately
+                    //         after the basic fields, the envelope structure, body structure, and
+                    //         size in text lines of the encapsulated message."
+                    if (!pop) {
+                        if (!hasChildren) {
+                            ps.print(" NIL NIL");
+                        } else {
+                            MimeMessage mm = (MimeMessage) mpi.getChildren().get(0).getMimePart();
+                            ps.write(' ');  serializeEnvelope(ps, mm);  ps.write(' ');
+                            queue.addLast(new LinkedList<MPartInfo>(mpi.getChildren()));
+                            continue;
+                        }
+                    }
+                    ps.write(' ');  ps.print(getLineCount(mp));
+                } else if (primary.equals("\"TEXT\"")) {
+                    // 7.4.2: "A body type of type TEXT contains, immediately after the basic fields, the
+                    //         size of the body in text lines.  Note that this size is the size in its
+                    //         content transfer encoding and not the resulting size after any decoding."
+                    ps.write(' ');  ps.print(getLineCount(mp));
+                }
+                if (extensions) {
+                    // 7.4.2: "Extension data follows the basic fields and the type-specific fields
+                    //         listed above.  Extension data is never returned with the BODY fetch,
+                    //         but can be returned with a BODYSTRUCTURE fetch.  Extension data, if
+                    //         present, MUST be in the defined order.  The extension data of a
+                    //         non-multipart body part are in the following order: body MD5, body
+                    //         disposition, body language, body location"
+                    ps.write(' ');  nstring(ps, mp.getContentMD5());
+                    ps.write(' ');  ndisposition(ps, mp.getHeader("Content-Disposition", null));
+                    ps.write(' ');  nlist(ps, mp.getContentLanguage());
+                    ps.write(' ');  nstring(ps, mp.getHeader("Content-Location", null));
+                }
+            }
+            ps.write(')');
+
+            level.removeFirst();
+            pop = false;
+        }
+    }
+
+    private static int getLineCount(MimePart mp) {
+        // if the MimePart implementation counts lines, use its count
+        try {
+            int lines = mp.getLineCount();
+            if (lines > 0) {
+                return lines;
+            }
+        } catch (MessagingException e) {
+        }
+
+        InputStream is = null;
+        try {
+            if (mp instanceof MimeBodyPart) {
+                is = ((MimeBodyPart) mp).getRawInputStream();
+            } else if (mp instanceof MimeMessage) {
+                is = ((MimeMessage) mp).getRawInputStream();
+            } else {
+                return 0;
+            }
+
+            int lines = 0, c;
+            boolean complete = false;
+            while ((c = is.read()) != -1) {
+                if ((complete = (c == '\n')) == true) {
+                    lines++;
+                }
+            }
+            return complete ? lines : lines + 1;
+        } catch (MessagingException e) {
+            return 0;
+        } catch (IOException e) {
+            return 0;
+        } finally {
+            ByteUtil.closeStream(is);
+        }
+    }
+
+    public static void main(String[] args) {
+        PrintStream ps = new PrintStream(System.out);
+        ps.print(CRLF);
+        String[] samples = new String[] { null, "test", "\u0442", "ha\nnd", "\"dog\"", "ca\"t", "\0fr\0og\0" };
+        for (String s : samples) {
+            nstring2047(ps, s);  ps.write(' ');  nstring(ps, s);  ps.write(' ');  astring(ps, s);  ps.write(' ');  aSTRING(ps, s);  ps.write('\n');
+        }
+    }
+}
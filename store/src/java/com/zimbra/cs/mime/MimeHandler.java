@@ -67,6 +67,7 @@ public abstract class MimeHandler {
     private String defaultCharset;
     private String locale;
     private String partName; // dotted-number part name
+    private String extractedContent;
 
     /** Returns <tt>true</tt> if a request for the handler to perform text
      *  extraction or HTML conversion will result in an RPC to an external
@@ -166,6 +167,21 @@ public abstract class MimeHandler {
         size = value;
     }
 
+    /**
+     * Takes the text content from the cache if it was already extracted from identical content, so that
+     * {@link #getContent()} returns it instead of extracting the part again, otherwise extracts it and caches it.
+     * Either way the text is kept, so the part is extracted at most once.
+     * Only the text is shared: {@link #getDocument()} still lets the handler add its own fields.
+     */
+    void loadContent(ExtractedTextCache cache, String key) throws MimeHandlerException {
+        String text = cache.get(key);
+        if (text == null) {
+            text = getContent();
+            cache.put(key, text);
+        }
+        extractedContent = text;
+    }
+
     /**
      * Adds the indexed fields to the Lucene document for search. Each handler determines
      * a set of fields that it deems important for the type of documents it handles.
@@ -176,6 +192,9 @@ public abstract class MimeHandler {
      * Gets the text content of the document.
      */
     public final String getContent() throws MimeHandlerException {
+        if (extractedContent != null) {
+            return extractedContent;
+        }
         if (!DebugConfig.disableMimePartExtraction) {
             String toRet = getContentImpl();
             if (toRet == null)
@@ -148,6 +148,8 @@ public final class ParsedMessage {
     private InputStream sharedStream;
     private final Map<Mailbox, Threader> threaders = new HashMap<Mailbox, Threader>();
     private String dataSourceId = null;
+    private String digest;
+    private String[] imapStructure;
 
     public ParsedMessage(MimeMessage msg, boolean indexAttachments) throws ServiceException {
         this(msg, getZimbraDateHeader(msg), indexAttachments);
@@ -195,6 +197,10 @@ public final class ParsedMessage {
         } else {
             throw ServiceException.FAILURE("ParsedMessageOptions do not specify message content", null);
         }
+        if (!wasMutated()) {
+            // the digest no longer describes the content once mutators have rewritten it
+            digest = opt.getDigest();
+        }
     }
 
     private void initialize(MimeMessage msg, Long receivedDate, boolean indexAttachments) throws ServiceException {
@@ -660,6 +666,62 @@ public final class ParsedMessage {
         }
     }
 
+    /**
+     * Returns the IMAP {@code BODYSTRUCTURE} of the raw message, rendered exactly as a FETCH would render it from
+     * the stored blob, or {@code null} if it can't be precomputed.  The result is cached, so a message delivered to
+     * several mailboxes is only walked once.
+     * <p>
+     * Messages with raw 8-bit headers are not precomputed: FETCH decodes those with the recipient account's default
+     * charset, so one rendering can't serve every recipient.
+     */
+    public String getImapStructure() {
+        return renderImapStructure()[0];
+    }
+
+    /**
+     * Returns the IMAP {@code ENVELOPE} of the raw message, or {@code null} if it can't be precomputed.
+     *
+     * @see #getImapStructure()
+     */
+    public String getImapEnvelope() {
+        return renderImapStructure()[1];
+    }
+
+    private String[] renderImapStructure() {
+        if (imapStructure == null) {
+            imapStructure = new String[2];
+            // only raw content is guaranteed to match what ends up in the blob; a MimeMessage built in memory may
+            // not report the same part sizes and encodings once written out, so leave those to the lazy backfill
+            if (sharedStream != null) {
+                InputStream in = null;
+                try {
+                    in = getRawInputStream();
+                    MimeMessage mm = new Mime.FixedMimeMessage(JMSession.getSession(), in);
+                    String[] rendered = hasRawNonAsciiHeaders(mm) ? null : ImapStructure.render(mm);
+                    if (rendered != null) {
+                        imapStructure = rendered;
+                    }
+                } catch (Exception e) {
+                    LOG.debug("unable to precompute IMAP structure", e);
+                } finally {
+                    ByteUtil.closeStream(in);
+                }
+            }
+        }
+        return imapStructure;
+    }
+
+    private static boolean hasRawNonAsciiHeaders(MimeMessage mm) throws IOException, MessagingException {
+        for (MPartInfo mpi : Mime.getParts(mm)) {
+            for (Enumeration<?> lines = mpi.getMimePart().getAllHeaderLines(); lines.hasMoreElements(); ) {
+                if (!StringUtil.isAsciiString((String) lines.nextElement())) {
+                    return true;
+                }
+            }
+        }
+        return false;
+    }
+
     /** Returns the message ID, or <tt>null</tt> if the message id cannot be
      *  determined. */
     public String getMessageID() {
@@ -1147,12 +1209,21 @@ public final class ParsedMessage {
                 //     - the 'main body' and a local mime handler
                 //     - the 'main body' and IndexAttachments was set in the constructor
                 //     - IndexAttachments was set and !disableIndexingAttachmentsTogether
-                if ((isMainBody && (!handler.runsExternally() || indexAttachments)) ||
-                            (indexAttachments && !DebugConfig.disableIndexingAttachmentsTogether)) {
+                boolean addToBody = (isMainBody && (!handler.runsExternally() || indexAttachments)) ||
+                        (indexAttachments && !DebugConfig.disableIndexingAttachmentsTogether);
+                boolean indexSeparately = indexAttachments && !DebugConfig.disableIndexingAttachmentsSeparately;
+
+                // other copies of this blob may already have paid for the extraction
+                String cacheKey = addToBody || indexSeparately ? ExtractedTextCache.getKey(digest, mpi, handler) : null;
+                if (cacheKey != null) {
+                    handler.loadContent(ExtractedTextCache.getInstance(), cacheKey);
+                }
+
+                if (addToBody) {
                     toRet = handler.getContent();
                 }
 
-                if (indexAttachments && !DebugConfig.disableIndexingAttachmentsSeparately) {
+                if (indexSeparately) {
                     // Each non-text MIME part is also indexed as a separate
                     // Lucene document.  This is necessary so that we can tell the
                     // client what parts match if a search matched a particular
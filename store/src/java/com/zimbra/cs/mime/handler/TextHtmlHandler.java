@@ -49,8 +49,8 @@ public class TextHtmlHandler extends MimeHandler {
 
     @Override
     public void addFields(Document doc) throws MimeHandlerException {
-        // make sure we've parsed the document
-        getContentImpl();
+        // make sure we've parsed the document, unless the text was already loaded from the extracted text cache
+        getContent();
     }
 
     @Override
@@ -0,0 +1,259 @@
+/*
+ * ***** BEGIN LICENSE BLOCK *****
+ * Zimbra Collaboration Suite Server
+ * Copyright (C) 2016 Synacor, Inc.
+ *
+ * This program is free software: you can redistribute it and/or modify it under
+ * the terms of the GNU General Public License as published by the Free Software Foundation,
+ * version 2 of the License.
+ *
+ * This program is distributed in the hope that it will be useful, but WITHOUT ANY WARRANTY;
+ * without even the implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.
+ * See the GNU General Public License for more details.
+ * You should have received a copy of the GNU General Public License along with this program.
+ * If not, see <https://www.gnu.org/licenses/>.
+ * ***** END LICENSE BLOCK *****
+ */
+
+package com.zimbra.cs.server;
+
+import java.io.ByteArrayOutputStream;
+import java.io.FilterInputStream;
+import java.io.FilterOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.zip.DataFormatException;
+import java.util.zip.Deflater;
+import java.util.zip.Inflater;
+
+/**
+ * Per-connection raw DEFLATE (RFC 1951) state for the IMAP COMPRESS extension (RFC 4978).
+ * <p>
+ * Output is sync-flushed at every flush point so that the peer can decode everything written so far, and both
+ * directions keep byte counts and the time spent in zlib so that the compression ratio and CPU cost of a connection
+ * can be reported when it ends. The counters survive {@link #end()}.
+ */
+public final class DeflateCompressor {
+    private static final int CHUNK_SIZE = 8 * 1024;
+    private static final byte[] EMPTY = new byte[0];
+
+    private final Deflater deflater;
+    private final Inflater inflater = new Inflater(true);
+    private final byte[] chunk = new byte[CHUNK_SIZE];
+    private long uncompressedOut;
+    private long compressedOut;
+    private long compressedIn;
+    private long uncompressedIn;
+    private long nanos;
+    private boolean ended;
+
+    public DeflateCompressor(int level) {
+        deflater = new Deflater(level, true);
+    }
+
+    /**
+     * Compresses the given bytes. If {@code flush} is set the output is sync-flushed, otherwise the deflater may keep
+     * some of the input buffered until the next call.
+     */
+    public synchronized byte[] deflate(byte[] b, int off, int len, boolean flush) throws IOException {
+        if (ended) {
+            throw new IOException("compression ended");
+        }
+        long start = System.nanoTime();
+        ByteArrayOutputStream out = new ByteArrayOutputStream(flush ? len / 2 + 16 : 0);
+        deflater.setInput(b, off, len);
+        if (flush) {
+            int n;
+            do {
+                n = deflater.deflate(chunk, 0, chunk.length, Deflater.SYNC_FLUSH);
+                out.write(chunk, 0, n);
+            } while (n == chunk.length);
+        } else {
+            while (!deflater.needsInput()) {
+                out.write(chunk, 0, deflater.deflate(chunk, 0, chunk.length, Deflater.NO_FLUSH));
+            }
+        }
+        uncompressedOut += len;
+        compressedOut += out.size();
+        nanos += System.nanoTime() - start;
+        return out.toByteArray();
+    }
+
+    /**
+     * Decompresses the given bytes. Input that ends in the middle of a deflate block is retained until the rest of
+     * it arrives, so the result may be empty.
+     */
+    public synchronized byte[] inflate(byte[] b, int off, int len) throws IOException {
+        if (ended) {
+            throw new IOException("compression ended");
+        }
+        long start = System.nanoTime();
+        ByteArrayOutputStream out = new ByteArrayOutputStream(len * 3);
+        inflater.setInput(b, off, len);
+        try {
+            while (true) {
+                int n = inflater.inflate(chunk);
+                out.write(chunk, 0, n);
+                if (n < chunk.length && inflater.needsInput()) {
+                    break;
+                } else if (n == 0 && (inflater.finished() || inflater.needsDictionary())) {
+                    throw new IOException("unexpected end of deflate stream");
+                }
+            }
+        } catch (DataFormatException e) {
+            throw new IOException("invalid deflate stream", e);
+        }
+        compressedIn += len;
+        uncompressedIn += out.size();
+        nanos += System.nanoTime() - start;
+        return out.toByteArray();
+    }
+
+    /**
+     * Returns a stream that compresses everything written to it into {@code out}, sync-flushing on {@code flush()}.
+     */
+    public OutputStream wrap(OutputStream out) {
+        return new FilterOutputStream(out) {
+            @Override
+            public void write(int b) throws IOException {
+                write(new byte[] { (byte) b }, 0, 1);
+            }
+
+            @Override
+            public void write(byte[] b, int off, int len) throws IOException {
+                byte[] compressed = deflate(b, off, len, false);
+                if (compressed.length > 0) {
+                    out.write(compressed);
+                }
+            }
+
+            @Override
+            public void flush() throws IOException {
+                out.write(deflate(EMPTY, 0, 0, true));
+                out.flush();
+            }
+
+            @Override
+            public void close() throws IOException {
+                try {
+                    super.close();
+                } finally {
+                    end();
+                }
+            }
+        };
+    }
+
+    /**
+     * Returns a stream that decompresses the bytes read from {@code in}.
+     */
+    public InputStream wrap(InputStream in) {
+        return new FilterInputStream(in) {
+            private final byte[] buf = new byte[CHUNK_SIZE];
+            private byte[] pending = EMPTY;
+            private int pos;
+
+            @Override
+            public int read() throws IOException {
+                byte[] b = new byte[1];
+                return read(b, 0, 1) < 0 ? -1 : b[0] & 0xFF;
+            }
+
+            @Override
+            public int read(byte[] b, int off, int len) throws IOException {
+                if (len == 0) {
+                    return 0;
+                }
+                while (pos == pending.length) {
+                    int n = in.read(buf, 0, buf.length);
+                    if (n < 0) {
+                        return -1;
+                    }
+                    pending = inflate(buf, 0, n);
+                    pos = 0;
+                }
+                int n = Math.min(len, pending.length - pos);
+                System.arraycopy(pending, pos, b, off, n);
+                pos += n;
+                return n;
+            }
+
+            @Override
+            public int available() {
+                return pending.length - pos;
+            }
+
+            @Override
+            public long skip(long n) throws IOException {
+                if (n <= 0) {
+                    return 0;
+                }
+                int skipped = read(new byte[(int) Math.min(n, CHUNK_SIZE)]);
+                return skipped < 0 ? 0 : skipped;
+            }
+
+            @Override
+            public boolean markSupported() {
+                return false;
+            }
+
+            @Override
+            public void close() throws IOException {
+                try {
+                    super.close();
+                } finally {
+                    end();
+                }
+            }
+        };
+    }
+
+    /**
+     * Releases the native zlib state. Subsequent attempts to compress or decompress fail.
+     */
+    public synchronized void end() {
+        if (!ended) {
+            ended = true;
+            deflater.end();
+            inflater.end();
+        }
+    }
+
+    public synchronized long getUncompressedBytesOut() {
+        return uncompressedOut;
+    }
+
+    public synchronized long getCompressedBytesOut() {
+        return compressedOut;
+    }
+
+    public synchronized long getCompressedBytesIn() {
+        return compressedIn;
+    }
+
+    public synchronized long getUncompressedBytesIn() {
+        return uncompressedIn;
+    }
+
+    /**
+     * Returns the total size of the compressed traffic in both directions as a percentage of its uncompressed size.
+     */
+    public synchronized int getRatio() {
+        long uncompressed = uncompressedOut + uncompressedIn;
+        return uncompressed == 0 ? 100 : (int) ((compressedOut + compressedIn) * 100 / uncompressed);
+    }
+
+    /**
+     * Returns the time spent compressing and decompressing, in milliseconds.
+     */
+    public synchronized long getMillis() {
+        return nanos / 1000000;
+    }
+
+    @Override
+    public synchronized String toString() {
+        return String.format("out=%d/%d in=%d/%d ratio=%d%% cpu=%dms", compressedOut, uncompressedOut,
+                compressedIn, uncompressedIn, getRatio(), getMillis());
+    }
+}
@@ -0,0 +1,79 @@
+/*
+ * ***** BEGIN LICENSE BLOCK *****
+ * Zimbra Collaboration Suite Server
+ * Copyright (C) 2016 Synacor, Inc.
+ *
+ * This program is free software: you can redistribute it and/or modify it under
+ * the terms of the GNU General Public License as published by the Free Software Foundation,
+ * version 2 of the License.
+ *
+ * This program is distributed in the hope that it will be useful, but WITHOUT ANY WARRANTY;
+ * without even the implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.
+ * See the GNU General Public License for more details.
+ * You should have received a copy of the GNU General Public License along with this program.
+ * If not, see <https://www.gnu.org/licenses/>.
+ * ***** END LICENSE BLOCK *****
+ */
+
+package com.zimbra.cs.server;
+
+import java.io.IOException;
+
+import org.apache.mina.core.buffer.IoBuffer;
+import org.apache.mina.core.filterchain.IoFilterAdapter;
+import org.apache.mina.core.filterchain.IoFilterChain;
+import org.apache.mina.core.session.IoSession;
+import org.apache.mina.core.write.DefaultWriteRequest;
+import org.apache.mina.core.write.WriteRequest;
+
+/**
+ * MINA filter implementing the DEFLATE layer of the IMAP COMPRESS extension (RFC 4978).
+ * <p>
+ * It sits below the protocol codec and above any SSL or SASL filter, so data is compressed before it is encrypted.
+ * Every write is sync-flushed, which matches {@link NioOutputStream} writing a buffer to the session only on flush.
+ */
+public final class NioCompressionFilter extends IoFilterAdapter {
+    /** When set, compression is disabled for the first write, i.e. the tagged OK to the COMPRESS command. */
+    public static final String DISABLE_COMPRESSION_ONCE = NioCompressionFilter.class.getName() + ".DisableCompressionOnce";
+
+    private final DeflateCompressor compressor;
+
+    public NioCompressionFilter(DeflateCompressor compressor) {
+        this.compressor = compressor;
+    }
+
+    @Override
+    public void messageReceived(NextFilter nextFilter, IoSession session, Object message) throws IOException {
+        IoBuffer buf = (IoBuffer) message;
+        byte[] b = new byte[buf.remaining()];
+        buf.get(b);
+        byte[] inflated = compressor.inflate(b, 0, b.length);
+        if (inflated.length > 0) {
+            nextFilter.messageReceived(session, IoBuffer.wrap(inflated));
+        }
+    }
+
+    @Override
+    public void filterWrite(NextFilter nextFilter, IoSession session, WriteRequest writeRequest) throws IOException {
+        if (session.containsAttribute(DISABLE_COMPRESSION_ONCE)) {
+            session.removeAttribute(DISABLE_COMPRESSION_ONCE);
+            nextFilter.filterWrite(session, writeRequest);
+            return;
+        }
+        // zero-copy file transfers are never used with this filter in the chain (see NioOutputStream)
+        IoBuffer buf = (IoBuffer) writeRequest.getMessage();
+        if (buf.remaining() == 0) {
+            nextFilter.filterWrite(session, writeRequest);
+            return;
+        }
+        byte[] b = new byte[buf.remaining()];
+        buf.get(b);
+        byte[] deflated = compressor.deflate(b, 0, b.length, true);
+        nextFilter.filterWrite(session, new DefaultWriteRequest(IoBuffer.wrap(deflated), writeRequest.getFuture()));
+    }
+
+    @Override
+    public void onPostRemove(IoFilterChain parent, String name, NextFilter nextFilter) {
+        compressor.end();
+    }
+}
@@ -85,6 +85,15 @@ public final class NioConnection {
         session.setAttribute(SaslFilter.DISABLE_ENCRYPTION_ONCE, true);
     }
 
+    /**
+     * Inserts a DEFLATE layer below the protocol codec and above SSL/SASL. The next write, which should be the
+     * response to the command that enabled compression, is still sent uncompressed.
+     */
+    public void startCompression(DeflateCompressor compressor) {
+        session.getFilterChain().addBefore("executer", "compress", new NioCompressionFilter(compressor));
+        session.setAttribute(NioCompressionFilter.DISABLE_COMPRESSION_ONCE, true);
+    }
+
     public void send(Object obj) {
         session.write(obj);
     }
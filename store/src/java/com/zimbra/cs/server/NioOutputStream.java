@@ -19,11 +19,18 @@ package com.zimbra.cs.server;
 
 import java.io.IOException;
 import java.io.OutputStream;
+import java.nio.channels.FileChannel;
 
 import org.apache.mina.core.buffer.IoBuffer;
+import org.apache.mina.core.file.DefaultFileRegion;
+import org.apache.mina.core.filterchain.IoFilterChain;
+import org.apache.mina.core.future.IoFutureListener;
 import org.apache.mina.core.future.WriteFuture;
 import org.apache.mina.core.session.IoSession;
+import org.apache.mina.filter.codec.ProtocolCodecFilter;
+import org.apache.mina.filter.executor.ExecutorFilter;
 
+import com.google.common.annotations.VisibleForTesting;
 import com.google.common.base.Charsets;
 import com.zimbra.common.util.ZimbraLog;
 
@@ -33,7 +40,8 @@ public final class NioOutputStream extends OutputStream {
     private int maxScheduledBytes;
     private int maxWritePause;
 
-    NioOutputStream(IoSession session, int chunkSize, int maxScheduleBytes, int maxWritePause) {
+    @VisibleForTesting
+    public NioOutputStream(IoSession session, int chunkSize, int maxScheduleBytes, int maxWritePause) {
         this.session = session;
         this.buf = IoBuffer.allocate(chunkSize);
         this.maxScheduledBytes = maxScheduleBytes;
@@ -79,6 +87,51 @@ public final class NioOutputStream extends OutputStream {
         buf.put((byte) b);
     }
 
+    /**
+     * Returns whether {@link #transferFrom} can hand file content to the socket as is.  That is only the case while
+     * every filter on the session passes file regions through untouched; TLS, SASL and extension filters need to see
+     * the bytes.
+     */
+    public boolean supportsTransfer() {
+        for (IoFilterChain.Entry entry : session.getFilterChain().getAll()) {
+            Object filter = entry.getFilter();
+            if (!(filter instanceof ExecutorFilter || filter instanceof NioLoggingFilter ||
+                    filter instanceof ProtocolCodecFilter)) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Writes <tt>count</tt> bytes of <tt>channel</tt> starting at <tt>position</tt> after anything already buffered,
+     * letting the I/O processor send them with {@link FileChannel#transferTo} instead of copying them through the
+     * heap.  Takes ownership of the channel, which is closed once the write completes.  Only call this when
+     * {@link #supportsTransfer()} returns <tt>true</tt>.
+     */
+    public synchronized void transferFrom(final FileChannel channel, long position, long count) throws IOException {
+        try {
+            flush();
+        } catch (IOException e) {
+            closeQuietly(channel);
+            throw e;
+        }
+        writeToSession(new DefaultFileRegion(channel, position, count), new IoFutureListener<WriteFuture>() {
+            @Override
+            public void operationComplete(WriteFuture written) {
+                closeQuietly(channel);
+            }
+        });
+    }
+
+    private static void closeQuietly(FileChannel channel) {
+        try {
+            channel.close();
+        } catch (IOException e) {
+            ZimbraLog.nio.debug("ignoring exception while closing file channel", e);
+        }
+    }
+
     @Override
     public synchronized void flush() throws IOException {
         if (buf.position() > 0) {
@@ -89,8 +142,15 @@ public final class NioOutputStream extends OutputStream {
     }
 
     private synchronized void writeToSession(Object output) throws IOException {
+        writeToSession(output, null);
+    }
+
+    private synchronized void writeToSession(Object output, IoFutureListener<WriteFuture> listener) throws IOException {
         long writeBytes = session.getScheduledWriteBytes();
         WriteFuture future = session.write(output);
+        if (listener != null) {
+            future.addListener(listener);
+        }
         if (writeBytes > maxScheduledBytes) {
             ZimbraLog.nio.debug("IOSession has %d scheduled write bytes; waiting for buffer to catch up", writeBytes);
             long start = System.currentTimeMillis();
@@ -32,6 +32,8 @@ import com.zimbra.cs.store.external.ExternalBlobConsistencyChecker;
 import com.zimbra.cs.store.external.ExternalStoreManager;
 import com.zimbra.cs.store.file.BlobConsistencyChecker;
 import com.zimbra.cs.store.file.FileBlobStore;
+import com.zimbra.cs.store.pack.PackBlobConsistencyChecker;
+import com.zimbra.cs.store.pack.PackFileStoreManager;
 import com.zimbra.cs.volume.Volume;
 import com.zimbra.cs.volume.VolumeManager;
 import com.zimbra.soap.ZimbraSoapContext;
@@ -77,7 +79,7 @@ public final class CheckBlobConsistency extends AdminDocumentHandler {
                     results.toElement(mboxEl);
                 }
             }
-        } else if (sm instanceof FileBlobStore) {
+        } else if (sm instanceof FileBlobStore || sm instanceof PackFileStoreManager) {
 
             // Assemble the list of volumes.
             List<Short> volumeIds = new ArrayList<Short>();
@@ -106,7 +108,8 @@ public final class CheckBlobConsistency extends AdminDocumentHandler {
             }
 
             for (int mboxId : mailboxIds) {
-                BlobConsistencyChecker checker = new BlobConsistencyChecker();
+                BlobConsistencyChecker checker = sm instanceof PackFileStoreManager ?
+                        new PackBlobConsistencyChecker() : new BlobConsistencyChecker();
                 BlobConsistencyChecker.Results results = checker.check(volumeIds, mboxId, checkSize, reportUsedBlobs);
                 if (results.hasInconsistency() || reportUsedBlobs) {
                     Element mboxEl = response.addElement(AdminConstants.E_MAILBOX).addAttribute(AdminConstants.A_ID, mboxId);
@@ -114,7 +117,7 @@ public final class CheckBlobConsistency extends AdminDocumentHandler {
                 }
             }
         } else {
-            //neither ExternalStoreManager nor FileBlobStore..some third type we haven't coded for
+            //neither ExternalStoreManager nor FileBlobStore nor PackFileStoreManager..some third type we haven't coded for
             throw ServiceException.INVALID_REQUEST(sm.getClass().getName() + " is not supported", null);
         }
         return response;
@@ -23,6 +23,7 @@ import java.io.IOException;
 import java.io.InputStream;
 import java.io.PushbackInputStream;
 import java.io.UnsupportedEncodingException;
+import java.nio.channels.FileChannel;
 import java.util.Arrays;
 import java.util.EnumSet;
 import java.util.List;
@@ -40,9 +41,13 @@ import javax.mail.internet.MimePart;
 import javax.mail.internet.MimeUtility;
 import javax.servlet.RequestDispatcher;
 import javax.servlet.ServletException;
+import javax.servlet.ServletOutputStream;
 import javax.servlet.http.HttpServletRequest;
 import javax.servlet.http.HttpServletResponse;
 
+import org.eclipse.jetty.server.HttpOutput;
+
+import com.google.common.annotations.VisibleForTesting;
 import com.google.common.base.Charsets;
 import com.google.common.base.Strings;
 import com.google.common.collect.ImmutableSet;
@@ -168,8 +173,40 @@ public final class NativeFormatter extends Formatter {
             long size = msg.getSize();
             if (size > 0)
                 context.resp.setContentLength((int)size);
-            InputStream is = msg.getContentStream();
-            ByteUtil.copy(is, true, context.resp.getOutputStream(), false);
+            if (!sendContentChannel(context.resp, msg)) {
+                InputStream is = msg.getContentStream();
+                ByteUtil.copy(is, true, context.resp.getOutputStream(), false);
+            }
+        }
+    }
+
+    /**
+     * Hands a large blob that the store keeps as a plain file to Jetty as a channel, so that it is written to the
+     * connection without being copied through heap buffers.  Returns <tt>false</tt> without writing anything if the
+     * caller has to stream the content instead.
+     */
+    @VisibleForTesting
+    static boolean sendContentChannel(HttpServletResponse resp, MailItem item) throws IOException, ServiceException {
+        long size = item.getSize();
+        if (!LC.zimbra_blob_zero_copy_enabled.booleanValue() || size < LC.zimbra_blob_zero_copy_min_size.longValue()) {
+            return false;
+        }
+        ServletOutputStream out = resp.getOutputStream();
+        if (!(out instanceof HttpOutput)) {
+            return false;
+        }
+        FileChannel channel = item.getContentChannel();
+        if (channel == null) {
+            return false;
+        }
+        try {
+            if (channel.size() != size) {
+                return false;
+            }
+            ((HttpOutput) out).sendContent(channel);
+            return true;
+        } finally {
+            channel.close();
         }
     }
 
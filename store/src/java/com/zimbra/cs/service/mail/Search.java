@@ -41,6 +41,7 @@ import com.zimbra.cs.account.Account;
 import com.zimbra.cs.account.AuthToken;
 import com.zimbra.cs.account.Provisioning;
 import com.zimbra.cs.account.Server;
+import com.zimbra.cs.index.HitHydrator;
 import com.zimbra.cs.index.MessageHit;
 import com.zimbra.cs.index.QueryInfo;
 import com.zimbra.cs.index.ResultsPager;
@@ -63,6 +64,7 @@ import com.zimbra.cs.mailbox.calendar.cache.CalendarData;
 import com.zimbra.cs.mailbox.calendar.cache.CalendarItemData;
 import com.zimbra.cs.service.util.ItemId;
 import com.zimbra.cs.service.util.ItemIdFormatter;
+import com.zimbra.cs.stats.ZimbraPerf;
 import com.zimbra.cs.util.AccountUtil;
 import com.zimbra.soap.ZimbraSoapContext;
 import com.zimbra.soap.mail.message.SearchRequest;
@@ -162,31 +164,47 @@ public class Search extends MailDocumentHandler  {
         boolean expand;
         ExpandResults expandValue = params.getInlineRule();
         int hitNum = 0;
+        int roundTrips = 0;
+        List<ZimbraHit> page = new ArrayList<ZimbraHit>();
         while (pager.hasNext() && resp.size() < params.getLimit()) {
-            hitNum ++;
-            ZimbraHit hit = pager.getNextHit();
-            if (hit instanceof MessageHit) {
-                /*
-                 * Determine whether or not to expand MessageHits.
-                 * This logic used to be in SearchResponse.isInlineExpand, but was moved
-                 * to the handler classes because in some cases
-                 * the decision to expand any particular hit is dependent on
-                 * other hits (see SearchConv)
-                 */
-                if (expandValue == ExpandResults.NONE) {
-                    expand = false;
-                } else if (expandValue == ExpandResults.ALL) {
-                    expand = true;
-                } else if (expandValue == ExpandResults.FIRST) {
-                    expand = params.getOffset() > 0 ? false : hitNum == 1;
+            // pull in the rest of the page and load all of its items together before serializing any of it
+            page.clear();
+            while (pager.hasNext() && page.size() < params.getLimit() - resp.size()) {
+                page.add(pager.getNextHit());
+            }
+            // only count the statements of loading and serializing the page, not those of the pager
+            int prepareCount = ZimbraPerf.getThreadPrepareCount();
+            if (params.getFetchMode() != SearchParams.Fetch.IDS) {
+                HitHydrator.hydrate(page, octxt, params.inDumpster());
+            }
+            for (ZimbraHit hit : page) {
+                hitNum ++;
+                if (hit instanceof MessageHit) {
+                    /*
+                     * Determine whether or not to expand MessageHits.
+                     * This logic used to be in SearchResponse.isInlineExpand, but was moved
+                     * to the handler classes because in some cases
+                     * the decision to expand any particular hit is dependent on
+                     * other hits (see SearchConv)
+                     */
+                    if (expandValue == ExpandResults.NONE) {
+                        expand = false;
+                    } else if (expandValue == ExpandResults.ALL) {
+                        expand = true;
+                    } else if (expandValue == ExpandResults.FIRST) {
+                        expand = params.getOffset() > 0 ? false : hitNum == 1;
+                    } else {
+                        expand = expandValue.matches(hit.getParsedItemID());
+                    }
+                    resp.add(hit, expand);
                 } else {
-                    expand = expandValue.matches(hit.getParsedItemID());
+                    resp.add(hit);
                 }
-                resp.add(hit, expand);
-            } else {
-                resp.add(hit);
             }
+            roundTrips += ZimbraPerf.getThreadPrepareCount() - prepareCount;
         }
+        ZimbraPerf.COUNTER_SEARCH_PAGE_DB_ROUND_TRIPS.increment(roundTrips);
+        ZimbraLog.search.debug("serialized %d hits with %d DB round trips", resp.size(), roundTrips);
         resp.addHasMore(pager.hasNext());
         resp.add(results.getResultInfo());
     }
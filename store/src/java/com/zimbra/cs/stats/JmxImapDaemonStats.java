@@ -22,6 +22,8 @@ import com.zimbra.common.stats.DeltaCalculator;
 public class JmxImapDaemonStats implements JmxImapDaemonStatsMBean {
 
     private final DeltaCalculator imapDeltaCalc = new DeltaCalculator(ZimbraPerf.STOPWATCH_IMAP);
+    private final DeltaCalculator compressRatioDeltaCalc = new DeltaCalculator(ZimbraPerf.COUNTER_IMAP_COMPRESS_RATIO);
+    private final DeltaCalculator compressDeltaCalc = new DeltaCalculator(ZimbraPerf.STOPWATCH_IMAP_COMPRESS);
 
     JmxImapDaemonStats() {
     }
@@ -36,8 +38,25 @@ public class JmxImapDaemonStats implements JmxImapDaemonStatsMBean {
         return (long) imapDeltaCalc.getRealtimeAverage();
     }
 
+    @Override
+    public long getImapCompressedConnections() {
+        return ZimbraPerf.STOPWATCH_IMAP_COMPRESS.getCount();
+    }
+
+    @Override
+    public long getImapCompressionRatio() {
+        return (long) compressRatioDeltaCalc.getRealtimeAverage();
+    }
+
+    @Override
+    public long getImapCompressionMs() {
+        return (long) compressDeltaCalc.getRealtimeAverage();
+    }
+
     @Override
     public void reset() {
         imapDeltaCalc.reset();
+        compressRatioDeltaCalc.reset();
+        compressDeltaCalc.reset();
     }
 }
\ No newline at end of file
@@ -20,4 +20,7 @@ package com.zimbra.cs.stats;
 public interface JmxImapDaemonStatsMBean extends JmxStatsMBeanBase {
     long getImapRequests();
     long getImapResponseMs();
+    long getImapCompressedConnections();
+    long getImapCompressionRatio();
+    long getImapCompressionMs();
 }
@@ -19,15 +19,22 @@ package com.zimbra.cs.stats;
 
 import java.util.ArrayList;
 import java.util.Collections;
+import java.util.Comparator;
 import java.util.List;
 
+import com.zimbra.common.service.ServiceException;
 import com.zimbra.common.stats.Accumulator;
 import com.zimbra.common.stats.DeltaCalculator;
+import com.zimbra.common.util.ZimbraLog;
 import com.zimbra.cs.db.DbPool;
+import com.zimbra.cs.mailbox.Mailbox;
+import com.zimbra.cs.mailbox.MailboxManager;
 import com.zimbra.cs.mailbox.MessageCache;
 
 public class JmxServerStats implements JmxServerStatsMBean {
 
+    private static final int MAX_CONTENDED_MAILBOXES = 20;
+
     private DeltaCalculator mDbConn = new DeltaCalculator(ZimbraPerf.STOPWATCH_DB_CONN);
     private DeltaCalculator mLdapConn = new DeltaCalculator(ZimbraPerf.STOPWATCH_LDAP_DC);
     private DeltaCalculator mItemCache = new DeltaCalculator(ZimbraPerf.COUNTER_MBOX_ITEM_CACHE);
@@ -167,6 +174,36 @@ public class JmxServerStats implements JmxServerStatsMBean {
     public long getPopResponseMs() {
         return (long) mPop.getRealtimeAverage();
     }
+
+    public String[] getContendedMailboxes() {
+        List<Mailbox> mboxes;
+        try {
+            mboxes = MailboxManager.getInstance().getAllLoadedMailboxes();
+        } catch (ServiceException e) {
+            ZimbraLog.perf.warn("Unable to list loaded mailboxes.", e);
+            return new String[0];
+        }
+        List<Mailbox> contended = new ArrayList<Mailbox>();
+        for (Mailbox mbox : mboxes) {
+            if (mbox.lock.getContentionCount() > 0) {
+                contended.add(mbox);
+            }
+        }
+        Collections.sort(contended, new Comparator<Mailbox>() {
+            @Override
+            public int compare(Mailbox m1, Mailbox m2) {
+                return Long.compare(m2.lock.getContentionCount(), m1.lock.getContentionCount());
+            }
+        });
+        int count = Math.min(contended.size(), MAX_CONTENDED_MAILBOXES);
+        String[] result = new String[count];
+        for (int i = 0; i < count; i++) {
+            Mailbox mbox = contended.get(i);
+            result[i] = mbox.getId() + ":" + mbox.getAccountId() + ":" + mbox.lock.getContentionCount() + ":" +
+                    mbox.lock.getContentionWaitMs();
+        }
+        return result;
+    }
     
     public void reset() {
         for (Accumulator accum : mAccumulators) {
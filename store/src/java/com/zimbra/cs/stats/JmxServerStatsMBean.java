@@ -46,4 +46,10 @@ public interface JmxServerStatsMBean extends JmxStatsMBeanBase
     long getPopResponseMs();
     long getSoapRequests();
     long getSoapResponseMs();
+
+    /**
+     * Returns the loaded mailboxes whose lock has been waited on most often, busiest first, formatted as
+     * {@code mailboxId:accountId:contentions:waitMs}.
+     */
+    String[] getContendedMailboxes();
 }
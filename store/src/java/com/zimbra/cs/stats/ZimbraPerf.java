@@ -118,6 +118,9 @@ public class ZimbraPerf {
     @Description("File descriptor cache hit rate")
     public static final String RTS_FD_CACHE_HIT_RATE = "fd_cache_hit_rate";
 
+    @Description("Number of mailbox indexes whose merge is postponed")
+    public static final String RTS_IDX_MERGE_BACKLOG = "idx_merge_backlog";
+
     // LDAP provisioning caches.
     @Description("LDAP ACL cache hit rate")
     public static final String RTS_ACL_CACHE_HIT_RATE = "acl_cache_hit_rate";
@@ -184,6 +187,10 @@ public class ZimbraPerf {
     public static final Counter COUNTER_MBOX_CACHE = new Counter();           // Mailbox cache hit rate
     public static final Counter COUNTER_MBOX_MSG_CACHE = new Counter();
     public static final Counter COUNTER_MBOX_ITEM_CACHE = new Counter();
+    public static final Counter COUNTER_MBOX_ITEM_CACHE_OCCUPANCY = new Counter(); // percent of byte budget in use
+    public static final Counter COUNTER_MBOX_LOCK_OPTIMISTIC_READ = new Counter(); // optimistic read success rate
+    public static final StopWatch STOPWATCH_DB_FLAG_BATCH = new StopWatch();
+    public static final Counter COUNTER_DB_FLAG_BATCH_ITEMS = new Counter();
     public static final StopWatch STOPWATCH_SOAP = new StopWatch();
     public static final StopWatch STOPWATCH_IMAP = new StopWatch();
     public static final StopWatch STOPWATCH_POP = new StopWatch();
@@ -197,7 +204,27 @@ public class ZimbraPerf {
     public static final Counter COUNTER_IDX_BYTES_READ = new Counter();
     public static final Counter COUNTER_BLOB_INPUT_STREAM_READ = new Counter();
     public static final Counter COUNTER_BLOB_INPUT_STREAM_SEEK_RATE = new Counter();
+    public static final Counter COUNTER_BLOB_FD_OPEN = new Counter();
+    public static final Counter COUNTER_BLOB_FD_CLOSE = new Counter();
+    public static final Counter COUNTER_BLOB_FD_EVICT = new Counter();
+    public static final StopWatch STOPWATCH_BLOB_DEDUPE_LOOKUP = new StopWatch();
+    public static final Counter COUNTER_BLOB_DEDUPE_BYTES_SAVED = new Counter();
+    public static final Counter COUNTER_PACK_STORE_APPEND = new Counter();
+    public static final Counter COUNTER_PACK_STORE_BYTES_RECLAIMED = new Counter();
+    public static final Counter COUNTER_EXTERNAL_CACHE_HIT_RATE = new Counter();
+    public static final StopWatch STOPWATCH_EXTERNAL_FETCH = new StopWatch();
+    public static final Counter COUNTER_EXTERNAL_FETCH_COALESCED = new Counter();
+    public static final StopWatch STOPWATCH_REINDEX_READ = new StopWatch();
+    public static final StopWatch STOPWATCH_REINDEX_EXTRACT = new StopWatch();
+    public static final StopWatch STOPWATCH_REINDEX_WRITE = new StopWatch();
+    public static final Counter COUNTER_IDX_MERGE_THROTTLED_BYTES = new Counter();
+    public static final Counter COUNTER_SEARCH_RESULT_CACHE_HIT_RATE = new Counter();
+    public static final Counter COUNTER_EXTRACTED_TEXT_CACHE_HIT_RATE = new Counter();
+    public static final Counter COUNTER_SEARCH_PAGE_DB_ROUND_TRIPS = new Counter();
     public static final StopWatch STOPWATCH_EWS = new StopWatch();
+    public static final Counter COUNTER_IMAP_COMPRESS_RATIO = new Counter(); // compressed percent of raw, per connection
+    public static final StopWatch STOPWATCH_IMAP_COMPRESS = new StopWatch();  // zlib time, per connection
+    public static final StopWatch STOPWATCH_IMAP_FETCH_STALL = new StopWatch(); // waits on FETCH read-ahead
 
     public static final ActivityTracker SOAP_TRACKER = new ActivityTracker("soap.csv");
     public static final ActivityTracker IMAP_TRACKER = new ActivityTracker("imap.csv");
@@ -221,6 +248,7 @@ public class ZimbraPerf {
             RTS_HTTP_IDLE_THREADS, RTS_HTTP_THREADS, RTS_SOAP_SESSIONS,
             RTS_MBOX_CACHE_SIZE, RTS_MSG_CACHE_SIZE,
             RTS_FD_CACHE_SIZE, RTS_FD_CACHE_HIT_RATE,
+            RTS_IDX_MERGE_BACKLOG,
             RTS_ACL_CACHE_HIT_RATE,
             RTS_ACCOUNT_CACHE_SIZE, RTS_ACCOUNT_CACHE_HIT_RATE,
             RTS_COS_CACHE_SIZE, RTS_COS_CACHE_HIT_RATE,
@@ -285,6 +313,21 @@ public class ZimbraPerf {
     @Description("Item cache hit rate")
     private static final String DC_MBOX_ITEM_CACHE = "mbox_item_cache";
 
+    @Description("Average percentage of the per-mailbox item cache byte budget in use")
+    private static final String DC_MBOX_ITEM_CACHE_OCCUPANCY = "mbox_item_cache_occupancy";
+
+    @Description("Percentage of lock-free cached item lookups that validated without falling back to the read lock")
+    private static final String DC_MBOX_LOCK_OPTIMISTIC_READ = "mbox_lock_optimistic_read";
+
+    @Description("Number of batched flag/tag/unread updates written to the database")
+    private static final String DC_DB_FLAG_BATCH_COUNT = "db_flag_batch_count";
+
+    @Description("Average latency (ms) of writing a batch of flag/tag/unread updates to the database")
+    private static final String DC_DB_FLAG_BATCH_MS_AVG = "db_flag_batch_ms_avg";
+
+    @Description("Average number of item updates in a batch of flag/tag/unread updates")
+    private static final String DC_DB_FLAG_BATCH_ITEMS_AVG = "db_flag_batch_items_avg";
+
     @Description("Number of SOAP requests received")
     private static final String DC_SOAP_COUNT = "soap_count";
 
@@ -309,6 +352,87 @@ public class ZimbraPerf {
     @Description("Percentage of file descriptor cache disk reads that required a seek")
     private static final String DC_BIS_SEEK_RATE = "bis_seek_rate";
 
+    @Description("Number of blob file descriptors opened by the file descriptor cache")
+    private static final String DC_BLOB_FD_OPEN = "blob_fd_open";
+
+    @Description("Number of blob file descriptors closed by the file descriptor cache")
+    private static final String DC_BLOB_FD_CLOSE = "blob_fd_close";
+
+    @Description("Number of entries evicted from the file descriptor cache because it was full")
+    private static final String DC_BLOB_FD_EVICT = "blob_fd_evict";
+
+    @Description("Number of inline dedupe index lookups made while staging blobs")
+    private static final String DC_BLOB_DEDUPE_LOOKUP_COUNT = "blob_dedupe_lookup_count";
+
+    @Description("Average time (ms) of an inline dedupe index lookup")
+    private static final String DC_BLOB_DEDUPE_LOOKUP_MS_AVG = "blob_dedupe_lookup_ms_avg";
+
+    @Description("Number of bytes not written to disk because staged blobs were deduped inline")
+    private static final String DC_BLOB_DEDUPE_BYTES_SAVED = "blob_dedupe_bytes_saved";
+
+    @Description("Number of blobs appended to pack store segments")
+    private static final String DC_PACK_STORE_APPEND = "pack_store_append";
+
+    @Description("Number of bytes of deleted blobs reclaimed by pack store compaction")
+    private static final String DC_PACK_STORE_BYTES_RECLAIMED = "pack_store_bytes_reclaimed";
+
+    @Description("Percentage of external store blob reads served from the local disk cache")
+    private static final String DC_EXTERNAL_CACHE_HIT_RATE = "external_cache_hit_rate";
+
+    @Description("Number of blobs fetched from the external store")
+    private static final String DC_EXTERNAL_FETCH_COUNT = "external_fetch_count";
+
+    @Description("Average time (ms) to fetch a blob from the external store")
+    private static final String DC_EXTERNAL_FETCH_MS_AVG = "external_fetch_ms_avg";
+
+    @Description("Number of external store cache misses that waited for a fetch already in progress")
+    private static final String DC_EXTERNAL_FETCH_COALESCED = "external_fetch_coalesced";
+
+    @Description("Number of items read by the re-index pipeline")
+    private static final String DC_REINDEX_READ_COUNT = "reindex_read_count";
+
+    @Description("Average time (ms) to read an item and its blob for re-indexing")
+    private static final String DC_REINDEX_READ_MS_AVG = "reindex_read_ms_avg";
+
+    @Description("Number of items whose text was extracted by the re-index pipeline")
+    private static final String DC_REINDEX_EXTRACT_COUNT = "reindex_extract_count";
+
+    @Description("Average time (ms) to extract and analyze the text of an item for re-indexing")
+    private static final String DC_REINDEX_EXTRACT_MS_AVG = "reindex_extract_ms_avg";
+
+    @Description("Number of batches written to the index by the re-index pipeline")
+    private static final String DC_REINDEX_WRITE_COUNT = "reindex_write_count";
+
+    @Description("Average time (ms) to write a batch of re-indexed items")
+    private static final String DC_REINDEX_WRITE_MS_AVG = "reindex_write_ms_avg";
+
+    @Description("Number of bytes written by index merges that were slowed down to stay within the I/O budget")
+    private static final String DC_IDX_MERGE_THROTTLED_BYTES = "idx_merge_throttled_bytes";
+
+    @Description("Percentage of cacheable searches served from the search result cache")
+    private static final String DC_SEARCH_RESULT_CACHE_HIT_RATE = "search_result_cache_hit_rate";
+
+    @Description("Percentage of MIME part text extractions served from the extracted text cache")
+    private static final String DC_EXTRACTED_TEXT_CACHE_HIT_RATE = "extracted_text_cache_hit_rate";
+
+    @Description("Average number of database statements prepared while serializing a page of search results")
+    private static final String DC_SEARCH_PAGE_DB_ROUND_TRIPS = "search_page_db_round_trips";
+
+    @Description("Average size of IMAP COMPRESS=DEFLATE traffic as a percentage of its uncompressed size, per connection")
+    private static final String DC_IMAP_COMPRESS_RATIO = "imap_compress_ratio";
+
+    @Description("Number of closed IMAP connections that used COMPRESS=DEFLATE")
+    private static final String DC_IMAP_COMPRESS_COUNT = "imap_compress_count";
+
+    @Description("Average time (ms) spent compressing and decompressing per IMAP COMPRESS=DEFLATE connection")
+    private static final String DC_IMAP_COMPRESS_MS_AVG = "imap_compress_ms_avg";
+
+    @Description("Number of times an IMAP FETCH had to wait for a message that was still being read ahead")
+    private static final String DC_IMAP_FETCH_STALL_COUNT = "imap_fetch_stall_count";
+
+    @Description("Average time (ms) an IMAP FETCH waited for a message that was still being read ahead")
+    private static final String DC_IMAP_FETCH_STALL_MS_AVG = "imap_fetch_stall_ms_avg";
+
     @Description("Average number of concurrent index writers")
     private static final String DC_IDX_WRT_AVG = "idx_wrt_avg";
 
@@ -349,6 +473,12 @@ public class ZimbraPerf {
      * {@link DbPool.DbConnection#prepareStatement}.
      */
     private static AtomicInteger sPrepareCount = new AtomicInteger(0);
+    private static final ThreadLocal<int[]> sThreadPrepareCount = new ThreadLocal<int[]>() {
+        @Override
+        protected int[] initialValue() {
+            return new int[1];
+        }
+    };
 
     public enum ServerID {ZIMBRA, IMAP_DAEMON};
 
@@ -423,8 +553,17 @@ public class ZimbraPerf {
         return sPrepareCount.get();
     }
 
+    /**
+     * Returns the number of statements prepared so far by the calling thread.  Take the difference between two calls
+     * to count the database round trips made by the code in between.
+     */
+    public static int getThreadPrepareCount() {
+        return sThreadPrepareCount.get()[0];
+    }
+
     public static void incrementPrepareCount() {
         sPrepareCount.getAndIncrement();
+        sThreadPrepareCount.get()[0]++;
     }
 
     /**
@@ -480,6 +619,13 @@ public class ZimbraPerf {
                             new DeltaCalculator(COUNTER_MBOX_CACHE).setAverageName(DC_MBOX_CACHE),
                             new DeltaCalculator(COUNTER_MBOX_MSG_CACHE).setAverageName(DC_MBOX_MSG_CACHE),
                             new DeltaCalculator(COUNTER_MBOX_ITEM_CACHE).setAverageName(DC_MBOX_ITEM_CACHE),
+                            new DeltaCalculator(COUNTER_MBOX_ITEM_CACHE_OCCUPANCY)
+                                    .setAverageName(DC_MBOX_ITEM_CACHE_OCCUPANCY),
+                            new DeltaCalculator(COUNTER_MBOX_LOCK_OPTIMISTIC_READ)
+                                    .setAverageName(DC_MBOX_LOCK_OPTIMISTIC_READ),
+                            new DeltaCalculator(STOPWATCH_DB_FLAG_BATCH).setCountName(DC_DB_FLAG_BATCH_COUNT)
+                                    .setAverageName(DC_DB_FLAG_BATCH_MS_AVG),
+                            new DeltaCalculator(COUNTER_DB_FLAG_BATCH_ITEMS).setAverageName(DC_DB_FLAG_BATCH_ITEMS_AVG),
                             new DeltaCalculator(STOPWATCH_SOAP).setCountName(DC_SOAP_COUNT)
                                     .setAverageName(DC_SOAP_MS_AVG),
                             new DeltaCalculator(STOPWATCH_IMAP).setCountName(DC_IMAP_COUNT)
@@ -503,6 +649,39 @@ public class ZimbraPerf {
                             new DeltaCalculator(COUNTER_BLOB_INPUT_STREAM_READ).setTotalName(DC_BIS_READ),
                             new DeltaCalculator(COUNTER_BLOB_INPUT_STREAM_SEEK_RATE)
                                     .setAverageName(DC_BIS_SEEK_RATE),
+                            new DeltaCalculator(COUNTER_BLOB_FD_OPEN).setTotalName(DC_BLOB_FD_OPEN),
+                            new DeltaCalculator(COUNTER_BLOB_FD_CLOSE).setTotalName(DC_BLOB_FD_CLOSE),
+                            new DeltaCalculator(COUNTER_BLOB_FD_EVICT).setTotalName(DC_BLOB_FD_EVICT),
+                            new DeltaCalculator(STOPWATCH_BLOB_DEDUPE_LOOKUP).setCountName(DC_BLOB_DEDUPE_LOOKUP_COUNT)
+                                    .setAverageName(DC_BLOB_DEDUPE_LOOKUP_MS_AVG),
+                            new DeltaCalculator(COUNTER_BLOB_DEDUPE_BYTES_SAVED).setTotalName(DC_BLOB_DEDUPE_BYTES_SAVED),
+                            new DeltaCalculator(COUNTER_PACK_STORE_APPEND).setTotalName(DC_PACK_STORE_APPEND),
+                            new DeltaCalculator(COUNTER_PACK_STORE_BYTES_RECLAIMED)
+                                    .setTotalName(DC_PACK_STORE_BYTES_RECLAIMED),
+                            new DeltaCalculator(COUNTER_EXTERNAL_CACHE_HIT_RATE)
+                                    .setAverageName(DC_EXTERNAL_CACHE_HIT_RATE),
+                            new DeltaCalculator(STOPWATCH_EXTERNAL_FETCH).setCountName(DC_EXTERNAL_FETCH_COUNT)
+                                    .setAverageName(DC_EXTERNAL_FETCH_MS_AVG),
+                            new DeltaCalculator(COUNTER_EXTERNAL_FETCH_COALESCED).setTotalName(DC_EXTERNAL_FETCH_COALESCED),
+                            new DeltaCalculator(STOPWATCH_REINDEX_READ).setCountName(DC_REINDEX_READ_COUNT)
+                                    .setAverageName(DC_REINDEX_READ_MS_AVG),
+                            new DeltaCalculator(STOPWATCH_REINDEX_EXTRACT).setCountName(DC_REINDEX_EXTRACT_COUNT)
+                                    .setAverageName(DC_REINDEX_EXTRACT_MS_AVG),
+                            new DeltaCalculator(STOPWATCH_REINDEX_WRITE).setCountName(DC_REINDEX_WRITE_COUNT)
+                                    .setAverageName(DC_REINDEX_WRITE_MS_AVG),
+                            new DeltaCalculator(COUNTER_IDX_MERGE_THROTTLED_BYTES)
+                                    .setTotalName(DC_IDX_MERGE_THROTTLED_BYTES),
+                            new DeltaCalculator(COUNTER_SEARCH_RESULT_CACHE_HIT_RATE)
+                                    .setAverageName(DC_SEARCH_RESULT_CACHE_HIT_RATE),
+                            new DeltaCalculator(COUNTER_EXTRACTED_TEXT_CACHE_HIT_RATE)
+                                    .setAverageName(DC_EXTRACTED_TEXT_CACHE_HIT_RATE),
+                            new DeltaCalculator(COUNTER_SEARCH_PAGE_DB_ROUND_TRIPS)
+                                    .setAverageName(DC_SEARCH_PAGE_DB_ROUND_TRIPS),
+                            new DeltaCalculator(COUNTER_IMAP_COMPRESS_RATIO).setAverageName(DC_IMAP_COMPRESS_RATIO),
+                            new DeltaCalculator(STOPWATCH_IMAP_COMPRESS).setCountName(DC_IMAP_COMPRESS_COUNT)
+                                    .setAverageName(DC_IMAP_COMPRESS_MS_AVG),
+                            new DeltaCalculator(STOPWATCH_IMAP_FETCH_STALL).setCountName(DC_IMAP_FETCH_STALL_COUNT)
+                                    .setAverageName(DC_IMAP_FETCH_STALL_MS_AVG),
                             realtimeStats
                     }
                 );
@@ -513,6 +692,11 @@ public class ZimbraPerf {
                     new Accumulator[] {
                             new DeltaCalculator(STOPWATCH_IMAP)
                                     .setCountName(DC_IMAP_COUNT).setAverageName(DC_IMAP_MS_AVG),
+                            new DeltaCalculator(COUNTER_IMAP_COMPRESS_RATIO).setAverageName(DC_IMAP_COMPRESS_RATIO),
+                            new DeltaCalculator(STOPWATCH_IMAP_COMPRESS).setCountName(DC_IMAP_COMPRESS_COUNT)
+                                    .setAverageName(DC_IMAP_COMPRESS_MS_AVG),
+                            new DeltaCalculator(STOPWATCH_IMAP_FETCH_STALL).setCountName(DC_IMAP_FETCH_STALL_COUNT)
+                                    .setAverageName(DC_IMAP_FETCH_STALL_MS_AVG),
                             realtimeStats
                     }
                 );
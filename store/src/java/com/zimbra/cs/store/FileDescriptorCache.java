@@ -23,10 +23,13 @@ import java.io.IOException;
 import java.io.InputStream;
 import java.util.ArrayList;
 import java.util.Collections;
+import java.util.Comparator;
 import java.util.Iterator;
-import java.util.LinkedHashMap;
 import java.util.List;
 import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicLong;
 import java.util.zip.GZIPInputStream;
 
 import com.zimbra.common.service.ServiceException;
@@ -38,22 +41,51 @@ import com.zimbra.common.util.LogFactory;
 import com.zimbra.common.util.ZimbraLog;
 import com.zimbra.cs.account.Provisioning;
 import com.zimbra.cs.account.Server;
+import com.zimbra.cs.stats.ZimbraPerf;
 
 /**
  * Caches file descriptors to blobs in the mail store.  If the blob is compressed,
  * uses a {@link FileCache} to access the uncompressed data.  Cache entries
  * that reference uncompressed blobs keep the file descriptor open until {@link #remove}
  * is called or the cache entry is aged out.
+ * <p>
+ * Lookups go through a segmented concurrent map and reads are positional, so
+ * readers never block each other, even on the same blob.  Each entry records a
+ * logical access time; only pruning, which runs when the cache outgrows its
+ * maximum size, takes a lock to evict the least recently used entries.
  */
 public class FileDescriptorCache
 {
     private static final Log sLog = LogFactory.getLog(FileDescriptorCache.class);
 
-    // Create the file cache with default LinkedHashMap values, but sorted by last access time.
-    private final LinkedHashMap<String, SharedFile> mCache = new LinkedHashMap<String, SharedFile>(16, 0.75f, true);
+    private static final int CONCURRENCY_LEVEL = 16;
+
+    private static final class Entry {
+        final SharedFile file;
+        volatile long lastAccess;
+
+        Entry(SharedFile file, long lastAccess) {
+            this.file = file;
+            this.lastAccess = lastAccess;
+        }
+    }
+
+    private static final Comparator<Map.Entry<String, Entry>> LEAST_RECENTLY_USED =
+        new Comparator<Map.Entry<String, Entry>>() {
+            @Override
+            public int compare(Map.Entry<String, Entry> e1, Map.Entry<String, Entry> e2) {
+                long t1 = e1.getValue().lastAccess, t2 = e2.getValue().lastAccess;
+                return t1 < t2 ? -1 : (t1 == t2 ? 0 : 1);
+            }
+        };
+
+    private final ConcurrentMap<String, Entry> mCache =
+        new ConcurrentHashMap<String, Entry>(16, 0.75f, CONCURRENCY_LEVEL);
+    private final AtomicLong mClock = new AtomicLong();
+    private final Object mPruneLock = new Object();
     // Create a concurrent list for the SharedFies for which the mapping has been removed but is still in use by some threads.
     private final List<SharedFileInfo> mInactiveCache = Collections.synchronizedList(new ArrayList<SharedFileInfo>());
-    private int mMaxSize = 1000;
+    private volatile int mMaxSize = 1000;
     private final FileCache<String> mUncompressedFileCache;
     private final Counter mHitRate = new Counter();
 
@@ -71,7 +103,7 @@ public class FileDescriptorCache
         mUncompressedFileCache = uncompressedCache;
     }
 
-    public synchronized FileDescriptorCache setMaxSize(int maxSize) {
+    public FileDescriptorCache setMaxSize(int maxSize) {
         if (maxSize < 0)
             throw new IllegalArgumentException("maxSize value of " + maxSize + " is invalid (must be at least 0)");
 
@@ -97,12 +129,12 @@ public class FileDescriptorCache
      * Closes all file descriptors, clears the cache, and removes any files from
      * the uncompressed cache.
      */
-    public synchronized void shutdown() {
-        Iterator<Map.Entry<String, SharedFile>> iEntries = mCache.entrySet().iterator();
+    public void shutdown() {
+        Iterator<Map.Entry<String, Entry>> iEntries = mCache.entrySet().iterator();
         while (iEntries.hasNext()) {
-            Map.Entry<String, SharedFile> entry = iEntries.next();
+            Map.Entry<String, Entry> entry = iEntries.next();
             String path = entry.getKey();
-            SharedFile file = entry.getValue();
+            SharedFile file = entry.getValue().file;
             iEntries.remove();
             try {
                 boolean success = close(file, path);
@@ -121,24 +153,18 @@ public class FileDescriptorCache
     throws IOException {
         sLog.debug("Reading %s.  rawSize=%d, fileOffset=%d, bufferOffset=%d, len=%d.", path, rawSize, fileOffset, bufferOffset, len);
         SharedFile file = null;
-        int numRead;
-
         try {
             file = getSharedFile(path, rawSize);
-            numRead = file.read(fileOffset, buf, bufferOffset, len);
+            return file.read(fileOffset, buf, bufferOffset, len);
         } finally {
             if (file != null) {
-               file.doneReading();
+                file.doneReading();
             }
         }
-
-        return numRead;
     }
 
     boolean contains(String path) {
-        synchronized (this) {
-            return mCache.containsKey(path);
-        }
+        return mCache.containsKey(path);
     }
 
     /**
@@ -146,21 +172,22 @@ public class FileDescriptorCache
      * increments the number of readers for the <tt>SharedFile</tt>.
      */
     private SharedFile getSharedFile(String path, long rawSize) throws IOException {
-        SharedFile sharedFile = null;
-
-        synchronized (this) {
-            sharedFile = mCache.get(path);
-        }
-        if (sharedFile != null) {
-            sLog.debug("Found existing file descriptor for %s, rawSize=%d.", path, rawSize);
-            sharedFile.aboutToRead();
-            mHitRate.increment(100);
-            return sharedFile;
+        Entry entry = mCache.get(path);
+        if (entry != null) {
+            if (entry.file.aboutToRead()) {
+                sLog.debug("Found existing file descriptor for %s, rawSize=%d.", path, rawSize);
+                entry.lastAccess = mClock.incrementAndGet();
+                mHitRate.increment(100);
+                return entry.file;
+            }
+            // closed by a concurrent eviction; drop the stale mapping and reopen
+            mCache.remove(path, entry);
         }
 
         // Open a new file descriptor.
         mHitRate.increment(0);
         File file = new File(path);
+        SharedFile sharedFile;
 
         if (file.length() != rawSize && FileUtil.isGzipped(file)) {
             sLog.debug("Adding file descriptor cache entry for %s from the uncompressed file cache.", path);
@@ -182,17 +209,23 @@ public class FileDescriptorCache
             sharedFile = new SharedFile(file);
         }
 
-        synchronized (this) {
-            if (mCache.containsKey(path)) {
+        // register ourselves as a reader before publishing, so that pruning cannot close it under us
+        sharedFile.aboutToRead();
+        Entry created = new Entry(sharedFile, mClock.incrementAndGet());
+        Entry existing = mCache.putIfAbsent(path, created);
+        while (existing != null) {
+            if (existing.file.aboutToRead()) {
                 sLog.debug("Another thread just opened the same file.  Closing our copy and returning the other one.");
                 sharedFile.close();
-                sharedFile = mCache.get(path);
-            } else {
-                sLog.debug("Caching file descriptor: path=%s, sharedFile=%s", path, sharedFile);
-                mCache.put(path, sharedFile);
+                existing.lastAccess = created.lastAccess;
+                return existing.file;
             }
+            if (mCache.replace(path, existing, created)) {
+                break;
+            }
+            existing = mCache.putIfAbsent(path, created);
         }
-        sharedFile.aboutToRead();
+        sLog.debug("Caching file descriptor: path=%s, sharedFile=%s", path, sharedFile);
         pruneIfNecessary();
 
         return sharedFile;
@@ -203,16 +236,12 @@ public class FileDescriptorCache
      * descriptor is not in the cache.
      */
     public void remove(String path) throws IOException {
-        SharedFile file = null;
+        Entry entry = mCache.remove(path);
 
-        synchronized (this) {
-            file = mCache.remove(path);
-        }
-
-        if (file != null) {
-            boolean success = close(file, path);
+        if (entry != null) {
+            boolean success = close(entry.file, path);
             if (!success)
-                mInactiveCache.add(new SharedFileInfo(path, file));
+                mInactiveCache.add(new SharedFileInfo(path, entry.file));
         } else {
             sLog.debug("Attempted to remove %s but could not find it in the cache.", path);
         }
@@ -230,15 +259,12 @@ public class FileDescriptorCache
         if (file != null) {
             sLog.debug("Closing file descriptor for %s, %s", path, file);
 
-            if (file.getNumReaders() == 0) {
-                file.close();
+            if (file.closeIfUnused()) {
                 if (mUncompressedFileCache != null) {
-                    synchronized (this) {
-                        if (!mCache.containsKey(path)) {
-                            mUncompressedFileCache.remove(path);
-                        } else {
-                            sLog.debug("Not removing %s from the uncompressed cache.  Another thread reopened it.");
-                        }
+                    if (!mCache.containsKey(path)) {
+                        mUncompressedFileCache.remove(path);
+                    } else {
+                        sLog.debug("Not removing %s from the uncompressed cache.  Another thread reopened it.", path);
                     }
                 }
                 return true;
@@ -265,7 +291,7 @@ public class FileDescriptorCache
         }
     }
 
-    public synchronized int getSize() {
+    public int getSize() {
         return mCache.size();
     }
 
@@ -274,22 +300,29 @@ public class FileDescriptorCache
     }
 
     private void pruneIfNecessary() {
-         if (getSize() <= mMaxSize)
+        if (getSize() <= mMaxSize)
             return;
 
-        List<Map.Entry<String, SharedFile>> removeList = new ArrayList<Map.Entry<String, SharedFile>>();
-
-        synchronized (this) {
-            Iterator<Map.Entry<String, SharedFile>> iEntries = mCache.entrySet().iterator();
-            while (iEntries.hasNext() && mCache.size() > mMaxSize) {
-                Map.Entry<String, SharedFile> mapEntry = iEntries.next();
-                iEntries.remove();
-                removeList.add(mapEntry);
+        List<Map.Entry<String, Entry>> removeList = new ArrayList<Map.Entry<String, Entry>>();
+
+        synchronized (mPruneLock) {
+            int excess = mCache.size() - mMaxSize;
+            if (excess <= 0)
+                return;
+            List<Map.Entry<String, Entry>> entries = new ArrayList<Map.Entry<String, Entry>>(mCache.entrySet());
+            Collections.sort(entries, LEAST_RECENTLY_USED);
+            for (Map.Entry<String, Entry> mapEntry : entries) {
+                if (removeList.size() >= excess)
+                    break;
+                if (mCache.remove(mapEntry.getKey(), mapEntry.getValue())) {
+                    removeList.add(mapEntry);
+                }
             }
         }
-        for (Map.Entry<String, SharedFile> mapEntry : removeList) {
+        for (Map.Entry<String, Entry> mapEntry : removeList) {
             String path = mapEntry.getKey();
-            SharedFile file = mapEntry.getValue();
+            SharedFile file = mapEntry.getValue().file;
+            ZimbraPerf.COUNTER_BLOB_FD_EVICT.increment();
             try {
                 boolean success = close(file, path);
                 if (!success) {
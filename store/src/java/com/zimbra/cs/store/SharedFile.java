@@ -21,32 +21,52 @@ package com.zimbra.cs.store;
 
 import java.io.File;
 import java.io.IOException;
-import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.AsynchronousFileChannel;
+import java.nio.file.StandardOpenOption;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.atomic.AtomicInteger;
 
+import com.google.common.util.concurrent.Uninterruptibles;
 import com.zimbra.cs.stats.ZimbraPerf;
 
 /**
- * Synchronized container for a <tt>RandomAccessFile</tt> object.  Used by multiple
- * <tt>BlobInputStream</tt> objects that share a single file descriptor.
+ * Container for a channel shared by multiple <tt>BlobInputStream</tt>
+ * objects.  Reads are positional, so concurrent readers of the same file never
+ * serialize on a file pointer or on this object.
+ * <p>
+ * The channel is an <tt>AsynchronousFileChannel</tt> rather than a <tt>FileChannel</tt>:
+ * interrupting a thread blocked in <tt>FileChannel.read</tt> closes the channel for
+ * every reader sharing it, whereas interrupting a thread waiting on an asynchronous
+ * read leaves the channel alone.  A reader that is interrupted still completes its
+ * read and keeps its interrupt status.
  */
 public class SharedFile {
 
-    private File mFile;
-    private RandomAccessFile mRAF;
-    private long mPos = 0;
-    
+    private static final int CLOSED = -1;
+
+    private final File mFile;
+    private final AsynchronousFileChannel mChannel;
+
+    /**
+     * Offset just past the last read, used to keep the seek rate statistic meaningful.
+     * Racy by design: it only feeds a statistic.
+     */
+    private volatile long mPos = 0;
+
     /**
      * Keep track of the number of threads that are reading from this file.
      * We do this so that we don't delete a file that's being read on
-     * Windows (bug 43497).
+     * Windows (bug 43497).  {@link #CLOSED} once the channel has been closed,
+     * after which no new reader can be admitted.
      */
-    private int mNumReaders;
-    
+    private final AtomicInteger mNumReaders = new AtomicInteger();
+
     /**
      * Remember the file's length, in case we have an open file descriptor and the
      * uncompressed cache deletes this file from disk.
      */
-    private long mLength;
+    private final long mLength;
 
     /**
      * Creates a new <tt>SharedFile</tt> and opens the underlying
@@ -62,70 +82,97 @@ public class SharedFile {
         }
         mFile = file;
         mLength = file.length();
-        openIfNecessary();
+        mChannel = AsynchronousFileChannel.open(file.toPath(), StandardOpenOption.READ);
+        ZimbraPerf.COUNTER_BLOB_FD_OPEN.increment();
     }
 
-    synchronized long getLength() {
+    long getLength() {
         return mLength;
     }
-    
-    synchronized int read(long fileOffset, byte[] b, int off, int len)
+
+    int read(long fileOffset, byte[] b, int off, int len)
     throws IOException {
-        int numRead = 0;
-        boolean seeked = false;
-        openIfNecessary();
-        
-        if (mPos != fileOffset) {
-            mRAF.seek(fileOffset);
-            mPos = fileOffset;
-            seeked = true;
+        if (len == 0) {
+            return 0;
         }
-        numRead = mRAF.read(b, off, len);
-        mPos += numRead;
-        
-        if (seeked) {
-            ZimbraPerf.COUNTER_BLOB_INPUT_STREAM_SEEK_RATE.increment(100);
-        } else {
-            ZimbraPerf.COUNTER_BLOB_INPUT_STREAM_SEEK_RATE.increment(0);
+        ByteBuffer buf = ByteBuffer.wrap(b, off, len);
+        int numRead;
+        try {
+            numRead = Uninterruptibles.getUninterruptibly(mChannel.read(buf, fileOffset));
+        } catch (ExecutionException e) {
+            if (e.getCause() instanceof IOException) {
+                throw (IOException) e.getCause();
+            }
+            throw new IOException("unable to read " + mFile, e.getCause());
+        }
+
+        ZimbraPerf.COUNTER_BLOB_INPUT_STREAM_SEEK_RATE.increment(mPos != fileOffset ? 100 : 0);
+        if (numRead > 0) {
+            mPos = fileOffset + numRead;
         }
         ZimbraPerf.COUNTER_BLOB_INPUT_STREAM_READ.increment();
         return numRead;
     }
-    
-    synchronized void aboutToRead() {
-        mNumReaders++;
+
+    /**
+     * Registers a reader.  Returns <tt>false</tt> if the file has already been
+     * closed, in which case the caller must open a new one.
+     */
+    boolean aboutToRead() {
+        while (true) {
+            int readers = mNumReaders.get();
+            if (readers == CLOSED) {
+                return false;
+            }
+            if (mNumReaders.compareAndSet(readers, readers + 1)) {
+                return true;
+            }
+        }
     }
-    
-    synchronized void doneReading() {
-        if (mNumReaders > 0) {
-            mNumReaders--;
+
+    void doneReading() {
+        while (true) {
+            int readers = mNumReaders.get();
+            if (readers <= 0 || mNumReaders.compareAndSet(readers, readers - 1)) {
+                return;
+            }
         }
     }
-    
-    synchronized int getNumReaders() {
-        return mNumReaders;
+
+    int getNumReaders() {
+        return Math.max(mNumReaders.get(), 0);
     }
-    
-    private synchronized void openIfNecessary()
+
+    /**
+     * Closes the file descriptor unless a reader is still using it.
+     *
+     * @return <tt>true</tt> if the file is closed, <tt>false</tt> if it is in use
+     */
+    boolean closeIfUnused()
     throws IOException {
-        if (mRAF == null) {
-            if (!mFile.exists()) {
-                throw new IOException(mFile.getPath() + " does not exist.");
-            }
-            mRAF = new RandomAccessFile(mFile, "r");
-            mPos = 0;
+        if (mNumReaders.get() == CLOSED) {
+            return true;
         }
+        if (!mNumReaders.compareAndSet(0, CLOSED)) {
+            return false;
+        }
+        mChannel.close();
+        ZimbraPerf.COUNTER_BLOB_FD_CLOSE.increment();
+        return true;
     }
-    
-    synchronized void close()
+
+    /**
+     * Closes the file descriptor, even if readers are still using it.
+     */
+    void close()
     throws IOException {
-        if (mRAF != null) {
-            mRAF.close();
-            mPos = 0;
-            mRAF = null;
+        if (mNumReaders.getAndSet(CLOSED) != CLOSED) {
+            mChannel.close();
+            ZimbraPerf.COUNTER_BLOB_FD_CLOSE.increment();
         }
     }
-    
+
+    @Override
     public String toString() {
         return mFile.toString();
     }
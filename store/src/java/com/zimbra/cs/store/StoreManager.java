@@ -18,6 +18,7 @@ package com.zimbra.cs.store;
 
 import java.io.IOException;
 import java.io.InputStream;
+import java.nio.channels.FileChannel;
 
 import com.zimbra.common.localconfig.LC;
 import com.zimbra.common.service.ServiceException;
@@ -400,6 +401,18 @@ public abstract class StoreManager {
      */
     public abstract InputStream getContent(Blob blob) throws IOException;
 
+    /**
+     * Return a read-only FileChannel on the blob content if the store keeps
+     * it uncompressed in a local file, so that it can be sent to a socket
+     * with {@link FileChannel#transferTo}.  Returns <tt>null</tt> if the
+     * content is not available that way; callers then fall back to
+     * {@link #getContent(MailboxBlob)}.  Caller should close the channel
+     * when done.
+     */
+    public FileChannel getContentChannel(MailboxBlob mboxBlob) throws IOException {
+        return null;
+    }
+
     /**
      * Deletes a user's entire store.  SHOULD BE CALLED CAREFULLY.  No going back.
      * @param mbox
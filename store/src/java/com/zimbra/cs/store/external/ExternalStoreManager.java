@@ -20,11 +20,17 @@ package com.zimbra.cs.store.external;
 import java.io.File;
 import java.io.IOException;
 import java.io.InputStream;
+import java.io.InterruptedIOException;
 import java.security.DigestInputStream;
 import java.security.MessageDigest;
 import java.security.NoSuchAlgorithmException;
 import java.util.ArrayList;
 import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.FutureTask;
 
 import com.google.common.annotations.VisibleForTesting;
 import com.zimbra.common.localconfig.LC;
@@ -35,6 +41,7 @@ import com.zimbra.common.util.FileUtil;
 import com.zimbra.common.util.ZimbraLog;
 import com.zimbra.cs.mailbox.Mailbox;
 import com.zimbra.cs.mailbox.MessageCache;
+import com.zimbra.cs.stats.ZimbraPerf;
 import com.zimbra.cs.store.Blob;
 import com.zimbra.cs.store.BlobBuilder;
 import com.zimbra.cs.store.BlobInputStream;
@@ -46,12 +53,17 @@ import com.zimbra.cs.store.StoreManager;
 
 /**
  * Abstract base class for external store integration.
- * Uses local incoming directory during blob creation and maintains local file cache of retrieved blobs to minimize remote round-trips
+ * Uses local incoming directory during blob creation and maintains local file cache of retrieved blobs to minimize remote round-trips.
+ * The cache is keyed by locator and bounded by the external_store_local_cache_* settings, evicting the least recently used
+ * blobs first.  Blobs are written through to it when staged, so that a freshly delivered message is read locally, and
+ * concurrent misses on the same locator share a single remote fetch.
  */
 public abstract class ExternalStoreManager extends StoreManager implements ExternalBlobIO {
 
     private final IncomingDirectory incoming = new IncomingDirectory(LC.zimbra_tmp_directory.value() + File.separator + "incoming");
     protected FileCache<String> localCache;
+    private final ConcurrentMap<String, FutureTask<FileCache.Item>> pendingFetches =
+        new ConcurrentHashMap<String, FutureTask<FileCache.Item>>();
 
     @Override
     public void startup() throws IOException, ServiceException {
@@ -118,6 +130,10 @@ public abstract class ExternalStoreManager extends StoreManager implements Exter
         if (blob == null || blob.isInserted()) {
             return true;
         }
+        // staging cached the content in case the blob got linked; it didn't
+        if (blob.getLocator() != null) {
+            localCache.remove(blob.getLocator());
+        }
         return deleteFromStore(blob.getLocator(), blob.getMailbox());
     }
 
@@ -181,23 +197,65 @@ public abstract class ExternalStoreManager extends StoreManager implements Exter
         FileCache.Item cached = null;
         if (fromCache) {
             cached = localCache.get(locator);
-            if (cached != null) {
-                ExternalBlob blob = new ExternalBlob(cached);
-                blob.setLocator(locator);
-                blob.setMbox(mbox);
-                return blob;
-            }
+            ZimbraPerf.COUNTER_EXTERNAL_CACHE_HIT_RATE.increment(cached != null ? 100 : 0);
         }
+        if (cached == null) {
+            cached = fetch(mbox, locator);
+        }
+        ExternalBlob blob = new ExternalBlob(cached);
+        blob.setLocator(locator);
+        blob.setMbox(mbox);
+        return blob;
+    }
 
-        InputStream is = readStreamFromStore(locator, mbox);
-        if (is == null) {
-            throw new IOException("Store " + this.getClass().getName() +" returned null for locator " + locator);
+    /**
+     * Downloads a blob into the local cache.  Concurrent misses on the same locator share a single download.
+     */
+    private FileCache.Item fetch(final Mailbox mbox, final String locator) throws IOException {
+        FutureTask<FileCache.Item> task = new FutureTask<FileCache.Item>(new Callable<FileCache.Item>() {
+            @Override
+            public FileCache.Item call() throws IOException {
+                long start = ZimbraPerf.STOPWATCH_EXTERNAL_FETCH.start();
+                InputStream is = readStreamFromStore(locator, mbox);
+                if (is == null) {
+                    throw new IOException("Store " + ExternalStoreManager.this.getClass().getName() +
+                        " returned null for locator " + locator);
+                }
+                try {
+                    return localCache.put(locator, is);
+                } finally {
+                    ByteUtil.closeStream(is);
+                    ZimbraPerf.STOPWATCH_EXTERNAL_FETCH.stop(start);
+                }
+            }
+        });
+        FutureTask<FileCache.Item> pending = pendingFetches.putIfAbsent(locator, task);
+        if (pending == null) {
+            try {
+                task.run();
+            } finally {
+                pendingFetches.remove(locator, task);
+            }
+            pending = task;
         } else {
-            cached = localCache.put(locator, is);
-            ExternalBlob blob = new ExternalBlob(cached);
-            blob.setLocator(locator);
-            blob.setMbox(mbox);
-            return blob;
+            ZimbraPerf.COUNTER_EXTERNAL_FETCH_COALESCED.increment();
+        }
+
+        try {
+            return pending.get();
+        } catch (ExecutionException e) {
+            Throwable cause = e.getCause();
+            if (cause instanceof IOException) {
+                throw (IOException) cause;
+            } else if (cause instanceof RuntimeException) {
+                throw (RuntimeException) cause;
+            } else if (cause instanceof Error) {
+                throw (Error) cause;
+            }
+            throw new IOException("unable to fetch blob " + locator, cause);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("interrupted while fetching blob " + locator);
         }
     }
 
@@ -244,7 +244,15 @@ public class BlobConsistencyChecker {
         if (!(sm instanceof FileBlobStore)) {
             throw ServiceException.INVALID_REQUEST(sm.getClass().getSimpleName() + " is not supported", null);
         }
+        return checkVolumes(volumeIds, mboxId, checkSize, reportUsedBlobs);
+    }
 
+    /**
+     * Reconciles the blobs of the given mailbox that the database places on the given volumes against the files on
+     * those volumes.
+     */
+    protected Results checkVolumes(Collection<Short> volumeIds, int mboxId, boolean checkSize, boolean reportUsedBlobs)
+    throws ServiceException {
         mailboxId = mboxId;
         this.checkSize = checkSize;
         this.reportUsedBlobs = reportUsedBlobs;
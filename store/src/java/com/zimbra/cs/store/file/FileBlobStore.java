@@ -17,8 +17,10 @@
 package com.zimbra.cs.store.file;
 
 import java.io.File;
+import java.io.FileInputStream;
 import java.io.IOException;
 import java.io.InputStream;
+import java.nio.channels.FileChannel;
 
 import com.zimbra.common.localconfig.DebugConfig;
 import com.zimbra.common.localconfig.LC;
@@ -113,15 +115,26 @@ public final class FileBlobStore extends StoreManager {
     throws IOException, ServiceException {
         // mailbox store is on the same volume as incoming directory, so just storeIncoming() and wrap it
         Blob blob = storeIncoming(in);
+        dedupe((VolumeBlob) blob);
         return new VolumeStagedBlob(mbox, (VolumeBlob) blob).markStagedDirectly();
     }
 
     @Override
     public VolumeStagedBlob stage(Blob blob, Mailbox mbox) throws IOException {
         // mailbox store is on the same volume as incoming directory, so no need to stage the blob
+        dedupe((VolumeBlob) blob);
         return new VolumeStagedBlob(mbox, (VolumeBlob) blob);
     }
 
+    /**
+     * Shares the file of an identical blob that is already in the store, if inline dedupe is turned on.
+     */
+    private void dedupe(VolumeBlob blob) throws IOException {
+        if (InlineDeduper.isEnabled()) {
+            InlineDeduper.getInstance().dedupe(blob);
+        }
+    }
+
     @Override
     public VolumeMailboxBlob copy(MailboxBlob src, Mailbox destMbox, int destItemId, int destRevision)
     throws IOException, ServiceException {
@@ -197,7 +210,9 @@ public final class FileBlobStore extends StoreManager {
     throws IOException, ServiceException {
         Volume volume = MANAGER.getCurrentMessageVolume();
         VolumeBlob blob = ((VolumeStagedBlob) src).getLocalBlob();
-        return link(blob, destMbox, destItemId, destRevision, volume.getId());
+        VolumeMailboxBlob mblob = link(blob, destMbox, destItemId, destRevision, volume.getId());
+        InlineDeduper.getInstance().record(mblob.getLocalBlob(), src.getDigest());
+        return mblob;
     }
 
     public VolumeMailboxBlob link(Blob src, Mailbox destMbox, int destItemId, int destRevision, short destVolumeId)
@@ -306,6 +321,7 @@ public final class FileBlobStore extends StoreManager {
         }
 
         VolumeBlob vblob = (VolumeBlob) new VolumeBlob(destFile, volume.getId()).copyCachedDataFrom(blob);
+        InlineDeduper.getInstance().record(vblob, src.getDigest());
         return new VolumeMailboxBlob(destMbox, destItemId, destRevision, volume.getLocator(), vblob);
     }
 
@@ -379,6 +395,18 @@ public final class FileBlobStore extends StoreManager {
         return new BlobInputStream(blob);
     }
 
+    @Override
+    public FileChannel getContentChannel(MailboxBlob mboxBlob) throws IOException {
+        if (mboxBlob == null) {
+            return null;
+        }
+        Blob blob = mboxBlob.getLocalBlob();
+        if (blob == null || blob.isCompressed()) {
+            return null;
+        }
+        return new FileInputStream(blob.getFile()).getChannel();
+    }
+
     @Override
     public boolean deleteStore(Mailbox mbox, Iterable<MailboxBlob.MailboxBlobInfo> blobs) throws IOException, ServiceException {
         assert blobs == null : "should not be passed a blob list since we support bulk blob delete";
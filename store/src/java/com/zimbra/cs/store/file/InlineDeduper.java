@@ -0,0 +1,153 @@
+/*
+ * ***** BEGIN LICENSE BLOCK *****
+ * Zimbra Collaboration Suite Server
+ * Copyright (C) 2016 Synacor, Inc.
+ *
+ * This program is free software: you can redistribute it and/or modify it under
+ * the terms of the GNU General Public License as published by the Free Software Foundation,
+ * version 2 of the License.
+ *
+ * This program is distributed in the hope that it will be useful, but WITHOUT ANY WARRANTY;
+ * without even the implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.
+ * See the GNU General Public License for more details.
+ * You should have received a copy of the GNU General Public License along with this program.
+ * If not, see <https://www.gnu.org/licenses/>.
+ * ***** END LICENSE BLOCK *****
+ */
+package com.zimbra.cs.store.file;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+import com.zimbra.common.localconfig.LC;
+import com.zimbra.common.util.FileUtil;
+import com.zimbra.common.util.ZimbraLog;
+import com.zimbra.cs.stats.ZimbraPerf;
+import com.zimbra.cs.store.BlobInputStream;
+import com.zimbra.znative.IO;
+import com.zimbra.znative.Util;
+
+/**
+ * Dedupes blobs as they are staged, instead of waiting for {@link BlobDeduper} to walk the volume.
+ * <p>
+ * Keeps a bounded LRU index from volume and digest to the path of a blob that was recently linked into a mailbox.
+ * When a blob with the same digest is staged on that volume, the incoming file is replaced by a hard link to the
+ * existing one, so that every mailbox ends up linking the same inode.  Deleting any of the links only drops the
+ * link count, so deletion needs no bookkeeping of its own.  The index is only a hint: an entry whose file has been
+ * deleted or moved is dropped on its next lookup.  Like {@link BlobDeduper}, this needs native hard link support.
+ */
+final class InlineDeduper {
+
+    private static final InlineDeduper INSTANCE = new InlineDeduper();
+
+    private final Map<String, String> index = new LinkedHashMap<String, String>(16, 0.75f, true) {
+        private static final long serialVersionUID = -3489203478934232519L;
+
+        @Override
+        protected boolean removeEldestEntry(Map.Entry<String, String> eldest) {
+            return size() > LC.zimbra_blob_inline_dedupe_index_size.intValue();
+        }
+    };
+
+    static InlineDeduper getInstance() {
+        return INSTANCE;
+    }
+
+    static boolean isEnabled() {
+        return LC.zimbra_blob_inline_dedupe.booleanValue() && Util.haveNativeCode();
+    }
+
+    private static String key(short volumeId, String digest) {
+        return volumeId + ":" + digest;
+    }
+
+    /**
+     * Remembers {@code blob}, which has just been linked into a mailbox, as the copy to share for {@code digest}.
+     */
+    void record(VolumeBlob blob, String digest) {
+        if (!isEnabled() || digest == null) {
+            return;
+        }
+        synchronized (index) {
+            index.put(key(blob.getVolumeId(), digest), blob.getPath());
+        }
+    }
+
+    private void forget(String key, String path) {
+        synchronized (index) {
+            if (path.equals(index.get(key))) {
+                index.remove(key);
+            }
+        }
+    }
+
+    /**
+     * Replaces the file of the incoming {@code blob} with a hard link to an existing blob with the same digest on the
+     * same volume, if the index knows one.
+     *
+     * @return the number of bytes saved, or 0 if the blob was left alone
+     */
+    long dedupe(VolumeBlob blob) throws IOException {
+        File file = blob.getFile();
+        long size = file.length();
+        if (size < LC.zimbra_blob_inline_dedupe_min_size.longValue()) {
+            return 0;
+        }
+
+        long start = ZimbraPerf.STOPWATCH_BLOB_DEDUPE_LOOKUP.start();
+        String key = key(blob.getVolumeId(), blob.getDigest());
+        String existingPath;
+        synchronized (index) {
+            existingPath = index.get(key);
+        }
+        ZimbraPerf.STOPWATCH_BLOB_DEDUPE_LOOKUP.stop(start);
+        if (existingPath == null) {
+            return 0;
+        }
+
+        File existing = new File(existingPath);
+        IO.FileInfo existingInfo = null;
+        try {
+            existingInfo = IO.fileInfo(existingPath);
+        } catch (IOException e) {
+            // deleted since it was indexed
+        }
+        if (existingInfo == null) {
+            forget(key, existingPath);
+            return 0;
+        }
+        IO.FileInfo info = IO.fileInfo(blob.getPath());
+        if (info == null || info.getInodeNum() == existingInfo.getInodeNum()) {
+            // already shared, e.g. the same incoming blob staged for another recipient
+            return 0;
+        }
+        boolean compressed = blob.isCompressed();
+        if (FileUtil.isGzipped(existing) != compressed || (!compressed && existingInfo.getSize() != size)) {
+            return 0;
+        }
+
+        // link to a temp path first and rename it over the incoming file, so that the file is always there
+        File tempFile = new File(blob.getPath() + "_DEDUPE");
+        try {
+            IO.link(existingPath, tempFile.getPath());
+            if (!tempFile.renameTo(file)) {
+                return 0;
+            }
+        } catch (IOException e) {
+            ZimbraLog.store.debug("Unable to link %s to %s.", existingPath, tempFile.getPath(), e);
+            forget(key, existingPath);
+            return 0;
+        } finally {
+            if (tempFile.exists()) {
+                tempFile.delete();
+            }
+        }
+        BlobInputStream.getFileDescriptorCache().remove(blob.getPath());  // Prevent stale cache read.
+
+        ZimbraLog.store.debug("Deduped %s against %s, saving %d bytes.", blob.getPath(), existingPath, size);
+        ZimbraPerf.COUNTER_BLOB_DEDUPE_BYTES_SAVED.increment(size);
+        return size;
+    }
+}
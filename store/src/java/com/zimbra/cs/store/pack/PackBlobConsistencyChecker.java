@@ -0,0 +1,125 @@
+/*
+ * ***** BEGIN LICENSE BLOCK *****
+ * Zimbra Collaboration Suite Server
+ * Copyright (C) 2016 Synacor, Inc.
+ *
+ * This program is free software: you can redistribute it and/or modify it under
+ * the terms of the GNU General Public License as published by the Free Software Foundation,
+ * version 2 of the License.
+ *
+ * This program is distributed in the hope that it will be useful, but WITHOUT ANY WARRANTY;
+ * without even the implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.
+ * See the GNU General Public License for more details.
+ * You should have received a copy of the GNU General Public License along with this program.
+ * If not, see <https://www.gnu.org/licenses/>.
+ * ***** END LICENSE BLOCK *****
+ */
+package com.zimbra.cs.store.pack;
+
+import java.io.IOException;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.Map;
+
+import com.zimbra.common.service.ServiceException;
+import com.zimbra.cs.db.DbBlobConsistency;
+import com.zimbra.cs.db.DbPool;
+import com.zimbra.cs.db.DbPool.DbConnection;
+import com.zimbra.cs.mailbox.Mailbox;
+import com.zimbra.cs.mailbox.MailboxManager;
+import com.zimbra.cs.store.StoreManager;
+import com.zimbra.cs.store.file.BlobConsistencyChecker;
+
+/**
+ * Consistency checker for {@link PackFileStoreManager}.  Blobs kept as files are checked volume by volume as in
+ * {@link BlobConsistencyChecker}; then every {@code pack:} locator in the database is looked up in the pack index
+ * and its record header read back, and pack blobs of the mailbox that no item refers to are reported as unexpected.
+ */
+public class PackBlobConsistencyChecker extends BlobConsistencyChecker {
+    private static final int CHUNK_SIZE = 500;
+
+    @Override
+    public Results check(Collection<Short> volumeIds, int mboxId, boolean checkSize, boolean reportUsedBlobs)
+    throws ServiceException {
+        StoreManager sm = StoreManager.getInstance();
+        if (!(sm instanceof PackFileStoreManager)) {
+            throw ServiceException.INVALID_REQUEST(sm.getClass().getSimpleName() + " is not supported", null);
+        }
+        checkVolumes(volumeIds, mboxId, checkSize, reportUsedBlobs);
+
+        PackStore packs = ((PackFileStoreManager) sm).getPackStore();
+        Map<Long, PackStore.Location> unexpected = new HashMap<Long, PackStore.Location>();
+        for (PackStore.Location loc : packs.list(mboxId)) {
+            unexpected.put(loc.blobId, loc);
+        }
+        Mailbox mbox = MailboxManager.getInstance().getMailboxById(mboxId);
+        DbConnection conn = null;
+        try {
+            conn = DbPool.getConnection();
+            int mailboxMaxId = DbBlobConsistency.getMaxId(conn, mbox);
+            int minId = 0;
+            int maxId = CHUNK_SIZE;
+            while (minId <= mailboxMaxId) {
+                for (BlobInfo blobInfo : DbBlobConsistency.getExternalMailItemBlobInfo(conn, mbox, minId, maxId)) {
+                    checkPackBlob(packs, blobInfo, unexpected);
+                }
+                for (BlobInfo blobInfo : DbBlobConsistency.getExternalMailItemDumpsterBlobInfo(conn, mbox, minId, maxId)) {
+                    checkPackBlob(packs, blobInfo, unexpected);
+                }
+                for (BlobInfo blobInfo : DbBlobConsistency.getExternalRevisionBlobInfo(conn, mbox, minId, maxId)) {
+                    checkPackBlob(packs, blobInfo, unexpected);
+                }
+                for (BlobInfo blobInfo : DbBlobConsistency.getExternalRevisionDumpsterBlobInfo(conn, mbox, minId, maxId)) {
+                    checkPackBlob(packs, blobInfo, unexpected);
+                }
+                minId = maxId + 1;
+                maxId += CHUNK_SIZE;
+            }
+        } finally {
+            DbPool.quietClose(conn);
+        }
+
+        for (PackStore.Location loc : unexpected.values()) {
+            BlobInfo bi = new BlobInfo();
+            bi.external = true;
+            bi.locator = PackFileStoreManager.getLocator(loc.blobId);
+            bi.path = bi.locator;
+            bi.fileSize = (long) loc.length;
+            results.unexpectedBlobs.put(0, bi);
+        }
+        return results;
+    }
+
+    private void checkPackBlob(PackStore packs, BlobInfo blobInfo, Map<Long, PackStore.Location> unexpected) {
+        if (!PackFileStoreManager.isPackLocator(blobInfo.path)) {
+            // volume locator, already checked against the files
+            return;
+        }
+        blobInfo.locator = blobInfo.path;
+        long blobId = PackFileStoreManager.getBlobId(blobInfo.locator);
+        unexpected.remove(blobId);
+        PackStore.Location loc;
+        try {
+            loc = packs.verify(blobId);
+        } catch (IOException e) {
+            blobInfo.fetchException = e;
+            results.missingBlobs.put(blobInfo.itemId, blobInfo);
+            return;
+        }
+        if (loc == null) {
+            results.missingBlobs.put(blobInfo.itemId, blobInfo);
+            return;
+        }
+        blobInfo.fileModContent = blobInfo.modContent;
+        blobInfo.fileSize = (long) loc.length;
+        if (reportUsedBlobs) {
+            results.usedBlobs.put(blobInfo.itemId, blobInfo);
+        }
+        if (checkSize) {
+            blobInfo.fileDataSize = (long) loc.length;
+            if (blobInfo.dbSize != blobInfo.fileDataSize) {
+                results.incorrectSize.put(blobInfo.itemId, blobInfo);
+            }
+        }
+    }
+}
@@ -0,0 +1,294 @@
+/*
+ * ***** BEGIN LICENSE BLOCK *****
+ * Zimbra Collaboration Suite Server
+ * Copyright (C) 2016 Synacor, Inc.
+ *
+ * This program is free software: you can redistribute it and/or modify it under
+ * the terms of the GNU General Public License as published by the Free Software Foundation,
+ * version 2 of the License.
+ *
+ * This program is distributed in the hope that it will be useful, but WITHOUT ANY WARRANTY;
+ * without even the implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.
+ * See the GNU General Public License for more details.
+ * You should have received a copy of the GNU General Public License along with this program.
+ * If not, see <https://www.gnu.org/licenses/>.
+ * ***** END LICENSE BLOCK *****
+ */
+package com.zimbra.cs.store.pack;
+
+import java.io.ByteArrayInputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.channels.FileChannel;
+import java.util.TimerTask;
+
+import com.google.common.annotations.VisibleForTesting;
+import com.zimbra.common.localconfig.DebugConfig;
+import com.zimbra.common.localconfig.LC;
+import com.zimbra.common.service.ServiceException;
+import com.zimbra.common.util.ByteUtil;
+import com.zimbra.common.util.FileCache;
+import com.zimbra.common.util.FileUtil;
+import com.zimbra.common.util.ZimbraLog;
+import com.zimbra.cs.mailbox.Mailbox;
+import com.zimbra.cs.store.Blob;
+import com.zimbra.cs.store.BlobBuilder;
+import com.zimbra.cs.store.MailboxBlob;
+import com.zimbra.cs.store.StagedBlob;
+import com.zimbra.cs.store.StoreManager;
+import com.zimbra.cs.store.file.FileBlobStore;
+import com.zimbra.cs.store.file.VolumeStagedBlob;
+import com.zimbra.cs.util.Zimbra;
+
+/**
+ * Stores small blobs in a {@link PackStore} instead of one file each, and everything else in a {@link FileBlobStore}.
+ * <p>
+ * Blobs are received and staged on the current message volume exactly as with {@link FileBlobStore}.  When a staged
+ * blob of at most {@code zimbra_pack_store_max_blob_size} bytes is linked into a mailbox, its uncompressed content is
+ * appended to the pack store under {@code zimbra_pack_store_directory} and the item gets a {@code pack:<id>} locator;
+ * larger blobs keep the volume id locator and the per-file layout.  Items stored before the switch keep working, since
+ * volume locators are passed through.  Dead space left by deleted blobs is reclaimed every
+ * {@code zimbra_pack_store_compact_interval} ms by compacting segments that are at least
+ * {@code zimbra_pack_store_compact_dead_percent} percent dead.  Pack blobs that are needed as files, e.g. for
+ * parsing, are extracted to a local cache like the one {@link com.zimbra.cs.store.external.ExternalStoreManager}
+ * keeps for remote blobs.
+ * <p>
+ * To use it, set {@code zimbra_class_store} to {@code com.zimbra.cs.store.pack.PackFileStoreManager}.
+ */
+public class PackFileStoreManager extends StoreManager {
+
+    static final String LOCATOR_PREFIX = "pack:";
+
+    private final FileBlobStore files = new FileBlobStore();
+    private PackStore packs;
+    private FileCache<String> localCache;
+    private TimerTask compactor;
+
+    @Override
+    public void startup() throws IOException, ServiceException {
+        files.startup();
+
+        packs = new PackStore(new File(LC.zimbra_pack_store_directory.value()),
+                LC.zimbra_pack_store_segment_size.longValue(), !DebugConfig.disableMessageStoreFsync);
+        packs.open();
+
+        File localCacheDir = new File(LC.zimbra_tmp_directory.value(), "packblobs");
+        FileUtil.deleteDir(localCacheDir);
+        FileUtil.ensureDirExists(localCacheDir);
+        localCache = FileCache.Builder.createWithStringKey(localCacheDir, false)
+            .maxFiles(LC.external_store_local_cache_max_files.intValue())
+            .maxBytes(LC.external_store_local_cache_max_bytes.longValue())
+            .minLifetime(LC.external_store_local_cache_min_lifetime.longValue()).build();
+
+        long interval = LC.zimbra_pack_store_compact_interval.longValue();
+        if (interval > 0) {
+            compactor = new CompactorTask();
+            Zimbra.sTimer.schedule(compactor, interval, interval);
+        }
+    }
+
+    @Override
+    public void shutdown() {
+        if (compactor != null) {
+            compactor.cancel();
+            compactor = null;
+        }
+        files.shutdown();
+        try {
+            packs.close();
+        } catch (IOException e) {
+            ZimbraLog.store.warn("Unable to close the pack store.", e);
+        }
+    }
+
+    private final class CompactorTask extends TimerTask {
+        @Override
+        public void run() {
+            try {
+                compact();
+            } catch (Throwable t) {
+                ZimbraLog.store.warn("Pack store compaction failed.", t);
+            }
+        }
+    }
+
+    /**
+     * Compacts the segments that have enough dead space and returns the number of bytes reclaimed.
+     */
+    public long compact() throws IOException {
+        return packs.compact(LC.zimbra_pack_store_compact_dead_percent.intValue());
+    }
+
+    static boolean isPackLocator(String locator) {
+        return locator != null && locator.startsWith(LOCATOR_PREFIX);
+    }
+
+    static long getBlobId(String locator) {
+        return Long.parseLong(locator.substring(LOCATOR_PREFIX.length()));
+    }
+
+    static String getLocator(long blobId) {
+        return LOCATOR_PREFIX + blobId;
+    }
+
+    @VisibleForTesting
+    PackStore getPackStore() {
+        return packs;
+    }
+
+    @Override
+    public boolean supports(StoreFeature feature, String locator) {
+        return supports(feature);
+    }
+
+    @Override
+    public boolean supports(StoreFeature feature) {
+        // deleteStore() finds the mailbox's pack blobs on its own, so bulk delete still works
+        return files.supports(feature);
+    }
+
+    @Override
+    public BlobBuilder getBlobBuilder() throws IOException, ServiceException {
+        return files.getBlobBuilder();
+    }
+
+    @Override
+    public Blob storeIncoming(InputStream data, boolean storeAsIs) throws IOException, ServiceException {
+        return files.storeIncoming(data, storeAsIs);
+    }
+
+    @Override
+    public StagedBlob stage(InputStream data, long actualSize, Mailbox mbox) throws IOException, ServiceException {
+        return files.stage(data, actualSize, mbox);
+    }
+
+    @Override
+    public StagedBlob stage(Blob blob, Mailbox mbox) throws IOException, ServiceException {
+        return files.stage(blob, mbox);
+    }
+
+    private static boolean shouldPack(StagedBlob staged) {
+        return staged instanceof VolumeStagedBlob && staged.getSize() >= 0 &&
+            staged.getSize() <= LC.zimbra_pack_store_max_blob_size.longValue();
+    }
+
+    private MailboxBlob pack(byte[] data, String digest, Mailbox destMbox, int destItemId, int destRevision)
+    throws IOException {
+        long blobId = packs.append(destMbox.getId(), data);
+        ZimbraLog.store.debug("Packed %d bytes for mailbox %d, id %d as blob %d.",
+            data.length, destMbox.getId(), destItemId, blobId);
+        MailboxBlob mblob = new PackMailboxBlob(this, destMbox, destItemId, destRevision, getLocator(blobId));
+        return mblob.setSize(data.length).setDigest(digest);
+    }
+
+    private MailboxBlob pack(StagedBlob src, Mailbox destMbox, int destItemId, int destRevision) throws IOException {
+        // the staged file may be compressed; the pack store keeps the raw content
+        Blob blob = ((VolumeStagedBlob) src).getLocalBlob();
+        byte[] data = ByteUtil.getContent(files.getContent(blob), (int) src.getSize());
+        return pack(data, src.getDigest(), destMbox, destItemId, destRevision);
+    }
+
+    @Override
+    public MailboxBlob copy(MailboxBlob src, Mailbox destMbox, int destItemId, int destRevision)
+    throws IOException, ServiceException {
+        if (!isPackLocator(src.getLocator())) {
+            return files.copy(src, destMbox, destItemId, destRevision);
+        }
+        byte[] data = packs.read(getBlobId(src.getLocator()));
+        return pack(data, src.getDigest(), destMbox, destItemId, destRevision);
+    }
+
+    @Override
+    public MailboxBlob link(StagedBlob src, Mailbox destMbox, int destItemId, int destRevision)
+    throws IOException, ServiceException {
+        if (!shouldPack(src)) {
+            return files.link(src, destMbox, destItemId, destRevision);
+        }
+        return pack(src, destMbox, destItemId, destRevision);
+    }
+
+    @Override
+    public MailboxBlob renameTo(StagedBlob src, Mailbox destMbox, int destItemId, int destRevision)
+    throws IOException, ServiceException {
+        if (!shouldPack(src)) {
+            return files.renameTo(src, destMbox, destItemId, destRevision);
+        }
+        MailboxBlob mblob = pack(src, destMbox, destItemId, destRevision);
+        files.delete(((VolumeStagedBlob) src).getLocalBlob());
+        return mblob;
+    }
+
+    @Override
+    public boolean delete(Blob blob) throws IOException {
+        return files.delete(blob);
+    }
+
+    @Override
+    public boolean delete(StagedBlob staged) throws IOException {
+        return files.delete(staged);
+    }
+
+    @Override
+    public boolean delete(MailboxBlob mblob) throws IOException {
+        if (mblob == null || !isPackLocator(mblob.getLocator())) {
+            return files.delete(mblob);
+        }
+        localCache.remove(mblob.getLocator());
+        return packs.delete(getBlobId(mblob.getLocator()));
+    }
+
+    @Override
+    public MailboxBlob getMailboxBlob(Mailbox mbox, int itemId, int revision, String locator, boolean validate)
+    throws ServiceException {
+        if (!isPackLocator(locator)) {
+            return files.getMailboxBlob(mbox, itemId, revision, locator, validate);
+        }
+        if (validate && packs.getLocation(getBlobId(locator)) == null) {
+            return null;
+        }
+        return new PackMailboxBlob(this, mbox, itemId, revision, locator);
+    }
+
+    @Override
+    public InputStream getContent(MailboxBlob mboxBlob) throws IOException {
+        if (mboxBlob == null || !isPackLocator(mboxBlob.getLocator())) {
+            return files.getContent(mboxBlob);
+        }
+        return new ByteArrayInputStream(packs.read(getBlobId(mboxBlob.getLocator())));
+    }
+
+    @Override
+    public InputStream getContent(Blob blob) throws IOException {
+        return files.getContent(blob);
+    }
+
+    @Override
+    public FileChannel getContentChannel(MailboxBlob mboxBlob) throws IOException {
+        if (mboxBlob == null || isPackLocator(mboxBlob.getLocator())) {
+            return null;
+        }
+        return files.getContentChannel(mboxBlob);
+    }
+
+    /**
+     * Returns pack blob {@code locator} as a file, extracting it to the local cache if it is not there yet.
+     */
+    Blob getLocalBlob(String locator) throws IOException {
+        FileCache.Item cached = localCache.get(locator);
+        if (cached == null) {
+            cached = localCache.put(locator, new ByteArrayInputStream(packs.read(getBlobId(locator))));
+        }
+        return new PackBlob(cached);
+    }
+
+    @Override
+    public boolean deleteStore(Mailbox mbox, Iterable<MailboxBlob.MailboxBlobInfo> blobs)
+    throws IOException, ServiceException {
+        for (PackStore.Location loc : packs.list(mbox.getId())) {
+            localCache.remove(getLocator(loc.blobId));
+            packs.delete(loc.blobId);
+        }
+        return files.deleteStore(mbox, blobs);
+    }
+}
@@ -0,0 +1,62 @@
+/*
+ * ***** BEGIN LICENSE BLOCK *****
+ * Zimbra Collaboration Suite Server
+ * Copyright (C) 2016 Synacor, Inc.
+ *
+ * This program is free software: you can redistribute it and/or modify it under
+ * the terms of the GNU General Public License as published by the Free Software Foundation,
+ * version 2 of the License.
+ *
+ * This program is distributed in the hope that it will be useful, but WITHOUT ANY WARRANTY;
+ * without even the implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.
+ * See the GNU General Public License for more details.
+ * You should have received a copy of the GNU General Public License along with this program.
+ * If not, see <https://www.gnu.org/licenses/>.
+ * ***** END LICENSE BLOCK *****
+ */
+package com.zimbra.cs.store.pack;
+
+import java.io.IOException;
+
+import com.zimbra.cs.mailbox.Mailbox;
+import com.zimbra.cs.store.Blob;
+import com.zimbra.cs.store.MailboxBlob;
+
+/**
+ * A blob stored in a pack segment.  {@link #getLocalBlob()} extracts it to a cached file on first use.
+ */
+public class PackMailboxBlob extends MailboxBlob {
+
+    private final PackFileStoreManager store;
+
+    PackMailboxBlob(PackFileStoreManager store, Mailbox mbox, int itemId, int revision, String locator) {
+        super(mbox, itemId, revision, locator);
+        this.store = store;
+    }
+
+    long getBlobId() {
+        return PackFileStoreManager.getBlobId(getLocator());
+    }
+
+    @Override
+    public Blob getLocalBlob() throws IOException {
+        Blob blob = store.getLocalBlob(getLocator());
+        setSize(blob.getRawSize());
+        return blob;
+    }
+
+    @Override
+    public int hashCode() {
+        return getLocator().hashCode();
+    }
+
+    @Override
+    public boolean equals(Object other) {
+        if (this == other) {
+            return true;
+        } else if (!(other instanceof PackMailboxBlob)) {
+            return false;
+        }
+        return getLocator().equals(((PackMailboxBlob) other).getLocator());
+    }
+}
@@ -0,0 +1,530 @@
+/*
+ * ***** BEGIN LICENSE BLOCK *****
+ * Zimbra Collaboration Suite Server
+ * Copyright (C) 2016 Synacor, Inc.
+ *
+ * This program is free software: you can redistribute it and/or modify it under
+ * the terms of the GNU General Public License as published by the Free Software Foundation,
+ * version 2 of the License.
+ *
+ * This program is distributed in the hope that it will be useful, but WITHOUT ANY WARRANTY;
+ * without even the implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.
+ * See the GNU General Public License for more details.
+ * You should have received a copy of the GNU General Public License along with this program.
+ * If not, see <https://www.gnu.org/licenses/>.
+ * ***** END LICENSE BLOCK *****
+ */
+package com.zimbra.cs.store.pack;
+
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileNotFoundException;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.ClosedByInterruptException;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeSet;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+import com.zimbra.common.util.FileUtil;
+import com.zimbra.common.util.ZimbraLog;
+import com.zimbra.cs.stats.ZimbraPerf;
+
+/**
+ * Append-only segment files holding many small blobs, and the index that maps each blob id to its place in them.
+ * <p>
+ * A blob is written to the active segment as a record header (magic, blob id, mailbox id, length) followed by its
+ * bytes; once the active segment reaches the configured size a new one is started.  Every change to the index is
+ * appended to {@code index.log}, which is replayed on startup, later records winning.  If the log is lost the index
+ * is rebuilt by scanning the record headers of the segments, which brings back blobs deleted since their segment was
+ * last compacted; the consistency checker reports those as unexpected blobs.  Deleting a blob only drops its index
+ * entry; the space is reclaimed by {@link #compact}, which copies the live records of mostly dead segments into the
+ * active one and deletes the old file.  Blob ids are never reused, so a locator stays valid across compaction.
+ * <p>
+ * Reads are lock-free positional reads against shared read-only channels; appends, deletes and compaction moves are
+ * serialized on the store.
+ */
+final class PackStore {
+
+    static final int RECORD_MAGIC = 0x5A504B31;
+    static final int RECORD_HEADER_SIZE = 4 + 8 + 4 + 4;
+    private static final int INDEX_RECORD_SIZE = 1 + 8 + 4 + 4 + 8 + 4;
+    private static final byte OP_PUT = 1;
+    private static final byte OP_DELETE = 2;
+    /** Carries the next unused blob id through a checkpoint, so that ids of deleted blobs are never handed out again. */
+    private static final byte OP_SEQUENCE = 3;
+    private static final String INDEX_FILE = "index.log";
+    private static final Pattern PAT_SEGMENT = Pattern.compile("([0-9]+)\\.pack");
+
+    /** Where a blob lives.  Instances are immutable; a moved blob gets a new one. */
+    static final class Location {
+        final long blobId;
+        final int mailboxId;
+        final int segment;
+        final long offset;
+        final int length;
+
+        Location(long blobId, int mailboxId, int segment, long offset, int length) {
+            this.blobId = blobId;
+            this.mailboxId = mailboxId;
+            this.segment = segment;
+            this.offset = offset;
+            this.length = length;
+        }
+
+        long getRecordSize() {
+            return RECORD_HEADER_SIZE + length;
+        }
+
+        @Override
+        public String toString() {
+            return String.format("%d@%d:%d+%d", blobId, segment, offset, length);
+        }
+    }
+
+    private final File dir;
+    private final long segmentSize;
+    private final boolean fsync;
+    private final ConcurrentMap<Long, Location> index = new ConcurrentHashMap<Long, Location>();
+    private final ConcurrentMap<Integer, FileChannel> readers = new ConcurrentHashMap<Integer, FileChannel>();
+    private final Object compactLock = new Object();
+
+    // guarded by this
+    private final Map<Integer, Long> liveBytes = new HashMap<Integer, Long>();
+    private final TreeSet<Integer> segments = new TreeSet<Integer>();
+    private FileChannel journal;
+    private long journalRecords;
+    private int activeSegment;
+    private FileChannel activeChannel;
+    private long activeSize;
+    private long nextBlobId = 1;
+
+    PackStore(File dir, long segmentSize, boolean fsync) {
+        this.dir = dir;
+        this.segmentSize = segmentSize;
+        this.fsync = fsync;
+    }
+
+    private File segmentFile(int segment) {
+        return new File(dir, String.format("%08d.pack", segment));
+    }
+
+    synchronized void open() throws IOException {
+        FileUtil.ensureDirExists(dir);
+        File[] files = dir.listFiles();
+        if (files != null) {
+            for (File file : files) {
+                Matcher m = PAT_SEGMENT.matcher(file.getName());
+                if (m.matches()) {
+                    segments.add(Integer.parseInt(m.group(1)));
+                }
+            }
+        }
+
+        File indexFile = new File(dir, INDEX_FILE);
+        if (indexFile.exists()) {
+            replay(indexFile);
+        } else if (!segments.isEmpty()) {
+            ZimbraLog.store.warn("%s is missing; rebuilding the pack index from %d segments.", indexFile, segments.size());
+            for (int segment : segments) {
+                scan(segment);
+            }
+        }
+        // drop entries pointing past the end of a segment, e.g. after a crash before the data reached the disk
+        for (Location loc : new ArrayList<Location>(index.values())) {
+            File file = segmentFile(loc.segment);
+            if (loc.offset + loc.getRecordSize() > file.length()) {
+                ZimbraLog.store.warn("Dropping pack blob %s, which is not in %s.", loc, file);
+                index.remove(loc.blobId, loc);
+            }
+        }
+        for (Location loc : index.values()) {
+            addLiveBytes(loc.segment, loc.getRecordSize());
+        }
+
+        activeSegment = segments.isEmpty() ? 1 : segments.last();
+        openActiveSegment();
+        if (activeSize >= segmentSize) {
+            rollSegment();
+        }
+        checkpoint();
+        ZimbraLog.store.info("Opened pack store %s with %d blobs in %d segments.", dir, index.size(), segments.size());
+    }
+
+    private void replay(File indexFile) throws IOException {
+        RandomAccessFile raf = new RandomAccessFile(indexFile, "rw");
+        try {
+            long length = raf.length();
+            long complete = length - length % INDEX_RECORD_SIZE;
+            ByteBuffer buf = ByteBuffer.allocate(INDEX_RECORD_SIZE);
+            FileChannel channel = raf.getChannel();
+            for (long pos = 0; pos < complete; pos += INDEX_RECORD_SIZE) {
+                buf.clear();
+                readFully(channel, buf, pos);
+                buf.flip();
+                byte op = buf.get();
+                Location loc = new Location(buf.getLong(), buf.getInt(), buf.getInt(), buf.getLong(), buf.getInt());
+                if (op == OP_SEQUENCE) {
+                    nextBlobId = Math.max(nextBlobId, loc.blobId);
+                    continue;
+                }
+                nextBlobId = Math.max(nextBlobId, loc.blobId + 1);
+                if (op == OP_PUT) {
+                    index.put(loc.blobId, loc);
+                } else {
+                    index.remove(loc.blobId);
+                }
+            }
+            if (complete != length) {
+                ZimbraLog.store.warn("Truncating torn record at the end of %s.", indexFile);
+                channel.truncate(complete);
+            }
+        } finally {
+            raf.close();
+        }
+    }
+
+    private void scan(int segment) throws IOException {
+        File file = segmentFile(segment);
+        RandomAccessFile raf = new RandomAccessFile(file, "r");
+        try {
+            FileChannel channel = raf.getChannel();
+            long size = channel.size();
+            ByteBuffer header = ByteBuffer.allocate(RECORD_HEADER_SIZE);
+            long pos = 0;
+            while (pos + RECORD_HEADER_SIZE <= size) {
+                header.clear();
+                readFully(channel, header, pos);
+                header.flip();
+                if (header.getInt() != RECORD_MAGIC) {
+                    ZimbraLog.store.warn("Bad record header in %s at offset %d; ignoring the rest of the segment.", file, pos);
+                    break;
+                }
+                Location loc = new Location(header.getLong(), header.getInt(), segment, pos, header.getInt());
+                if (pos + loc.getRecordSize() > size) {
+                    break;
+                }
+                // a compacted blob is copied forward, so the copy in the later segment or at the later offset wins
+                index.put(loc.blobId, loc);
+                nextBlobId = Math.max(nextBlobId, loc.blobId + 1);
+                pos += loc.getRecordSize();
+            }
+        } finally {
+            raf.close();
+        }
+    }
+
+    private void openActiveSegment() throws IOException {
+        segments.add(activeSegment);
+        activeChannel = new RandomAccessFile(segmentFile(activeSegment), "rw").getChannel();
+        activeSize = activeChannel.size();
+    }
+
+    private void rollSegment() throws IOException {
+        activeChannel.close();
+        activeSegment++;
+        openActiveSegment();
+    }
+
+    private void addLiveBytes(int segment, long delta) {
+        Long live = liveBytes.get(segment);
+        liveBytes.put(segment, (live == null ? 0 : live) + delta);
+    }
+
+    private void log(byte op, Location loc) throws IOException {
+        ByteBuffer buf = ByteBuffer.allocate(INDEX_RECORD_SIZE);
+        buf.put(op).putLong(loc.blobId).putInt(loc.mailboxId).putInt(loc.segment).putLong(loc.offset).putInt(loc.length);
+        buf.flip();
+        while (buf.hasRemaining()) {
+            journal.write(buf);
+        }
+        if (fsync) {
+            journal.force(false);
+        }
+        journalRecords++;
+    }
+
+    /** Rewrites {@code index.log} with one record per live blob. */
+    private void checkpoint() throws IOException {
+        File indexFile = new File(dir, INDEX_FILE);
+        File tempFile = new File(dir, INDEX_FILE + ".tmp");
+        if (journal != null) {
+            journal.close();
+        }
+        journal = new RandomAccessFile(tempFile, "rw").getChannel();
+        journal.truncate(0);
+        journalRecords = 0;
+        log(OP_SEQUENCE, new Location(nextBlobId, 0, 0, 0, 0));
+        for (Location loc : index.values()) {
+            log(OP_PUT, loc);
+        }
+        journal.force(false);
+        journal.close();
+        Files.move(tempFile.toPath(), indexFile.toPath(), StandardCopyOption.REPLACE_EXISTING,
+                StandardCopyOption.ATOMIC_MOVE);
+        RandomAccessFile raf = new RandomAccessFile(indexFile, "rw");
+        raf.seek(raf.length());
+        journal = raf.getChannel();
+    }
+
+    /** Writes a record for {@code blobId} to the active segment and returns its location.  Caller must hold the lock. */
+    private Location appendRecord(long blobId, int mailboxId, ByteBuffer data) throws IOException {
+        int length = data.remaining();
+        if (activeSize > 0 && activeSize + RECORD_HEADER_SIZE + length > segmentSize) {
+            rollSegment();
+        }
+        ByteBuffer header = ByteBuffer.allocate(RECORD_HEADER_SIZE);
+        header.putInt(RECORD_MAGIC).putLong(blobId).putInt(mailboxId).putInt(length);
+        header.flip();
+        long pos = activeSize;
+        while (header.hasRemaining()) {
+            pos += activeChannel.write(header, pos);
+        }
+        while (data.hasRemaining()) {
+            pos += activeChannel.write(data, pos);
+        }
+        if (fsync) {
+            activeChannel.force(false);
+        }
+        Location loc = new Location(blobId, mailboxId, activeSegment, activeSize, length);
+        activeSize = pos;
+        log(OP_PUT, loc);
+        index.put(blobId, loc);
+        addLiveBytes(loc.segment, loc.getRecordSize());
+        return loc;
+    }
+
+    /** Stores {@code data} for mailbox {@code mailboxId} and returns the id of the new blob. */
+    synchronized long append(int mailboxId, byte[] data) throws IOException {
+        long blobId = nextBlobId++;
+        appendRecord(blobId, mailboxId, ByteBuffer.wrap(data));
+        ZimbraPerf.COUNTER_PACK_STORE_APPEND.increment();
+        return blobId;
+    }
+
+    /** Removes blob {@code blobId} from the index; returns {@code false} if there was no such blob. */
+    synchronized boolean delete(long blobId) throws IOException {
+        Location loc = index.remove(blobId);
+        if (loc == null) {
+            return false;
+        }
+        log(OP_DELETE, loc);
+        addLiveBytes(loc.segment, -loc.getRecordSize());
+        return true;
+    }
+
+    Location getLocation(long blobId) {
+        return index.get(blobId);
+    }
+
+    /** Returns the locations of all blobs of mailbox {@code mailboxId}. */
+    List<Location> list(int mailboxId) {
+        List<Location> result = new ArrayList<Location>();
+        for (Location loc : index.values()) {
+            if (loc.mailboxId == mailboxId) {
+                result.add(loc);
+            }
+        }
+        return result;
+    }
+
+    int size() {
+        return index.size();
+    }
+
+    /** Returns the content of blob {@code blobId}. */
+    byte[] read(long blobId) throws IOException {
+        // a compaction may move the blob and delete its segment between the lookup and the read; look it up again
+        for (int attempt = 0; ; attempt++) {
+            Location loc = index.get(blobId);
+            if (loc == null) {
+                throw new FileNotFoundException("no pack blob " + blobId + " in " + dir);
+            }
+            try {
+                return read(loc, false);
+            } catch (ClosedChannelException | FileNotFoundException e) {
+                if (attempt >= 2 || index.get(blobId) == loc) {
+                    throw e;
+                }
+            }
+        }
+    }
+
+    /**
+     * Reads back and checks the record of blob {@code blobId}; returns its location, or {@code null} if there is no
+     * such blob.
+     */
+    Location verify(long blobId) throws IOException {
+        for (int attempt = 0; ; attempt++) {
+            Location loc = index.get(blobId);
+            if (loc == null) {
+                return null;
+            }
+            try {
+                read(loc, true);
+                return loc;
+            } catch (ClosedChannelException | FileNotFoundException e) {
+                if (attempt >= 2 || index.get(blobId) == loc) {
+                    throw e;
+                }
+            }
+        }
+    }
+
+    /** Reads the record at {@code loc}, checking its header if {@code verify} is set. */
+    byte[] read(Location loc, boolean verify) throws IOException {
+        FileChannel channel = getReader(loc.segment);
+        ByteBuffer buf = ByteBuffer.allocate(verify ? (int) loc.getRecordSize() : loc.length);
+        try {
+            readFully(channel, buf, verify ? loc.offset : loc.offset + RECORD_HEADER_SIZE);
+        } catch (ClosedByInterruptException e) {
+            // the interrupt closed the shared channel for everybody; let the next reader open a new one
+            readers.remove(loc.segment, channel);
+            throw e;
+        }
+        buf.flip();
+        if (verify && (buf.getInt() != RECORD_MAGIC || buf.getLong() != loc.blobId || buf.getInt() != loc.mailboxId ||
+                buf.getInt() != loc.length)) {
+            throw new IOException("bad record header for pack blob " + loc);
+        }
+        byte[] data = new byte[loc.length];
+        buf.get(data);
+        return data;
+    }
+
+    private FileChannel getReader(int segment) throws IOException {
+        FileChannel channel = readers.get(segment);
+        if (channel != null && channel.isOpen()) {
+            return channel;
+        }
+        if (channel != null) {
+            readers.remove(segment, channel);
+        }
+        FileChannel opened = new RandomAccessFile(segmentFile(segment), "r").getChannel();
+        channel = readers.putIfAbsent(segment, opened);
+        if (channel == null) {
+            return opened;
+        }
+        opened.close();
+        return channel;
+    }
+
+    private static void readFully(FileChannel channel, ByteBuffer buf, long pos) throws IOException {
+        while (buf.hasRemaining()) {
+            int read = channel.read(buf, pos);
+            if (read < 0) {
+                throw new EOFException("unexpected end of pack segment at offset " + pos);
+            }
+            pos += read;
+        }
+    }
+
+    /**
+     * Copies the live blobs out of every sealed segment whose dead space is at least {@code deadPercent} of its size
+     * and deletes the segment.  Blobs written or deleted meanwhile are not disturbed.
+     *
+     * @return the number of bytes reclaimed
+     */
+    long compact(int deadPercent) throws IOException {
+        synchronized (compactLock) {
+            return compactSegments(deadPercent);
+        }
+    }
+
+    private long compactSegments(int deadPercent) throws IOException {
+        List<Integer> candidates = new ArrayList<Integer>();
+        synchronized (this) {
+            for (int segment : segments) {
+                if (segment == activeSegment) {
+                    continue;
+                }
+                long size = segmentFile(segment).length();
+                Long live = liveBytes.get(segment);
+                long dead = size - (live == null ? 0 : live);
+                if (dead > 0 && dead * 100 >= size * deadPercent) {
+                    candidates.add(segment);
+                }
+            }
+        }
+
+        long reclaimed = 0;
+        for (int segment : candidates) {
+            List<Location> live = new ArrayList<Location>();
+            for (Location loc : index.values()) {
+                if (loc.segment == segment) {
+                    live.add(loc);
+                }
+            }
+            for (Location loc : live) {
+                byte[] data = read(loc, true);
+                synchronized (this) {
+                    if (index.get(loc.blobId) == loc) {
+                        appendRecord(loc.blobId, loc.mailboxId, ByteBuffer.wrap(data));
+                        addLiveBytes(segment, -loc.getRecordSize());
+                    }
+                }
+            }
+            synchronized (this) {
+                Long remaining = liveBytes.get(segment);
+                if (remaining != null && remaining > 0) {
+                    ZimbraLog.store.warn("Not removing pack segment %d, which still has %d live bytes.", segment, remaining);
+                    continue;
+                }
+                File file = segmentFile(segment);
+                long size = file.length();
+                FileChannel channel = readers.remove(segment);
+                if (channel != null) {
+                    channel.close();
+                }
+                // make sure the moved records and the index are on disk before the old copies go away
+                activeChannel.force(false);
+                checkpoint();
+                if (!file.delete()) {
+                    throw new IOException("unable to delete pack segment " + file);
+                }
+                segments.remove(segment);
+                liveBytes.remove(segment);
+                // a reader that looked the segment up just before it went away may have reopened it
+                channel = readers.remove(segment);
+                if (channel != null) {
+                    channel.close();
+                }
+                reclaimed += size;
+                ZimbraLog.store.info("Compacted pack segment %s, reclaiming %d bytes.", file, size);
+            }
+        }
+        synchronized (this) {
+            if (journalRecords > 2L * index.size() + 1000) {
+                checkpoint();
+            }
+        }
+        ZimbraPerf.COUNTER_PACK_STORE_BYTES_RECLAIMED.increment(reclaimed);
+        return reclaimed;
+    }
+
+    synchronized void close() throws IOException {
+        for (FileChannel channel : readers.values()) {
+            channel.close();
+        }
+        readers.clear();
+        if (activeChannel != null) {
+            activeChannel.close();
+            activeChannel = null;
+        }
+        if (journal != null) {
+            journal.close();
+            journal = null;
+        }
+    }
+}
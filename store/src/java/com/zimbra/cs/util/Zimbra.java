@@ -52,6 +52,7 @@ import com.zimbra.cs.ephemeral.LdapEphemeralStore;
 import com.zimbra.cs.extension.ExtensionUtil;
 import com.zimbra.cs.mailbox.MailboxIndex;
 import com.zimbra.cs.mailbox.MailboxManager;
+import com.zimbra.cs.mailbox.MetadataMigrationThread;
 import com.zimbra.cs.mailbox.PurgeThread;
 import com.zimbra.cs.mailbox.ScheduledTaskManager;
 import com.zimbra.cs.mailbox.acl.AclPushTask;
@@ -327,6 +328,10 @@ public final class Zimbra {
                 PurgeThread.startup();
             }
 
+            if (app.supports(MetadataMigrationThread.class.getName())) {
+                MetadataMigrationThread.startup();
+            }
+
             if (app.supports(AutoProvisionThread.class.getName())) {
                 AutoProvisionThread.switchAutoProvThreadIfNecessary();
             }
@@ -395,6 +400,7 @@ public final class Zimbra {
 
         if (sIsMailboxd) {
             PurgeThread.shutdown();
+            MetadataMigrationThread.shutdown();
             AutoProvisionThread.shutdown();
         }
 